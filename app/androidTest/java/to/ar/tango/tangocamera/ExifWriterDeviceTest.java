@@ -0,0 +1,60 @@
+package to.ar.tango.tangocamera;
+
+import android.graphics.ImageFormat;
+import android.media.ExifInterface;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a JPEG written in a single pass with the inline {@link ExifWriter} segment reads back through
+ * ExifInterface with the same tags as one rewritten by ExifInterface.saveAttributes. Run on a device with
+ * ./gradlew connectedAndroidTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExifWriterDeviceTest
+{
+   static final private int WIDTH = 640, HEIGHT = 480;
+
+   @Test
+   public void inlineMatchesExifInterface() throws Exception
+   {
+      File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+      File inline = new File(dir, "exif-inline.jpg"), rewritten = new File(dir, "exif-rewritten.jpg");
+      YamlEmitter yaml = new YamlEmitter(256);
+      yaml.comment("camera intrinsics");
+      yaml.key("fx").number(1042.25).newline();
+      yaml.key("distortion").vector(new double[] { 0.1, -0.2, 0.0, 0.0, 0.05 }).newline();
+      yaml.key("rotation").vector(1, 0, 0, 0).newline();
+
+      ByteBuffer nv21 = ByteBuffer.allocateDirect(JpegWriter.nv21Length(HEIGHT, WIDTH));
+      JpegWriter.writeYuv(inline, nv21, ImageFormat.NV21, WIDTH, HEIGHT, WIDTH, JpegWriter.DEFAULT_QUALITY,
+                          ExifWriter.app1(yaml.buffer(), yaml.length(), WIDTH, HEIGHT));
+      JpegWriter.writeYuv(rewritten, nv21, ImageFormat.NV21, WIDTH, HEIGHT, WIDTH, JpegWriter.DEFAULT_QUALITY);
+      ExifInterface exif = new ExifInterface(rewritten.getAbsolutePath());
+      exif.setAttribute("UserComment", new String(yaml.toByteArray(), StandardCharsets.US_ASCII));
+      exif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, Integer.toString(WIDTH));
+      exif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, Integer.toString(HEIGHT));
+      exif.saveAttributes();
+
+      ExifInterface expected = new ExifInterface(rewritten.getAbsolutePath()),
+                    actual = new ExifInterface(inline.getAbsolutePath());
+      assertNotNull(actual.getAttribute("UserComment"));
+      assertEquals(expected.getAttribute("UserComment"), actual.getAttribute("UserComment"));
+      assertEquals(Integer.toString(WIDTH), actual.getAttribute(ExifInterface.TAG_IMAGE_WIDTH));
+      assertEquals(Integer.toString(HEIGHT), actual.getAttribute(ExifInterface.TAG_IMAGE_LENGTH));
+      assertEquals(expected.getAttribute(ExifInterface.TAG_IMAGE_WIDTH),
+                   actual.getAttribute(ExifInterface.TAG_IMAGE_WIDTH));
+      assertEquals(expected.getAttribute(ExifInterface.TAG_IMAGE_LENGTH),
+                   actual.getAttribute(ExifInterface.TAG_IMAGE_LENGTH));
+      inline.delete();
+      rewritten.delete();
+   }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per frame latency of the previous YUV save path (JPEG in memory, decode to Bitmap, JPEG again)
+ * with streaming the YUV frame directly to JPEG. Run on a device with
+ * ./gradlew connectedAndroidTest and see the JpegEncodeBenchmark logcat output.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JpegEncodeBenchmark
+{
+   static final private String TAG = "JpegEncodeBenchmark";
+   static final private int WIDTH = 1920, HEIGHT = 1080, WARMUP = 3, ITERATIONS = 10, QUALITY = 100;
+
+   @Test
+   public void decodeReencodeVersusDirect() throws Exception
+   {
+      File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+      File jpeg = new File(dir, "benchmark.jpg");
+      ByteBuffer nv21 = syntheticNV21(WIDTH, HEIGHT);
+
+      for (int i = 0; i < WARMUP; i++)
+      {
+         decodeReencode(nv21, jpeg);
+         JpegWriter.writeYuv(jpeg, nv21, ImageFormat.NV21, WIDTH, HEIGHT, WIDTH, QUALITY);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++)
+         decodeReencode(nv21, jpeg);
+      double roundTrip = (System.nanoTime() - start) / (ITERATIONS * 1e6);
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++)
+         JpegWriter.writeYuv(jpeg, nv21, ImageFormat.NV21, WIDTH, HEIGHT, WIDTH, QUALITY);
+      double direct = (System.nanoTime() - start) / (ITERATIONS * 1e6);
+      Log.i(TAG, String.format("%dx%d NV21 q%d: decode/re-encode %.1f ms/frame, direct %.1f ms/frame, " +
+                               "saved %.1f ms/frame", WIDTH, HEIGHT, QUALITY, roundTrip, direct, roundTrip - direct));
+      assertTrue(jpeg.length() > 0);
+      jpeg.delete();
+   }
+
+   private static void decodeReencode(ByteBuffer nv21, File jpeg) throws Exception
+   {
+      YuvImage yuvImage = new YuvImage(JpegWriter.array(nv21), ImageFormat.NV21, WIDTH, HEIGHT,
+                                       new int[] { WIDTH, WIDTH });
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      yuvImage.compressToJpeg(new Rect(0, 0, WIDTH, HEIGHT), QUALITY, os);
+      byte[] jpegByteArray = os.toByteArray();
+      Bitmap bitmap = BitmapFactory.decodeByteArray(jpegByteArray, 0, jpegByteArray.length);
+      try (FileOutputStream fos = new FileOutputStream(jpeg))
+      {
+         bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, fos);
+      }
+      bitmap.recycle();
+   }
+
+   private static ByteBuffer syntheticNV21(int width, int height)
+   {
+      ByteBuffer nv21 = ByteBuffer.allocateDirect(JpegWriter.nv21Length(height, width)).order(ByteOrder.nativeOrder());
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+            nv21.put((byte) ((x ^ y) + (x * y >> 6)));
+      while (nv21.hasRemaining())
+         nv21.put((byte) (128 + (nv21.position() % 61) - 30));
+      nv21.flip();
+      return nv21;
+   }
+}
@@ -22,11 +22,13 @@ SOFTWARE.
 
 #include <string>
 #include <cmath>
+#include <algorithm>
 #include <vector>
 #include <memory>
 #include <atomic>
 #include <chrono>
 #include <thread>
+#include <mutex>
 
 #include <string.h>
 #include <sys/time.h>
@@ -50,6 +52,132 @@ static jmethodID java_request_render = nullptr, java_on_photo = nullptr, java_on
                  java_post_process = nullptr, java_toast = nullptr, java_error = nullptr;
 
 static std::unique_ptr<Renderer> renderer;
+
+// Pre-allocated Java direct buffers registered once from Java (ITango.registerBuffers) and filled natively so
+// captures don't allocate on the Java heap. Buffers are acquired by the Tango callbacks and released from Java
+// (ITango.releaseBuffer) once post processing is done with them. Buffers are handed to Java as a handle holding
+// the registration generation and the index, so releases of buffers from an earlier registration (which may
+// still be held by queued captures) are ignored instead of freeing a buffer of the current registration.
+struct DirectBufferPool
+//=====================
+{
+   static const int INDEX_BITS = 8, MAX_BUFFERS = 1 << INDEX_BITS, GENERATION_MASK = 0x7FFFFF;
+
+   // A buffer acquired for filling: a local reference (which keeps the buffer alive even if the pool is
+   // registered again meanwhile), its address and the handle to pass to Java.
+   struct Slot
+   {
+      jobject buffer = nullptr;
+      uint8_t* address = nullptr;
+      int handle = -1;
+   };
+
+   std::vector<jobject> buffers;
+   std::vector<uint8_t*> addresses;
+   std::vector<size_t> capacities;
+   std::vector<bool> in_use;
+   int generation = 0;
+   std::mutex mutex;
+
+   bool assign(JNIEnv* env, jobjectArray buffers_)
+   //---------------------------------------------
+   {
+      std::lock_guard<std::mutex> lock(mutex);
+      jsize n = (buffers_ == nullptr) ? 0 : env->GetArrayLength(buffers_);
+      if (n > MAX_BUFFERS)
+      {
+         ALOGE("DirectBufferPool::assign: Too many buffers (%d)", n);
+         return false;
+      }
+      if (is_registered(env, buffers_, n))
+         return true; // same buffers, keep the in use flags of the buffers handed out
+      clear(env);
+      generation = (generation + 1) & GENERATION_MASK;
+      for (jsize i=0; i<n; i++)
+      {
+         jobject buffer = env->GetObjectArrayElement(buffers_, i);
+         uint8_t* address = (buffer == nullptr) ? nullptr : static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+         jlong capacity = (buffer == nullptr) ? -1 : env->GetDirectBufferCapacity(buffer);
+         if ( (address == nullptr) || (capacity <= 0) )
+         {
+            ALOGE("DirectBufferPool::assign: Buffer %d is not a direct buffer", i);
+            if (buffer != nullptr) env->DeleteLocalRef(buffer);
+            clear(env);
+            return false;
+         }
+         buffers.push_back(env->NewGlobalRef(buffer));
+         env->DeleteLocalRef(buffer);
+         addresses.push_back(address);
+         capacities.push_back(static_cast<size_t>(capacity));
+         in_use.push_back(false);
+      }
+      return true;
+   }
+
+   // Called with the mutex held
+   void clear(JNIEnv* env)
+   //---------------------
+   {
+      for (jobject buffer : buffers)
+         env->DeleteGlobalRef(buffer);
+      buffers.clear(); addresses.clear(); capacities.clear(); in_use.clear();
+   }
+
+   /**
+    * Marks a free buffer of at least len bytes as in use and fills slot (the caller deletes slot.buffer).
+    * @return false if no buffer is free.
+    */
+   bool acquire(JNIEnv* env, size_t len, Slot& slot)
+   //-----------------------------------------------
+   {
+      std::lock_guard<std::mutex> lock(mutex);
+      for (size_t i=0; i<buffers.size(); i++)
+      {
+         if ( (capacities[i] >= len) && (! in_use[i]) )
+         {
+            in_use[i] = true;
+            slot.buffer = env->NewLocalRef(buffers[i]);
+            slot.address = addresses[i];
+            slot.handle = (generation << INDEX_BITS) | static_cast<int>(i);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   void release(int handle)
+   //----------------------
+   {
+      std::lock_guard<std::mutex> lock(mutex);
+      const int i = handle & (MAX_BUFFERS - 1);
+      if ( (handle >= 0) && ((handle >> INDEX_BITS) == generation) && (i < static_cast<int>(buffers.size())) )
+         in_use[i] = false;
+   }
+
+private:
+   // Called with the mutex held
+   bool is_registered(JNIEnv* env, jobjectArray buffers_, jsize n)
+   //-------------------------------------------------------------
+   {
+      if ( (n == 0) || (static_cast<size_t>(n) != buffers.size()) )
+         return false;
+      for (jsize i=0; i<n; i++)
+      {
+         jobject buffer = env->GetObjectArrayElement(buffers_, i);
+         const bool same = env->IsSameObject(buffer, buffers[i]);
+         env->DeleteLocalRef(buffer);
+         if (! same)
+            return false;
+      }
+      return true;
+   }
+};
+
+const int POOL_IMAGE = 0, POOL_POINTCLOUD = 1; // ITango.POOL_IMAGE, ITango.POOL_POINTCLOUD
+static DirectBufferPool pools[2];
+static jmethodID java_on_photo_buffer = nullptr, java_on_pointcloud_buffer = nullptr;
+static std::atomic<float> min_confidence{0.5f};
+static uint32_t max_pointcloud_points = 0;
 static double pointcloud_timestamp = -1;
 static int pose_retries = 0, pointcloud_retries = 0;
 
@@ -111,6 +239,12 @@ Java_to_ar_tango_tangocamera_ITango_create(JNIEnv *env, jclass klass, jobject ac
       ALOGE("itango::create: Could not obtain onPhoto method ref");
       return JNI_FALSE;
    }
+   java_on_photo_buffer = env->GetMethodID(cls, "onPhoto", "(ILjava/nio/ByteBuffer;IIIIIDDDDDDDD)V");
+   if (java_on_photo_buffer == nullptr)
+   {
+      env->ExceptionClear();
+      ALOGW("itango::create: Could not obtain onPhoto(ByteBuffer) method ref. Using byte[] image transfer");
+   }
    java_post_process = env->GetMethodID(cls, "postProcess", "()V");
    if (java_post_process == nullptr)
    {
@@ -125,6 +259,12 @@ Java_to_ar_tango_tangocamera_ITango_create(JNIEnv *env, jclass klass, jobject ac
       ALOGE("itango::create: Could not obtain onPointCloud method ref");
       return JNI_FALSE;
    }
+   java_on_pointcloud_buffer = env->GetMethodID(cls, "onPointCloud", "(Ljava/nio/ByteBuffer;IID)V");
+   if (java_on_pointcloud_buffer == nullptr)
+   {
+      env->ExceptionClear();
+      ALOGW("itango::create: Could not obtain onPointCloud(ByteBuffer) method ref. Using float[] point cloud transfer");
+   }
    java_toast = env->GetMethodID(cls, "asyncNotification", "(Ljava/lang/String;IZ)V");
    if (java_toast == nullptr)
       ALOGW("itango::create: Could not obtain asyncNotification method ref");
@@ -140,7 +280,47 @@ Java_to_ar_tango_tangocamera_ITango_destroy(JNIEnv *env, jclass type)
      TangoService_disconnect();
   env->DeleteGlobalRef(activity);
   activity = nullptr;
-  java_request_render = java_on_photo = java_post_process = nullptr;
+  java_request_render = java_on_photo = java_on_photo_buffer = java_on_pointcloud_buffer = java_post_process = nullptr;
+  for (DirectBufferPool& pool : pools)
+  {
+     std::lock_guard<std::mutex> lock(pool.mutex);
+     pool.clear(env);
+  }
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_to_ar_tango_tangocamera_ITango_registerBuffers(JNIEnv *env, jclass type, jint pool, jobjectArray buffers)
+//-----------------------------------------------------------------------------------------------------------
+{
+   if ( (pool < 0) || (pool >= static_cast<jint>(sizeof(pools)/sizeof(pools[0]))) )
+      return JNI_FALSE;
+   return (pools[pool].assign(env, buffers)) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_to_ar_tango_tangocamera_ITango_setMinConfidence(JNIEnv *env, jclass type, jfloat confidence)
+//----------------------------------------------------------------------------------------------
+{
+   min_confidence = confidence;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_to_ar_tango_tangocamera_ITango_maxPointCloudPoints(JNIEnv *env, jclass type)
+//-------------------------------------------------------------------------------
+{
+   return (is_depth) ? static_cast<jint>(max_pointcloud_points) : 0;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_to_ar_tango_tangocamera_ITango_releaseBuffer(JNIEnv *env, jclass type, jint pool, jint handle)
+//------------------------------------------------------------------------------------------------
+{
+   if ( (pool >= 0) && (pool < static_cast<jint>(sizeof(pools)/sizeof(pools[0]))) )
+      pools[pool].release(handle);
 }
 
 static void on_pointcloud(void* context, const TangoPointCloud* point_cloud)
@@ -157,42 +337,78 @@ static void on_pointcloud(void* context, const TangoPointCloud* point_cloud)
             return;
       }
 
-      float *ptr = (float *) point_cloud->points;
+      // Single compaction pass into either a pre-registered direct buffer or a vector reserved for the worst
+      // case. Points below MIN_CONFIDENCE or beyond MAX_RANGE count against the quality check below; of the
+      // rest only those meeting the user's minimum confidence preference are kept so Java doesn't filter again.
+      const float keep_confidence = std::max(MIN_CONFIDENCE, min_confidence.load());
+      const size_t len = static_cast<size_t>(no) * 4 * sizeof(float);
+      DirectBufferPool& pool = pools[POOL_POINTCLOUD];
+      DirectBufferPool::Slot slot;
+      const bool is_pooled = (java_on_pointcloud_buffer != nullptr) && (pool.acquire(env, len, slot));
+      std::unique_ptr<float[]> good_data; // uninitialized, unlike resizing a vector
+      float* out;
+      if (is_pooled)
+         out = reinterpret_cast<float*>(slot.address);
+      else
+      {
+         good_data.reset(new float[static_cast<size_t>(no) * 4]);
+         out = good_data.get();
+      }
+      const float *ptr = (const float *) point_cloud->points;
+      float* const out_start = out;
       int good = 0;
-      std::vector<float> good_data;
       for (int i=0; i<no; i++)
       {
-         float x = *ptr++;
-         float y = *ptr++;
-         float z = *ptr++;
-         float confidence = *ptr++;
-         if ( ( confidence >= MIN_CONFIDENCE) && (z <= MAX_RANGE) )
+         const float confidence = ptr[3];
+         if ( ( confidence >= MIN_CONFIDENCE) && (ptr[2] <= MAX_RANGE) )
          {
             good++;
-            good_data.push_back(x);
-            good_data.push_back(y);
-            good_data.push_back(z);
-            good_data.push_back(confidence);
+            if (confidence >= keep_confidence)
+            {
+               out[0] = ptr[0];
+               out[1] = ptr[1];
+               out[2] = ptr[2];
+               out[3] = confidence;
+               out += 4;
+            }
          }
+         ptr += 4;
       }
       if ( (no > 0) && (static_cast<double>(good)/static_cast<double>(no) <= 0.5) )
       {
          ALOGW("Not enough good pointcloud points (%d/%d)", good, no);
          if (pointcloud_retries++ < MAX_POINTCLOUD_RETRIES)
+         {
+            if (is_pooled)
+            {
+               pool.release(slot.handle);
+               env->DeleteLocalRef(slot.buffer);
+            }
             return;
+         }
       }
 
-      ALOGD("Copying pointcloud to Java array");
       pointcloud_timestamp = point_cloud->timestamp;
-      no = static_cast<int>(good_data.size());
-      jfloatArray data = env->NewFloatArray(no);
-      if (data == nullptr)
-         ALOGE("itango::on_pointcloud: Memory allocation error allocating Java image data buffer of size sizeof(jfloat)*4*%d", no);
+      const jint points = static_cast<jint>((out - out_start) / 4);
+      if (is_pooled)
+      {
+         ALOGD("Passing pointcloud in direct buffer %x", slot.handle);
+         env->CallVoidMethod(activity, java_on_pointcloud_buffer, slot.buffer, slot.handle, points,
+                             pointcloud_timestamp);
+         env->DeleteLocalRef(slot.buffer);
+      }
       else
       {
-         env->SetFloatArrayRegion(data, 0, static_cast<jsize>(good_data.size()), (const jfloat *)&good_data[0]);
-         env->CallVoidMethod(activity, java_on_pointcloud, data, pointcloud_timestamp);
-         env->DeleteLocalRef(data);
+         ALOGD("Copying pointcloud to Java array");
+         jfloatArray data = env->NewFloatArray(points * 4);
+         if (data == nullptr)
+            ALOGE("itango::on_pointcloud: Memory allocation error allocating Java image data buffer of size sizeof(jfloat)*4*%d", points);
+         else
+         {
+            env->SetFloatArrayRegion(data, 0, points * 4, (const jfloat *) good_data.get());
+            env->CallVoidMethod(activity, java_on_pointcloud, data, pointcloud_timestamp);
+            env->DeleteLocalRef(data);
+         }
       }
       has_pointcloud = true;
       ALOGD("Got pointcloud %ld %f", start_time, pointcloud_timestamp);
@@ -208,16 +424,16 @@ void on_image(void *context, TangoCameraId cameraid, const TangoImageBuffer *buf
       vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6);
 
       int image_format = 0x11; // NV21 from android.graphics.ImageFormat.NV21
-      int len;
+      size_t len = 0;
       switch (buffer->format)
       {
          case TANGO_HAL_PIXEL_FORMAT_YV12:
             image_format = 0x23; // android.graphics.ImageFormat.YUV_420_888;
-            len = (buffer->width * buffer->height * 12) / 8;
+            len = (std::max(buffer->width, buffer->stride) * buffer->height * 12) / 8;
             break;
          case TANGO_HAL_PIXEL_FORMAT_YCrCb_420_SP:
             image_format = 0x11; // NV21 from android.graphics.ImageFormat.NV21;
-            len = (buffer->width * buffer->height * 12) / 8; //NV21 or YUV_420_888
+            len = (std::max(buffer->width, buffer->stride) * buffer->height * 12) / 8; //NV21 or YUV_420_888
             break;
          case TANGO_HAL_PIXEL_FORMAT_RGBA_8888:
             image_format = 0x2A; // from android.graphics.ImageFormat.FLEX_RGBA_8888 but not really
@@ -225,25 +441,9 @@ void on_image(void *context, TangoCameraId cameraid, const TangoImageBuffer *buf
                                  // to successive bytes.
             len = buffer->width*buffer->height*4;
             break;
-      }
-
-      jbyteArray data = env->NewByteArray(len);
-      if (data == NULL)
-      {
-         ALOGE("itango::on_image: Memory allocation error allocating Java image data buffer");
-         return;
-      }
-      env->SetByteArrayRegion(data, 0, len, (jbyte *)buffer->data);
-
-      if ( (depth_enabled) && (is_depth) && (! has_pointcloud) )
-      {
-         if (java_toast != nullptr)
-         {
-            const char* str = "Hold Camera Steady. Gathering point cloud";
-            jstring jstr = env->NewStringUTF(str);
-            env->CallVoidMethod(activity, java_toast, jstr, TOAST_LENGTH_LONG, JNI_FALSE);
-            env->DeleteLocalRef(jstr);
-         }
+         default:
+            ALOGE("itango::on_image: Unsupported image format %d", buffer->format);
+            return;
       }
 
       TangoCoordinateFramePair frames_of_reference;
@@ -266,11 +466,53 @@ void on_image(void *context, TangoCameraId cameraid, const TangoImageBuffer *buf
             pose.translation[0] = pose.translation[1] = pose.translation[2] = 0;
          }
       }
+
+      // Copy into a pre-registered direct buffer if one is free, otherwise fall back to a Java byte[]
+      DirectBufferPool& pool = pools[POOL_IMAGE];
+      DirectBufferPool::Slot slot;
+      const bool is_pooled = (java_on_photo_buffer != nullptr) && (pool.acquire(env, len, slot));
+      jbyteArray data = nullptr;
+      if (is_pooled)
+         memcpy(slot.address, buffer->data, len);
+      else
+      {
+         data = env->NewByteArray(static_cast<jsize>(len));
+         if (data == NULL)
+         {
+            ALOGE("itango::on_image: Memory allocation error allocating Java image data buffer");
+            return;
+         }
+         env->SetByteArrayRegion(data, 0, static_cast<jsize>(len), (jbyte *)buffer->data);
+      }
+
+      if ( (depth_enabled) && (is_depth) && (! has_pointcloud) )
+      {
+         if (java_toast != nullptr)
+         {
+            const char* str = "Hold Camera Steady. Gathering point cloud";
+            jstring jstr = env->NewStringUTF(str);
+            env->CallVoidMethod(activity, java_toast, jstr, TOAST_LENGTH_LONG, JNI_FALSE);
+            env->DeleteLocalRef(jstr);
+         }
+      }
+
       ALOGD("Calling onPhoto");
-      env->CallVoidMethod(activity, java_on_photo, image_format, data, buffer->width, buffer->height,
-                          buffer->stride, pose.orientation[3], pose.orientation[0], pose.orientation[1],
-                          pose.orientation[2], pose.translation[0], pose.translation[1], pose.translation[2],
-                          buffer->timestamp);
+      if (is_pooled)
+      {
+         env->CallVoidMethod(activity, java_on_photo_buffer, image_format, slot.buffer, slot.handle,
+                             static_cast<jint>(len), buffer->width, buffer->height, buffer->stride,
+                             pose.orientation[3], pose.orientation[0], pose.orientation[1], pose.orientation[2],
+                             pose.translation[0], pose.translation[1], pose.translation[2], buffer->timestamp);
+         env->DeleteLocalRef(slot.buffer);
+      }
+      else
+      {
+         env->CallVoidMethod(activity, java_on_photo, image_format, data, buffer->width, buffer->height,
+                             buffer->stride, pose.orientation[3], pose.orientation[0], pose.orientation[1],
+                             pose.orientation[2], pose.translation[0], pose.translation[1], pose.translation[2],
+                             buffer->timestamp);
+         env->DeleteLocalRef(data);
+      }
       has_image = true;
       ALOGD("Got image %ld %f %f", start_time, buffer->timestamp, pose.timestamp);
    }
@@ -381,7 +623,7 @@ Java_to_ar_tango_tangocamera_ITango_serviceConnected(JNIEnv *env, jclass klass,
                  );
       if (is_depth)
       {
-         uint32_t max_vertex_count = static_cast<uint32_t>(temp);
+         max_pointcloud_points = static_cast<uint32_t>(temp);
          ret = TangoService_connectOnPointCloudAvailable(on_pointcloud);
          if (ret != TANGO_SUCCESS)
          {
@@ -471,6 +713,26 @@ Java_to_ar_tango_tangocamera_ITango_lastTimestamp(JNIEnv *env, jclass type)
       return -1;
 }
 
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_to_ar_tango_tangocamera_ITango_latestPose(JNIEnv *env, jclass type, jdoubleArray pose_)
+//-----------------------------------------------------------------------------------------
+{
+   if ( (! connected) || (env->GetArrayLength(pose_) < 8) )
+      return JNI_FALSE;
+   TangoCoordinateFramePair frames_of_reference;
+   frames_of_reference.base = TANGO_COORDINATE_FRAME_START_OF_SERVICE;
+   frames_of_reference.target = TANGO_COORDINATE_FRAME_DEVICE;
+   TangoPoseData pose;
+   if ( (TangoService_getPoseAtTime(0, frames_of_reference, &pose) != TANGO_SUCCESS) ||
+        (pose.status_code != TANGO_POSE_VALID) )
+      return JNI_FALSE;
+   // SetDoubleArrayRegion copies without pinning or allocating (called at up to a few hundred Hz)
+   const jdouble values[8] = { pose.timestamp, pose.orientation[3], pose.orientation[0], pose.orientation[1],
+                               pose.orientation[2], pose.translation[0], pose.translation[1], pose.translation[2] };
+   env->SetDoubleArrayRegion(pose_, 0, 8, values);
+   return JNI_TRUE;
+}
 
 extern "C"
 JNIEXPORT void JNICALL
@@ -551,21 +813,15 @@ Java_to_ar_tango_tangocamera_ITango_intrinsics(JNIEnv *env, jclass klass, jint c
    return ret;
 }
 
-extern "C"
-JNIEXPORT jboolean JNICALL
-Java_to_ar_tango_tangocamera_ITango_IMU2CameraPose(JNIEnv *env, jclass type, jint cameraId,
-                                                   jdoubleArray rotation_, jdoubleArray translation_)
-//--------------------------------------------------------------------------------------
+// Fills rotation [w, x, y, z] and translation [x, y, z] (either may be null) with the static pose of target
+// relative to the IMU frame.
+static jboolean imu_pose(JNIEnv *env, TangoCoordinateFrameType target, jdoubleArray rotation_,
+                         jdoubleArray translation_)
+//----------------------------------------------------------------------------------------------------------
 {
    TangoCoordinateFramePair frames_of_reference;
    frames_of_reference.base = TANGO_COORDINATE_FRAME_IMU;
-   switch (cameraId)
-   {
-      case TANGO_CAMERA_COLOR:   frames_of_reference.target = TANGO_COORDINATE_FRAME_CAMERA_COLOR; break;
-      case TANGO_CAMERA_DEPTH:   frames_of_reference.target = TANGO_COORDINATE_FRAME_CAMERA_DEPTH; break;
-      case TANGO_CAMERA_FISHEYE: frames_of_reference.target = TANGO_COORDINATE_FRAME_CAMERA_FISHEYE; break;
-      default: return JNI_FALSE;
-   }
+   frames_of_reference.target = target;
    jdouble *rotation = nullptr, *translation = nullptr;
    if ( (! env->IsSameObject(rotation_, nullptr)) && (env -> GetArrayLength(rotation_) >= 4) )
       rotation = env->GetDoubleArrayElements(rotation_, NULL);
@@ -596,6 +852,30 @@ Java_to_ar_tango_tangocamera_ITango_IMU2CameraPose(JNIEnv *env, jclass type, jin
    return (ret == TANGO_SUCCESS) ? JNI_TRUE : JNI_FALSE;
 }
 
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_to_ar_tango_tangocamera_ITango_IMU2CameraPose(JNIEnv *env, jclass type, jint cameraId,
+                                                   jdoubleArray rotation_, jdoubleArray translation_)
+//--------------------------------------------------------------------------------------
+{
+   switch (cameraId)
+   {
+      case TANGO_CAMERA_COLOR:   return imu_pose(env, TANGO_COORDINATE_FRAME_CAMERA_COLOR, rotation_, translation_);
+      case TANGO_CAMERA_DEPTH:   return imu_pose(env, TANGO_COORDINATE_FRAME_CAMERA_DEPTH, rotation_, translation_);
+      case TANGO_CAMERA_FISHEYE: return imu_pose(env, TANGO_COORDINATE_FRAME_CAMERA_FISHEYE, rotation_, translation_);
+      default: return JNI_FALSE;
+   }
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_to_ar_tango_tangocamera_ITango_IMU2DevicePose(JNIEnv *env, jclass type, jdoubleArray rotation_,
+                                                   jdoubleArray translation_)
+//----------------------------------------------------------------------------------------------------
+{
+   return imu_pose(env, TANGO_COORDINATE_FRAME_DEVICE, rotation_, translation_);
+}
+
 
 extern "C"
 JNIEXPORT void JNICALL
@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+/**
+ * Calibrations of all Tango cameras, queried once per Tango service connection instead of once per capture. The
+ * cache is filled on first use and must be invalidated whenever the service is (re)connected or disconnected, as
+ * the intrinsics and extrinsics may change between connections (eg after a recalibration).
+ */
+final class CalibrationCache
+//==========================
+{
+   interface Query
+   //=============
+   {
+      /**
+       * @return The calibration of <i>cameraId</i> or null if it is not available.
+       */
+      CameraCalibration query(int cameraId);
+   }
+
+   /** Number of real cameras (TANGO_MAX_CAMERA_ID is a bound, not a camera). */
+   static final int CAMERAS = ITango.TangoCameraId.TANGO_MAX_CAMERA_ID.ordinal();
+
+   private final Query query;
+
+   private static final class Calibrations
+   //=====================================
+   {
+      final CameraCalibration[] calibrations = new CameraCalibration[CAMERAS];
+      final ITango.CalibrationDetail[] details = new ITango.CalibrationDetail[CAMERAS];
+   }
+
+   private volatile Calibrations cache = null;
+
+   CalibrationCache(Query query) { this.query = query; }
+
+   /**
+    * @return The cached calibration of <i>cameraId</i> (a TangoCameraId ordinal) or null if it is not available.
+    */
+   CameraCalibration get(int cameraId)
+   //---------------------------------
+   {
+      if ( (cameraId < 0) || (cameraId >= CAMERAS) )
+         return null;
+      return calibrations().calibrations[cameraId];
+   }
+
+   CameraCalibration get(ITango.TangoCameraId id) { return get(id.ordinal()); }
+
+   ITango.CalibrationDetail detail(int cameraId)
+   //-------------------------------------------
+   {
+      if ( (cameraId < 0) || (cameraId >= CAMERAS) )
+         return null;
+      return calibrations().details[cameraId];
+   }
+
+   /**
+    * Discards the cached calibrations so that they are queried again on next use.
+    */
+   synchronized void invalidate() { cache = null; }
+
+   boolean isValid() { return (cache != null); }
+
+   private Calibrations calibrations()
+   //---------------------------------
+   {
+      Calibrations calibrations = cache;
+      if (calibrations != null)
+         return calibrations;
+      synchronized (this)
+      {
+         calibrations = cache;
+         if (calibrations == null)
+         {
+            calibrations = new Calibrations();
+            for (int id = 0; id < CAMERAS; id++)
+            {
+               CameraCalibration calibration = query.query(id);
+               if (calibration != null)
+               {
+                  calibrations.calibrations[id] = calibration;
+                  calibrations.details[id] = new ITango.CalibrationDetail(calibration);
+               }
+            }
+            cache = calibrations;
+         }
+      }
+      return calibrations;
+   }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Intrinsics and IMU to camera pose of one Tango camera, as stored with each capture.
+ */
+final class CameraCalibration
+//===========================
+{
+   final int cameraId, width, height;
+   final double fx, fy, cx, cy, hFOV, vFOV;
+   final double[] distortion = new double[5];
+   /** IMU to camera rotation quaternion [w, x, y, z] and translation [x, y, z], null if not available. */
+   final double[] imuRotation, imuTranslation;
+   /**
+    * IMU to device rotation quaternion [w, x, y, z] and translation [x, y, z], null if not available. Not specific
+    * to the camera but kept with its calibration as poses are reported for the device frame.
+    */
+   final double[] imuDeviceRotation, imuDeviceTranslation;
+   /** Inverse of the intrinsic matrix K, row major 3x3 (maps homogeneous pixels to normalized rays). */
+   final double[] inverseK;
+
+   /**
+    * Encoded YAML section for this camera, rendered once per device rotation (Surface.ROTATION_*) and reused.
+    * Atomic so that a section cached by one stage thread is seen fully written by the others.
+    */
+   private final AtomicReferenceArray<byte[]> yaml = new AtomicReferenceArray<>(4);
+
+   CameraCalibration(int cameraId, int width, int height, double fx, double fy, double cx, double cy,
+                     double hFOV, double vFOV, double[] distortion, double[] imuRotation, double[] imuTranslation)
+   //------------------------------------------------------------------------------------------------------------
+   {
+      this(cameraId, width, height, fx, fy, cx, cy, hFOV, vFOV, distortion, imuRotation, imuTranslation, null, null);
+   }
+
+   CameraCalibration(int cameraId, int width, int height, double fx, double fy, double cx, double cy,
+                     double hFOV, double vFOV, double[] distortion, double[] imuRotation, double[] imuTranslation,
+                     double[] imuDeviceRotation, double[] imuDeviceTranslation)
+   //------------------------------------------------------------------------------------------------------------
+   {
+      this.cameraId = cameraId;
+      this.width = width;
+      this.height = height;
+      this.fx = fx;
+      this.fy = fy;
+      this.cx = cx;
+      this.cy = cy;
+      this.hFOV = hFOV;
+      this.vFOV = vFOV;
+      System.arraycopy(distortion, 0, this.distortion, 0, 5);
+      if ( (imuRotation != null) && (imuTranslation != null) )
+      {
+         this.imuRotation = imuRotation.clone();
+         this.imuTranslation = imuTranslation.clone();
+      }
+      else
+         this.imuRotation = this.imuTranslation = null;
+      if ( (imuDeviceRotation != null) && (imuDeviceTranslation != null) )
+      {
+         this.imuDeviceRotation = imuDeviceRotation.clone();
+         this.imuDeviceTranslation = imuDeviceTranslation.clone();
+      }
+      else
+         this.imuDeviceRotation = this.imuDeviceTranslation = null;
+      inverseK = new double[] { 1 / fx, 0,      -cx / fx,
+                                0,      1 / fy, -cy / fy,
+                                0,      0,      1 };
+   }
+
+   boolean hasImuPose() { return (imuRotation != null); }
+
+   boolean hasImuDevicePose() { return (imuDeviceRotation != null); }
+
+   /**
+    * @return The YAML section previously rendered for <i>deviceRotation</i> by {@link #cacheYaml} or null.
+    */
+   byte[] yaml(int deviceRotation) { return yaml.get(deviceRotation & 3); }
+
+   /**
+    * Caches the encoded YAML section for this camera at <i>deviceRotation</i>. Rendering the same calibration
+    * concurrently yields identical bytes, so the first section cached is kept.
+    */
+   void cacheYaml(int deviceRotation, byte[] section) { yaml.compareAndSet(deviceRotation & 3, null, section); }
+}
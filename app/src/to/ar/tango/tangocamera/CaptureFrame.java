@@ -0,0 +1,136 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * An immutable capture: the image with the device pose and sensor readings at the time it was taken, the
+ * (optional) point cloud and the camera calibration. The native callbacks deliver the image and point cloud parts
+ * separately on Tango threads; MainActivity combines them into a CaptureFrame which is then handed to post
+ * processing through the {@link CaptureQueue}, which safely publishes it to the worker threads. Nothing in a frame
+ * is shared with the frame before or after it so captures can overlap. Frames are also read back from raw
+ * captures (see {@link RawCapture}).
+ * <p>The image and point cloud buffers are owned by the frame (usually pooled direct buffers identified by their
+ * native buffer handle, -1 if not pooled) until it is released with {@link MainActivity#release(CaptureFrame)}.</p>
+ */
+final class CaptureFrame
+//======================
+{
+   static final class Image
+   //======================
+   {
+      final int format, width, height, stride, bufferIndex;
+      final ByteBuffer data;
+      final double timestamp;
+      final Pose pose;
+      final SensorRing.Snapshot gravity, acceleration;
+
+      /**
+       * @param gravity Gravity sensor readings preceding the image (not copied, must not be modified afterwards).
+       * @param acceleration Accelerometer readings preceding the image (not copied).
+       */
+      Image(int format, ByteBuffer data, int bufferIndex, int width, int height, int stride, double timestamp,
+            Pose pose, SensorRing.Snapshot gravity, SensorRing.Snapshot acceleration)
+      //------------------------------------------------------------------------------------------------------
+      {
+         this.format = format;
+         this.data = data;
+         this.bufferIndex = bufferIndex;
+         this.width = width;
+         this.height = height;
+         this.stride = stride;
+         this.timestamp = timestamp;
+         this.pose = pose;
+         this.gravity = gravity;
+         this.acceleration = acceleration;
+      }
+   }
+
+   static final class Pose
+   //=====================
+   {
+      final double rotationW, rotationX, rotationY, rotationZ, translationX, translationY, translationZ;
+
+      Pose(double qw, double qx, double qy, double qz, double tx, double ty, double tz)
+      //-------------------------------------------------------------------------------
+      {
+         rotationW = qw; rotationX = qx; rotationY = qy; rotationZ = qz;
+         translationX = tx; translationY = ty; translationZ = tz;
+      }
+   }
+
+   static final class PointCloud
+   //===========================
+   {
+      /** x, y, z, confidence vertices */
+      final FloatBuffer points;
+      final int count, bufferIndex;
+      final double timestamp;
+
+      PointCloud(FloatBuffer points, int bufferIndex, int count, double timestamp)
+      //--------------------------------------------------------------------------
+      {
+         this.points = points;
+         this.bufferIndex = bufferIndex;
+         this.count = count;
+         this.timestamp = timestamp;
+      }
+   }
+
+   final Image image;
+   final PointCloud pointCloud;
+   final int deviceRotation;
+   /** Wall clock time (ms since the epoch) of the capture, used to name the output files. */
+   final long captureTime;
+   /** Color and depth camera calibration, null if not available. */
+   final CameraCalibration colorCalibration, depthCalibration;
+   /** Output preferences when the capture was taken, null to use the current preferences. */
+   final CaptureSettings settings;
+
+   CaptureFrame(Image image, PointCloud pointCloud, int deviceRotation, long captureTime,
+                CameraCalibration colorCalibration, CameraCalibration depthCalibration)
+   //-------------------------------------------------------------------------------------
+   {
+      this(image, pointCloud, deviceRotation, captureTime, colorCalibration, depthCalibration, null);
+   }
+
+   CaptureFrame(Image image, PointCloud pointCloud, int deviceRotation, long captureTime,
+                CameraCalibration colorCalibration, CameraCalibration depthCalibration, CaptureSettings settings)
+   //-------------------------------------------------------------------------------------------------------------
+   {
+      if (image == null)
+         throw new IllegalArgumentException("CaptureFrame: image required");
+      this.image = image;
+      this.pointCloud = pointCloud;
+      this.deviceRotation = deviceRotation;
+      this.captureTime = captureTime;
+      this.colorCalibration = colorCalibration;
+      this.depthCalibration = depthCalibration;
+      this.settings = settings;
+   }
+
+   boolean hasPointCloud() { return (pointCloud != null) && (pointCloud.count > 0); }
+}
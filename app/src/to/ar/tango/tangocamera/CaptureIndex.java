@@ -0,0 +1,584 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append only index of the captures in an output directory, so captures can be found by time or pose without
+ * listing the directory and parsing every .yaml file. Each capture appends a fixed width record (capture time,
+ * image timestamp, pose, device rotation, point count, raw gravity and acceleration, the base name and the sizes of
+ * the files written) to a memory mapped file. A raw capture which is later transcoded gets a second record with
+ * the same name, which supersedes the first in queries. {@link #rebuild} regenerates the index from the capture
+ * files themselves (also available from the command line through {@link #main}). Pure Java (no android
+ * dependencies).
+ * <p>Layout (little endian): a {@value #HEADER_SIZE} byte header holding an 8 byte magic number, version, record
+ * size and the record count, followed by {@value #RECORD_SIZE} byte records. The file grows in steps of
+ * {@value #GROW_RECORDS} records, the count is updated after the record is written.</p>
+ */
+public class CaptureIndex
+//=======================
+{
+   static final public String FILE_NAME = "captures.tcidx";
+
+   static final private byte[] MAGIC = { 'T', 'C', 'I', 'N', 'D', 'E', 'X', 0x1A };
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 64, RECORD_SIZE = 256, NAME_LENGTH = 56;
+   static final private int COUNT_OFFSET = 16;
+   static final private int GROW_RECORDS = 1024;
+
+   // Record field offsets
+   static final private int CAPTURE_TIME = 0, IMAGE_TIMESTAMP = 8, POSE = 16, DEVICE_ROTATION = 72,
+                            POINT_COUNT = 76, FLAGS = 80, GRAVITY = 88, ACCELERATION = 112, NAME_HASH = 136,
+                            SIZES = 144, NAME = 200;
+
+   static final public int FLAG_GRAVITY = 1, FLAG_ACCELERATION = 2, FLAG_RAW = 4;
+
+   /** Indices into {@link Record#sizes} of the files a capture may have. */
+   static final public int FILE_IMAGE = 0, FILE_YAML = 1, FILE_PLY = 2, FILE_QUANTIZED = 3, FILE_DEPTH = 4,
+                           FILE_RECTIFIED = 5, FILE_RAW = 6;
+   static final String[] SUFFIXES = { ".jpg", ".yaml", ".ply", QuantizedCloud.EXTENSION, DepthRegistration.EXTENSION,
+                                      UndistortionMap.SUFFIX, RawCapture.EXTENSION };
+
+   static final private Map<String, CaptureIndex> indices = new HashMap<>();
+
+   final File file;
+   private RandomAccessFile raf;
+   private FileChannel channel;
+   private MappedByteBuffer map;
+   private int count, capacity;
+   private boolean isClosed = false;
+
+   /**
+    * One capture in the index.
+    */
+   static final public class Record
+   //==============================
+   {
+      final String name;
+      final long captureTime;
+      final double imageTimestamp;
+      final CaptureFrame.Pose pose;
+      final int deviceRotation, pointCount, flags;
+      /** Raw gravity and acceleration at the image timestamp, null if not recorded. */
+      final double[] gravity, acceleration;
+      /** File sizes indexed by FILE_*, 0 if the capture does not have the file. */
+      final long[] sizes;
+
+      Record(String name, long captureTime, double imageTimestamp, CaptureFrame.Pose pose, int deviceRotation,
+             int pointCount, double[] gravity, double[] acceleration, long[] sizes)
+      //---------------------------------------------------------------------------------------------------------
+      {
+         this.name = name;
+         this.captureTime = captureTime;
+         this.imageTimestamp = imageTimestamp;
+         this.pose = pose;
+         this.deviceRotation = deviceRotation;
+         this.pointCount = pointCount;
+         this.gravity = gravity;
+         this.acceleration = acceleration;
+         this.sizes = sizes;
+         this.flags = ((gravity != null) ? FLAG_GRAVITY : 0) | ((acceleration != null) ? FLAG_ACCELERATION : 0) |
+                      ((sizes[FILE_RAW] > 0) ? FLAG_RAW : 0);
+      }
+
+      /**
+       * @return The files of this capture in <i>dir</i> (those recorded with a non zero size).
+       */
+      public List<File> files(File dir)
+      //-------------------------------
+      {
+         List<File> files = new ArrayList<>();
+         for (int i = 0; i < SUFFIXES.length; i++)
+            if (sizes[i] > 0)
+               files.add(new File(dir, name + SUFFIXES[i]));
+         return files;
+      }
+
+      @Override public String toString() { return name; }
+   }
+
+   /**
+    * @return The (shared) index of the captures in <i>dir</i>, created empty if it does not exist.
+    */
+   static public CaptureIndex open(File dir) throws IOException
+   //----------------------------------------------------------
+   {
+      synchronized (indices)
+      {
+         String key = dir.getAbsolutePath();
+         CaptureIndex index = indices.get(key);
+         if (index == null)
+         {
+            index = new CaptureIndex(new File(dir, FILE_NAME));
+            indices.put(key, index);
+         }
+         return index;
+      }
+   }
+
+   CaptureIndex(File file) throws IOException
+   //----------------------------------------
+   {
+      this.file = file;
+      raf = new RandomAccessFile(file, "rw");
+      try
+      {
+         channel = raf.getChannel();
+         long size = channel.size();
+         if (size == 0)
+         {
+            grow(GROW_RECORDS);
+            map.put(MAGIC).putInt(VERSION).putInt(RECORD_SIZE);
+            map.putLong(COUNT_OFFSET, 0);
+            count = 0;
+         }
+         else
+         {
+            if (size < HEADER_SIZE)
+               throw new IOException("CaptureIndex: " + file.getName() + " is too short");
+            capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            for (byte b : MAGIC)
+               if (map.get() != b)
+                  throw new IOException("CaptureIndex: " + file.getName() + " is not a capture index");
+            final int version = map.getInt(), recordSize = map.getInt();
+            if ( (version != VERSION) || (recordSize != RECORD_SIZE) )
+               throw new IOException("CaptureIndex: Unsupported version " + version + " in " + file.getName());
+            long n = map.getLong(COUNT_OFFSET);
+            if ( (n < 0) || (n > capacity) )
+               throw new IOException("CaptureIndex: Corrupt record count " + n + " in " + file.getName());
+            count = (int) n;
+         }
+      }
+      catch (IOException e)
+      {
+         raf.close();
+         throw e;
+      }
+   }
+
+   synchronized public int count() { return count; }
+
+   /**
+    * Appends <i>record</i> to the index.
+    */
+   synchronized public void append(Record record) throws IOException
+   //----------------------------------------------------------------
+   {
+      if (isClosed)
+         throw new IOException("CaptureIndex: " + file.getName() + " was replaced by a rebuild");
+      if (count >= capacity)
+         grow(capacity + Math.max(GROW_RECORDS, capacity / 2));
+      final int offset = HEADER_SIZE + count * RECORD_SIZE;
+      map.putLong(offset + CAPTURE_TIME, record.captureTime);
+      map.putDouble(offset + IMAGE_TIMESTAMP, record.imageTimestamp);
+      final CaptureFrame.Pose pose = record.pose;
+      map.putDouble(offset + POSE, pose.rotationW).putDouble(offset + POSE + 8, pose.rotationX)
+         .putDouble(offset + POSE + 16, pose.rotationY).putDouble(offset + POSE + 24, pose.rotationZ)
+         .putDouble(offset + POSE + 32, pose.translationX).putDouble(offset + POSE + 40, pose.translationY)
+         .putDouble(offset + POSE + 48, pose.translationZ);
+      map.putInt(offset + DEVICE_ROTATION, record.deviceRotation);
+      map.putInt(offset + POINT_COUNT, record.pointCount);
+      map.putInt(offset + FLAGS, record.flags);
+      map.putInt(offset + FLAGS + 4, 0);
+      for (int i = 0; i < 3; i++)
+      {
+         map.putDouble(offset + GRAVITY + i * 8, (record.gravity != null) ? record.gravity[i] : 0);
+         map.putDouble(offset + ACCELERATION + i * 8, (record.acceleration != null) ? record.acceleration[i] : 0);
+      }
+      map.putLong(offset + NAME_HASH, hash(record.name));
+      for (int i = 0; i < SUFFIXES.length; i++)
+         map.putLong(offset + SIZES + i * 8, record.sizes[i]);
+      final int length = Math.min(record.name.length(), NAME_LENGTH);
+      for (int i = 0; i < NAME_LENGTH; i++)
+         map.put(offset + NAME + i, (i < length) ? (byte) record.name.charAt(i) : 0);
+      map.putLong(COUNT_OFFSET, ++count);
+   }
+
+   /**
+    * @return Record <i>index</i> (0 to {@link #count()} - 1), including superseded records.
+    */
+   synchronized public Record get(int index)
+   //---------------------------------------
+   {
+      if ( (index < 0) || (index >= count) )
+         throw new IndexOutOfBoundsException("CaptureIndex: " + index + " of " + count);
+      final int offset = HEADER_SIZE + index * RECORD_SIZE;
+      final int flags = map.getInt(offset + FLAGS);
+      double[] gravity = null, acceleration = null;
+      if ((flags & FLAG_GRAVITY) != 0)
+         gravity = new double[] { map.getDouble(offset + GRAVITY), map.getDouble(offset + GRAVITY + 8),
+                                  map.getDouble(offset + GRAVITY + 16) };
+      if ((flags & FLAG_ACCELERATION) != 0)
+         acceleration = new double[] { map.getDouble(offset + ACCELERATION), map.getDouble(offset + ACCELERATION + 8),
+                                       map.getDouble(offset + ACCELERATION + 16) };
+      long[] sizes = new long[SUFFIXES.length];
+      for (int i = 0; i < sizes.length; i++)
+         sizes[i] = map.getLong(offset + SIZES + i * 8);
+      StringBuilder name = new StringBuilder(NAME_LENGTH);
+      for (int i = 0; i < NAME_LENGTH; i++)
+      {
+         final byte b = map.get(offset + NAME + i);
+         if (b == 0)
+            break;
+         name.append((char) b);
+      }
+      CaptureFrame.Pose pose = new CaptureFrame.Pose(map.getDouble(offset + POSE), map.getDouble(offset + POSE + 8),
+                                                     map.getDouble(offset + POSE + 16),
+                                                     map.getDouble(offset + POSE + 24),
+                                                     map.getDouble(offset + POSE + 32),
+                                                     map.getDouble(offset + POSE + 40),
+                                                     map.getDouble(offset + POSE + 48));
+      return new Record(name.toString(), map.getLong(offset + CAPTURE_TIME), map.getDouble(offset + IMAGE_TIMESTAMP),
+                        pose, map.getInt(offset + DEVICE_ROTATION), map.getInt(offset + POINT_COUNT), gravity,
+                        acceleration, sizes);
+   }
+
+   /**
+    * @return The current records of the captures made between <i>fromTime</i> and <i>toTime</i> (inclusive,
+    * milliseconds since the epoch) in capture time order. Only the fixed width time fields are read until a
+    * record matches.
+    */
+   synchronized public List<Record> range(long fromTime, long toTime)
+   //-----------------------------------------------------------------
+   {
+      List<Record> records = new ArrayList<>();
+      LongIntMap seen = new LongIntMap(64);
+      for (int i = count - 1; i >= 0; i--)
+      {
+         final int offset = HEADER_SIZE + i * RECORD_SIZE;
+         if (seen.putIfAbsent(map.getLong(offset + NAME_HASH), i) != LongIntMap.MISSING)
+            continue; // superseded by a later record
+         final long time = map.getLong(offset + CAPTURE_TIME);
+         if ( (time >= fromTime) && (time <= toTime) )
+            records.add(get(i));
+      }
+      Collections.sort(records, new Comparator<Record>()
+      {
+         @Override public int compare(Record a, Record b) { return Long.compare(a.captureTime, b.captureTime); }
+      });
+      return records;
+   }
+
+   /**
+    * @return The current record of the capture whose position is nearest (tx, ty, tz) or null if the index is
+    * empty.
+    */
+   public Record nearest(double tx, double ty, double tz) { return nearest(tx, ty, tz, 1, 0, 0, 0, 0); }
+
+   /**
+    * @return The current record of the capture with the pose nearest to the position (tx, ty, tz) and rotation
+    * quaternion (qw, qx, qy, qz), with distances being the distance between the positions in metres plus the angle
+    * between the rotations multiplied by <i>metresPerRadian</i> (0 to match on position only). Null if the index
+    * is empty.
+    */
+   synchronized public Record nearest(double tx, double ty, double tz, double qw, double qx, double qy, double qz,
+                                      double metresPerRadian)
+   //-----------------------------------------------------------------------------------------------------------
+   {
+      final double qnorm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+      LongIntMap seen = new LongIntMap(64);
+      double best = Double.MAX_VALUE;
+      int nearest = -1;
+      for (int i = count - 1; i >= 0; i--)
+      {
+         final int offset = HEADER_SIZE + i * RECORD_SIZE;
+         if (seen.putIfAbsent(map.getLong(offset + NAME_HASH), i) != LongIntMap.MISSING)
+            continue;
+         final double dx = map.getDouble(offset + POSE + 32) - tx, dy = map.getDouble(offset + POSE + 40) - ty,
+                      dz = map.getDouble(offset + POSE + 48) - tz;
+         double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+         if ( (metresPerRadian > 0) && (qnorm > 0) )
+         {
+            final double w = map.getDouble(offset + POSE), x = map.getDouble(offset + POSE + 8),
+                         y = map.getDouble(offset + POSE + 16), z = map.getDouble(offset + POSE + 24);
+            final double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+            if (norm > 0)
+            {
+               final double dot = Math.min(1, Math.abs(w * qw + x * qx + y * qy + z * qz) / (norm * qnorm));
+               distance += 2 * Math.acos(dot) * metresPerRadian;
+            }
+         }
+         if (distance < best)
+         {
+            best = distance;
+            nearest = i;
+         }
+      }
+      return (nearest < 0) ? null : get(nearest);
+   }
+
+   /**
+    * @return A record for <i>frame</i> saved in <i>dir</i> with base name <i>name</i>, with the sizes of either
+    * the raw capture file only (<i>isRaw</i>) or of the processed files.
+    */
+   static Record record(CaptureFrame frame, String name, File dir, boolean isRaw)
+   //----------------------------------------------------------------------------
+   {
+      long[] sizes = new long[SUFFIXES.length];
+      for (int i = 0; i < SUFFIXES.length; i++)
+         if ( (i == FILE_RAW) == isRaw )
+            sizes[i] = new File(dir, name + SUFFIXES[i]).length();
+      final double ts = frame.image.timestamp;
+      double[] gravity = new double[3], acceleration = new double[3];
+      if ( (frame.image.gravity == null) || (! frame.image.gravity.interpolate(ts, gravity)) )
+         gravity = null;
+      if ( (frame.image.acceleration == null) || (! frame.image.acceleration.interpolate(ts, acceleration)) )
+         acceleration = null;
+      return new Record(name, frame.captureTime, ts, frame.image.pose, frame.deviceRotation,
+                        frame.hasPointCloud() ? frame.pointCloud.count : 0, gravity, acceleration, sizes);
+   }
+
+   /**
+    * Regenerates the index of <i>dir</i> from the .yaml files of processed captures and the raw capture files,
+    * replacing any existing index.
+    * @param messages Appended to with a line for each file skipped.
+    * @return The number of captures indexed.
+    */
+   static public int rebuild(File dir, StringBuilder messages) throws IOException
+   //----------------------------------------------------------------------------
+   {
+      File[] files = dir.listFiles();
+      List<Record> records = new ArrayList<>();
+      if (files != null)
+      {
+         for (File f : files)
+         {
+            final String filename = f.getName();
+            if (filename.endsWith(RawCapture.EXTENSION))
+            {
+               final String name = filename.substring(0, filename.length() - RawCapture.EXTENSION.length());
+               try
+               {
+                  records.add(record(RawCapture.read(f), name, dir, true));
+               }
+               catch (IOException e)
+               {
+                  messages.append("CaptureIndex: Skipping ").append(filename).append(": ").append(e.getMessage())
+                          .append('\n');
+               }
+            }
+            else if (filename.endsWith(".yaml"))
+            {
+               final String name = filename.substring(0, filename.length() - 5);
+               try
+               {
+                  records.add(readYaml(dir, name));
+               }
+               catch (IOException | ParseException | NumberFormatException e)
+               {
+                  messages.append("CaptureIndex: Skipping ").append(filename).append(": ").append(e.getMessage())
+                          .append('\n');
+               }
+            }
+         }
+      }
+      // In time order with a processed record after the raw record of the same capture (an interrupted transcode)
+      Collections.sort(records, new Comparator<Record>()
+      {
+         @Override public int compare(Record a, Record b)
+         {
+            int c = Long.compare(a.captureTime, b.captureTime);
+            if (c == 0)
+               c = a.name.compareTo(b.name);
+            if (c == 0)
+               c = Integer.compare(b.flags & FLAG_RAW, a.flags & FLAG_RAW);
+            return c;
+         }
+      });
+
+      File indexFile = new File(dir, FILE_NAME), part = new File(dir, FILE_NAME + ".part");
+      part.delete();
+      synchronized (indices)
+      {
+         CaptureIndex index = new CaptureIndex(part);
+         try
+         {
+            for (Record record : records)
+               index.append(record);
+         }
+         finally
+         {
+            index.close();
+         }
+         // Unmap an open index before replacing its file (its mapping would otherwise keep the old file alive)
+         CaptureIndex old = indices.remove(dir.getAbsolutePath());
+         if (old != null)
+            old.close();
+         if ( ( (indexFile.exists()) && (! indexFile.delete()) ) || (! part.renameTo(indexFile)) )
+         {
+            part.delete();
+            throw new IOException("CaptureIndex: Could not replace " + indexFile.getName());
+         }
+      }
+      return records.size();
+   }
+
+   /**
+    * Rebuilds the index of each directory given on the command line.
+    */
+   public static void main(String[] args) throws IOException
+   //-------------------------------------------------------
+   {
+      if (args.length == 0)
+         System.err.println("Usage: CaptureIndex directory ...");
+      for (String arg : args)
+      {
+         StringBuilder messages = new StringBuilder();
+         final int count = rebuild(new File(arg), messages);
+         System.err.print(messages);
+         System.out.println(arg + ": " + count + " captures indexed");
+      }
+   }
+
+   synchronized void close() throws IOException
+   //------------------------------------------
+   {
+      isClosed = true;
+      map.force();
+      channel.close();
+      raf.close();
+   }
+
+   static private Record readYaml(File dir, String name) throws IOException, ParseException
+   //---------------------------------------------------------------------------------------
+   {
+      // Base names are the capture time followed by the Tango timestamp (see PostProcessThread.captureName)
+      final int dash = name.indexOf('-');
+      if (dash < 0)
+         throw new ParseException("Not a capture name", 0);
+      final long captureTime = new SimpleDateFormat("yyyyMMddHHmmss.SSS").parse(name.substring(0, dash)).getTime();
+      final double imageTimestamp = Double.parseDouble(name.substring(dash + 1));
+      double[] rotation = null, translation = null, gravity = null, acceleration = null;
+      int deviceRotation = 0;
+      try (BufferedReader br = new BufferedReader(new FileReader(new File(dir, name + ".yaml"))))
+      {
+         String line;
+         while ( (line = br.readLine()) != null)
+         {
+            final int colon = line.indexOf(": ");
+            if ( (line.startsWith("#")) || (colon < 0) )
+               continue;
+            final String key = line.substring(0, colon), value = line.substring(colon + 2).trim();
+            switch (key)
+            {
+               case "deviceRotation":  deviceRotation = Integer.parseInt(value) / 90; break;
+               case "rawRotation":     rotation = vector(value, 4); break;
+               case "rawTranslation":  translation = vector(value, 3); break;
+               case "rawGravity":      gravity = vector(value, 3); break;
+               case "rawAcceleration": acceleration = vector(value, 3); break;
+            }
+         }
+      }
+      if ( (rotation == null) || (translation == null) )
+         throw new IOException("No pose");
+      int points = 0;
+      File ply = new File(dir, name + SUFFIXES[FILE_PLY]), quantized = new File(dir, name + SUFFIXES[FILE_QUANTIZED]);
+      if (ply.exists())
+         points = plyVertexCount(ply);
+      else if (quantized.exists())
+         points = QuantizedCloud.pointCount(quantized);
+      long[] sizes = new long[SUFFIXES.length];
+      for (int i = 0; i < SUFFIXES.length; i++)
+         if (i != FILE_RAW)
+            sizes[i] = new File(dir, name + SUFFIXES[i]).length();
+      return new Record(name, captureTime, imageTimestamp,
+                        new CaptureFrame.Pose(rotation[0], rotation[1], rotation[2], rotation[3], translation[0],
+                                              translation[1], translation[2]),
+                        deviceRotation, points, gravity, acceleration, sizes);
+   }
+
+   /**
+    * @return The numbers in a YAML flow sequence such as "[1.0, 2.0, 3.0]".
+    */
+   static private double[] vector(String value, int n) throws IOException
+   //---------------------------------------------------------------------
+   {
+      if ( (! value.startsWith("[")) || (! value.endsWith("]")) )
+         throw new IOException("Not a sequence: " + value);
+      String[] items = value.substring(1, value.length() - 1).split(",");
+      if (items.length != n)
+         throw new IOException("Expected " + n + " values: " + value);
+      double[] v = new double[n];
+      for (int i = 0; i < n; i++)
+         v[i] = Double.parseDouble(items[i].trim());
+      return v;
+   }
+
+   static private int plyVertexCount(File ply) throws IOException
+   //-------------------------------------------------------------
+   {
+      // The header is ASCII even in binary PLY files, so only it is read as text
+      try (RandomAccessFile in = new RandomAccessFile(ply, "r"))
+      {
+         String line;
+         while ( ( (line = in.readLine()) != null) && (! line.equals("end_header")) )
+            if (line.startsWith("element vertex "))
+               return Integer.parseInt(line.substring(15).trim());
+      }
+      return 0;
+   }
+
+   /**
+    * 64 bit FNV-1a hash of a capture name, used to find superseded records without reading the names.
+    */
+   static long hash(String name)
+   //---------------------------
+   {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < name.length(); i++)
+      {
+         hash ^= name.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      return hash;
+   }
+
+   private void grow(int records) throws IOException
+   //-----------------------------------------------
+   {
+      final long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+      raf.setLength(size);
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      capacity = records;
+   }
+}
@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded queue of completed captures (see {@link CaptureFrame}) drained by a fixed set of worker threads.
+ * Producers check {@link #remainingCapacity()} before starting a capture (back-pressure) so that the capture thread
+ * never has to block on a full queue.
+ */
+class CaptureQueue<T>
+//===================
+{
+   static final private String TAG = "CaptureQueue";
+
+   interface Processor<T>
+   //====================
+   {
+      /**
+       * Called on a worker thread for each queued capture.
+       */
+      void process(T record);
+
+      /**
+       * Called on a worker thread if a capture is discarded without being processed (for example on shutdown)
+       * so that its buffers can be released.
+       */
+      void discard(T record);
+
+      /**
+       * Called on a worker thread when the last outstanding capture has been processed.
+       */
+      void onIdle();
+   }
+
+   final private BlockingQueue<T> queue;
+   final private Thread[] workers;
+   final private Processor<T> processor;
+   final private AtomicInteger outstanding = new AtomicInteger(0);
+   volatile private boolean isShutdown = false;
+
+   CaptureQueue(int capacity, int workerCount, Processor<T> processor)
+   //-----------------------------------------------------------------
+   {
+      queue = new ArrayBlockingQueue<>(capacity);
+      this.processor = processor;
+      workers = new Thread[workerCount];
+      for (int i=0; i<workerCount; i++)
+      {
+         workers[i] = new Thread(new Runnable()
+         {
+            @Override public void run() { drain(); }
+         }, "CaptureWorker-" + i);
+         workers[i].setDaemon(true);
+         workers[i].start();
+      }
+   }
+
+   /**
+    * Queues a completed capture if there is space, without waiting (for callers on threads which must not block).
+    * @return false if the queue is full or has been shut down (the caller still owns <i>record</i>).
+    */
+   boolean offer(T record)
+   //---------------------
+   {
+      if (isShutdown)
+         return false;
+      outstanding.incrementAndGet();
+      if (queue.offer(record))
+         return true;
+      outstanding.decrementAndGet();
+      return false;
+   }
+
+   /**
+    * Queues a completed capture, waiting at most <i>timeout</i> ms for space.
+    * @return false if the queue remained full or has been shut down (the caller still owns <i>record</i>).
+    */
+   boolean offer(T record, long timeout) throws InterruptedException
+   //---------------------------------------------------------------
+   {
+      if (isShutdown)
+         return false;
+      outstanding.incrementAndGet();
+      if (queue.offer(record, timeout, TimeUnit.MILLISECONDS))
+         return true;
+      outstanding.decrementAndGet();
+      return false;
+   }
+
+   int remainingCapacity() { return queue.remainingCapacity(); }
+
+   boolean isShutdown() { return isShutdown; }
+
+   int workerCount() { return workers.length; }
+
+   /**
+    * @return true if no captures are queued or being processed.
+    */
+   boolean isIdle() { return (outstanding.get() == 0); }
+
+   void shutdown()
+   //-------------
+   {
+      isShutdown = true;
+      for (Thread worker : workers)
+         worker.interrupt();
+      T record;
+      while ((record = queue.poll()) != null)
+      {
+         processor.discard(record);
+         outstanding.decrementAndGet();
+      }
+   }
+
+   private void drain()
+   //------------------
+   {
+      while (! isShutdown)
+      {
+         T record;
+         try
+         {
+            record = queue.take();
+         }
+         catch (InterruptedException e)
+         {
+            break;
+         }
+         try
+         {
+            processor.process(record);
+         }
+         catch (Throwable e)
+         {
+            Log.e(TAG, "Processing capture", e);
+         }
+         finally
+         {
+            if ( (outstanding.decrementAndGet() == 0) && (! isShutdown) )
+               processor.onIdle();
+         }
+      }
+   }
+}
@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+/**
+ * The preferences which affect the files written for a capture, snapshotted when the capture is taken and stored
+ * in raw captures so that converting one later produces the same files whatever the preferences are then.
+ * Pure Java (no android dependencies), see {@link PostProcessThread#settings} for reading the preferences.
+ */
+final class CaptureSettings
+//=========================
+{
+   static final int DEFAULT_JPEG_QUALITY = 100;
+
+   /** {@link RawCapture#FORMAT_PROCESSED} or {@link RawCapture#FORMAT_RAW}. */
+   final String captureFormat;
+   final String plyFormat, cloudFrame;
+   final float voxelLeafSize;
+   final int jpegQuality;
+   final boolean isRegisteredDepth, isRectified, isWriteConfidence, isGravity, isAcceleration;
+
+   CaptureSettings(String captureFormat, String plyFormat, String cloudFrame, float voxelLeafSize, int jpegQuality,
+                   boolean isRegisteredDepth, boolean isRectified, boolean isWriteConfidence, boolean isGravity,
+                   boolean isAcceleration)
+   //-----------------------------------------------------------------------------------------------------------
+   {
+      this.captureFormat = captureFormat;
+      this.plyFormat = plyFormat;
+      this.cloudFrame = cloudFrame;
+      this.voxelLeafSize = voxelLeafSize;
+      this.jpegQuality = Math.max(0, Math.min(100, jpegQuality));
+      this.isRegisteredDepth = isRegisteredDepth;
+      this.isRectified = isRectified;
+      this.isWriteConfidence = isWriteConfidence;
+      this.isGravity = isGravity;
+      this.isAcceleration = isAcceleration;
+   }
+
+   /** The defaults used when a preference is not set. */
+   static final CaptureSettings DEFAULTS = new CaptureSettings(RawCapture.FORMAT_PROCESSED, PlyWriter.FORMAT_ASCII,
+                                                               CloudTransform.FRAME_DEPTH, 0, DEFAULT_JPEG_QUALITY,
+                                                               false, false, false, true, true);
+}
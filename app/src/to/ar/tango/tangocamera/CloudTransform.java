@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Rigid transforms of XYZC point clouds using double precision row major 4x4 matrices (the first three rows of
+ * which can also be used as a 3x4 matrix). Pure Java (no android dependencies).
+ */
+public class CloudTransform
+//=========================
+{
+   /** Values of the cloud_frame preference. */
+   static final public String FRAME_DEPTH = "depth", FRAME_WORLD = "world", FRAME_CORRECTED = "corrected";
+
+   /**
+    * Transforms the first <i>points</i> points of <i>src</i> (packed x, y, z, confidence) by <i>m</i> into
+    * <i>dest</i> in a single pass without allocating. The confidences are copied unchanged. <i>dest</i> may be
+    * <i>src</i>.
+    */
+   public static void transform(FloatBuffer src, FloatBuffer dest, int points, double[] m)
+   //-------------------------------------------------------------------------------------
+   {
+      final double m00 = m[0], m01 = m[1], m02 = m[2], m03 = m[3],
+                   m10 = m[4], m11 = m[5], m12 = m[6], m13 = m[7],
+                   m20 = m[8], m21 = m[9], m22 = m[10], m23 = m[11];
+      final int length = Math.min(points * 4, src.limit()) & ~3;
+      for (int i = 0; i < length; i += 4)
+      {
+         final double x = src.get(i), y = src.get(i + 1), z = src.get(i + 2);
+         final float c = src.get(i + 3);
+         dest.put(i, (float) (m00 * x + m01 * y + m02 * z + m03));
+         dest.put(i + 1, (float) (m10 * x + m11 * y + m12 * z + m13));
+         dest.put(i + 2, (float) (m20 * x + m21 * y + m22 * z + m23));
+         dest.put(i + 3, c);
+      }
+   }
+
+   /**
+    * Rotates the direction <i>v</i> (x, y, z) in place by the upper left 3x3 of <i>m</i>.
+    * @return <i>v</i>
+    */
+   static double[] rotate(double[] m, double[] v)
+   //--------------------------------------------
+   {
+      final double x = v[0], y = v[1], z = v[2];
+      v[0] = m[0] * x + m[1] * y + m[2] * z;
+      v[1] = m[4] * x + m[5] * y + m[6] * z;
+      v[2] = m[8] * x + m[9] * y + m[10] * z;
+      return v;
+   }
+
+   /**
+    * Rotates the rotation quaternion (w, x, y, z) by the upper left 3x3 of <i>m</i>, ie computes the quaternion of
+    * m * R(w, x, y, z), without allocating (unlike quaternion to float[16] matrix and back).
+    * @param q Receives the result [w, x, y, z].
+    * @return <i>q</i>
+    */
+   static double[] rotateQuaternion(double[] m, double w, double x, double y, double z, double[] q)
+   //----------------------------------------------------------------------------------------------
+   {
+      final double norm = w * w + x * x + y * y + z * z;
+      final double s = (norm > 0) ? 2 / norm : 0;
+      final double r00 = 1 - s * (y * y + z * z), r01 = s * (x * y - w * z), r02 = s * (x * z + w * y),
+                   r10 = s * (x * y + w * z), r11 = 1 - s * (x * x + z * z), r12 = s * (y * z - w * x),
+                   r20 = s * (x * z - w * y), r21 = s * (y * z + w * x), r22 = 1 - s * (x * x + y * y);
+      final double m00 = m[0] * r00 + m[1] * r10 + m[2] * r20, m01 = m[0] * r01 + m[1] * r11 + m[2] * r21,
+                   m02 = m[0] * r02 + m[1] * r12 + m[2] * r22,
+                   m10 = m[4] * r00 + m[5] * r10 + m[6] * r20, m11 = m[4] * r01 + m[5] * r11 + m[6] * r21,
+                   m12 = m[4] * r02 + m[5] * r12 + m[6] * r22,
+                   m20 = m[8] * r00 + m[9] * r10 + m[10] * r20, m21 = m[8] * r01 + m[9] * r11 + m[10] * r21,
+                   m22 = m[8] * r02 + m[9] * r12 + m[10] * r22;
+      final double t = m00 + m11 + m22;
+      if (t >= 0)
+      {
+         double r = Math.sqrt(t + 1);
+         q[0] = 0.5 * r;
+         r = 0.5 / r;
+         q[1] = (m21 - m12) * r;
+         q[2] = (m02 - m20) * r;
+         q[3] = (m10 - m01) * r;
+      }
+      else if ( (m00 > m11) && (m00 > m22) )
+      {
+         double r = Math.sqrt(1 + m00 - m11 - m22);
+         q[1] = 0.5 * r;
+         r = 0.5 / r;
+         q[2] = (m10 + m01) * r;
+         q[3] = (m02 + m20) * r;
+         q[0] = (m21 - m12) * r;
+      }
+      else if (m11 > m22)
+      {
+         double r = Math.sqrt(1 + m11 - m00 - m22);
+         q[2] = 0.5 * r;
+         r = 0.5 / r;
+         q[1] = (m10 + m01) * r;
+         q[3] = (m21 + m12) * r;
+         q[0] = (m02 - m20) * r;
+      }
+      else
+      {
+         double r = Math.sqrt(1 + m22 - m00 - m11);
+         q[3] = 0.5 * r;
+         r = 0.5 / r;
+         q[1] = (m02 + m20) * r;
+         q[2] = (m21 + m12) * r;
+         q[0] = (m10 - m01) * r;
+      }
+      return q;
+   }
+
+   /**
+    * @return The depth camera to world (start of service) transform of <i>frame</i> at the image timestamp,
+    * ss_T_device * inverse(imu_T_device) * imu_T_depth. The extrinsics which are not available are taken as the
+    * identity.
+    */
+   static double[] depthToWorld(CaptureFrame frame)
+   //----------------------------------------------
+   {
+      CaptureFrame.Pose pose = frame.image.pose;
+      double[] transform = rigidTransform(pose.rotationW, pose.rotationX, pose.rotationY, pose.rotationZ,
+                                          pose.translationX, pose.translationY, pose.translationZ);
+      CameraCalibration depth = frame.depthCalibration;
+      if (depth == null)
+         return transform;
+      if (depth.hasImuDevicePose())
+      {
+         double[] q = depth.imuDeviceRotation, t = depth.imuDeviceTranslation;
+         transform = multiply(transform, invertRigid(rigidTransform(q[0], q[1], q[2], q[3], t[0], t[1], t[2])));
+      }
+      if (depth.hasImuPose())
+      {
+         double[] q = depth.imuRotation, t = depth.imuTranslation;
+         transform = multiply(transform, rigidTransform(q[0], q[1], q[2], q[3], t[0], t[1], t[2]));
+      }
+      return transform;
+   }
+
+   /**
+    * @return The matrix of the rotation quaternion (w, x, y, z) followed by the translation.
+    */
+   static double[] rigidTransform(double w, double x, double y, double z, double tx, double ty, double tz)
+   //----------------------------------------------------------------------------------------------------
+   {
+      double norm = w * w + x * x + y * y + z * z;
+      double s = (norm > 0) ? 2 / norm : 0;
+      return new double[]
+      {
+         1 - s * (y * y + z * z), s * (x * y - w * z), s * (x * z + w * y), tx,
+         s * (x * y + w * z), 1 - s * (x * x + z * z), s * (y * z - w * x), ty,
+         s * (x * z - w * y), s * (y * z + w * x), 1 - s * (x * x + y * y), tz,
+         0, 0, 0, 1
+      };
+   }
+
+   /**
+    * @return The inverse of the rigid (rotation and translation only) transform <i>m</i>.
+    */
+   static double[] invertRigid(double[] m)
+   //-------------------------------------
+   {
+      double[] inverse = new double[16];
+      for (int row = 0; row < 3; row++)
+      {
+         for (int col = 0; col < 3; col++)
+            inverse[row * 4 + col] = m[col * 4 + row];
+         inverse[row * 4 + 3] = -(m[row] * m[3] + m[4 + row] * m[7] + m[8 + row] * m[11]);
+      }
+      inverse[15] = 1;
+      return inverse;
+   }
+
+   /**
+    * @return The row major equivalent of a column major (android.opengl.Matrix) float matrix.
+    */
+   static double[] fromColumnMajor(float[] m)
+   //----------------------------------------
+   {
+      double[] result = new double[16];
+      for (int row = 0; row < 4; row++)
+         for (int col = 0; col < 4; col++)
+            result[row * 4 + col] = m[col * 4 + row];
+      return result;
+   }
+
+   /**
+    * @return <i>a</i> * <i>b</i>
+    */
+   static double[] multiply(double[] a, double[] b)
+   //----------------------------------------------
+   {
+      double[] m = new double[16];
+      for (int row = 0; row < 4; row++)
+         for (int col = 0; col < 4; col++)
+            m[row * 4 + col] = a[row * 4] * b[col] + a[row * 4 + 1] * b[4 + col] + a[row * 4 + 2] * b[8 + col] +
+                               a[row * 4 + 3] * b[12 + col];
+      return m;
+   }
+}
@@ -0,0 +1,219 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds a depth image registered pixel for pixel with the color image by projecting the point cloud through the
+ * depth to color camera extrinsics and the color camera intrinsics, keeping the nearest point for each pixel.
+ * Depths are unsigned 16 bit millimetres with 0 where no point projects. Large clouds are projected in parallel
+ * chunks, each into its own z-buffer, which are merged at the end. The z-buffers are kept between calls, so an
+ * instance (which is not thread safe) should be reused for successive captures. Pure Java (no android
+ * dependencies).
+ */
+public class DepthRegistration
+//============================
+{
+   static final public String EXTENSION = ".pgm";
+
+   static final private int MIN_CHUNK_POINTS = 8192;
+
+   private char[][] zBuffers = new char[0][];
+
+   /**
+    * @return The depth camera to color camera transform or null if the IMU pose of either camera is not available.
+    */
+   static double[] colorFromDepth(CameraCalibration color, CameraCalibration depth)
+   //------------------------------------------------------------------------------
+   {
+      if ( (color == null) || (depth == null) || (! color.hasImuPose()) || (! depth.hasImuPose()) )
+         return null;
+      double[] q = color.imuRotation, t = color.imuTranslation;
+      double[] imuFromColor = CloudTransform.rigidTransform(q[0], q[1], q[2], q[3], t[0], t[1], t[2]);
+      q = depth.imuRotation;
+      t = depth.imuTranslation;
+      double[] imuFromDepth = CloudTransform.rigidTransform(q[0], q[1], q[2], q[3], t[0], t[1], t[2]);
+      return CloudTransform.multiply(CloudTransform.invertRigid(imuFromColor), imuFromDepth);
+   }
+
+   /**
+    * Projects the first <i>points</i> points of <i>cloud</i> (depth camera coordinates) into a <i>width</i> x
+    * <i>height</i> color image. The intrinsics are scaled if the calibration is for a different resolution and the
+    * first three distortion coefficients are applied as the k1, k2, k3 radial polynomial used by the Tango color
+    * camera, so the depth lines up with the (distorted) color image.
+    * @param colorFromDepth Depth to color camera transform (see {@link #colorFromDepth}).
+    * @param pool The pool to project on or null to project on the calling thread.
+    * @return The depth image in millimetres, row major, owned by this instance and overwritten by the next call.
+    */
+   public char[] register(FloatBuffer cloud, int points, double[] colorFromDepth, CameraCalibration color,
+                          int width, int height, ForkJoinPool pool)
+   //---------------------------------------------------------------------------------------------------------
+   {
+      points = Math.min(points, cloud.limit() / 4);
+      int chunks = 1;
+      if (pool != null)
+         chunks = Math.max(1, Math.min(pool.getParallelism(), points / MIN_CHUNK_POINTS));
+      if (zBuffers.length < chunks)
+      {
+         char[][] buffers = new char[chunks][];
+         System.arraycopy(zBuffers, 0, buffers, 0, zBuffers.length);
+         zBuffers = buffers;
+      }
+      for (int i = 0; i < chunks; i++)
+      {
+         if ( (zBuffers[i] == null) || (zBuffers[i].length < width * height) )
+            zBuffers[i] = new char[width * height];
+         else
+            Arrays.fill(zBuffers[i], 0, width * height, (char) 0);
+      }
+
+      final Projection projection = new Projection(cloud, colorFromDepth, color, width, height);
+      if (chunks == 1)
+         projection.project(0, points, zBuffers[0]);
+      else
+      {
+         Chunk[] tasks = new Chunk[chunks];
+         for (int i = 0; i < chunks; i++)
+            tasks[i] = new Chunk(projection, (int) ((long) points * i / chunks),
+                                 (int) ((long) points * (i + 1) / chunks), zBuffers[i]);
+         pool.invoke(new RecursiveAction()
+         {
+            @Override protected void compute() { invokeAll(tasks); }
+         });
+         final char[] depth = zBuffers[0];
+         for (int i = 1; i < chunks; i++)
+         {
+            final char[] other = zBuffers[i];
+            for (int p = 0; p < width * height; p++)
+            {
+               final char z = other[p];
+               if ( (z != 0) && ( (depth[p] == 0) || (z < depth[p]) ) )
+                  depth[p] = z;
+            }
+         }
+      }
+      return zBuffers[0];
+   }
+
+   /**
+    * Writes a depth image as a binary 16 bit PGM (P5 with a maximum value of 65535, most significant byte first).
+    */
+   public static void writePGM(File file, char[] depth, int width, int height) throws IOException
+   //--------------------------------------------------------------------------------------------
+   {
+      try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 64*1024))
+      {
+         os.write(("P5\n" + width + " " + height + "\n65535\n").getBytes(StandardCharsets.US_ASCII));
+         byte[] row = new byte[width * 2];
+         for (int y = 0; y < height; y++)
+         {
+            for (int x = 0, p = y * width; x < width; x++, p++)
+            {
+               row[x * 2] = (byte) (depth[p] >> 8);
+               row[x * 2 + 1] = (byte) depth[p];
+            }
+            os.write(row);
+         }
+      }
+   }
+
+   static final private class Projection
+   //===================================
+   {
+      final FloatBuffer cloud;
+      final double m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23;
+      final double fx, fy, cx, cy, k1, k2, k3;
+      final int width, height;
+
+      Projection(FloatBuffer cloud, double[] m, CameraCalibration color, int width, int height)
+      //---------------------------------------------------------------------------------------
+      {
+         this.cloud = cloud;
+         m00 = m[0]; m01 = m[1]; m02 = m[2]; m03 = m[3];
+         m10 = m[4]; m11 = m[5]; m12 = m[6]; m13 = m[7];
+         m20 = m[8]; m21 = m[9]; m22 = m[10]; m23 = m[11];
+         final double sx = (color.width > 0) ? (double) width / color.width : 1,
+                      sy = (color.height > 0) ? (double) height / color.height : 1;
+         fx = color.fx * sx;
+         fy = color.fy * sy;
+         cx = color.cx * sx;
+         cy = color.cy * sy;
+         k1 = color.distortion[0];
+         k2 = color.distortion[1];
+         k3 = color.distortion[2];
+         this.width = width;
+         this.height = height;
+      }
+
+      void project(int start, int end, char[] zBuffer)
+      //----------------------------------------------
+      {
+         for (int i = start * 4; i < end * 4; i += 4)
+         {
+            final double px = cloud.get(i), py = cloud.get(i + 1), pz = cloud.get(i + 2);
+            final double z = m20 * px + m21 * py + m22 * pz + m23;
+            if (z <= 0)
+               continue;
+            final double x = (m00 * px + m01 * py + m02 * pz + m03) / z,
+                         y = (m10 * px + m11 * py + m12 * pz + m13) / z;
+            final double r2 = x * x + y * y, d = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+            final int u = (int) Math.floor(fx * x * d + cx + 0.5), v = (int) Math.floor(fy * y * d + cy + 0.5);
+            if ( (u < 0) || (u >= width) || (v < 0) || (v >= height) )
+               continue;
+            final char mm = (char) Math.max(1, Math.min(0xFFFF, Math.round(z * 1000)));
+            final int p = v * width + u;
+            if ( (zBuffer[p] == 0) || (mm < zBuffer[p]) )
+               zBuffer[p] = mm;
+         }
+      }
+   }
+
+   static final private class Chunk extends RecursiveAction
+   //======================================================
+   {
+      final Projection projection;
+      final int start, end;
+      final char[] zBuffer;
+
+      Chunk(Projection projection, int start, int end, char[] zBuffer)
+      //--------------------------------------------------------------
+      {
+         this.projection = projection;
+         this.start = start;
+         this.end = end;
+         this.zBuffer = zBuffer;
+      }
+
+      @Override protected void compute() { projection.project(start, end, zBuffer); }
+   }
+}
@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A set of direct buffers allocated once and registered with the native side (see
+ * {@link ITango#registerBuffers(int, ByteBuffer[])}) which fills them in the Tango callbacks.
+ */
+class DirectBufferPool
+//====================
+{
+   final private int pool;
+   final private ByteBuffer[] buffers;
+   private FloatBuffer[] floatViews = null;
+
+   DirectBufferPool(int pool, int count, int capacity)
+   //-------------------------------------------------
+   {
+      this.pool = pool;
+      buffers = new ByteBuffer[count];
+      for (int i=0; i<count; i++)
+         buffers[i] = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+   }
+
+   boolean register() { return ITango.registerBuffers(pool, buffers); }
+
+   int size() { return buffers.length; }
+
+   int capacity() { return (buffers.length > 0) ? buffers[0].capacity() : 0; }
+
+   /**
+    * @return The buffer index of a native handle (the low 8 bits, the rest are the registration generation).
+    */
+   static int index(int handle) { return handle & 0xFF; }
+
+   /**
+    * @return A cached float view of <i>data</i> if it is the buffer with <i>handle</i> in this pool, otherwise
+    * (a buffer from an earlier registration) a new view.
+    */
+   FloatBuffer floats(ByteBuffer data, int handle)
+   //---------------------------------------------
+   {
+      final int index = index(handle);
+      if ( (handle < 0) || (index >= buffers.length) || (buffers[index] != data) )
+         return data.asFloatBuffer();
+      if (floatViews == null)
+      {
+         FloatBuffer[] views = new FloatBuffer[buffers.length];
+         for (int i=0; i<buffers.length; i++)
+            views[i] = buffers[i].asFloatBuffer();
+         floatViews = views;
+      }
+      return floatViews[index];
+   }
+
+   /**
+    * Returns the buffer with <i>handle</i> to the native side (ignored there if it is from an earlier
+    * registration).
+    */
+   void release(int handle) { if (handle >= 0) ITango.releaseBuffer(pool, handle); }
+}
@@ -0,0 +1,175 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds the EXIF APP1 segment for a capture (the YAML metadata as UserComment plus ImageWidth and ImageLength) in
+ * memory and splices it into a JPEG as the encoder streams it to disk, so the image is written once instead of
+ * being rewritten by ExifInterface.saveAttributes. The tags are laid out as ExifInterface writes them: a big endian
+ * TIFF header, IFD0 with the dimensions and the Exif IFD pointer, and an Exif IFD holding the UserComment (type
+ * UNDEFINED with the 8 byte ASCII character code prefix). Pure Java (no android dependencies).
+ */
+public class ExifWriter
+//=====================
+{
+   static final private byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+   static final private byte[] ASCII_PREFIX = { 'A', 'S', 'C', 'I', 'I', 0, 0, 0 };
+
+   static final int TAG_IMAGE_WIDTH = 0x0100, TAG_IMAGE_LENGTH = 0x0101, TAG_EXIF_IFD = 0x8769,
+                    TAG_USER_COMMENT = 0x9286;
+   static final int TYPE_LONG = 4, TYPE_UNDEFINED = 7;
+
+   // TIFF offsets: header, IFD0 (3 entries), Exif IFD (1 entry), UserComment data
+   static final private int IFD0_OFFSET = 8, IFD0_ENTRIES = 3,
+                            EXIF_IFD_OFFSET = IFD0_OFFSET + 2 + IFD0_ENTRIES * 12 + 4,
+                            COMMENT_OFFSET = EXIF_IFD_OFFSET + 2 + 12 + 4;
+   // The segment length field (which counts itself) is 16 bits
+   static final public int MAX_COMMENT_LENGTH = 0xFFFF - 2 - EXIF_HEADER.length - COMMENT_OFFSET - ASCII_PREFIX.length;
+
+   /**
+    * @return The complete APP1 segment (from the FF E1 marker) holding the first <i>commentLength</i> bytes of
+    * <i>comment</i> (ASCII) as UserComment and the image dimensions.
+    * @throws IllegalArgumentException if the comment does not fit in a segment.
+    */
+   public static byte[] app1(byte[] comment, int commentLength, int width, int height)
+   //---------------------------------------------------------------------------------
+   {
+      if (commentLength > MAX_COMMENT_LENGTH)
+         throw new IllegalArgumentException("ExifWriter: UserComment too long (" + commentLength + " > " +
+                                            MAX_COMMENT_LENGTH + ")");
+      final int commentCount = ASCII_PREFIX.length + commentLength;
+      final int tiffLength = COMMENT_OFFSET + commentCount;
+      final int segmentLength = 2 + EXIF_HEADER.length + tiffLength;
+      byte[] segment = new byte[2 + segmentLength];
+      int p = 0;
+      segment[p++] = (byte) 0xFF;
+      segment[p++] = (byte) 0xE1;
+      p = putShort(segment, p, segmentLength);
+      System.arraycopy(EXIF_HEADER, 0, segment, p, EXIF_HEADER.length);
+      p += EXIF_HEADER.length;
+      final int tiff = p;
+      segment[p++] = 'M';
+      segment[p++] = 'M';
+      p = putShort(segment, p, 42);
+      p = putInt(segment, p, IFD0_OFFSET);
+
+      p = putShort(segment, p, IFD0_ENTRIES);
+      p = putEntry(segment, p, TAG_IMAGE_WIDTH, TYPE_LONG, 1, width);
+      p = putEntry(segment, p, TAG_IMAGE_LENGTH, TYPE_LONG, 1, height);
+      p = putEntry(segment, p, TAG_EXIF_IFD, TYPE_LONG, 1, EXIF_IFD_OFFSET);
+      p = putInt(segment, p, 0);
+
+      p = putShort(segment, p, 1);
+      p = putEntry(segment, p, TAG_USER_COMMENT, TYPE_UNDEFINED, commentCount, COMMENT_OFFSET);
+      p = putInt(segment, p, 0);
+
+      System.arraycopy(ASCII_PREFIX, 0, segment, p, ASCII_PREFIX.length);
+      p += ASCII_PREFIX.length;
+      System.arraycopy(comment, 0, segment, p, commentLength);
+      p += commentLength;
+      assert (p - tiff == tiffLength) && (p == segment.length);
+      return segment;
+   }
+
+   /**
+    * Passes a JPEG stream through, inserting a segment immediately after the SOI marker.
+    */
+   static public class SpliceOutputStream extends FilterOutputStream
+   //===============================================================
+   {
+      final private byte[] segment;
+      private int soi = 0; // number of SOI marker bytes seen
+
+      /**
+       * @param segment The segment to insert (see {@link #app1}).
+       */
+      public SpliceOutputStream(OutputStream out, byte[] segment)
+      //---------------------------------------------------------
+      {
+         super(out);
+         this.segment = segment;
+      }
+
+      @Override
+      public void write(int b) throws IOException
+      //-----------------------------------------
+      {
+         if (soi < 2)
+         {
+            if ( (b & 0xFF) != ((soi == 0) ? 0xFF : 0xD8) )
+               throw new IOException("ExifWriter: Not a JPEG stream (no SOI marker)");
+            out.write(b);
+            if (++soi == 2)
+               out.write(segment);
+         }
+         else
+            out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      //--------------------------------------------------------------
+      {
+         // FilterOutputStream writes arrays a byte at a time, only the first two bytes need to be inspected
+         while ( (soi < 2) && (len > 0) )
+         {
+            write(b[off++]);
+            len--;
+         }
+         if (len > 0)
+            out.write(b, off, len);
+      }
+   }
+
+   static private int putEntry(byte[] b, int p, int tag, int type, int count, int value)
+   //-----------------------------------------------------------------------------------
+   {
+      p = putShort(b, p, tag);
+      p = putShort(b, p, type);
+      p = putInt(b, p, count);
+      return putInt(b, p, value);
+   }
+
+   static private int putShort(byte[] b, int p, int v)
+   //-------------------------------------------------
+   {
+      b[p++] = (byte) (v >>> 8);
+      b[p++] = (byte) v;
+      return p;
+   }
+
+   static private int putInt(byte[] b, int p, int v)
+   //-----------------------------------------------
+   {
+      b[p++] = (byte) (v >>> 24);
+      b[p++] = (byte) (v >>> 16);
+      b[p++] = (byte) (v >>> 8);
+      b[p++] = (byte) v;
+      return p;
+   }
+}
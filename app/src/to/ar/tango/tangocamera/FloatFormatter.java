@@ -0,0 +1,230 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Fixed precision decimal formatting of floats directly into a byte buffer without the per value Formatter,
+ * boxing and String allocations of printf. The output is identical to printf("%.<i>n</i>f") in an English
+ * locale (rounding is half up on the exact binary value which for floats always agrees with the JDK's rounding
+ * of the shortest decimal representation).
+ */
+public final class FloatFormatter
+//===============================
+{
+   static final private long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+                                         1000000000L };
+
+   /**
+    * The maximum number of bytes {@link #format(float, int, byte[], int)} writes for a single value.
+    */
+   static final public int MAX_LENGTH = 64;
+
+   /**
+    * The maximum number of bytes {@link #format(double, int, byte[], int)} writes for a single value (a sign, 309
+    * integer digits, the point and 9 decimals).
+    */
+   static final public int MAX_DOUBLE_LENGTH = 320;
+
+   // Magnitudes at and above this are rare enough (not in metres anyway) to fall back to String.format.
+   static final private float FAST_LIMIT = 1e9f;
+   // Below this (< 2^20) a double scaled by 10^9 fits in a long. The fast path rounds the exact binary value half
+   // up, so it can differ from printf (which rounds the shortest decimal representation) when that representation
+   // is an exact tie, e.g. 0.125 (exact) rounds up to 0.13 in both but 2.675 (exactly 2.67499999...) gives 2.67
+   // here and 2.68 from printf.
+   static final private double FAST_LIMIT_DOUBLE = 1e6;
+
+   private FloatFormatter() {}
+
+   /**
+    * Formats <i>v</i> with <i>decimals</i> (0 to 9) digits after the decimal point into <i>dest</i> starting
+    * at <i>offset</i>.
+    * @return The offset in <i>dest</i> after the last byte written.
+    */
+   public static int format(float v, int decimals, byte[] dest, int offset)
+   //---------------------------------------------------------------------
+   {
+      if ( (decimals < 0) || (decimals >= POW10.length) )
+         throw new IllegalArgumentException("FloatFormatter: decimals must be between 0 and " + (POW10.length - 1));
+      if ( (Float.isNaN(v)) || (Float.isInfinite(v)) || (Math.abs(v) >= FAST_LIMIT) )
+         return formatSlow(v, decimals, dest, offset);
+      final int bits = Float.floatToRawIntBits(v);
+      final int exponent = (bits >>> 23) & 0xFF;
+      long mantissa = bits & 0x7FFFFF;
+      int e;
+      if (exponent == 0)
+         e = -149;
+      else
+      {
+         mantissa |= 0x800000;
+         e = exponent - 150;
+      }
+      // v * 10^decimals = mantissa * 10^decimals * 2^e which fits in a long for |v| < FAST_LIMIT
+      long scaled = mantissa * POW10[decimals];
+      if (e >= 0)
+         scaled <<= e;
+      else
+      {
+         final int shift = -e;
+         if (shift >= 63)
+            scaled = 0; // < 2^54 / 2^63 so always rounds to 0
+         else
+         {
+            final long half = 1L << (shift - 1);
+            final long remainder = scaled & ((1L << shift) - 1);
+            scaled >>>= shift;
+            if (remainder >= half)
+               scaled++;
+         }
+      }
+      if (bits < 0)
+         dest[offset++] = '-';
+      return digits(scaled, decimals, dest, offset);
+   }
+
+   /**
+    * Formats <i>v</i> with <i>decimals</i> (0 to 9) digits after the decimal point into <i>dest</i> starting
+    * at <i>offset</i>. As for floats rounding is half up on the exact binary value, which only differs from printf
+    * (which rounds the shortest decimal representation) when that representation ends with a 5 immediately after
+    * the last digit kept.
+    * @return The offset in <i>dest</i> after the last byte written.
+    */
+   public static int format(double v, int decimals, byte[] dest, int offset)
+   //----------------------------------------------------------------------
+   {
+      if ( (decimals < 0) || (decimals >= POW10.length) )
+         throw new IllegalArgumentException("FloatFormatter: decimals must be between 0 and " + (POW10.length - 1));
+      if ( (Double.isNaN(v)) || (Double.isInfinite(v)) || (Math.abs(v) >= FAST_LIMIT_DOUBLE) )
+         return formatSlow(v, decimals, dest, offset);
+      final long bits = Double.doubleToRawLongBits(v);
+      final int exponent = (int) ((bits >>> 52) & 0x7FF);
+      long mantissa = bits & 0xFFFFFFFFFFFFFL;
+      int e;
+      if (exponent == 0)
+         e = -1074;
+      else
+      {
+         mantissa |= 1L << 52;
+         e = exponent - 1075;
+      }
+      // mantissa * 10^decimals needs up to 83 bits so is formed as a 128 bit (high, low) product. As |v| < 2^20,
+      // e is always negative and the scaled value (< 10^15) fits in a long.
+      final long p = POW10[decimals];
+      final long lo = (mantissa & 0xFFFFFFFFL) * p, mid = (mantissa >>> 32) * p;
+      final long low = lo + (mid << 32);
+      final long high = (mid >>> 32) + (((low ^ Long.MIN_VALUE) < (lo ^ Long.MIN_VALUE)) ? 1 : 0);
+      final int shift = -e;
+      long scaled;
+      boolean isRoundUp; // the remainder is at least half if the bit below the last one kept is set
+      if (shift < 64)
+      {
+         scaled = (low >>> shift) | (high << (64 - shift));
+         isRoundUp = ((low >>> (shift - 1)) & 1) != 0;
+      }
+      else if (shift < 128)
+      {
+         scaled = high >>> (shift - 64);
+         isRoundUp = ((((shift == 64) ? (low >>> 63) : (high >>> (shift - 65)))) & 1) != 0;
+      }
+      else
+      {
+         scaled = 0; // the product is < 2^83
+         isRoundUp = false;
+      }
+      if (isRoundUp)
+         scaled++;
+      if (bits < 0)
+         dest[offset++] = '-';
+      return digits(scaled, decimals, dest, offset);
+   }
+
+   /**
+    * Writes the decimal representation of <i>v</i> into <i>dest</i> starting at <i>offset</i>.
+    * @return The offset in <i>dest</i> after the last byte written.
+    */
+   public static int formatLong(long v, byte[] dest, int offset)
+   //-----------------------------------------------------------
+   {
+      if (v < 0)
+      {
+         dest[offset++] = '-';
+         if (v == Long.MIN_VALUE)
+         {
+            dest[offset++] = '9'; // -9223372036854775808
+            v = 223372036854775808L;
+         }
+         else
+            v = -v;
+      }
+      int digits = 1;
+      for (long t = v; t >= 10; t /= 10)
+         digits++;
+      for (int i = offset + digits - 1; i >= offset; i--)
+      {
+         dest[i] = (byte) ('0' + (v % 10));
+         v /= 10;
+      }
+      return offset + digits;
+   }
+
+   /**
+    * Writes <i>scaled</i> / 10^<i>decimals</i> with exactly <i>decimals</i> fraction digits.
+    */
+   static private int digits(long scaled, int decimals, byte[] dest, int offset)
+   //---------------------------------------------------------------------------
+   {
+      final long divisor = POW10[decimals];
+      offset = formatLong(scaled / divisor, dest, offset);
+      if (decimals > 0)
+      {
+         dest[offset++] = '.';
+         long fraction = scaled % divisor;
+         for (int i = offset + decimals - 1; i >= offset; i--)
+         {
+            dest[i] = (byte) ('0' + (fraction % 10));
+            fraction /= 10;
+         }
+         offset += decimals;
+      }
+      return offset;
+   }
+
+   static private int formatSlow(double v, int decimals, byte[] dest, int offset)
+   //---------------------------------------------------------------------------
+   {
+      byte[] b = String.format(Locale.ENGLISH, "%." + decimals + "f", v).getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(b, 0, dest, offset, b.length);
+      return offset + b.length;
+   }
+
+   static private int formatSlow(float v, int decimals, byte[] dest, int offset)
+   //--------------------------------------------------------------------------
+   {
+      byte[] b = String.format(Locale.ENGLISH, "%." + decimals + "f", v).getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(b, 0, dest, offset, b.length);
+      return offset + b.length;
+   }
+}
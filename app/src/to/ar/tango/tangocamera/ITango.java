@@ -25,9 +25,8 @@ package to.ar.tango.tangocamera;
 import android.app.Activity;
 import android.os.IBinder;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 public class ITango
 //=================
@@ -54,6 +53,13 @@ public class ITango
 
    public static native double lastTimestamp();
 
+   /**
+    * Fills <i>pose</i> with the latest start of service to device pose as timestamp, rotation [w, x, y, z] and
+    * translation [x, y, z] (see {@link TrajectoryRecorder#FIELDS}) without allocating.
+    * @return false if not connected or the pose is not valid.
+    */
+   public static native boolean latestPose(double[] pose);
+
    public static native boolean intrinsics(int cameraId, double[] fx, double[] fy,
                                            double[] cx, double[] cy,
                                            int[] pixelHeight, int[] pixelWidth,
@@ -61,6 +67,59 @@ public class ITango
 
    public static native boolean IMU2CameraPose(int cameraId, double[] rotation, double[] translation);
 
+   /**
+    * Fills <i>rotation</i> [w, x, y, z] and <i>translation</i> [x, y, z] with the IMU to device pose.
+    * @return false if the pose is not available.
+    */
+   public static native boolean IMU2DevicePose(double[] rotation, double[] translation);
+
+   /**
+    * @return The intrinsics (and IMU to camera and IMU to device poses if available) for <i>cameraId</i> or null
+    * if the intrinsics are not available.
+    */
+   static CameraCalibration queryCalibration(int cameraId)
+   //-----------------------------------------------------
+   {
+      double[] fx = new double[1], fy = new double[1], cx = new double[1], cy = new double[1],
+               hfov = new double[1], vfov = new double[1], distortion = new double[5];
+      int[] width = new int[1], height = new int[1];
+      if (! intrinsics(cameraId, fx, fy, cx, cy, height, width, hfov, vfov, distortion))
+         return null;
+      double[] imuRotation = new double[4], imuTranslation = new double[3];
+      if (! IMU2CameraPose(cameraId, imuRotation, imuTranslation))
+         imuRotation = imuTranslation = null;
+      double[] deviceRotation = new double[4], deviceTranslation = new double[3];
+      if (! IMU2DevicePose(deviceRotation, deviceTranslation))
+         deviceRotation = deviceTranslation = null;
+      return new CameraCalibration(cameraId, width[0], height[0], fx[0], fy[0], cx[0], cy[0], hfov[0], vfov[0],
+                                   distortion, imuRotation, imuTranslation, deviceRotation, deviceTranslation);
+   }
+
+   static final int POOL_IMAGE = 0, POOL_POINTCLOUD = 1;
+
+   /**
+    * Registers pre-allocated direct buffers which the native capture callbacks fill instead of allocating Java
+    * arrays. Buffers are handed to Java with a handle (see {@link DirectBufferPool#index}) and must be returned
+    * using {@link #releaseBuffer}. Registering the same buffers again has no effect, registering different
+    * buffers starts a new generation and releases of handles from earlier generations are ignored.
+    * @param pool The pool to register (POOL_IMAGE or POOL_POINTCLOUD).
+    * @param buffers Direct buffers (at most 256), each at least as large as the largest expected item.
+    */
+   public static native boolean registerBuffers(int pool, ByteBuffer[] buffers);
+
+   public static native void releaseBuffer(int pool, int handle);
+
+   /**
+    * Sets the minimum confidence for point cloud vertices passed to Java (the native side also always drops
+    * vertices below its own minimum confidence and beyond its maximum range).
+    */
+   public static native void setMinConfidence(float confidence);
+
+   /**
+    * @return The maximum number of points in a point cloud or 0 if depth is not available.
+    */
+   public static native int maxPointCloudPoints();
+
    public static native void renderInit();
 
    public static native void renderResize(int w, int h);
@@ -70,68 +129,49 @@ public class ITango
    public enum TangoCameraId { TANGO_CAMERA_COLOR, TANGO_CAMERA_RGBIR, TANGO_CAMERA_FISHEYE, TANGO_CAMERA_DEPTH,
                                TANGO_MAX_CAMERA_ID }
 
-   private Map<TangoCameraId, CalibrationDetail> cameras = null;
-
-   private void initCalibration()
-   //----------------------------
+   /**
+    * Calibrations of all cameras for the current service connection. Invalidate on connect and disconnect.
+    */
+   static final CalibrationCache calibrations = new CalibrationCache(new CalibrationCache.Query()
    {
-      double[] fx_ = new double[1], fy_ = new double[1], cx_ = new double[1], cy_ = new double[1],
-               hfov_ = new double[1], vfov_ = new double[1], distortion_= new double[5];
-      int[] width_ = new int[1], height_ = new int[1];
-      for (TangoCameraId id : TangoCameraId.values())
-      {
-         int cameraid = id.ordinal();
-         if (intrinsics(cameraid, fx_, fy_, cx_, cy_, height_, width_, hfov_, vfov_, distortion_))
-         {
-            if (cameras == null)
-               cameras = new HashMap<>();
-            cameras.put(id, new CalibrationDetail(cameraid, width_[0], height_[0], fx_[0], fy_[0],
-                                                  cx_[0], cy_[0], hfov_[0], vfov_[0], distortion_));
-         }
-      }
-   }
+      @Override public CameraCalibration query(int cameraId) { return queryCalibration(cameraId); }
+   });
 
-   public CalibrationDetail getCalibration(TangoCameraId id)
-   {
-      if (cameras == null)
-         initCalibration();
-      return cameras.get(id);
-   }
+   /**
+    * @return The cached calibration of <i>cameraId</i> (a TangoCameraId ordinal) or null if it is not available.
+    */
+   static CameraCalibration calibration(int cameraId) { return calibrations.get(cameraId); }
 
-   public CalibrationDetail getCalibration(int id)
-   {
-      if (cameras == null)
-         initCalibration();
-      return cameras.get(id);
-   }
+   public static CalibrationDetail getCalibration(TangoCameraId id) { return calibrations.detail(id.ordinal()); }
 
+   public static CalibrationDetail getCalibration(int id) { return calibrations.detail(id); }
 
-   public class CalibrationDetail
-   //============================
+   /**
+    * Immutable public view of a cached {@link CameraCalibration}.
+    */
+   public static class CalibrationDetail
+   //===================================
    {
-      private int cameraId, pixelWidth, pixelHeight;
-      private double fx, fy, cx, cy, hFOV, vFOV;
-      private double[] distortion = new double[5];
-      private double[][] K;
-
-      public CalibrationDetail(int cameraId, int pixelWidth, int pixelHeight, double fx, double fy,
-                               double cx, double cy, double hFOV, double vFOV, double[] distortion)
-      //-------------------------------------------------------------------------------------------
+      private final int cameraId, pixelWidth, pixelHeight;
+      private final double fx, fy, cx, cy, hFOV, vFOV;
+      private final double[] distortion, imuRotation, imuTranslation, inverseK;
+
+      CalibrationDetail(CameraCalibration calibration)
+      //----------------------------------------------
       {
-         this.cameraId = cameraId;
-         this.pixelWidth = pixelWidth;
-         this.pixelHeight = pixelHeight;
-         this.fx = fx;
-         this.fy = fy;
-         this.cx = cx;
-         this.cy = cy;
-         this.hFOV = hFOV;
-         this.vFOV = vFOV;
-         System.arraycopy(distortion, 0, this.distortion, 0, 5);
-         K = new double[][] {  {  fx,  0,  cx },
-                               {  0,   fy, cy },
-                               {  0,   0,  0  }
-                            };
+         this.cameraId = calibration.cameraId;
+         this.pixelWidth = calibration.width;
+         this.pixelHeight = calibration.height;
+         this.fx = calibration.fx;
+         this.fy = calibration.fy;
+         this.cx = calibration.cx;
+         this.cy = calibration.cy;
+         this.hFOV = calibration.hFOV;
+         this.vFOV = calibration.vFOV;
+         this.distortion = calibration.distortion;
+         this.imuRotation = calibration.imuRotation;
+         this.imuTranslation = calibration.imuTranslation;
+         this.inverseK = calibration.inverseK;
       }
 
       public int cameraId() { return cameraId; }
@@ -148,13 +188,37 @@ public class ITango
 
       public int pixelHeight() { return pixelHeight; }
 
-      public double[] distortion() { return distortion; }
+      public double[] distortion() { return distortion.clone(); }
 
       public double hFOV() { return hFOV; }
 
       public double vFOV() { return vFOV; }
 
-      public double[][] K() { return K; }
+      public double[][] K()
+      //-------------------
+      {
+         return new double[][] { { fx, 0,  cx },
+                                 { 0,  fy, cy },
+                                 { 0,  0,  1  } };
+      }
+
+      public double[][] inverseK()
+      //--------------------------
+      {
+         return new double[][] { { inverseK[0], inverseK[1], inverseK[2] },
+                                 { inverseK[3], inverseK[4], inverseK[5] },
+                                 { inverseK[6], inverseK[7], inverseK[8] } };
+      }
+
+      /**
+       * @return The IMU to camera rotation quaternion [w, x, y, z] or null if not available.
+       */
+      public double[] imuRotation() { return (imuRotation == null) ? null : imuRotation.clone(); }
+
+      /**
+       * @return The IMU to camera translation [x, y, z] or null if not available.
+       */
+      public double[] imuTranslation() { return (imuTranslation == null) ? null : imuTranslation.clone(); }
 
       @Override
       public String toString()
@@ -0,0 +1,164 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the YUV frames delivered by on_image directly to JPEG.
+ */
+public class JpegWriter
+//=====================
+{
+   static final public int DEFAULT_QUALITY = CaptureSettings.DEFAULT_JPEG_QUALITY;
+
+   static final private int BUFFER_SIZE = 64*1024;
+
+   // Per worker thread NV21 conversion buffer for YV12 frames (YuvImage only accepts NV21 and YUY2).
+   static final private ThreadLocal<byte[]> nv21Buffers = new ThreadLocal<>();
+
+   /**
+    * Encodes a NV21 (0x11) or YV12 (0x23, see on_image in itango.cc) frame to <i>jpegFile</i> without
+    * intermediate Bitmaps.
+    * @param stride Luma row stride in bytes (the width is used if it is smaller).
+    * @param quality JPEG quality (0 - 100).
+    */
+   public static void writeYuv(File jpegFile, ByteBuffer data, int format, int width, int height, int stride,
+                               int quality) throws IOException
+   //---------------------------------------------------------------------------------------------------------
+   {
+      writeYuv(jpegFile, data, format, width, height, stride, quality, null);
+   }
+
+   /**
+    * As {@link #writeYuv(File, ByteBuffer, int, int, int, int, int)} but also inserts <i>app1</i> (a complete
+    * segment, see {@link ExifWriter#app1}) after the SOI marker while the JPEG is streamed to the file.
+    * @param app1 The segment to insert or null for none.
+    */
+   public static void writeYuv(File jpegFile, ByteBuffer data, int format, int width, int height, int stride,
+                               int quality, byte[] app1) throws IOException
+   //---------------------------------------------------------------------------------------------------------
+   {
+      try (OutputStream os = open(jpegFile, app1))
+      {
+         writeYuv(os, data, format, width, height, stride, quality);
+      }
+   }
+
+   /**
+    * @return A buffered stream to <i>jpegFile</i> which inserts <i>app1</i> (if not null) after the SOI marker.
+    */
+   public static OutputStream open(File jpegFile, byte[] app1) throws IOException
+   //-----------------------------------------------------------------------------
+   {
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(jpegFile), BUFFER_SIZE);
+      return (app1 == null) ? os : new ExifWriter.SpliceOutputStream(os, app1);
+   }
+
+   public static void writeYuv(OutputStream os, ByteBuffer data, int format, int width, int height, int stride,
+                               int quality) throws IOException
+   //---------------------------------------------------------------------------------------------------------
+   {
+      stride = Math.max(width, stride);
+      final byte[] nv21;
+      switch (format)
+      {
+         case ImageFormat.NV21:
+            nv21 = array(data);
+            break;
+         case ImageFormat.YUV_420_888:
+         case ImageFormat.YV12:
+            byte[] buffer = nv21Buffers.get();
+            if ( (buffer == null) || (buffer.length < nv21Length(height, stride)) )
+            {
+               buffer = new byte[nv21Length(height, stride)];
+               nv21Buffers.set(buffer);
+            }
+            nv21 = yv12ToNV21(data, width, height, stride, buffer);
+            break;
+         default:
+            throw new IllegalArgumentException("JpegWriter: Unsupported YUV format " + format);
+      }
+      YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, new int[] { stride, stride });
+      if (! yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, os))
+         throw new IOException("JpegWriter: JPEG compression failed");
+   }
+
+   static int nv21Length(int height, int stride) { return stride * height + stride * ((height + 1) / 2); }
+
+   /**
+    * Converts planar YV12 (Y plane followed by the V and U planes with a chroma stride of half the luma stride)
+    * to semi-planar NV21 (Y plane followed by interleaved V,U rows with the same stride as the luma rows).
+    * @param nv21 Destination, at least {@link #nv21Length(int, int)} bytes.
+    * @return <i>nv21</i>
+    */
+   static byte[] yv12ToNV21(ByteBuffer yv12, int width, int height, int stride, byte[] nv21)
+   //--------------------------------------------------------------------------------------
+   {
+      final ByteBuffer src = yv12.duplicate();
+      src.clear();
+      final int ySize = stride * height, chromaStride = stride / 2, chromaWidth = (width + 1) / 2,
+                chromaHeight = (height + 1) / 2, vOffset = ySize, uOffset = ySize + chromaStride * chromaHeight;
+      src.get(nv21, 0, ySize);
+      byte[] v = new byte[chromaWidth], u = new byte[chromaWidth];
+      for (int row = 0; row < chromaHeight; row++)
+      {
+         src.position(vOffset + row * chromaStride);
+         src.get(v, 0, chromaWidth);
+         src.position(uOffset + row * chromaStride);
+         src.get(u, 0, chromaWidth);
+         for (int i = 0, j = ySize + row * stride; i < chromaWidth; i++)
+         {
+            nv21[j++] = v[i];
+            nv21[j++] = u[i];
+         }
+      }
+      return nv21;
+   }
+
+   /**
+    * @return The backing array of <i>buffer</i> if it has one starting at offset 0 (direct buffers allocated with
+    * ByteBuffer.allocateDirect on Android are backed by a non-movable array) otherwise a copy.
+    */
+   static byte[] array(ByteBuffer buffer)
+   //------------------------------------
+   {
+      if ( (buffer.hasArray()) && (buffer.arrayOffset() == 0) )
+         return buffer.array();
+      byte[] copy = new byte[buffer.limit()];
+      ByteBuffer duplicate = buffer.duplicate();
+      duplicate.rewind();
+      duplicate.get(copy);
+      return copy;
+   }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing (linear probing) hash map from primitive long keys to non-negative int values, so that hot
+ * loops keyed by packed coordinates do not box a Long for every lookup. Not thread safe.
+ */
+class LongIntMap
+//==============
+{
+   static final int MISSING = -1;
+
+   static final private float LOAD_FACTOR = 0.5f;
+
+   private long[] keys;
+   private int[] values; // MISSING marks an empty slot
+   private int size = 0, mask, resizeAt;
+
+   LongIntMap(int expectedSize)
+   //--------------------------
+   {
+      int capacity = Integer.highestOneBit(Math.max(8, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+      allocate(capacity);
+   }
+
+   int size() { return size; }
+
+   /**
+    * @return The value for <i>key</i> or {@link #MISSING}.
+    */
+   int get(long key)
+   //---------------
+   {
+      for (int slot = slot(key); ; slot = (slot + 1) & mask)
+      {
+         int value = values[slot];
+         if ( (value == MISSING) || (keys[slot] == key) )
+            return value;
+      }
+   }
+
+   /**
+    * Maps <i>key</i> to <i>value</i> (&gt;= 0) unless it is already mapped.
+    * @return The existing value for <i>key</i> or {@link #MISSING} if <i>value</i> was added.
+    */
+   int putIfAbsent(long key, int value)
+   //----------------------------------
+   {
+      int slot = slot(key);
+      for (; values[slot] != MISSING; slot = (slot + 1) & mask)
+         if (keys[slot] == key)
+            return values[slot];
+      keys[slot] = key;
+      values[slot] = value;
+      if (++size > resizeAt)
+         resize();
+      return MISSING;
+   }
+
+   /**
+    * Removes the mapping for <i>key</i> (shifting the entries probed past it back so lookups stay correct).
+    * @return The value <i>key</i> was mapped to or {@link #MISSING}.
+    */
+   int remove(long key)
+   //------------------
+   {
+      int slot = slot(key);
+      for (; ; slot = (slot + 1) & mask)
+      {
+         if (values[slot] == MISSING)
+            return MISSING;
+         if (keys[slot] == key)
+            break;
+      }
+      final int removed = values[slot];
+      int hole = slot;
+      for (int next = (hole + 1) & mask; values[next] != MISSING; next = (next + 1) & mask)
+      {
+         // An entry can fill the hole if the hole lies between its home slot and where it is now
+         final int home = slot(keys[next]);
+         if ( ((next - home) & mask) >= ((next - hole) & mask) )
+         {
+            keys[hole] = keys[next];
+            values[hole] = values[next];
+            hole = next;
+         }
+      }
+      values[hole] = MISSING;
+      size--;
+      return removed;
+   }
+
+   /**
+    * Removes all entries (keeping the current capacity).
+    */
+   void clear()
+   //----------
+   {
+      if (size > 0)
+         Arrays.fill(values, MISSING);
+      size = 0;
+   }
+
+   private int slot(long key)
+   //------------------------
+   {
+      long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads packed coordinates over the table
+      return (int) (h ^ (h >>> 32)) & mask;
+   }
+
+   private void allocate(int capacity)
+   //---------------------------------
+   {
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(values, MISSING);
+      mask = capacity - 1;
+      resizeAt = (int) (capacity * LOAD_FACTOR);
+   }
+
+   private void resize()
+   //-------------------
+   {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      allocate(keys.length * 2);
+      for (int i = 0; i < oldKeys.length; i++)
+         if (oldValues[i] != MISSING)
+         {
+            int slot = slot(oldKeys[i]);
+            while (values[slot] != MISSING)
+               slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+         }
+   }
+}
@@ -53,12 +53,23 @@ import com.androidadvance.topsnackbar.TSnackbar;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MainActivity extends Activity
 //=========================================
 {
    private static final String TAG = "MainActivity";
+   private static final int CAPTURE_QUEUE_CAPACITY = 3, CAPTURE_WORKERS = 2;
+   // Captures waiting in the queue, being processed and being taken each hold a buffer
+   private static final int IMAGE_BUFFERS = CAPTURE_QUEUE_CAPACITY + CAPTURE_WORKERS + 1,
+                            POINTCLOUD_BUFFERS = CAPTURE_QUEUE_CAPACITY + CAPTURE_WORKERS + 1;
+   private static final long CAPTURE_QUEUE_TIMEOUT_MS = 2000, BACKPRESSURE_RETRY_MS = 100;
 
    private Handler handler;
    private ServiceConnection tangoServiceConnection = new TangoServiceConnection();
@@ -73,17 +84,18 @@ public class MainActivity extends Activity
    private int hasCameraPerm = PackageManager.PERMISSION_DENIED;
 
    int deviceRotation;
-   int imageFormat, imageWidth, imageHeight, imageStride, noPoints =-1;
-   byte[] imageData = null;
-   float[] pointCloud = null;
-   double imageTimestamp, pointCloudTimestamp, rotationW, rotationX, rotationY, rotationZ,
-          translationX, translationY, translationZ;
-   RingBuffer<double[]> gravityBuffer = new RingBuffer<>(double[].class, 100),
-                        accelBuffer = new RingBuffer<>(double[].class, 100);
+   private DirectBufferPool imageBuffers = null, pointCloudBuffers = null;
+   // Parts of the capture in progress, set on the Tango callback threads and combined into a CaptureFrame in
+   // postProcess.
+   final private AtomicReference<CaptureFrame.Image> pendingImage = new AtomicReference<>();
+   final private AtomicReference<CaptureFrame.PointCloud> pendingPointCloud = new AtomicReference<>();
+   final SensorRing gravityBuffer = new SensorRing(128), accelBuffer = new SensorRing(128);
    private Sensor gravitySensor = null, accelSensor = null;
    private SensorEvents sensorEventListener = null;
-   private long localImageTimestamp, localPointcloudTimestamp;
-   volatile private boolean isPauseSensors = false;
+   private TrajectoryRecorder trajectoryRecorder = null; // Only accessed on the UI thread
+   private CaptureQueue<CaptureFrame> captureQueue;
+   private int burstRemaining = 0; // Only accessed on the UI thread
+   private long burstInterval = 0, burstStartTime = 0;
 
    @Override
    protected void onCreate(Bundle savedInstanceState)
@@ -108,10 +120,33 @@ public class MainActivity extends Activity
                stopSensors();
                startSensors();
             }
+            else if ( (key.equals("trajectory_rate")) && (isTangoConnected) )
+            {
+               stopTrajectory();
+               startTrajectory();
+            }
          }
       };
       SP.registerOnSharedPreferenceChangeListener(preferencesListener);
       handler = new Handler();
+      captureQueue = new CaptureQueue<>(CAPTURE_QUEUE_CAPACITY, CAPTURE_WORKERS,
+                                        new CaptureQueue.Processor<CaptureFrame>()
+      {
+         @Override public void process(CaptureFrame frame)
+         {
+            new PostProcessThread(MainActivity.this, frame).run();
+         }
+
+         @Override public void discard(CaptureFrame frame) { release(frame); }
+
+         @Override public void onIdle()
+         {
+            handler.post(new Runnable()
+            {
+               @Override public void run() { if (burstRemaining <= 0) showButtons(); }
+            });
+         }
+      });
    }
 
    private boolean isInitingTango = false;
@@ -201,6 +236,10 @@ public class MainActivity extends Activity
    protected void onDestroy()
    //------------------------
    {
+      burstRemaining = 0;
+      handler.removeCallbacks(nextCapture);
+      captureQueue.shutdown();
+      stopTrajectory();
       if (isTangoConnected)
       {
          try { ITango.destroy(); } catch (Throwable e) {}
@@ -210,6 +249,7 @@ public class MainActivity extends Activity
             {
                unbindService(tangoServiceConnection);
                ITango.disconnect();
+               ITango.calibrations.invalidate();
             }
          }
          catch (Throwable e)
@@ -280,7 +320,129 @@ public class MainActivity extends Activity
       gravityBuffer.clear(); accelBuffer.clear();
    }
 
-   void pauseSensors(boolean isPause) { isPauseSensors = isPause; }
+   /**
+    * Starts recording the device trajectory to a new file in the output directory if the trajectory_rate
+    * preference is not 0.
+    */
+   private void startTrajectory()
+   //----------------------------
+   {
+      SharedPreferences SP = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
+      int rate = Math.min(1000, intPreference(SP, "trajectory_rate", 0));
+      if ( (rate <= 0) || (trajectoryRecorder != null) )
+         return;
+      StringBuilder messages = new StringBuilder();
+      File dir = PostProcessThread.outputDirectory(messages);
+      String name = "trajectory-" + new SimpleDateFormat("yyyyMMddHHmmss", Locale.US).format(new Date()) +
+                    TrajectoryRecorder.EXTENSION;
+      try
+      {
+         trajectoryRecorder = new TrajectoryRecorder(new File(dir, name), rate, new TrajectoryRecorder.Source()
+         {
+            @Override public boolean sample(double[] pose) { return ITango.latestPose(pose); }
+         });
+         trajectoryRecorder.start();
+      }
+      catch (Exception e)
+      {
+         Log.e(TAG, "startTrajectory", e);
+         trajectoryRecorder = null;
+         notification("Could not record trajectory: " + e.getMessage() + " " + messages, TSnackbar.LENGTH_LONG,
+                      true);
+      }
+   }
+
+   private void stopTrajectory()
+   //---------------------------
+   {
+      if (trajectoryRecorder == null)
+         return;
+      try
+      {
+         trajectoryRecorder.stop();
+         Log.i(TAG, "Recorded " + trajectoryRecorder.count() + " poses to " + trajectoryRecorder.file);
+      }
+      catch (Exception e)
+      {
+         Log.e(TAG, "stopTrajectory", e);
+         notification("Error recording trajectory: " + e.getMessage(), TSnackbar.LENGTH_LONG, true);
+      }
+      trajectoryRecorder = null;
+   }
+
+   private void allocateBuffers()
+   //----------------------------
+   {
+      CameraCalibration color = ITango.calibrations.get(ITango.TangoCameraId.TANGO_CAMERA_COLOR);
+      if (color != null)
+         // Large enough for RGBA_8888 or YUV 4:2:0 with stride padding
+         imageBuffers = registerPool(imageBuffers, ITango.POOL_IMAGE, IMAGE_BUFFERS, color.width * color.height * 4);
+      int maxPoints = ITango.maxPointCloudPoints();
+      if (maxPoints > 0)
+         pointCloudBuffers = registerPool(pointCloudBuffers, ITango.POOL_POINTCLOUD, POINTCLOUD_BUFFERS,
+                                          maxPoints * 4 * 4);
+   }
+
+   private DirectBufferPool registerPool(DirectBufferPool buffers, int pool, int count, int capacity)
+   //------------------------------------------------------------------------------------------------
+   {
+      // Registering the same buffers again (on reconnecting) is a no-op natively, so buffers still held by queued
+      // captures stay in use. New buffers start a new generation and the old ones stay valid until released.
+      if ( (buffers == null) || (buffers.capacity() < capacity) )
+         buffers = new DirectBufferPool(pool, count, capacity);
+      if (! buffers.register())
+      {
+         Log.w(TAG, "Could not register direct buffers for pool " + pool);
+         return null;
+      }
+      return buffers;
+   }
+
+   static int intPreference(SharedPreferences SP, String key, int defaultValue)
+   //-------------------------------------------------------------------------
+   {
+      try
+      {
+         return Integer.parseInt(SP.getString(key, Integer.toString(defaultValue)).trim());
+      }
+      catch (Exception e)
+      {
+         return defaultValue;
+      }
+   }
+
+   static float floatPreference(SharedPreferences SP, String key, float defaultValue)
+   //-------------------------------------------------------------------------------
+   {
+      try
+      {
+         return Float.parseFloat(SP.getString(key, Float.toString(defaultValue)).trim());
+      }
+      catch (Exception e)
+      {
+         return defaultValue;
+      }
+   }
+
+   static float minConfidence(SharedPreferences SP)
+   //----------------------------------------------
+   {
+      try
+      {
+         return SP.getFloat("confidence", 0.5f);
+      }
+      catch (Exception e)
+      {
+         try
+         {
+            return Float.parseFloat(SP.getString("confidence", "0.5"));
+         }
+         catch (Exception ee)
+         {
+            return 0.5f;
+         }
+      }
+   }
 
    private boolean isPointCloud = true;
 
@@ -294,13 +456,57 @@ public class MainActivity extends Activity
       }
       SharedPreferences SP = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
       isPointCloud = SP.getBoolean("pointclouds", true);
+      ITango.setMinConfidence(minConfidence(SP));
+      burstRemaining = Math.max(1, intPreference(SP, "burst_count", 1));
+      burstInterval = Math.max(0, intPreference(SP, "burst_interval", 0));
 //      startSensors();
-      if (ITango.startTakingPhoto(isPointCloud))
-         hideButtons();
+      startCapture();
       MediaActionSound sound = new MediaActionSound();
       sound.play(MediaActionSound.FOCUS_COMPLETE);
    }
 
+   final private Runnable nextCapture = new Runnable()
+   {
+      @Override public void run() { startCapture(); }
+   };
+
+   /**
+    * Starts the next capture of a burst unless the capture queue is full, in which case the capture is retried
+    * later so that a slow writer delays the burst instead of dropping frames.
+    */
+   private void startCapture()
+   //-------------------------
+   {
+      if (burstRemaining <= 0)
+         return;
+      if (captureQueue.remainingCapacity() == 0)
+      {
+         handler.postDelayed(nextCapture, BACKPRESSURE_RETRY_MS);
+         return;
+      }
+      burstStartTime = SystemClock.elapsedRealtime();
+      if (ITango.startTakingPhoto(isPointCloud))
+         hideButtons();
+      else
+      {
+         burstRemaining = 0;
+         if (captureQueue.isIdle())
+            showButtons();
+      }
+   }
+
+   private void onCaptureQueued()
+   //----------------------------
+   {
+      if (--burstRemaining > 0)
+      {
+         long delay = burstInterval - (SystemClock.elapsedRealtime() - burstStartTime);
+         handler.postDelayed(nextCapture, Math.max(0, delay));
+      }
+      else if (captureQueue.isIdle())
+         showButtons();
+   }
+
    public void clickedSetOrigin(View view)
    //------------------------------------
    {
@@ -323,65 +529,157 @@ public class MainActivity extends Activity
    //------------------------------------------------------------------------------------
    {
       if ( (data != null) && (data.length > 0) )
+         onPhoto(format, ByteBuffer.wrap(data), -1, data.length, width, height, stride, qw, qx, qy, qz,
+                 tx, ty, tz, timestamp);
+   }
+
+   /**
+    * Called from native on_image with the image copied into the pre-registered direct buffer <i>data</i>
+    * (index <i>bufferIndex</i> in the image pool, or -1 if <i>data</i> is not pooled). The sensor readings up to
+    * the image are snapshotted here so that they stay with the image however long post processing takes.
+    */
+   public void onPhoto(int format, ByteBuffer data, int bufferIndex, int length, int width, int height, int stride,
+                       double qw, double qx, double qy, double qz,
+                       double tx, double ty, double tz, double timestamp)
+   //-------------------------------------------------------------------------------------------------------------
+   {
+      if ( (data != null) && (length > 0) )
       {
-         imageFormat = format;
-         imageWidth = width;
-         imageHeight = height;
-         imageStride = stride;
-         imageData = data;
-         imageTimestamp = timestamp;
-         localImageTimestamp = SystemClock.elapsedRealtimeNanos();
-         rotationW = qw;
-         rotationX = qx;
-         rotationY = qy;
-         rotationZ = qz;
-         translationX = tx;
-         translationY = ty;
-         translationZ = tz;
-         pauseSensors(true);
+         data.clear();
+         data.limit(length);
+         CaptureFrame.Image image = new CaptureFrame.Image(format, data, bufferIndex, width, height, stride,
+                                                           timestamp, new CaptureFrame.Pose(qw, qx, qy, qz,
+                                                                                            tx, ty, tz),
+                                                           snapshot(gravityBuffer), snapshot(accelBuffer));
+         release(pendingImage.getAndSet(image));
 //         stopSensors();
       }
+      else if ( (imageBuffers != null) && (bufferIndex >= 0) )
+         imageBuffers.release(bufferIndex);
    }
 
    public void onPointCloud(float[] data, double timestamp)
    //--------------------------------------------------------------
    {
       if ( (data != null) && (data.length > 0) )
+         setPointCloud(FloatBuffer.wrap(data), -1, data.length / 4, timestamp);
+   }
+
+   /**
+    * Called from native on_pointcloud with <i>points</i> packed x, y, z, confidence vertices (already filtered
+    * by the minimum confidence preference) in the pre-registered direct buffer <i>data</i>.
+    */
+   public void onPointCloud(ByteBuffer data, int bufferIndex, int points, double timestamp)
+   //-------------------------------------------------------------------------------------
+   {
+      if (pointCloudBuffers == null)
       {
-         pointCloud = data;
-         noPoints = data.length;
-         pointCloudTimestamp = timestamp;
-         localPointcloudTimestamp = SystemClock.elapsedRealtimeNanos();
+         ITango.releaseBuffer(ITango.POOL_POINTCLOUD, bufferIndex);
+         return;
       }
+      FloatBuffer cloud = pointCloudBuffers.floats(data, bufferIndex);
+      cloud.clear();
+      cloud.limit(points * 4);
+      setPointCloud(cloud, bufferIndex, points, timestamp);
    }
 
-   PostProcessThread postProcessThread;
+   private void setPointCloud(FloatBuffer cloud, int bufferIndex, int points, double timestamp)
+   //------------------------------------------------------------------------------------------
+   {
+      if (points > 0)
+         release(pendingPointCloud.getAndSet(new CaptureFrame.PointCloud(cloud, bufferIndex, points, timestamp)));
+      else if ( (pointCloudBuffers != null) && (bufferIndex >= 0) )
+         pointCloudBuffers.release(bufferIndex);
+   }
 
+   /**
+    * Called from native on_frame once the image (and point cloud if requested) have been received. Combines the
+    * pending parts into a CaptureFrame and queues it for post processing.
+    */
    public void postProcess()
    //---------------------------
    {
-      if (postProcessThread != null)
+      CaptureFrame.Image image = pendingImage.getAndSet(null);
+      CaptureFrame.PointCloud cloud = pendingPointCloud.getAndSet(null);
+      if (image == null)
       {
-         try
-         {
-            postProcessThread.get(2, TimeUnit.SECONDS);
-         }
-         catch (Exception e)
+         release(cloud);
+         onTakePhotoError("Capture failed (no image)");
+         return;
+      }
+      CaptureFrame frame = new CaptureFrame(image, cloud, deviceRotation, System.currentTimeMillis(),
+                                            ITango.calibrations.get(ITango.TangoCameraId.TANGO_CAMERA_COLOR),
+                                            ITango.calibrations.get(ITango.TangoCameraId.TANGO_CAMERA_DEPTH),
+                                            PostProcessThread.settings(this));
+      queueCapture(frame, SystemClock.elapsedRealtime() + CAPTURE_QUEUE_TIMEOUT_MS);
+   }
+
+   /**
+    * Queues <i>frame</i> for post processing without blocking the calling (Tango callback) thread. If the queue is
+    * full the offer is retried on the UI thread every {@link #BACKPRESSURE_RETRY_MS} until <i>deadline</i>
+    * (elapsedRealtime), after which the capture is dropped.
+    */
+   private void queueCapture(final CaptureFrame frame, final long deadline)
+   //----------------------------------------------------------------------
+   {
+      if (captureQueue.offer(frame))
+      {
+         handler.post(new Runnable()
          {
-            Log.e(TAG, "", e);
-            postProcessThread.cancel(true);
-         }
+            @Override public void run() { onCaptureQueued(); }
+         });
+         return;
+      }
+      if ( (captureQueue.isShutdown()) || (SystemClock.elapsedRealtime() >= deadline) )
+      {
+         Log.e(TAG, "Capture queue full or shut down");
+         release(frame);
+         onTakePhotoError("Capture not saved (post processing queue full)");
+         return;
       }
-      postProcessThread = new PostProcessThread(this);
-      postProcessThread.execute();
+      handler.postDelayed(new Runnable()
+      {
+         @Override public void run() { queueCapture(frame, deadline); }
+      }, BACKPRESSURE_RETRY_MS);
+   }
+
+   private static SensorRing.Snapshot snapshot(SensorRing ring)
+   //----------------------------------------------------------
+   {
+      SensorRing.Snapshot snapshot = ring.newSnapshot();
+      ring.snapshot(snapshot);
+      return snapshot;
+   }
+
+   /**
+    * Returns the direct buffers of a processed (or discarded) capture to their pools.
+    */
+   void release(CaptureFrame frame)
+   //------------------------------
+   {
+      release(frame.image);
+      release(frame.pointCloud);
+   }
+
+   private void release(CaptureFrame.Image image)
+   //--------------------------------------------
+   {
+      if ( (image != null) && (imageBuffers != null) && (image.bufferIndex >= 0) )
+         imageBuffers.release(image.bufferIndex);
+   }
+
+   private void release(CaptureFrame.PointCloud cloud)
+   //-------------------------------------------------
+   {
+      if ( (cloud != null) && (pointCloudBuffers != null) && (cloud.bufferIndex >= 0) )
+         pointCloudBuffers.release(cloud.bufferIndex);
    }
 
    public void onTakePhotoError(final String message)
    //--------------------------------------------------
    {
-      imageData = null;
-      pointCloud = null;
-      pauseSensors(false);
+      release(pendingImage.getAndSet(null));
+      release(pendingPointCloud.getAndSet(null));
       handler.postDelayed(
       new Runnable()
       {
@@ -389,6 +687,8 @@ public class MainActivity extends Activity
          public void run()
          //--------------
          {
+            burstRemaining = 0;
+            handler.removeCallbacks(nextCapture);
             notification(message, TSnackbar.LENGTH_INDEFINITE, true);
             takePhotoButton.setVisibility(View.VISIBLE);
             takePhotoButton.setEnabled(true);
@@ -627,17 +927,26 @@ public class MainActivity extends Activity
 
          }
          isTangoConnected = true;
+         ITango.calibrations.invalidate();
+         allocateBuffers();
          startSensors();
+         startTrajectory();
          onTangoBound();
 //         for (ITango.TangoCameraId id : ITango.TangoCameraId.values())
 //         {
-//            ITango.CalibrationDetail detail = iTango.getCalibration(id);
+//            ITango.CalibrationDetail detail = ITango.getCalibration(id);
 //            if (detail != null)
 //               Log.i(TAG, detail.toString());
 //         }
       }
 
-      public void onServiceDisconnected(ComponentName name) { isTangoConnected = false; }
+      public void onServiceDisconnected(ComponentName name)
+      //---------------------------------------------------
+      {
+         isTangoConnected = false;
+         stopTrajectory();
+         ITango.calibrations.invalidate();
+      }
    }
 
    class SensorEvents implements SensorEventListener
@@ -650,9 +959,8 @@ public class MainActivity extends Activity
       public void onSensorChanged(SensorEvent event)
       //---------------------------------------------
       {
-         if ( (isPauseSensors) || (! isTangoConnected) )
+         if (! isTangoConnected)
             return;
-         double[] values;
          float[] eventValues = event.values;
          double tangoTime = ITango.lastTimestamp();
          if (tangoTime < 0)
@@ -663,25 +971,13 @@ public class MainActivity extends Activity
                if (tangoTime == lastGravityTs)
                   return;
                lastGravityTs = tangoTime;
-               values = new double[5];
-               values[0] = eventValues[0];
-               values[1] = eventValues[1];
-               values[2] = eventValues[2];
-               values[3] = tangoTime;
-               values[4] = event.timestamp * NS2S;
-               gravityBuffer.push(values);
+               gravityBuffer.push(eventValues[0], eventValues[1], eventValues[2], tangoTime, event.timestamp * NS2S);
                break;
             case Sensor.TYPE_ACCELEROMETER:
                if (tangoTime == lastAccelTs)
                   return;
                lastAccelTs = tangoTime;
-               values = new double[5];
-               values[0] = eventValues[0];
-               values[1] = eventValues[1];
-               values[2] = eventValues[2];
-               values[3] = tangoTime;
-               values[4] = event.timestamp * NS2S;
-               accelBuffer.push(values);
+               accelBuffer.push(eventValues[0], eventValues[1], eventValues[2], tangoTime, event.timestamp * NS2S);
                break;
          }
       }
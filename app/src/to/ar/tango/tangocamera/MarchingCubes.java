@@ -0,0 +1,216 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Marching cubes triangulation table. Instead of the usual hand written 256 entry table the triangles for each
+ * cube configuration are derived once from the cube topology: on every face the edges with a sign change are joined
+ * by segments (the ambiguous face with diagonally opposite inside corners always separates the inside corners, so
+ * neighbouring cubes agree on shared faces and the surface has no cracks), the segments are chained into loops
+ * around the cube and each loop is triangulated using only diagonals which do not lie in a cube face (a diagonal in
+ * a face could coincide with a triangle edge of the neighbouring cube).
+ * <p>Corner <i>i</i> of a cube is at offset (i &amp; 1, (i &gt;&gt; 1) &amp; 1, (i &gt;&gt; 2) &amp; 1). Corners
+ * with a negative value are inside. Triangles are wound counter-clockwise when seen from the outside (their normals
+ * point towards positive values).</p>
+ */
+class MarchingCubes
+//=================
+{
+   /** The start (lower) corner of each of the 12 edges. */
+   static final int[] EDGE_START = new int[12];
+   /** The end corner of each edge. */
+   static final int[] EDGE_END = new int[12];
+   /** The axis (0 = x, 1 = y, 2 = z) along which each edge runs. */
+   static final int[] EDGE_AXIS = new int[12];
+
+   static final private int[][] TRIANGLES = new int[256][];
+
+   static
+   {
+      for (int axis = 0, e = 0; axis < 3; axis++)
+         for (int corner = 0; corner < 8; corner++)
+            if ((corner & (1 << axis)) == 0)
+            {
+               EDGE_START[e] = corner;
+               EDGE_END[e] = corner | (1 << axis);
+               EDGE_AXIS[e++] = axis;
+            }
+      for (int config = 0; config < 256; config++)
+         TRIANGLES[config] = triangulate(config);
+   }
+
+   /**
+    * @return The edge indices of the triangles (3 per triangle) for the cube configuration <i>cubeIndex</i> (bit
+    * <i>i</i> set if corner <i>i</i> is inside).
+    */
+   static int[] triangles(int cubeIndex) { return TRIANGLES[cubeIndex]; }
+
+   static private int edge(int a, int b)
+   //-----------------------------------
+   {
+      for (int e = 0; e < 12; e++)
+         if ( ((EDGE_START[e] == a) && (EDGE_END[e] == b)) || ((EDGE_START[e] == b) && (EDGE_END[e] == a)) )
+            return e;
+      throw new IllegalArgumentException(a + " and " + b + " are not adjacent corners");
+   }
+
+   static private float coordinate(int corner, int axis) { return (corner >> axis) & 1; }
+
+   static private float midpoint(int edge, int axis)
+   //-----------------------------------------------
+   {
+      return (coordinate(EDGE_START[edge], axis) + coordinate(EDGE_END[edge], axis)) / 2;
+   }
+
+   static private int[] triangulate(int config)
+   //------------------------------------------
+   {
+      int[] next = new int[12];
+      for (int e = 0; e < 12; e++)
+         next[e] = -1;
+      for (int axis = 0; axis < 3; axis++)
+      {
+         final int u = (axis + 1) % 3, v = (axis + 2) % 3;
+         for (int side = 0; side < 2; side++)
+         {
+            // The face corners in cyclic order
+            final int base = side << axis;
+            final int[] corners = { base, base | (1 << u), base | (1 << u) | (1 << v), base | (1 << v) };
+            boolean[] inside = new boolean[4];
+            int crossings = 0;
+            for (int k = 0; k < 4; k++)
+               inside[k] = (config & (1 << corners[k])) != 0;
+            for (int k = 0; k < 4; k++)
+               if (inside[k] != inside[(k + 1) % 4])
+                  crossings++;
+            final float normal = (side == 0) ? -1 : 1;
+            if (crossings == 2)
+            {
+               int a = -1, b = -1, p = -1;
+               for (int k = 0; k < 4; k++)
+               {
+                  if (inside[k])
+                     p = corners[k];
+                  if (inside[k] != inside[(k + 1) % 4])
+                  {
+                     int e = edge(corners[k], corners[(k + 1) % 4]);
+                     if (a < 0) a = e; else b = e;
+                  }
+               }
+               link(next, a, b, p, axis, normal);
+            }
+            else if (crossings == 4)
+            {
+               for (int k = 0; k < 4; k++)
+                  if (inside[k])
+                     link(next, edge(corners[(k + 3) % 4], corners[k]), edge(corners[k], corners[(k + 1) % 4]),
+                          corners[k], axis, normal);
+            }
+         }
+      }
+
+      List<Integer> triangles = new ArrayList<>();
+      boolean[] isUsed = new boolean[12];
+      for (int start = 0; start < 12; start++)
+      {
+         if ( (next[start] < 0) || (isUsed[start]) )
+            continue;
+         List<Integer> loop = new ArrayList<>();
+         for (int e = start; ! isUsed[e]; e = next[e])
+         {
+            isUsed[e] = true;
+            loop.add(e);
+         }
+         triangulate(loop, triangles);
+      }
+      int[] result = new int[triangles.size()];
+      for (int i = 0; i < result.length; i++)
+         result[i] = triangles.get(i);
+      return result;
+   }
+
+   /**
+    * Splits <i>loop</i> (cube edge indices in order) into triangles along diagonals between edges which do not share
+    * a face, preserving the winding of the loop.
+    */
+   static private void triangulate(List<Integer> loop, List<Integer> triangles)
+   //--------------------------------------------------------------------------
+   {
+      final int n = loop.size();
+      if (n == 3)
+      {
+         triangles.addAll(loop);
+         return;
+      }
+      for (int i = 0; i < n; i++)
+         for (int j = i + 2; j < n; j++)
+         {
+            if ( ((i == 0) && (j == n - 1)) || (isSameFace(loop.get(i), loop.get(j))) )
+               continue;
+            triangulate(new ArrayList<>(loop.subList(i, j + 1)), triangles);
+            List<Integer> rest = new ArrayList<>(loop.subList(j, n));
+            rest.addAll(loop.subList(0, i + 1));
+            triangulate(rest, triangles);
+            return;
+         }
+      throw new IllegalStateException("MarchingCubes: Cannot triangulate loop " + loop);
+   }
+
+   static private boolean isSameFace(int a, int b)
+   //---------------------------------------------
+   {
+      for (int axis = 0; axis < 3; axis++)
+         if ( (EDGE_AXIS[a] != axis) && (EDGE_AXIS[b] != axis) &&
+              (((EDGE_START[a] ^ EDGE_START[b]) & (1 << axis)) == 0) )
+            return true;
+      return false;
+   }
+
+   /**
+    * Adds the face segment between the crossing points on edges <i>a</i> and <i>b</i>, oriented so that the inside
+    * corner <i>p</i> is on its right when seen from outside the face (which gives counter-clockwise triangles seen
+    * from the outside of the surface).
+    */
+   static private void link(int[] next, int a, int b, int p, int axis, float normal)
+   //------------------------------------------------------------------------------
+   {
+      float[] ab = new float[3], ap = new float[3];
+      for (int i = 0; i < 3; i++)
+      {
+         ab[i] = midpoint(b, i) - midpoint(a, i);
+         ap[i] = coordinate(p, i) - midpoint(a, i);
+      }
+      final int u = (axis + 1) % 3, v = (axis + 2) % 3;
+      final float cross = ab[u] * ap[v] - ab[v] * ap[u]; // component of ab x ap along the face normal axis
+      if (cross * normal > 0)
+      {
+         int t = a; a = b; b = t;
+      }
+      if (next[a] >= 0)
+         throw new IllegalStateException("MarchingCubes: Inconsistent face segments");
+      next[a] = b;
+   }
+}
@@ -0,0 +1,275 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes Tango XYZC point clouds to .ply files.
+ */
+public class PlyWriter
+//====================
+{
+   static final public String FORMAT_ASCII = "ascii", FORMAT_BINARY = "binary";
+
+   // Width of the vertex count field in the binary header. The count is only known after the confidence filter
+   // has been applied so the field is written blank padded and patched in place once the vertices are written.
+   static final private int COUNT_WIDTH = 10;
+
+   static final private int BUFFER_SIZE = 64*1024;
+
+   /**
+    * Writes the first <i>points</i> vertices in <i>cloud</i> (packed x, y, z, confidence) to <i>plyFile</i>
+    * in binary_little_endian 1.0 format.
+    * @return The number of vertices written.
+    */
+   public static int writeBinary(File plyFile, FloatBuffer cloud, int points, boolean writeConfidence)
+         throws IOException
+   //-------------------------------------------------------------------------------------------------
+   {
+      return writeBinary(plyFile, cloud, points, Float.NEGATIVE_INFINITY, writeConfidence);
+   }
+
+   /**
+    * Writes the vertices amongst the first <i>points</i> in <i>cloud</i> (packed x, y, z, confidence) with
+    * confidence &gt;= <i>minConfidence</i> to <i>plyFile</i> in binary_little_endian 1.0 format.
+    * @return The number of vertices written.
+    */
+   public static int writeBinary(File plyFile, FloatBuffer cloud, int points, float minConfidence,
+                                 boolean writeConfidence)
+         throws IOException
+   //------------------------------------------------------------------------------------------
+   {
+      final String preamble = headerPreamble("binary_little_endian 1.0");
+      final byte[] header = (preamble + pad("", COUNT_WIDTH) + "\n" +
+                             headerProperties(writeConfidence)).getBytes(StandardCharsets.US_ASCII);
+      final int countOffset = preamble.length();
+      final int length = Math.min(points * 4, cloud.limit()) & ~3;
+      final boolean isFiltered = (minConfidence > Float.NEGATIVE_INFINITY);
+      int count = 0;
+      try (FileOutputStream fos = new FileOutputStream(plyFile); FileChannel channel = fos.getChannel())
+      {
+         writeFully(channel, ByteBuffer.wrap(header));
+         ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+         FloatBuffer floats = buffer.asFloatBuffer();
+         if ( (! isFiltered) && (writeConfidence) )
+         {
+            // Vertices are copied unchanged so move them across in bulk
+            FloatBuffer source = cloud.duplicate();
+            for (int i = 0; i < length; i += floats.capacity())
+            {
+               source.limit(Math.min(length, i + floats.capacity())).position(i);
+               floats.put(source);
+               flush(channel, buffer, floats);
+               floats.clear();
+            }
+            count = length / 4;
+         }
+         else
+         {
+            final int vertexSize = (writeConfidence) ? 4 : 3;
+            for (int i = 0; i < length; i += 4)
+            {
+               if ( (isFiltered) && (cloud.get(i + 3) < minConfidence) )
+                  continue;
+               if (floats.remaining() < vertexSize)
+               {
+                  flush(channel, buffer, floats);
+                  floats.clear();
+               }
+               for (int j = 0; j < vertexSize; j++)
+                  floats.put(cloud.get(i + j));
+               count++;
+            }
+            flush(channel, buffer, floats);
+         }
+         ByteBuffer countField = ByteBuffer.wrap(pad(Integer.toString(count), COUNT_WIDTH).
+                                                 getBytes(StandardCharsets.US_ASCII));
+         while (countField.hasRemaining())
+            channel.write(countField, countOffset + countField.position());
+      }
+      return count;
+   }
+
+   /**
+    * Writes the first <i>points</i> vertices in <i>cloud</i> (packed x, y, z, confidence) to <i>plyFile</i>
+    * in ascii 1.0 format.
+    * @return The number of vertices written.
+    */
+   public static int writeAscii(File plyFile, FloatBuffer cloud, int points, boolean writeConfidence)
+         throws IOException
+   //------------------------------------------------------------------------------------------------
+   {
+      try (FileOutputStream fos = new FileOutputStream(plyFile))
+      {
+         return writeAscii(fos, cloud, points, Float.NEGATIVE_INFINITY, writeConfidence);
+      }
+   }
+
+   /**
+    * Writes the vertices amongst the first <i>points</i> in <i>cloud</i> (packed x, y, z, confidence) with
+    * confidence &gt;= <i>minConfidence</i> to <i>out</i> in ascii 1.0 format. The output is byte for byte the
+    * same as the printf("%.9f") based writer this replaces, but vertices are formatted by {@link FloatFormatter}
+    * into a single reusable buffer which is streamed to the file as it fills.
+    * @return The number of vertices written.
+    */
+   public static int writeAscii(OutputStream out, FloatBuffer cloud, int points, float minConfidence,
+                                boolean writeConfidence)
+         throws IOException
+   //------------------------------------------------------------------------------------------
+   {
+      final int length = Math.min(points * 4, cloud.limit()) & ~3;
+      final boolean isFiltered = (minConfidence > Float.NEGATIVE_INFINITY);
+      int count = 0;
+      if (isFiltered)
+      {
+         // The ASCII header can't be patched in place without changing its format so the count is taken first.
+         // This only touches the confidences, the (expensive) formatting is still done in a single pass.
+         for (int i = 3; i < length; i += 4)
+            if (cloud.get(i) >= minConfidence)
+               count++;
+      }
+      else
+         count = length / 4;
+      out.write(header("ascii 1.0", count, writeConfidence).getBytes(StandardCharsets.US_ASCII));
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      final int vertexSize = (writeConfidence) ? 4 : 3;
+      final int maxVertexLength = vertexSize * (FloatFormatter.MAX_LENGTH + 1);
+      int p = 0;
+      for (int i = 0; i < length; i += 4)
+      {
+         if ( (isFiltered) && (cloud.get(i + 3) < minConfidence) )
+            continue;
+         if (p > BUFFER_SIZE - maxVertexLength)
+         {
+            out.write(buffer, 0, p);
+            p = 0;
+         }
+         p = FloatFormatter.format(cloud.get(i), 9, buffer, p);
+         for (int j = 1; j < vertexSize; j++)
+         {
+            buffer[p++] = ' ';
+            p = FloatFormatter.format(cloud.get(i + j), 9, buffer, p);
+         }
+         buffer[p++] = '\n';
+      }
+      if (p > 0)
+         out.write(buffer, 0, p);
+      out.flush();
+      return count;
+   }
+
+   /**
+    * Writes a triangle mesh (3 floats per vertex, 3 vertex indices per triangle, see {@link TsdfVolume.Mesh}) to
+    * <i>plyFile</i> in binary_little_endian 1.0 format.
+    */
+   public static void writeMesh(File plyFile, float[] vertices, int[] triangles) throws IOException
+   //----------------------------------------------------------------------------------------------
+   {
+      final int vertexCount = vertices.length / 3, triangleCount = triangles.length / 3;
+      final String header = headerPreamble("binary_little_endian 1.0") + vertexCount + "\n" +
+                            "property float x\nproperty float y\nproperty float z\n" +
+                            "element face " + triangleCount + "\nproperty list uchar int vertex_indices\n" +
+                            "end_header\n";
+      try (FileOutputStream fos = new FileOutputStream(plyFile); FileChannel channel = fos.getChannel())
+      {
+         writeFully(channel, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+         ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+         for (int i = 0; i < vertexCount * 3; i++)
+         {
+            if (buffer.remaining() < 4)
+               flush(channel, buffer);
+            buffer.putFloat(vertices[i]);
+         }
+         for (int i = 0; i < triangleCount * 3; i += 3)
+         {
+            if (buffer.remaining() < 13)
+               flush(channel, buffer);
+            buffer.put((byte) 3).putInt(triangles[i]).putInt(triangles[i + 1]).putInt(triangles[i + 2]);
+         }
+         flush(channel, buffer);
+      }
+   }
+
+   static String header(String format, int count, boolean writeConfidence)
+   //---------------------------------------------------------------------
+   {
+      return headerPreamble(format) + count + "\n" + headerProperties(writeConfidence);
+   }
+
+   static private String headerPreamble(String format)
+   //-------------------------------------------------
+   {
+      return "ply\nformat " + format + "\nelement vertex ";
+   }
+
+   static private String headerProperties(boolean writeConfidence)
+   //--------------------------------------------------------------
+   {
+      StringBuilder sb = new StringBuilder("property float x\nproperty float y\nproperty float z\n");
+      if (writeConfidence)
+         sb.append("comment c is confidence probability\nproperty float c\n");
+      return sb.append("end_header\n").toString();
+   }
+
+   static private String pad(String s, int width)
+   //--------------------------------------------
+   {
+      StringBuilder sb = new StringBuilder(width).append(s);
+      while (sb.length() < width)
+         sb.append(' ');
+      return sb.toString();
+   }
+
+   static private void flush(FileChannel channel, ByteBuffer buffer, FloatBuffer floats) throws IOException
+   //-------------------------------------------------------------------------------------------------------
+   {
+      buffer.limit(floats.position() * 4).position(0);
+      writeFully(channel, buffer);
+      buffer.clear();
+   }
+
+   static private void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+   //-----------------------------------------------------------------------------------
+   {
+      buffer.flip();
+      writeFully(channel, buffer);
+      buffer.clear();
+   }
+
+   static private void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+   //----------------------------------------------------------------------------------------
+   {
+      while (buffer.hasRemaining())
+         channel.write(buffer);
+   }
+}
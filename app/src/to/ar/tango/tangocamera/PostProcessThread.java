@@ -22,59 +22,144 @@ SOFTWARE.
 
 package to.ar.tango.tangocamera;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.SensorManager;
-import android.media.ExifInterface;
 import android.media.MediaActionSound;
 import android.opengl.Matrix;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Surface;
 import com.androidadvance.topsnackbar.TSnackbar;
 
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.nio.BufferUnderflowException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-
-import static java.lang.Math.abs;
-
-class PostProcessThread extends AsyncTask<Void, String, Boolean>
-//======================================================================
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the files for one {@link CaptureFrame}. Runs on a {@link CaptureQueue} worker thread, or without an
+ * activity from {@link RawTranscodeService} to convert raw captures (see {@link #saveProcessed}).
+ */
+class PostProcessThread implements Runnable
+//=========================================
 {
    static final private String TAG = "PostProcessThread";
 
-   final private StringBuilder messages = new StringBuilder(), errors = new StringBuilder();
-
-   final MainActivity activity;
+   static final private String STAGE_IMAGE = "image", STAGE_YAML = "details",
+                               STAGE_PLY = "point cloud", STAGE_DEPTH = "registered depth",
+                               STAGE_RECTIFIED = "rectified image";
+
+   static private ExecutorService stageExecutor = null;
+
+   static final private ThreadLocal<ByteBuffer> rgbaBuffers = new ThreadLocal<>();
+   static final private ThreadLocal<Bitmap> bitmaps = new ThreadLocal<>();
+   static final private ThreadLocal<VoxelDownsampler> downsamplers = new ThreadLocal<>();
+   static final private ThreadLocal<FloatBuffer> transformedClouds = new ThreadLocal<>();
+   static final private ThreadLocal<DepthRegistration> registrations = new ThreadLocal<>();
+   static final private ThreadLocal<YamlEmitter> yamlEmitters = new ThreadLocal<>();
+   // Full frame buffers for the rectified image, shared by the stage threads (rather than per thread) as each set
+   // is about 25MB at full resolution and the remap itself already runs on the shared fork-join pool.
+   static final private RectifiedScratch rectifiedScratch = new RectifiedScratch();
+
+   // Appended to concurrently by the post processing stages
+   final private StringBuffer messages = new StringBuffer(), errors = new StringBuffer();
+
+   final Context context;
+   final MainActivity activity; // null when converting raw captures in the background
+   final CaptureFrame frame;
+   // The preferences when the frame was captured (the current ones for frames which did not record them)
+   final CaptureSettings settings;
    int androidXAxis, androidYAxis;
    private float[] I = new float[16], IR = new float[16];
+   // Row major double precision copy of IR (the device rotation correction)
+   private double[] correction = null;
+   // Scratch for the corrected YAML pose and sensor vectors
+   final private double[] quaternion = new double[4], vector = new double[3];
+
+   public PostProcessThread(MainActivity activity, CaptureFrame frame)
+   //-----------------------------------------------------------------
+   {
+      this.context = activity;
+      this.activity = activity;
+      this.frame = frame;
+      this.settings = (frame.settings != null) ? frame.settings : settings(activity);
+   }
 
-   public PostProcessThread(MainActivity activity) { this.activity = activity; }
+   PostProcessThread(Context context, CaptureFrame frame)
+   //----------------------------------------------------
+   {
+      this.context = context;
+      this.activity = null;
+      this.frame = frame;
+      this.settings = (frame.settings != null) ? frame.settings : settings(context);
+   }
 
    @Override
-   protected Boolean doInBackground(Void... Vs)
-   //---------------------------------------------------------------
+   public void run()
+   //---------------
+   {
+      final boolean isSuccess = process();
+      activity.runOnUiThread(new Runnable()
+      {
+         @Override public void run() { onPostExecute(isSuccess); }
+      });
+   }
+
+   private boolean process()
+   //-----------------------
    {
       MediaActionSound sound = new MediaActionSound();
       sound.play(MediaActionSound.SHUTTER_CLICK);
-      switch (activity.deviceRotation)
+      final String name = captureName(frame);
+      StringBuilder directoryMessages = new StringBuilder();
+      final File dir = outputDirectory(directoryMessages);
+      if (directoryMessages.length() > 0)
+         publishProgress(directoryMessages.toString());
+      try
+      {
+         if (RawCapture.FORMAT_RAW.equals(settings.captureFormat))
+         {
+            boolean isSaved = saveRaw(new File(dir, name + RawCapture.EXTENSION));
+            if (isSaved)
+            {
+               index(dir, name, true);
+               RawTranscodeService.schedule(context);
+            }
+            return isSaved;
+         }
+         return saveProcessed(dir, name);
+      }
+      finally
+      {
+         activity.release(frame);
+      }
+   }
+
+   /**
+    * Writes the JPEG, YAML and PLY files for the frame to <i>dir</i> using the base name <i>name</i>.
+    * Does not release the frame.
+    * @return true if at least the image was saved (see {@link #errors()} for the errors that occurred).
+    */
+   boolean saveProcessed(File dir, String name)
+   //------------------------------------------
+   {
+      switch (frame.deviceRotation)
       {
          case Surface.ROTATION_90:
             androidXAxis = SensorManager.AXIS_Y;androidYAxis = SensorManager.AXIS_MINUS_X; break;
@@ -88,10 +173,127 @@ class PostProcessThread extends AsyncTask<Void, String, Boolean>
       }
       Matrix.setIdentityM(I, 0);
       SensorManager.remapCoordinateSystem(I, androidXAxis, androidYAxis, IR);
+      correction = CloudTransform.fromColumnMajor(IR);
 
-      Date now = new Date();
+      try
+      {
+         // The YAML, PLY, depth and rectified stages are independent and run concurrently, only the JPEG (which
+         // embeds the YAML as EXIF UserComment) has to wait for the YAML.
+         final File imageFile = new File(dir, name + ".jpg");
+         final File yamlFile = new File(dir, name + ".yaml");
+         final String plyFormat = settings.plyFormat;
+         final File plyFile = new File(dir, name + (QuantizedCloud.FORMAT_QUANTIZED.equals(plyFormat)
+                                                    ? QuantizedCloud.EXTENSION : ".ply"));
+         final File depthFile = new File(dir, name + DepthRegistration.EXTENSION);
+         final File rectifiedFile = new File(dir, name + UndistortionMap.SUFFIX);
+         // Obtained on this thread (which waits for all the stages) as the YAML and image stages may run on
+         // different stage threads.
+         final YamlEmitter yaml = yamlEmitter();
+         final boolean isPly = frame.hasPointCloud();
+         final boolean isDepthImage = (isPly) && (settings.isRegisteredDepth);
+         final boolean isRectified = settings.isRectified;
+         TaskGraph stages = new TaskGraph();
+         stages.add(STAGE_YAML, new Callable<Boolean>()
+         {
+            @Override public Boolean call() throws Exception
+            {
+               saveYamlFile(yamlFile, yaml);
+               return true; // errors writing the YAML are reported as messages, not failures
+            }
+         });
+         stages.add(STAGE_IMAGE, new Callable<Boolean>()
+         {
+            @Override public Boolean call() throws Exception { return saveImage(imageFile, exifSegment(yaml)); }
+         }, STAGE_YAML);
+         if (isPly)
+            stages.add(STAGE_PLY, new Callable<Boolean>()
+            {
+               @Override public Boolean call() throws Exception { return savePlyFile(plyFile, plyFormat); }
+            });
+         if (isDepthImage)
+            stages.add(STAGE_DEPTH, new Callable<Boolean>()
+            {
+               @Override public Boolean call() throws Exception { return saveRegisteredDepth(depthFile); }
+            });
+         if (! isRectified)
+            releaseRectifiedScratch();
+         else
+            stages.add(STAGE_RECTIFIED, new Callable<Boolean>()
+            {
+               @Override public Boolean call() throws Exception { return saveRectified(rectifiedFile); }
+            });
+         publishProgress("Saving " + name);
+         stages.execute(stageExecutor(), new TaskGraph.Listener()
+         {
+            @Override
+            public void onTaskComplete(String stage, boolean isSuccess, boolean isSkipped, Throwable e)
+            //-----------------------------------------------------------------------------------------
+            {
+               if (e != null)
+               {
+                  Log.e(TAG, "postProcess: " + stage, e);
+                  publishProgress("ERROR: Exception " + e.getMessage() + " during " + stage);
+                  errors.append(e.getMessage()).append(" during ").append(stage).append(", ");
+               }
+               else if (isSuccess)
+                  publishProgress("Completed " + stage);
+            }
+         });
+         publishProgress("Save Complete");
+         if (stages.isSuccess(STAGE_IMAGE))
+         {
+            index(dir, name, false);
+            return true;
+         }
+         return false;
+      }
+      catch (Exception ee)
+      {
+         Log.e(TAG, "postProcess", ee);
+         publishProgress("ERROR: Exception " + ee.getMessage() + " during post processing");
+         errors.append(ee.getMessage()).append(" during post processing");
+         return false;
+      }
+   }
+
+   String errors() { return errors.toString(); }
+
+   /**
+    * Appends the record of the saved capture to the session index of <i>dir</i>.
+    */
+   private void index(File dir, String name, boolean isRaw)
+   //------------------------------------------------------
+   {
+      try
+      {
+         CaptureIndex.open(dir).append(CaptureIndex.record(frame, name, dir, isRaw));
+      }
+      catch (Exception e)
+      {
+         Log.e(TAG, "Indexing " + name, e);
+         messages.append(e.getMessage()).append(" updating capture index").append(", ");
+      }
+   }
+
+   /**
+    * @return The base name of the output files for <i>frame</i> (capture date and time followed by the Tango
+    * timestamp of the image).
+    */
+   static String captureName(CaptureFrame frame)
+   //-------------------------------------------
+   {
       SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss.SSS");
-      String name = String.format(Locale.ENGLISH, "%s-%.09f", sdf.format(now), activity.imageTimestamp);
+      return String.format(Locale.ENGLISH, "%s-%.09f", sdf.format(new Date(frame.captureTime)),
+                           frame.image.timestamp);
+   }
+
+   /**
+    * @return The TangoCamera directory under DCIM, or a fallback if it is not writable (described in
+    * <i>messages</i>).
+    */
+   static File outputDirectory(StringBuilder messages)
+   //-------------------------------------------------
+   {
       File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
                           "/TangoCamera");
       if (!dir.exists())
@@ -104,72 +306,68 @@ class PostProcessThread extends AsyncTask<Void, String, Boolean>
          if (!dir.exists())
             dir.mkdirs();
          message = message + dir.getAbsolutePath();
-         publishProgress(message);
+         messages.append(message);
          if (!dir.canWrite())
          {
             dir = new File("/sdcard/TangoCamera");
             dir.mkdirs();
-            publishProgress("Falling back to " + dir.getAbsolutePath());
+            messages.append(". Falling back to ").append(dir.getAbsolutePath());
          }
       }
+      return dir;
+   }
+
+   private boolean saveRaw(File rawFile)
+   //-----------------------------------
+   {
+      publishProgress("Saving raw capture");
       try
       {
-         publishProgress("Converting Image");
-         File imageFile = new File(dir, name + ".jpg");
-         if (! saveImage(imageFile))
-            return false;
-
-         publishProgress("Saving Details");
-         File yamlFile = new File(dir, name + ".yaml");
-         int w[] = new int[1], h[] =  new int[1];
-         String yaml = saveYamlFile(yamlFile, w, h);
-         int imagewidth = w[0], imageheight = h[0];
-
-         publishProgress("Saving EXIF to " + imageFile.getName());
-         saveEXIF(imageFile, yaml, imagewidth, imageheight);
-
-         File plyFile = null;
-         if ((activity.pointCloud != null) && (activity.noPoints > 0) && (ITango.isDepth()))
-         {
-            publishProgress("Saving PointCloud");
-            plyFile = new File(dir, name + ".ply");
-            savePlyFile(plyFile);
-         }
-         activity.pointCloud = null;
-         activity.noPoints = 0;
-
-         publishProgress("Save Complete");
-         return true;
+         RawCapture.write(rawFile, frame);
       }
-      catch (Exception ee)
+      catch (Exception e)
       {
-         Log.e(TAG, "postProcess", ee);
-         publishProgress("ERROR: Exception " + ee.getMessage() + " during post processing");
-         errors.append(ee.getMessage()).append(" during post processing");
+         Log.e(TAG, "PostProcessThread: Saving raw capture", e);
+         publishProgress("ERROR: Exception " + e.getMessage() + " writing raw capture");
+         errors.append(e.getMessage()).append(" writing raw capture ").append(rawFile.getName());
          return false;
       }
-      finally
+      return true;
+   }
+
+   static synchronized private ExecutorService stageExecutor()
+   //---------------------------------------------------------
+   {
+      if (stageExecutor == null)
       {
-         activity.imageData = null;
-         activity.pointCloud = null;
-         activity.pauseSensors(false);
+         int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+         stageExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+         {
+            final AtomicInteger count = new AtomicInteger(0);
+
+            @Override public Thread newThread(Runnable r)
+            //-------------------------------------------
+            {
+               Thread t = new Thread(r, "PostProcess-" + count.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            }
+         });
       }
+      return stageExecutor;
    }
 
-   @Override
-   protected void onProgressUpdate(String... values)
-   //-----------------------------------------------
+   private void publishProgress(String message)
+   //------------------------------------------
    {
-      super.onProgressUpdate(values);
-      activity.notification(values[0], TSnackbar.LENGTH_INDEFINITE, false);
+      if (activity != null)
+         activity.asyncNotification(message, TSnackbar.LENGTH_INDEFINITE, false);
    }
 
-   @Override
-   protected void onPostExecute(Boolean B)
-   //-------------------------------------
+   private void onPostExecute(boolean B)
+   //-----------------------------------
    {
       activity.notification(null, 0, false);
-      activity.showButtons();
       if (!B)
          activity.notification("Errors occurred during post processing:" + errors.toString(),
                                TSnackbar.LENGTH_INDEFINITE, true);
@@ -177,39 +375,47 @@ class PostProcessThread extends AsyncTask<Void, String, Boolean>
          activity.notification(messages.toString(), TSnackbar.LENGTH_INDEFINITE, false);
    }
 
-   private boolean saveImage(File imageFile)
-   //---------------------------------------
+   /**
+    * @param app1 EXIF segment inserted into the JPEG as it is written (see {@link ExifWriter}) or null.
+    */
+   private boolean saveImage(File imageFile, byte[] app1)
+   //----------------------------------------------------
    {
-      int imageFormat = activity.imageFormat, imageWidth = activity.imageWidth,
-            imageHeight = activity.imageHeight;
-      byte[] imageData = activity.imageData;
-      final Bitmap bitmap;
+      int imageFormat = frame.image.format, imageWidth = frame.image.width,
+            imageHeight = frame.image.height;
+      ByteBuffer imageData = frame.image.data;
+      int quality = jpegQuality();
       if ((imageFormat == ImageFormat.NV21) || (imageFormat == ImageFormat.YUV_420_888))
       {
-         YuvImage yuvImage = new YuvImage(imageData, imageFormat, imageWidth, imageHeight, null);
-         ByteArrayOutputStream os = new ByteArrayOutputStream();
-         yuvImage.compressToJpeg(new Rect(0, 0, imageWidth, imageHeight), 100, os);
-         publishProgress("Converting Image");
-         byte[] jpegByteArray = os.toByteArray();
-         bitmap = BitmapFactory.decodeByteArray(jpegByteArray, 0, jpegByteArray.length);
-      }
-      else
-      {
-         for (int i = 0; i < imageData.length; i += 4)
+         // Stream the YUV frame straight to the file (previously it was compressed to JPEG in memory, decoded
+         // to a Bitmap and compressed again).
+         publishProgress("Saving Image");
+         try
+         {
+            JpegWriter.writeYuv(imageFile, imageData, imageFormat, imageWidth, imageHeight, frame.image.stride,
+                                quality, app1);
+         }
+         catch (Exception e)
          {
-            byte b = imageData[i];
-            imageData[i] = imageData[i + 3];
-            imageData[i + 3] = b;
+            Log.e(TAG, "PostProcessThread", e);
+            publishProgress("ERROR: Exception " + e.getMessage() + " writing .jpeg image file");
+            errors.append(e.getMessage()).append(" writing .jpeg image file");
+            return false;
          }
-         publishProgress("Converting Image");
-         bitmap = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
-         bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(imageData));
+         return true;
       }
+
+      publishProgress("Converting Image");
+      ByteBuffer pixels = rgbaBuffer(imageData.limit());
+      RgbaSwizzle.swapFirstLast(imageData, pixels, YuvConverter.pool());
+      Bitmap bitmap = bitmap(imageWidth, imageHeight);
+      bitmap.copyPixelsFromBuffer(pixels);
       publishProgress("Saving Image");
 
-      try (FileOutputStream fos = new FileOutputStream(imageFile))
+      try (OutputStream os = JpegWriter.open(imageFile, app1))
       {
-         bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+         if (! bitmap.compress(Bitmap.CompressFormat.JPEG, quality, os))
+            throw new IOException("JPEG compression failed");
       }
       catch (Exception e)
       {
@@ -218,395 +424,465 @@ class PostProcessThread extends AsyncTask<Void, String, Boolean>
          errors.append(e.getMessage()).append(" writing .jpeg image file");
          return false;
       }
-      activity.imageData = null;
-      activity.imageFormat = 0;
       return true;
    }
 
-   private String saveYamlFile(File yamlFile, int w[], int h[])
-   //----------------------------------------------------------
+   private int jpegQuality() { return settings.jpegQuality; }
+
+   /**
+    * @return The current values of the preferences which affect the files written for a capture.
+    */
+   static CaptureSettings settings(Context context)
+   //----------------------------------------------
    {
-      StringWriter sw = new StringWriter(4096);
-      SharedPreferences SP = PreferenceManager.getDefaultSharedPreferences(activity.getBaseContext());
-      boolean isGravity = SP.getBoolean("gravity", true);
-      boolean isAccel = SP.getBoolean("acceleration", true);
-      try (PrintWriter pw = new PrintWriter(sw))
-      {
-         pw.println("# camera intrinsics");
-         double fx[] = new double[1], fy[] = new double[1], cx[] = new double[1], cy[] = new double[1],
-               hfov[] = new double[1], vfov[] = new double[1], distortion[] = new double[5];
-         if (ITango.intrinsics(ITango.TangoCameraId.TANGO_CAMERA_COLOR.ordinal(), fx, fy, cx, cy, w, h,
-                               hfov, vfov, distortion))
-         {
-            pw.println("# Intrinsics for default (color) camera");
-            pw.printf("fx: %.9f", fx[0]); pw.println();
-            pw.printf("fy: %.9f", fy[0]); pw.println();
-            pw.printf("cx: %.9f", cx[0]); pw.println();
-            pw.printf("cy: %.9f", cy[0]); pw.println();
-            pw.printf("distortion: [%.9f, %.9f, %.9f, %.9f, %.9f]", distortion[0], distortion[1],
-                      distortion[2], distortion[3], distortion[4]); pw.println();
-            pw.printf("FOVh: %.9f", hfov[0]); pw.println();
-            pw.printf("FOVv: %.9f", vfov[0]); pw.println();
-            pw.printf("imagewidth: %d", w[0]); pw.println();
-            pw.printf("imageheight: %d", h[0]); pw.println();
-            pw.println();
-         }
-         double[] imuRotation = new double[4], imuTranslation = new double[3];
-         if (ITango.IMU2CameraPose(ITango.TangoCameraId.TANGO_CAMERA_COLOR.ordinal(), imuRotation, imuTranslation))
-         {
-            pw.println("# IMU to camera pose for default (color) camera");
-            writePose(pw, "IMU rotation quaternion [w, x, y, z] not corrected for device orientation",
-                      "IMU rotation quaternion [w, x, y, z] corrected for device orientation",
-                      "imuRawRotation", "imuRotation",
-                       imuRotation[0], imuRotation[1], imuRotation[2], imuRotation[3],
-                      "IMU translation [x, y, z] not corrected for device rotation",
-                      "IMU translation [x, y, z] corrected for device rotation",
-                      "imuRawTranslation", "imuTranslation",
-                      imuTranslation[0], imuTranslation[1], imuTranslation[2]);
-            pw.println();
+      SharedPreferences SP = PreferenceManager.getDefaultSharedPreferences(context);
+      final CaptureSettings defaults = CaptureSettings.DEFAULTS;
+      return new CaptureSettings(SP.getString("capture_format", defaults.captureFormat),
+                                 SP.getString("ply_format", defaults.plyFormat),
+                                 SP.getString("cloud_frame", defaults.cloudFrame),
+                                 MainActivity.floatPreference(SP, "voxel_leaf_size", defaults.voxelLeafSize),
+                                 MainActivity.intPreference(SP, "jpeg_quality", defaults.jpegQuality),
+                                 SP.getBoolean("registered_depth", defaults.isRegisteredDepth),
+                                 SP.getBoolean("rectified_image", defaults.isRectified),
+                                 SP.getBoolean("write_confidence", defaults.isWriteConfidence),
+                                 SP.getBoolean("gravity", defaults.isGravity),
+                                 SP.getBoolean("acceleration", defaults.isAcceleration));
+   }
 
-         }
-         if (ITango.intrinsics(ITango.TangoCameraId.TANGO_CAMERA_DEPTH.ordinal(), fx, fy, cx, cy, w, h,
-                               hfov, vfov, distortion))
-         {
-            pw.println("# Intrinsics for depth camera");
-            pw.printf("d_fx: %.9f", fx[0]); pw.println();
-            pw.printf("d_fy: %.9f", fy[0]); pw.println();
-            pw.printf("d_cx: %.9f", cx[0]); pw.println();
-            pw.printf("d_cy: %.9f", cy[0]); pw.println();
-            pw.printf("d_distortion: [%.9f, %.9f, %.9f, %.9f, %.9f]", distortion[0], distortion[1],
-                      distortion[2], distortion[3], distortion[4]); pw.println();
-            pw.printf("d_FOVh: %.9f", hfov[0]); pw.println();
-            pw.printf("d_FOVv: %.9f", vfov[0]); pw.println();
-            pw.printf("d_imagewidth: %d", w[0]); pw.println();
-            pw.printf("d_imageheight: %d", h[0]); pw.println();
-            pw.println();
-         }
-         if (ITango.IMU2CameraPose(ITango.TangoCameraId.TANGO_CAMERA_DEPTH.ordinal(), imuRotation, imuTranslation))
-         {
-            pw.println("# IMU to camera pose for depth camera");
-            writePose(pw, "IMU rotation quaternion [w, x, y, z] not corrected for device orientation",
-                      "IMU rotation quaternion [w, x, y, z] corrected for device orientation",
-                      "d_imuRawRotation", "d_imuRotation",
-                      imuRotation[0], imuRotation[1], imuRotation[2], imuRotation[3],
-                      "IMU translation [x, y, z] not corrected for device rotation",
-                      "IMU translation [x, y, z] corrected for device rotation",
-                      "d_imuRawTranslation", "d_imuTranslation",
-                      imuTranslation[0], imuTranslation[1], imuTranslation[2]);
-            pw.println();
+   // The swizzled pixels, ARGB frames and Bitmaps are reused by later captures saved on the same thread.
 
-         }
-         pw.println("# device rotation (0 = portrait for all phones and many tablets)");
-         pw.print("deviceRotation: ");
-         switch (activity.deviceRotation)
-         {
-            case Surface.ROTATION_0: pw.println("0"); break;
-            case Surface.ROTATION_90: pw.println("90"); break;
-            case Surface.ROTATION_180: pw.println("180"); break;
-            case Surface.ROTATION_270: pw.println("270"); break;
-         }
+   private static ByteBuffer rgbaBuffer(int capacity)
+   //------------------------------------------------
+   {
+      ByteBuffer pixels = rgbaBuffers.get();
+      if ( (pixels == null) || (pixels.capacity() < capacity) )
+      {
+         pixels = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+         rgbaBuffers.set(pixels);
+      }
+      return pixels;
+   }
 
-         writePose(pw, "pose rotation quaternion [w, x, y, z] not corrected for device orientation",
-                   "pose rotation quaternion [w, x, y, z] corrected for device orientation",
-                   "rawRotation", "rotation",
-                   activity.rotationW, activity.rotationX, activity.rotationY, activity.rotationZ,
-                   "pose translation [x, y, z] not corrected for device rotation",
-                   "pose translation [x, y, z] corrected for device rotation",
-                   "rawTranslation", "translation",
-                   activity.translationX, activity.translationY, activity.translationZ);
-
-         double [] vec = null;
-         if (isGravity)
+   private static Bitmap bitmap(int width, int height)
+   //-------------------------------------------------
+   {
+      Bitmap bitmap = bitmaps.get();
+      if ( (bitmap == null) || (bitmap.getWidth() != width) || (bitmap.getHeight() != height) )
+      {
+         if (bitmap != null)
+            bitmap.recycle();
+         bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+         bitmaps.set(bitmap);
+      }
+      return bitmap;
+   }
+
+   /**
+    * The buffers used to save a rectified image. Callers hold the instance lock while using them.
+    */
+   static final private class RectifiedScratch
+   //==========================================
+   {
+      int[] src = null, dest = null;
+      ByteBuffer rgba = null;
+      Bitmap bitmap = null;
+
+      void ensure(int width, int height)
+      //--------------------------------
+      {
+         final int length = width * height;
+         if ( (src == null) || (src.length < length) )
          {
-            vec = findClosest(activity.gravityBuffer, activity.imageTimestamp);
-            if (vec != null)
-            {
-               pw.println("# Raw Android gravity vector [x, y, z]");
-               pw.printf("rawGravity: [%.9f, %.9f, %.9f]", vec[0], vec[1], vec[2]);
-               pw.println();
-               vec = correct(vec);
-               pw.println("# Android gravity vector corrected for device rotation [x, y, z]");
-               pw.printf("gravity: [%.9f, %.9f, %.9f]", vec[0], vec[1], vec[2]);
-               pw.println();
-            }
+            src = dest = null; // allow the old pair to be collected before allocating the new one
+            src = new int[length];
+            dest = new int[length];
          }
-         if (isAccel)
+         if ( (bitmap == null) || (bitmap.getWidth() != width) || (bitmap.getHeight() != height) )
          {
-            vec = findClosest(activity.accelBuffer, activity.imageTimestamp);
-            if (vec != null)
-            {
-               pw.println("# Raw Android accelerometer vector [x, y, z]");
-               pw.printf("rawAcceleration: [%.9f, %.9f, %.9f]", vec[0], vec[1], vec[2]);
-               pw.println();
-               vec = correct(vec);
-               pw.println("# Android accelerometer vector corrected for device rotation [x, y, z]");
-               pw.printf("acceleration: [%.9f, %.9f, %.9f]", vec[0], vec[1], vec[2]);
-               pw.println();
-            }
+            if (bitmap != null)
+               bitmap.recycle();
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
          }
       }
-      try (BufferedWriter bw = new BufferedWriter(new FileWriter(yamlFile)))
+
+      ByteBuffer rgba(int capacity)
+      //---------------------------
       {
-         bw.write(sw.toString());
+         if ( (rgba == null) || (rgba.capacity() < capacity) )
+            rgba = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+         return rgba;
       }
-      catch (Exception e)
+
+      void release()
+      //------------
       {
-         Log.e(TAG, "PostProcessThread", e);
-         publishProgress("ERROR: Exception " + e.getMessage() + " writing .yaml file");
-         messages.append(e.getMessage()).append(" writing .yaml file").append(", ");
-         return null;
+         src = dest = null;
+         rgba = null;
+         if (bitmap != null)
+            bitmap.recycle();
+         bitmap = null;
       }
-      return sw.toString();
    }
 
-   private void writePose(PrintWriter pw, String rawOrientationComment, String cookedOrientationComment,
-                          String rawRotationKey, String cookedRotationKey,
-                          double rotationW, double rotationX, double rotationY, double rotationZ,
-                          String rawTranslationComment, String cookedTranslationComment,
-                          String rawTranslationKey, String cookedTranslationKey,
-                          double translationX, double translationY, double translationZ)
-   //---------------------------------------------------------------------------------------------
+   /**
+    * Frees the rectified image buffers, called for frames captured with the rectified image turned off.
+    */
+   private static void releaseRectifiedScratch()
+   //-------------------------------------------
    {
-      float[] Rin, R = new float[16], Q;
-      pw.println("# " + rawOrientationComment);
-      pw.printf("%s: [%.9f, %.9f, %.9f, %.9f]", rawRotationKey, rotationW, rotationX, rotationY, rotationZ);
-      pw.println();
-      Rin = quaternionToMatrix((float) rotationW, (float) rotationX, (float) rotationY, (float) rotationZ);
-      SensorManager.remapCoordinateSystem(Rin, androidXAxis, androidYAxis, R);
-      Q = matrixToQuaternion(R);
-      pw.println("# pose rotation quaternion [w, x, y, z] corrected for device orientation");
-      pw.printf("%s: [%.9f, %.9f, %.9f, %.9f]", cookedRotationKey, Q[0], Q[1], Q[2], Q[3]);
-      pw.println();
-      pw.println("# " + rawTranslationComment);
-      pw.printf("%s: [%.9f, %.9f, %.9f]", rawTranslationKey, translationX, translationY, translationZ);
-      pw.println();
-      pw.println("# " + cookedTranslationComment);
-      double[] v = new double[] {translationX, translationY, translationZ};
-      double[] T = correct(v);
-      pw.printf("%s: [%.9f, %.9f, %.9f]",cookedTranslationKey, T[0], T[1], T[2]);
-      pw.println();
-   }
-
-   private double[] correct(double[] vec)
-   //------------------------------------
-   {
-      // Values from 0 to 9.xxx should fit in float, it seems like overkill to add la4j or jblas for a few matrix multiplies
-      float[] raw = new float[4], cooked = new float[4];
-      raw[0] = (float) vec[0]; raw[1] = (float) vec[1]; raw[2] = (float) vec[2]; raw[3] = 0;
-      Matrix.multiplyMV(cooked, 0, IR, 0, raw, 0);
-      vec[0] = cooked[0]; vec[1] = cooked[1]; vec[2] = cooked[2];
-      return vec;
+      synchronized (rectifiedScratch)
+      {
+         rectifiedScratch.release();
+      }
    }
 
-   private boolean saveEXIF(File imageFile, String yaml, int imagewidth, int imageheight)
-   //------------------------------------------------------------------------------------
+   /**
+    * Saves the color image undistorted with the (cached) remap table for the color camera calibration.
+    */
+   private boolean saveRectified(File rectifiedFile)
+   //-----------------------------------------------
    {
-      ExifInterface exif = null;
+      CameraCalibration color = frame.colorCalibration;
+      if (color == null)
+      {
+         messages.append("Color camera calibration not available for the rectified image, ");
+         return false;
+      }
+      final int format = frame.image.format, width = frame.image.width, height = frame.image.height;
+      final boolean isYuv = (format == ImageFormat.NV21) || (format == ImageFormat.YUV_420_888);
+      final ForkJoinPool pool = YuvConverter.pool();
       try
       {
-         exif = new ExifInterface(imageFile.getAbsolutePath());
-         exif.setAttribute("UserComment", yaml);
-//         switch (activity.deviceRotation)
-//         {
-//            case Surface.ROTATION_90:
-//               exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-//                                 Integer.toString(ExifInterface.ORIENTATION_ROTATE_90));
-//               break;
-//            case Surface.ROTATION_180:
-//               exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-//                                 Integer.toString(ExifInterface.ORIENTATION_ROTATE_180));
-//               break;
-//            case Surface.ROTATION_270:
-//               exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-//                                 Integer.toString(ExifInterface.ORIENTATION_ROTATE_180));
-//               break;
-//         }
-         exif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, Integer.toString(imagewidth));
-         exif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, Integer.toString(imageheight));
-         exif.saveAttributes();
+         StringBuilder mapMessages = new StringBuilder();
+         UndistortionMap map = UndistortionMap.get(color, width, height,
+                                                   new File(context.getCacheDir(), UndistortionMap.FILE_NAME), pool,
+                                                   mapMessages);
+         if (mapMessages.length() > 0)
+            messages.append(mapMessages);
+         synchronized (rectifiedScratch)
+         {
+            rectifiedScratch.ensure(width, height);
+            final int[] src = rectifiedScratch.src, dest = rectifiedScratch.dest;
+            if (isYuv)
+               YuvConverter.toARGB(frame.image.data, format, width, height, frame.image.stride, src);
+            else
+            {
+               ByteBuffer data = frame.image.data.duplicate().order(ByteOrder.nativeOrder());
+               data.position(0);
+               data.asIntBuffer().get(src, 0, width * height);
+            }
+            map.remap(src, dest, pool);
+            final Bitmap bitmap = rectifiedScratch.bitmap;
+            if (isYuv)
+               bitmap.setPixels(dest, 0, width, 0, 0, width, height);
+            else
+            {
+               ByteBuffer pixels = rectifiedScratch.rgba(width * height * 4);
+               pixels.clear();
+               pixels.asIntBuffer().put(dest, 0, width * height);
+               pixels.limit(width * height * 4);
+               RgbaSwizzle.swapFirstLast(pixels, pixels, pool);
+               bitmap.copyPixelsFromBuffer(pixels);
+            }
+            boolean isCompressed;
+            try (FileOutputStream fos = new FileOutputStream(rectifiedFile))
+            {
+               isCompressed = bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality(), fos);
+            }
+            if (! isCompressed)
+            {
+               rectifiedFile.delete();
+               messages.append("JPEG compression of the rectified image failed, ");
+               return false;
+            }
+         }
       }
       catch (Exception e)
       {
-         Log.e(TAG, "PostProcessThread: Saving EXIF data", e);
-         messages.append(e.getMessage()).append(" writing EXIF tags to ").append(imageFile.getName()).
-               append(", ");
+         Log.e(TAG, "Writing rectified image", e);
+         publishProgress("ERROR: Exception " + e.getMessage() + " saving rectified image");
+         messages.append(e.getMessage()).append(" saving rectified image").append(", ");
          return false;
-
       }
-      activity.rotationW = activity.rotationX = activity.rotationY = activity.rotationZ =
-      activity.translationX = activity.translationY = activity.translationZ = 0;
       return true;
    }
 
-   private boolean savePlyFile(File plyFile)
-   //---------------------------------------
+   private static YamlEmitter yamlEmitter()
+   //--------------------------------------
    {
-      SharedPreferences SP = PreferenceManager.getDefaultSharedPreferences(activity.getBaseContext());
-      float minConfidence;
-      try
+      YamlEmitter yaml = yamlEmitters.get();
+      if (yaml == null)
       {
-         minConfidence = SP.getFloat("confidence", 0.5f);
+         yaml = new YamlEmitter(4096);
+         yamlEmitters.set(yaml);
       }
-      catch (Exception e)
+      return yaml;
+   }
+
+   /**
+    * Encodes the capture metadata into <i>yaml</i> and writes it to <i>yamlFile</i>. The encoded bytes are left in
+    * <i>yaml</i> for the EXIF UserComment.
+    */
+   private boolean saveYamlFile(File yamlFile, YamlEmitter yaml)
+   //-----------------------------------------------------------
+   {
+      boolean isGravity = settings.isGravity;
+      boolean isAccel = settings.isAcceleration;
+      yaml.reset();
+      yaml.comment("camera intrinsics");
+      writeCalibration(yaml, frame.colorCalibration, "", "default (color) camera");
+      writeCalibration(yaml, frame.depthCalibration, "d_", "depth camera");
+      yaml.comment("device rotation (0 = portrait for all phones and many tablets)");
+      yaml.key("deviceRotation");
+      switch (frame.deviceRotation)
       {
-         try
-         {
-            minConfidence = Float.parseFloat(SP.getString("confidence", "0.5"));
-         }
-         catch (Exception ee)
+         case Surface.ROTATION_0: yaml.text("0").newline(); break;
+         case Surface.ROTATION_90: yaml.text("90").newline(); break;
+         case Surface.ROTATION_180: yaml.text("180").newline(); break;
+         case Surface.ROTATION_270: yaml.text("270").newline(); break;
+      }
+
+      CaptureFrame.Pose pose = frame.image.pose;
+      writePose(yaml, "pose rotation quaternion [w, x, y, z] not corrected for device orientation",
+                "pose rotation quaternion [w, x, y, z] corrected for device orientation",
+                "rawRotation", "rotation",
+                pose.rotationW, pose.rotationX, pose.rotationY, pose.rotationZ,
+                "pose translation [x, y, z] not corrected for device rotation",
+                "pose translation [x, y, z] corrected for device rotation",
+                "rawTranslation", "translation",
+                pose.translationX, pose.translationY, pose.translationZ);
+
+      double[] vec = vector;
+      if (isGravity)
+      {
+         if (frame.image.gravity.interpolate(frame.image.timestamp, vec))
          {
-            minConfidence = 0.5f;
+            yaml.comment("Raw Android gravity vector [x, y, z]");
+            yaml.key("rawGravity").vector(vec[0], vec[1], vec[2]).newline();
+            correct(vec);
+            yaml.comment("Android gravity vector corrected for device rotation [x, y, z]");
+            yaml.key("gravity").vector(vec[0], vec[1], vec[2]).newline();
          }
       }
-      boolean writeConfidence = SP.getBoolean("write_confidence", false);
-      FloatBuffer vertices = FloatBuffer.wrap(activity.pointCloud);
-      float[] vertex = new float[4];
-      StringWriter sw = new StringWriter(8192);
-      int count = 0;
-      try (PrintWriter pw = new PrintWriter(sw))
+      if (isAccel)
       {
-         vertices.get(vertex);
-         while (vertices.remaining() > 0)
+         if (frame.image.acceleration.interpolate(frame.image.timestamp, vec))
          {
-            if (vertex[3] >= minConfidence)
-            {
-               pw.printf("%.9f %.9f %.9f", vertex[0], vertex[1], vertex[2]);
-               if (writeConfidence)
-                  pw.printf(" %.9f", vertex[3]);
-               pw.println();
-               count++;
-            }
-            vertices.get(vertex);
+            yaml.comment("Raw Android accelerometer vector [x, y, z]");
+            yaml.key("rawAcceleration").vector(vec[0], vec[1], vec[2]).newline();
+            correct(vec);
+            yaml.comment("Android accelerometer vector corrected for device rotation [x, y, z]");
+            yaml.key("acceleration").vector(vec[0], vec[1], vec[2]).newline();
          }
       }
-      catch (BufferUnderflowException e)
+      try (FileOutputStream fos = new FileOutputStream(yamlFile))
       {
-         Log.e(TAG, "Short read while writing " + plyFile.getName(), e);
+         yaml.writeTo(fos);
       }
       catch (Exception e)
       {
-         Log.e(TAG, "Writing .ply", e);
-         publishProgress("ERROR: Exception " + e.getMessage() +
-                               " saving point cloud .ply file");
-         messages.append(e.getMessage()).append(" saving point cloud .ply file").append(", ");
+         Log.e(TAG, "PostProcessThread", e);
+         publishProgress("ERROR: Exception " + e.getMessage() + " writing .yaml file");
+         messages.append(e.getMessage()).append(" writing .yaml file").append(", ");
          return false;
       }
-      try (PrintWriter pw = new PrintWriter(plyFile))
+      return true;
+   }
+
+   /**
+    * Writes the intrinsics and IMU pose of <i>calibration</i>. The section only depends on the calibration and the
+    * device rotation, so it is encoded once per session calibration and rotation and then copied.
+    */
+   private void writeCalibration(YamlEmitter yaml, CameraCalibration calibration, String prefix, String camera)
+   //---------------------------------------------------------------------------------------------------------
+   {
+      if (calibration == null)
+         return;
+      byte[] section = calibration.yaml(frame.deviceRotation);
+      if (section == null)
       {
-         pw.println("ply");
-         pw.println("format ascii 1.0");
-         pw.println("element vertex " + count);
-         pw.println("property float x");
-         pw.println("property float y");
-         pw.println("property float z");
-         if (writeConfidence)
-         {
-            pw.println("comment c is confidence probability");
-            pw.println("property float c");
-         }
-         pw.println("end_header");
-         pw.print(sw.toString());
+         YamlEmitter emitter = new YamlEmitter(1024);
+         renderCalibration(emitter, calibration, prefix, camera);
+         section = emitter.toByteArray();
+         calibration.cacheYaml(frame.deviceRotation, section);
       }
-      catch (Exception e)
+      yaml.bytes(section);
+   }
+
+   private void renderCalibration(YamlEmitter yaml, CameraCalibration calibration, String prefix, String camera)
+   //----------------------------------------------------------------------------------------------------------
+   {
+      yaml.comment("Intrinsics for " + camera);
+      yaml.key(prefix, "fx").number(calibration.fx).newline();
+      yaml.key(prefix, "fy").number(calibration.fy).newline();
+      yaml.key(prefix, "cx").number(calibration.cx).newline();
+      yaml.key(prefix, "cy").number(calibration.cy).newline();
+      yaml.key(prefix, "distortion").vector(calibration.distortion).newline();
+      yaml.key(prefix, "FOVh").number(calibration.hFOV).newline();
+      yaml.key(prefix, "FOVv").number(calibration.vFOV).newline();
+      yaml.key(prefix, "imagewidth").integer(calibration.width).newline();
+      yaml.key(prefix, "imageheight").integer(calibration.height).newline();
+      yaml.newline();
+      if (calibration.hasImuPose())
       {
-         e.printStackTrace();
-         messages.append(e.getMessage()).append(" saving point cloud .ply file").append(", ");
-         return false;
+         double[] imuRotation = calibration.imuRotation, imuTranslation = calibration.imuTranslation;
+         yaml.comment("IMU to camera pose for " + camera);
+         writePose(yaml, "IMU rotation quaternion [w, x, y, z] not corrected for device orientation",
+                   "IMU rotation quaternion [w, x, y, z] corrected for device orientation",
+                   prefix + "imuRawRotation", prefix + "imuRotation",
+                   imuRotation[0], imuRotation[1], imuRotation[2], imuRotation[3],
+                   "IMU translation [x, y, z] not corrected for device rotation",
+                   "IMU translation [x, y, z] corrected for device rotation",
+                   prefix + "imuRawTranslation", prefix + "imuTranslation",
+                   imuTranslation[0], imuTranslation[1], imuTranslation[2]);
+         yaml.newline();
       }
-      return true;
    }
 
-   static double[] findClosest(RingBuffer<double[]> buffer, double ts)
-   //-----------------------------------------------------------------
+   /**
+    * Writes a pose as given and corrected for device rotation, using the scratch arrays instead of allocating
+    * matrices.
+    */
+   private void writePose(YamlEmitter yaml, String rawOrientationComment, String cookedOrientationComment,
+                          String rawRotationKey, String cookedRotationKey,
+                          double rotationW, double rotationX, double rotationY, double rotationZ,
+                          String rawTranslationComment, String cookedTranslationComment,
+                          String rawTranslationKey, String cookedTranslationKey,
+                          double translationX, double translationY, double translationZ)
+   //---------------------------------------------------------------------------------------------
    {
-      double[][] values = buffer.popAll();
-      int index = -1;
-      double min = Double.MAX_VALUE;
-      for (int i=0; i <values.length; i++)
-      {
-         double[] a = values[i];
-         double m = abs(a[3] - ts);
-         if (m < min)
-         {
-            min = m;
-            index = i;
-         }
+      yaml.comment(rawOrientationComment);
+      yaml.key(rawRotationKey).vector(rotationW, rotationX, rotationY, rotationZ).newline();
+      double[] Q = CloudTransform.rotateQuaternion(correction, rotationW, rotationX, rotationY, rotationZ,
+                                                   quaternion);
+      yaml.comment(cookedOrientationComment);
+      yaml.key(cookedRotationKey).vector(Q[0], Q[1], Q[2], Q[3]).newline();
+      yaml.comment(rawTranslationComment);
+      yaml.key(rawTranslationKey).vector(translationX, translationY, translationZ).newline();
+      yaml.comment(cookedTranslationComment);
+      double[] T = vector;
+      T[0] = translationX; T[1] = translationY; T[2] = translationZ;
+      correct(T);
+      yaml.key(cookedTranslationKey).vector(T[0], T[1], T[2]).newline();
+   }
+
+   private double[] correct(double[] vec) { return CloudTransform.rotate(correction, vec); }
+
+   /**
+    * @return The EXIF APP1 segment holding the encoded YAML and the image dimensions or null if the YAML was not
+    * encoded or is too large for a segment (in which case the JPEG is saved without EXIF).
+    */
+   private byte[] exifSegment(YamlEmitter yaml)
+   //------------------------------------------
+   {
+      if (yaml.length() == 0)
+         return null;
+      try
+      {
+         return ExifWriter.app1(yaml.buffer(), yaml.length(), frame.image.width, frame.image.height);
       }
-      if (index < 0)
+      catch (IllegalArgumentException e)
+      {
+         Log.e(TAG, "PostProcessThread: EXIF segment", e);
+         messages.append(e.getMessage()).append(", ");
          return null;
-      return values[index];
+      }
    }
 
-   static public float[] quaternionToMatrix(float w, float x, float y, float z)
-   //-------------------------------------------------------------------------
+   private boolean savePlyFile(File plyFile, String plyFormat)
+   //--------------------------------------------------------
    {
-      float norm = w * w + x * x + y * y + z * z;
-      float s = (norm > 0f) ? 2f / norm : 0;
-      float xs = x * s;
-      float ys = y * s;
-      float zs = z * s;
-      float xx = x * xs;
-      float xy = x * ys;
-      float xz = x * zs;
-      float xw = w * xs;
-      float yy = y * ys;
-      float yz = y * zs;
-      float yw = w * ys;
-      float zz = z * zs;
-      float zw = w * zs;
-      float[] M = new float[16];
-      M[0] = 1 - (yy + zz); M[4] = (xy - zw);     M[8] = (xz + yw);      M[12] = 0;
-      M[1] = (xy + zw);     M[5] = 1 - (xx + zz); M[9] = (yz - xw);      M[13] = 0;
-      M[2] = (xz - yw);     M[6] = (yz + xw);     M[10] = 1 - (xx + yy); M[14] = 0;
-      M[3] = 0;             M[7] = 0;             M[11] = 0;             M[15] = 1;
-      return M;
+      boolean writeConfidence = settings.isWriteConfidence;
+      try
+      {
+         CaptureFrame.PointCloud cloud = frame.pointCloud;
+         String cloudFrame = settings.cloudFrame;
+         if (! CloudTransform.FRAME_DEPTH.equals(cloudFrame))
+            cloud = transformCloud(cloud, CloudTransform.FRAME_CORRECTED.equals(cloudFrame));
+         float leafSize = settings.voxelLeafSize;
+         if (leafSize > 0)
+         {
+            // The downsampled cloud is only valid until the next capture saved on this thread
+            VoxelDownsampler downsampler = downsamplers.get();
+            if (downsampler == null)
+            {
+               downsampler = new VoxelDownsampler();
+               downsamplers.set(downsampler);
+            }
+            cloud = downsampler.downsample(cloud, leafSize);
+         }
+         if (QuantizedCloud.FORMAT_QUANTIZED.equals(plyFormat))
+            QuantizedCloud.write(plyFile, cloud, YuvConverter.pool());
+         else if (PlyWriter.FORMAT_BINARY.equals(plyFormat))
+            PlyWriter.writeBinary(plyFile, cloud.points, cloud.count, writeConfidence);
+         else
+            PlyWriter.writeAscii(plyFile, cloud.points, cloud.count, writeConfidence);
+      }
+      catch (Exception e)
+      {
+         Log.e(TAG, "Writing .ply", e);
+         publishProgress("ERROR: Exception " + e.getMessage() + " saving point cloud .ply file");
+         messages.append(e.getMessage()).append(" saving point cloud .ply file").append(", ");
+         return false;
+      }
+      return true;
    }
 
-   static public float[] matrixToQuaternion(float[] M)
+   /**
+    * Writes the point cloud projected into the color image as a 16 bit millimetre depth image.
+    */
+   private boolean saveRegisteredDepth(File depthFile)
    //-------------------------------------------------
    {
-      float m00 = M[0], m01 = M[4], m02 = M[8];
-      float m10 = M[1], m11 = M[5], m12 = M[9];
-      float m20 = M[2], m21 = M[6], m22 = M[10];
-
-      float t = m00 + m11 + m22, w, x, y, z;
-
-      if (t >= 0)
+      double[] colorFromDepth = DepthRegistration.colorFromDepth(frame.colorCalibration, frame.depthCalibration);
+      if (colorFromDepth == null)
       {
-         float s = (float) Math.sqrt(t + 1);
-         w = 0.5f * s;
-         s = 0.5f / s;
-         x = (m21 - m12) * s;
-         y = (m02 - m20) * s;
-         z = (m10 - m01) * s;
+         messages.append("Camera extrinsics not available for the registered depth image, ");
+         return false;
       }
-      else if ((m00 > m11) && (m00 > m22))
+      DepthRegistration registration = registrations.get();
+      if (registration == null)
       {
-         float s = (float) Math.sqrt(1.0f + m00 - m11 - m22);
-         x = s * 0.5f; // |x| >= .5
-         s = 0.5f / s;
-         y = (m10 + m01) * s;
-         z = (m02 + m20) * s;
-         w = (m21 - m12) * s;
+         registration = new DepthRegistration();
+         registrations.set(registration);
       }
-      else if (m11 > m22)
+      final int width = frame.image.width, height = frame.image.height;
+      try
       {
-         float s = (float) Math.sqrt(1.0f + m11 - m00 - m22);
-         y = s * 0.5f; // |y| >= .5
-         s = 0.5f / s;
-         x = (m10 + m01) * s;
-         z = (m21 + m12) * s;
-         w = (m02 - m20) * s;
+         char[] depth = registration.register(frame.pointCloud.points, frame.pointCloud.count, colorFromDepth,
+                                              frame.colorCalibration, width, height, YuvConverter.pool());
+         DepthRegistration.writePGM(depthFile, depth, width, height);
       }
-      else
+      catch (Exception e)
+      {
+         Log.e(TAG, "Writing registered depth", e);
+         publishProgress("ERROR: Exception " + e.getMessage() + " saving registered depth image");
+         messages.append(e.getMessage()).append(" saving registered depth image").append(", ");
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * @return <i>cloud</i> transformed from depth camera coordinates to the start of service frame (additionally
+    * corrected for device rotation in the same way as the YAML translation if <i>isCorrected</i>) in a buffer
+    * reused by later captures saved on this thread.
+    */
+   private CaptureFrame.PointCloud transformCloud(CaptureFrame.PointCloud cloud, boolean isCorrected)
+   //-----------------------------------------------------------------------------------------------
+   {
+      double[] m = CloudTransform.depthToWorld(frame);
+      if (isCorrected)
+         m = CloudTransform.multiply(correction, m);
+      FloatBuffer transformed = transformedClouds.get();
+      if ( (transformed == null) || (transformed.capacity() < cloud.count * 4) )
       {
-         float s = (float) Math.sqrt(1.0f + m22 - m00 - m11); // |s|>=1
-         z = s * 0.5f; // |z| >= .5
-         s = 0.5f / s;
-         x = (m02 + m20) * s;
-         y = (m21 + m12) * s;
-         w = (m10 - m01) * s;
+         transformed = ByteBuffer.allocateDirect(cloud.count * 16).order(ByteOrder.nativeOrder()).asFloatBuffer();
+         transformedClouds.set(transformed);
       }
-      return new float[] {w, x, y, z};
+      transformed.clear();
+      CloudTransform.transform(cloud.points, transformed, cloud.count, m);
+      transformed.limit(cloud.count * 4);
+      return new CaptureFrame.PointCloud(transformed, -1, cloud.count, cloud.timestamp);
    }
 }
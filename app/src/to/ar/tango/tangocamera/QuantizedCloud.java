@@ -0,0 +1,396 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact point cloud file format (at most 7 bytes per point before compression instead of about 40 for ASCII
+ * .ply). Coordinates are stored as unsigned 16 bit fixed point values relative to the bounding box of the cloud and
+ * confidences as 8 bit values, and the points are split into chunks which are Deflate compressed independently so
+ * that they can be encoded and decoded in parallel.
+ * <p>Layout (little endian): an 8 byte magic number, version, flags, point count, points per chunk, chunk count,
+ * the cloud timestamp (double), the bounding box minimum and the quantization step for x, y and z (floats), the
+ * maximum absolute coordinate error (float), then a table of the compressed chunk lengths (ints) followed by the
+ * chunks. Each chunk decompresses to the x, y and z values of its points as separate planes of unsigned shorts
+ * followed by a plane of confidence bytes.</p>
+ */
+public class QuantizedCloud
+//=========================
+{
+   static final public String EXTENSION = ".tqc";
+   // Value of the ply_format preference
+   static final public String FORMAT_QUANTIZED = "quantized";
+
+   static final private byte[] MAGIC = { 'T', 'Q', 'C', 'L', 'O', 'U', 'D', 0x1A };
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 8 + 5*4 + 8 + 7*4;
+   static final int CHUNK_POINTS = 16384;
+   static final private int FLAG_CONFIDENCE = 1;
+   static final private int QUANTUM_MAX = 0xFFFF;
+   static final private int POINT_SIZE = 3*2 + 1;
+
+   /**
+    * Writes the points in <i>cloud</i> to <i>file</i>.
+    * @param pool The pool to compress the chunks on or null to compress on the calling thread.
+    * @return The maximum absolute error of the stored x, y and z coordinates (also stored in the header).
+    */
+   public static float write(File file, CaptureFrame.PointCloud cloud, ForkJoinPool pool) throws IOException
+   //-------------------------------------------------------------------------------------------------------
+   {
+      final FloatBuffer points = cloud.points;
+      final int count = Math.min(cloud.count, points.limit() / 4);
+      final float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE },
+                    max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+      for (int i = 0; i < count * 4; i += 4)
+         for (int axis = 0; axis < 3; axis++)
+         {
+            float v = points.get(i + axis);
+            if (v < min[axis]) min[axis] = v;
+            if (v > max[axis]) max[axis] = v;
+         }
+      final float[] step = new float[3];
+      float maxError = 0;
+      for (int axis = 0; axis < 3; axis++)
+      {
+         if (count == 0)
+            min[axis] = max[axis] = 0;
+         step[axis] = (max[axis] - min[axis]) / QUANTUM_MAX;
+         // Half a quantization step plus float rounding when the value is reconstructed
+         float error = step[axis] / 2 + 2 * Math.ulp(Math.max(Math.abs(min[axis]), Math.abs(max[axis])));
+         maxError = Math.max(maxError, error);
+      }
+
+      final int chunks = (count + CHUNK_POINTS - 1) / CHUNK_POINTS;
+      List<Callable<byte[]>> tasks = new ArrayList<>(chunks);
+      for (int chunk = 0; chunk < chunks; chunk++)
+      {
+         final int start = chunk * CHUNK_POINTS, end = Math.min(count, start + CHUNK_POINTS);
+         tasks.add(new Callable<byte[]>()
+         {
+            @Override public byte[] call() { return encodeChunk(points, start, end, min, step); }
+         });
+      }
+      List<byte[]> encoded = run(tasks, pool);
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + chunks * 4).order(ByteOrder.LITTLE_ENDIAN);
+      header.put(MAGIC).putInt(VERSION).putInt(FLAG_CONFIDENCE).putInt(count).putInt(CHUNK_POINTS).putInt(chunks);
+      header.putDouble(cloud.timestamp);
+      for (int axis = 0; axis < 3; axis++)
+         header.putFloat(min[axis]);
+      for (int axis = 0; axis < 3; axis++)
+         header.putFloat(step[axis]);
+      header.putFloat(maxError);
+      for (byte[] chunk : encoded)
+         header.putInt(chunk.length);
+      header.flip();
+      try (FileOutputStream fos = new FileOutputStream(file); FileChannel channel = fos.getChannel())
+      {
+         ByteBuffer[] buffers = new ByteBuffer[chunks + 1];
+         buffers[0] = header;
+         for (int i = 0; i < chunks; i++)
+            buffers[i + 1] = ByteBuffer.wrap(encoded.get(i));
+         long length = 0;
+         for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+         while (length > 0)
+            length -= channel.write(buffers);
+      }
+      return maxError;
+   }
+
+   /**
+    * @return The number of points in a quantized cloud file, read from its header only.
+    */
+   static int pointCount(File file) throws IOException
+   //-------------------------------------------------
+   {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+      {
+         while (header.hasRemaining())
+            if (channel.read(header) < 0)
+               break;
+      }
+      header.flip();
+      if (header.remaining() < HEADER_SIZE)
+         throw new IOException(file.getName() + " is not a quantized point cloud file");
+      for (byte b : MAGIC)
+         if (header.get() != b)
+            throw new IOException(file.getName() + " is not a quantized point cloud file");
+      header.getInt(); // version
+      header.getInt(); // flags
+      return header.getInt();
+   }
+
+   /**
+    * Reads a cloud written by {@link #write}.
+    * @param pool The pool to decompress the chunks on or null to decompress on the calling thread.
+    * @return A point cloud (packed x, y, z, confidence in a direct native order buffer) with a buffer index of -1.
+    */
+   public static CaptureFrame.PointCloud read(File file, ForkJoinPool pool) throws IOException
+   //-----------------------------------------------------------------------------------------
+   {
+      final ByteBuffer data;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+      {
+         data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      final int count, chunkPoints, chunks;
+      final double timestamp;
+      final float[] min = new float[3], step = new float[3];
+      try
+      {
+         for (byte b : MAGIC)
+            if (data.get() != b)
+               throw new IOException(file.getName() + " is not a quantized point cloud file");
+         int version = data.getInt();
+         if (version != VERSION)
+            throw new IOException(file.getName() + ": Unsupported quantized cloud version " + version);
+         data.getInt(); // flags
+         count = data.getInt();
+         chunkPoints = data.getInt();
+         chunks = data.getInt();
+         timestamp = data.getDouble();
+         for (int axis = 0; axis < 3; axis++)
+            min[axis] = data.getFloat();
+         for (int axis = 0; axis < 3; axis++)
+            step[axis] = data.getFloat();
+         data.getFloat(); // maximum error
+         // count * 16 (the decoded buffer) must not overflow and the chunk length table must be in the file
+         if ( (count < 0) || (count > Integer.MAX_VALUE / 16) || (chunkPoints <= 0) ||
+              (chunks != (int) ((count + (long) chunkPoints - 1) / chunkPoints)) )
+            throw new IOException(file.getName() + ": Corrupt quantized cloud header");
+         if (HEADER_SIZE + chunks * 4L > data.limit())
+            throw new IOException(file.getName() + ": Truncated quantized cloud");
+      }
+      catch (BufferUnderflowException e)
+      {
+         throw new IOException(file.getName() + ": Truncated quantized cloud", e);
+      }
+
+      final FloatBuffer points = ByteBuffer.allocateDirect(count * 16).order(ByteOrder.nativeOrder()).
+                                            asFloatBuffer();
+      List<Callable<byte[]>> tasks = new ArrayList<>(chunks);
+      long offset = HEADER_SIZE + chunks * 4L;
+      for (int chunk = 0; chunk < chunks; chunk++)
+      {
+         final int length = data.getInt(HEADER_SIZE + chunk * 4);
+         if ( (length < 0) || (offset + length > data.limit()) )
+            throw new IOException(file.getName() + ": Truncated quantized cloud");
+         final ByteBuffer compressed = slice(data, (int) offset, length);
+         final int start = chunk * chunkPoints, end = Math.min(count, start + chunkPoints);
+         tasks.add(new Callable<byte[]>()
+         {
+            @Override public byte[] call() throws Exception
+            {
+               decodeChunk(compressed, points, start, end, min, step);
+               return null;
+            }
+         });
+         offset += length;
+      }
+      run(tasks, pool);
+      return new CaptureFrame.PointCloud(points, -1, count, timestamp);
+   }
+
+   /**
+    * Converts a quantized cloud file to a .ply file.
+    * @param plyFormat {@link PlyWriter#FORMAT_ASCII} or {@link PlyWriter#FORMAT_BINARY}.
+    * @return The number of vertices written.
+    */
+   public static int toPly(File file, File plyFile, String plyFormat, boolean writeConfidence, ForkJoinPool pool)
+         throws IOException
+   //------------------------------------------------------------------------------------------------------------
+   {
+      CaptureFrame.PointCloud cloud = read(file, pool);
+      if (PlyWriter.FORMAT_BINARY.equals(plyFormat))
+         return PlyWriter.writeBinary(plyFile, cloud.points, cloud.count, writeConfidence);
+      else
+         return PlyWriter.writeAscii(plyFile, cloud.points, cloud.count, writeConfidence);
+   }
+
+   /**
+    * Converts a quantized cloud file to a .ply file from the command line.
+    */
+   public static void main(String[] args) throws IOException
+   //-------------------------------------------------------
+   {
+      if ( (args.length < 2) || (args.length > 4) ||
+           ( (args.length > 2) && (! args[2].equals(PlyWriter.FORMAT_ASCII)) &&
+             (! args[2].equals(PlyWriter.FORMAT_BINARY)) ) )
+      {
+         System.err.println("Usage: QuantizedCloud cloud" + EXTENSION + " out.ply [" + PlyWriter.FORMAT_ASCII + "|" +
+                            PlyWriter.FORMAT_BINARY + "] [confidence]");
+         return;
+      }
+      final String plyFormat = (args.length > 2) ? args[2] : PlyWriter.FORMAT_ASCII;
+      final boolean writeConfidence = (args.length > 3) && (args[3].equalsIgnoreCase("confidence"));
+      System.out.println(toPly(new File(args[0]), new File(args[1]), plyFormat, writeConfidence,
+                               YuvConverter.pool()) + " vertices written");
+   }
+
+   static private byte[] encodeChunk(FloatBuffer points, int start, int end, float[] min, float[] step)
+   //-------------------------------------------------------------------------------------------------
+   {
+      final int n = end - start;
+      ByteBuffer planes = ByteBuffer.allocate(n * POINT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      for (int axis = 0; axis < 3; axis++)
+      {
+         final float origin = min[axis], scale = (step[axis] > 0) ? 1 / step[axis] : 0;
+         for (int i = start; i < end; i++)
+         {
+            int q = Math.round((points.get(i * 4 + axis) - origin) * scale);
+            planes.putShort((short) Math.max(0, Math.min(QUANTUM_MAX, q)));
+         }
+      }
+      for (int i = start; i < end; i++)
+      {
+         int c = Math.round(points.get(i * 4 + 3) * 255);
+         planes.put((byte) Math.max(0, Math.min(255, c)));
+      }
+
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try
+      {
+         deflater.setInput(planes.array());
+         deflater.finish();
+         byte[] buffer = new byte[n * POINT_SIZE + 64];
+         int length = 0;
+         while (! deflater.finished())
+         {
+            if (length == buffer.length)
+               buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            length += deflater.deflate(buffer, length, buffer.length - length);
+         }
+         return Arrays.copyOf(buffer, length);
+      }
+      finally
+      {
+         deflater.end();
+      }
+   }
+
+   static private void decodeChunk(ByteBuffer compressed, FloatBuffer points, int start, int end, float[] min,
+                                   float[] step) throws IOException
+   //--------------------------------------------------------------------------------------------------------
+   {
+      final int n = end - start;
+      byte[] input = new byte[compressed.remaining()];
+      compressed.get(input);
+      byte[] output = new byte[n * POINT_SIZE];
+      Inflater inflater = new Inflater();
+      try
+      {
+         inflater.setInput(input);
+         int length = 0;
+         while ( (length < output.length) && (! inflater.finished()) )
+         {
+            int inflated = inflater.inflate(output, length, output.length - length);
+            if ( (inflated == 0) && (inflater.needsInput()) )
+               break;
+            length += inflated;
+         }
+         if (length != output.length)
+            throw new IOException("Quantized cloud chunk too short");
+      }
+      catch (DataFormatException e)
+      {
+         throw new IOException("Corrupt quantized cloud chunk", e);
+      }
+      finally
+      {
+         inflater.end();
+      }
+      ByteBuffer planes = ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN);
+      for (int axis = 0; axis < 3; axis++)
+      {
+         final float origin = min[axis], scale = step[axis];
+         for (int i = start; i < end; i++)
+            points.put(i * 4 + axis, origin + (planes.getShort() & 0xFFFF) * scale);
+      }
+      for (int i = start; i < end; i++)
+         points.put(i * 4 + 3, (planes.get() & 0xFF) / 255f);
+   }
+
+   static private ByteBuffer slice(ByteBuffer data, int offset, int length)
+   //----------------------------------------------------------------------
+   {
+      ByteBuffer duplicate = data.duplicate();
+      duplicate.limit(offset + length).position(offset);
+      return duplicate.slice();
+   }
+
+   static private <T> List<T> run(List<Callable<T>> tasks, ForkJoinPool pool) throws IOException
+   //--------------------------------------------------------------------------------------------
+   {
+      List<T> results = new ArrayList<>(tasks.size());
+      try
+      {
+         if ( (pool == null) || (tasks.size() < 2) )
+         {
+            for (Callable<T> task : tasks)
+               results.add(task.call());
+         }
+         else
+         {
+            for (Future<T> future : pool.invokeAll(tasks))
+               results.add(future.get());
+         }
+      }
+      catch (ExecutionException e)
+      {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException)
+            throw (IOException) cause;
+         throw new IOException(cause);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         throw e;
+      }
+      catch (Exception e)
+      {
+         throw new IOException(e);
+      }
+      return results;
+   }
+}
@@ -0,0 +1,419 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single file container for an unprocessed capture (the image buffer exactly as delivered by on_image, the point
+ * cloud, pose, calibration and sensor samples) so that a capture costs little more than a memory copy, with the
+ * JPEG/YAML/PLY encoding deferred. The file is written through a memory mapped FileChannel and read back without
+ * copying into a {@link CaptureFrame}, which post processing turns into the same files as a live capture.
+ * <p>Layout (little endian): a fixed {@value #HEADER_SIZE} byte header holding an 8 byte magic number, version,
+ * header size, section count and a table of (id, reserved, offset, length) section entries, followed by the
+ * sections, each starting on a {@value #ALIGNMENT} byte boundary.</p>
+ */
+public class RawCapture
+//=====================
+{
+   static final public String EXTENSION = ".tcraw";
+   // Values of the capture_format preference
+   static final public String FORMAT_PROCESSED = "processed", FORMAT_RAW = "raw";
+
+   static final private byte[] MAGIC = { 'T', 'C', 'R', 'A', 'W', '\r', '\n', 0x1A };
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 256, ALIGNMENT = 64;
+   static final private int MAX_SECTIONS = 9, SECTION_ENTRY_SIZE = 24, SECTION_TABLE_OFFSET = 24;
+
+   static final int SECTION_FRAME = 1, SECTION_IMAGE = 2, SECTION_POINT_CLOUD = 3, SECTION_COLOR_CALIBRATION = 4,
+                    SECTION_DEPTH_CALIBRATION = 5, SECTION_GRAVITY = 6, SECTION_ACCELERATION = 7,
+                    SECTION_SETTINGS = 8;
+
+   // captureTime, 7 ints (device rotation, image format, width, height, stride, point count, reserved), image and
+   // point cloud timestamps and the pose.
+   static final private int FRAME_SIZE = 8 + 7*4 + 2*8 + 7*8;
+   // camera id, width, height, flags, fx, fy, cx, cy, hFOV, vFOV, distortion[5], IMU to camera rotation[4] and
+   // translation[3], then the IMU to device rotation[4] and translation[3] if CALIBRATION_DEVICE_POSE is set.
+   static final private int CALIBRATION_SIZE = 4*4 + 18*8, CALIBRATION_DEVICE_POSE_SIZE = 7*8;
+   static final private int CALIBRATION_IMU_POSE = 1, CALIBRATION_DEVICE_POSE = 2;
+   static final private int SENSOR_SAMPLE_SIZE = 5*8;
+   // voxel leaf size, JPEG quality, flags, then the PLY format and cloud frame as length prefixed ASCII.
+   static final private int SETTINGS_FIXED_SIZE = 3*4;
+   static final private int SETTING_REGISTERED_DEPTH = 1, SETTING_RECTIFIED = 2, SETTING_WRITE_CONFIDENCE = 4,
+                            SETTING_GRAVITY = 8, SETTING_ACCELERATION = 16;
+
+   /**
+    * Writes <i>frame</i> to <i>file</i>. The data is written to <i>file</i>.part which is renamed once complete so
+    * a partially written capture is never mistaken for a complete one.
+    */
+   public static void write(File file, CaptureFrame frame) throws IOException
+   //-------------------------------------------------------------------------
+   {
+      final CaptureFrame.Image image = frame.image;
+      final int imageLength = image.data.limit();
+      final int points = frame.hasPointCloud() ? Math.min(frame.pointCloud.count, frame.pointCloud.points.limit() / 4)
+                                               : 0;
+      int[] ids = new int[MAX_SECTIONS];
+      long[] lengths = new long[MAX_SECTIONS];
+      int n = 0;
+      ids[n] = SECTION_FRAME; lengths[n++] = FRAME_SIZE;
+      ids[n] = SECTION_IMAGE; lengths[n++] = imageLength;
+      if (points > 0)
+      {
+         ids[n] = SECTION_POINT_CLOUD;
+         lengths[n++] = points * 16L;
+      }
+      if (frame.colorCalibration != null)
+      {
+         ids[n] = SECTION_COLOR_CALIBRATION;
+         lengths[n++] = calibrationLength(frame.colorCalibration);
+      }
+      if (frame.depthCalibration != null)
+      {
+         ids[n] = SECTION_DEPTH_CALIBRATION;
+         lengths[n++] = calibrationLength(frame.depthCalibration);
+      }
+      ids[n] = SECTION_GRAVITY; lengths[n++] = sensorLength(image.gravity);
+      ids[n] = SECTION_ACCELERATION; lengths[n++] = sensorLength(image.acceleration);
+      if (frame.settings != null)
+      {
+         ids[n] = SECTION_SETTINGS;
+         lengths[n++] = settingsLength(frame.settings);
+      }
+      long[] offsets = new long[n];
+      long size = HEADER_SIZE;
+      for (int i = 0; i < n; i++)
+      {
+         offsets[i] = align(size);
+         size = offsets[i] + lengths[i];
+      }
+
+      File part = new File(file.getPath() + ".part");
+      try (RandomAccessFile raf = new RandomAccessFile(part, "rw"); FileChannel channel = raf.getChannel())
+      {
+         raf.setLength(size);
+         MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+         out.order(ByteOrder.LITTLE_ENDIAN);
+         out.put(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(n).putInt(0);
+         for (int i = 0; i < n; i++)
+            out.putInt(ids[i]).putInt(0).putLong(offsets[i]).putLong(lengths[i]);
+         for (int i = 0; i < n; i++)
+         {
+            out.position((int) offsets[i]);
+            switch (ids[i])
+            {
+               case SECTION_FRAME:               writeFrame(out, frame, points); break;
+               case SECTION_IMAGE:
+                  ByteBuffer data = image.data.duplicate();
+                  data.clear().limit(imageLength);
+                  out.put(data);
+                  break;
+               case SECTION_POINT_CLOUD:
+                  FloatBuffer cloud = frame.pointCloud.points.duplicate();
+                  cloud.clear().limit(points * 4);
+                  out.asFloatBuffer().put(cloud);
+                  break;
+               case SECTION_COLOR_CALIBRATION:   writeCalibration(out, frame.colorCalibration); break;
+               case SECTION_DEPTH_CALIBRATION:   writeCalibration(out, frame.depthCalibration); break;
+               case SECTION_GRAVITY:             writeSensor(out, image.gravity); break;
+               case SECTION_ACCELERATION:        writeSensor(out, image.acceleration); break;
+               case SECTION_SETTINGS:            writeSettings(out, frame.settings); break;
+            }
+         }
+      }
+      catch (IOException e)
+      {
+         part.delete();
+         throw e;
+      }
+      if (! part.renameTo(file))
+      {
+         part.delete();
+         throw new IOException("RawCapture: Could not rename " + part.getName() + " to " + file.getName());
+      }
+   }
+
+   /**
+    * Maps <i>file</i> and returns its contents as a CaptureFrame. The image and point cloud buffers are views of
+    * the (read only) mapping, not copies.
+    */
+   public static CaptureFrame read(File file) throws IOException
+   //-----------------------------------------------------------
+   {
+      final ByteBuffer in;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+      {
+         in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      final long size = in.capacity();
+      if (size < HEADER_SIZE)
+         throw new IOException("RawCapture: " + file.getName() + " is too short");
+      for (byte b : MAGIC)
+         if (in.get() != b)
+            throw new IOException("RawCapture: " + file.getName() + " is not a raw capture");
+      final int version = in.getInt(), headerSize = in.getInt(), n = in.getInt();
+      in.getInt();
+      if (version > VERSION)
+         throw new IOException("RawCapture: Unsupported version " + version + " in " + file.getName());
+      if ( (headerSize < SECTION_TABLE_OFFSET + n * SECTION_ENTRY_SIZE) || (headerSize > size) || (n < 0) )
+         throw new IOException("RawCapture: Corrupt header in " + file.getName());
+      ByteBuffer frameSection = null, imageSection = null, cloudSection = null, colorSection = null,
+                 depthSection = null, gravitySection = null, accelSection = null, settingsSection = null;
+      for (int i = 0; i < n; i++)
+      {
+         final int id = in.getInt();
+         in.getInt();
+         final long offset = in.getLong(), length = in.getLong();
+         if ( (offset < headerSize) || (length < 0) || (offset + length > size) )
+            throw new IOException("RawCapture: Section " + id + " out of bounds in " + file.getName());
+         ByteBuffer section = in.duplicate();
+         section.limit((int) (offset + length)).position((int) offset);
+         section = section.slice().order(ByteOrder.LITTLE_ENDIAN);
+         switch (id)
+         {
+            case SECTION_FRAME:             frameSection = section; break;
+            case SECTION_IMAGE:             imageSection = section; break;
+            case SECTION_POINT_CLOUD:       cloudSection = section; break;
+            case SECTION_COLOR_CALIBRATION: colorSection = section; break;
+            case SECTION_DEPTH_CALIBRATION: depthSection = section; break;
+            case SECTION_GRAVITY:           gravitySection = section; break;
+            case SECTION_ACCELERATION:      accelSection = section; break;
+            case SECTION_SETTINGS:          settingsSection = section; break;
+            // Unknown sections (from later versions) are skipped
+         }
+      }
+      if ( (frameSection == null) || (frameSection.remaining() < FRAME_SIZE) || (imageSection == null) )
+         throw new IOException("RawCapture: Missing frame or image in " + file.getName());
+
+      final long captureTime = frameSection.getLong();
+      final int deviceRotation = frameSection.getInt(), format = frameSection.getInt(),
+                width = frameSection.getInt(), height = frameSection.getInt(), stride = frameSection.getInt(),
+                points = frameSection.getInt();
+      frameSection.getInt();
+      final double imageTimestamp = frameSection.getDouble(), cloudTimestamp = frameSection.getDouble();
+      final CaptureFrame.Pose pose = new CaptureFrame.Pose(frameSection.getDouble(), frameSection.getDouble(),
+                                                           frameSection.getDouble(), frameSection.getDouble(),
+                                                           frameSection.getDouble(), frameSection.getDouble(),
+                                                           frameSection.getDouble());
+      CaptureFrame.Image image = new CaptureFrame.Image(format, imageSection, -1, width, height, stride,
+                                                        imageTimestamp, pose, readSensor(gravitySection),
+                                                        readSensor(accelSection));
+      CaptureFrame.PointCloud cloud = null;
+      if ( (cloudSection != null) && (points > 0) )
+      {
+         if (cloudSection.remaining() < points * 16L)
+            throw new IOException("RawCapture: Truncated point cloud in " + file.getName());
+         cloud = new CaptureFrame.PointCloud(cloudSection.asFloatBuffer(), -1, points, cloudTimestamp);
+      }
+      return new CaptureFrame(image, cloud, deviceRotation, captureTime, readCalibration(colorSection),
+                              readCalibration(depthSection), readSettings(settingsSection));
+   }
+
+   static long align(long offset) { return (offset + ALIGNMENT - 1) & ~(ALIGNMENT - 1L); }
+
+   private static void writeFrame(ByteBuffer out, CaptureFrame frame, int points)
+   //----------------------------------------------------------------------------
+   {
+      final CaptureFrame.Image image = frame.image;
+      final CaptureFrame.Pose pose = image.pose;
+      out.putLong(frame.captureTime);
+      out.putInt(frame.deviceRotation).putInt(image.format).putInt(image.width).putInt(image.height).
+          putInt(image.stride).putInt(points).putInt(0);
+      out.putDouble(image.timestamp).putDouble((points > 0) ? frame.pointCloud.timestamp : 0);
+      out.putDouble(pose.rotationW).putDouble(pose.rotationX).putDouble(pose.rotationY).putDouble(pose.rotationZ);
+      out.putDouble(pose.translationX).putDouble(pose.translationY).putDouble(pose.translationZ);
+   }
+
+   private static int calibrationLength(CameraCalibration calibration)
+   //-----------------------------------------------------------------
+   {
+      return CALIBRATION_SIZE + (calibration.hasImuDevicePose() ? CALIBRATION_DEVICE_POSE_SIZE : 0);
+   }
+
+   private static void writeCalibration(ByteBuffer out, CameraCalibration calibration)
+   //---------------------------------------------------------------------------------
+   {
+      out.putInt(calibration.cameraId).putInt(calibration.width).putInt(calibration.height).
+          putInt((calibration.hasImuPose() ? CALIBRATION_IMU_POSE : 0) |
+                 (calibration.hasImuDevicePose() ? CALIBRATION_DEVICE_POSE : 0));
+      out.putDouble(calibration.fx).putDouble(calibration.fy).putDouble(calibration.cx).putDouble(calibration.cy);
+      out.putDouble(calibration.hFOV).putDouble(calibration.vFOV);
+      for (double d : calibration.distortion)
+         out.putDouble(d);
+      for (int i = 0; i < 4; i++)
+         out.putDouble(calibration.hasImuPose() ? calibration.imuRotation[i] : 0);
+      for (int i = 0; i < 3; i++)
+         out.putDouble(calibration.hasImuPose() ? calibration.imuTranslation[i] : 0);
+      if (calibration.hasImuDevicePose())
+      {
+         for (double d : calibration.imuDeviceRotation)
+            out.putDouble(d);
+         for (double d : calibration.imuDeviceTranslation)
+            out.putDouble(d);
+      }
+   }
+
+   private static CameraCalibration readCalibration(ByteBuffer in) throws IOException
+   //--------------------------------------------------------------------------------
+   {
+      if (in == null)
+         return null;
+      if (in.remaining() < CALIBRATION_SIZE)
+         throw new IOException("RawCapture: Truncated calibration");
+      final int cameraId = in.getInt(), width = in.getInt(), height = in.getInt();
+      final int flags = in.getInt();
+      final boolean hasImuPose = ((flags & CALIBRATION_IMU_POSE) != 0),
+                    hasDevicePose = ((flags & CALIBRATION_DEVICE_POSE) != 0);
+      final double fx = in.getDouble(), fy = in.getDouble(), cx = in.getDouble(), cy = in.getDouble(),
+                   hFOV = in.getDouble(), vFOV = in.getDouble();
+      double[] distortion = new double[5], imuRotation = new double[4], imuTranslation = new double[3];
+      for (int i = 0; i < 5; i++)
+         distortion[i] = in.getDouble();
+      for (int i = 0; i < 4; i++)
+         imuRotation[i] = in.getDouble();
+      for (int i = 0; i < 3; i++)
+         imuTranslation[i] = in.getDouble();
+      double[] deviceRotation = null, deviceTranslation = null;
+      if (hasDevicePose)
+      {
+         if (in.remaining() < CALIBRATION_DEVICE_POSE_SIZE)
+            throw new IOException("RawCapture: Truncated calibration");
+         deviceRotation = new double[4];
+         deviceTranslation = new double[3];
+         for (int i = 0; i < 4; i++)
+            deviceRotation[i] = in.getDouble();
+         for (int i = 0; i < 3; i++)
+            deviceTranslation[i] = in.getDouble();
+      }
+      return new CameraCalibration(cameraId, width, height, fx, fy, cx, cy, hFOV, vFOV, distortion,
+                                   hasImuPose ? imuRotation : null, hasImuPose ? imuTranslation : null,
+                                   deviceRotation, deviceTranslation);
+   }
+
+   private static long settingsLength(CaptureSettings settings)
+   //----------------------------------------------------------
+   {
+      return SETTINGS_FIXED_SIZE + 2 + settings.plyFormat.length() + 2 + settings.cloudFrame.length();
+   }
+
+   private static void writeSettings(ByteBuffer out, CaptureSettings settings)
+   //-------------------------------------------------------------------------
+   {
+      final int flags = (settings.isRegisteredDepth ? SETTING_REGISTERED_DEPTH : 0) |
+                        (settings.isRectified ? SETTING_RECTIFIED : 0) |
+                        (settings.isWriteConfidence ? SETTING_WRITE_CONFIDENCE : 0) |
+                        (settings.isGravity ? SETTING_GRAVITY : 0) |
+                        (settings.isAcceleration ? SETTING_ACCELERATION : 0);
+      out.putFloat(settings.voxelLeafSize).putInt(settings.jpegQuality).putInt(flags);
+      writeString(out, settings.plyFormat);
+      writeString(out, settings.cloudFrame);
+   }
+
+   /**
+    * @return The settings or null if the capture did not record them (captures from before they were stored).
+    */
+   private static CaptureSettings readSettings(ByteBuffer in) throws IOException
+   //---------------------------------------------------------------------------
+   {
+      if (in == null)
+         return null;
+      if (in.remaining() < SETTINGS_FIXED_SIZE)
+         throw new IOException("RawCapture: Truncated settings");
+      final float voxelLeafSize = in.getFloat();
+      final int jpegQuality = in.getInt(), flags = in.getInt();
+      final String plyFormat = readString(in), cloudFrame = readString(in);
+      // The capture format is not stored as it is always raw
+      return new CaptureSettings(FORMAT_RAW, plyFormat, cloudFrame, voxelLeafSize, jpegQuality,
+                                 (flags & SETTING_REGISTERED_DEPTH) != 0, (flags & SETTING_RECTIFIED) != 0,
+                                 (flags & SETTING_WRITE_CONFIDENCE) != 0, (flags & SETTING_GRAVITY) != 0,
+                                 (flags & SETTING_ACCELERATION) != 0);
+   }
+
+   private static void writeString(ByteBuffer out, String s)
+   //-------------------------------------------------------
+   {
+      out.putShort((short) s.length());
+      for (int i = 0; i < s.length(); i++)
+         out.put((byte) s.charAt(i));
+   }
+
+   private static String readString(ByteBuffer in) throws IOException
+   //----------------------------------------------------------------
+   {
+      if (in.remaining() < 2)
+         throw new IOException("RawCapture: Truncated settings");
+      final int length = in.getShort() & 0xFFFF;
+      if (in.remaining() < length)
+         throw new IOException("RawCapture: Truncated settings");
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++)
+         chars[i] = (char) (in.get() & 0xFF);
+      return new String(chars);
+   }
+
+   private static long sensorLength(SensorRing.Snapshot snapshot)
+   //-------------------------------------------------------------
+   {
+      return 8 + ((snapshot == null) ? 0 : snapshot.count() * (long) SENSOR_SAMPLE_SIZE);
+   }
+
+   private static void writeSensor(ByteBuffer out, SensorRing.Snapshot snapshot)
+   //---------------------------------------------------------------------------
+   {
+      final int count = (snapshot == null) ? 0 : snapshot.count();
+      out.putInt(count).putInt(0);
+      for (int i = 0; i < count; i++)
+         out.putDouble(snapshot.x[i]).putDouble(snapshot.y[i]).putDouble(snapshot.z[i]).
+             putDouble(snapshot.tangoTs[i]).putDouble(snapshot.sensorTs[i]);
+   }
+
+   private static SensorRing.Snapshot readSensor(ByteBuffer in) throws IOException
+   //-----------------------------------------------------------------------------
+   {
+      if (in == null)
+         return new SensorRing.Snapshot(0);
+      final int count = in.getInt();
+      in.getInt();
+      if ( (count < 0) || (in.remaining() < count * (long) SENSOR_SAMPLE_SIZE) )
+         throw new IOException("RawCapture: Truncated sensor samples");
+      SensorRing.Snapshot snapshot = new SensorRing.Snapshot(count);
+      for (int i = 0; i < count; i++)
+      {
+         snapshot.x[i] = in.getDouble();
+         snapshot.y[i] = in.getDouble();
+         snapshot.z[i] = in.getDouble();
+         snapshot.tangoTs[i] = in.getDouble();
+         snapshot.sensorTs[i] = in.getDouble();
+      }
+      snapshot.count = count;
+      return snapshot;
+   }
+}
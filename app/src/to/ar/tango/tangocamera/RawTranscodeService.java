@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts raw captures (see {@link RawCapture}) in the output directory to the JPEG, YAML and PLY files written by
+ * {@link PostProcessThread} while the device is idle. If the job is stopped the remaining captures are converted
+ * the next time it runs.
+ */
+public class RawTranscodeService extends JobService
+//=================================================
+{
+   static final private String TAG = "RawTranscodeService";
+
+   static final private int JOB_ID = 1;
+
+   static final private int TRANSCODE_WORKERS = 2;
+
+   volatile private RawTranscoder transcoder = null;
+
+   /**
+    * Schedules a conversion of the pending raw captures for the next time the device is idle (replacing any
+    * conversion already scheduled).
+    */
+   static void schedule(Context context)
+   //-----------------------------------
+   {
+      JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+      JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, RawTranscodeService.class)).
+                                setRequiresDeviceIdle(true).build();
+      if ( (scheduler == null) || (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) )
+         Log.w(TAG, "Could not schedule raw capture conversion");
+   }
+
+   @Override
+   public boolean onStartJob(final JobParameters params)
+   //---------------------------------------------------
+   {
+      StringBuilder messages = new StringBuilder();
+      File dir = PostProcessThread.outputDirectory(messages);
+      if (messages.length() > 0)
+         Log.w(TAG, messages.toString());
+      if (RawTranscoder.pending(dir).length == 0)
+         return false;
+      final RawTranscoder transcoder = new RawTranscoder(dir, TRANSCODE_WORKERS, new RawTranscoder.Encoder()
+      {
+         @Override
+         public void encode(CaptureFrame frame, File directory, String name) throws Exception
+         //----------------------------------------------------------------------------------
+         {
+            // Raw captures hold the preferences at capture time (see CaptureSettings), so the output matches what
+            // a processed capture would have written.
+            PostProcessThread converter = new PostProcessThread(RawTranscodeService.this, frame);
+            boolean isSaved = converter.saveProcessed(directory, name);
+            if (! isSaved)
+            {
+               // No image means no index record either, so just remove any other files written for the capture
+               // before the raw file is marked as failed.
+               for (int i = 0; i < CaptureIndex.SUFFIXES.length; i++)
+                  if (i != CaptureIndex.FILE_RAW)
+                     new File(directory, name + CaptureIndex.SUFFIXES[i]).delete();
+               throw new IOException(converter.errors());
+            }
+            // Errors in optional outputs (PLY, depth, rectified image) don't fail the conversion, which has
+            // already been indexed as converted.
+            if (! converter.errors().isEmpty())
+               Log.w(TAG, "Converted " + name + " with errors: " + converter.errors());
+         }
+      }, new RawTranscoder.Listener()
+      {
+         @Override public void onConverted(File rawFile) { Log.i(TAG, "Converted " + rawFile.getName()); }
+
+         @Override public void onFailed(File rawFile, Throwable e) { Log.e(TAG, "Converting " + rawFile.getName(), e); }
+      });
+      this.transcoder = transcoder;
+      Thread thread = new Thread(new Runnable()
+      {
+         @Override
+         public void run()
+         //---------------
+         {
+            try
+            {
+               transcoder.run();
+            }
+            catch (InterruptedException e)
+            {
+               return;
+            }
+            if (! transcoder.isStopped())
+               jobFinished(params, false);
+         }
+      }, "RawTranscoder");
+      thread.start();
+      return true;
+   }
+
+   @Override
+   public boolean onStopJob(JobParameters params)
+   //--------------------------------------------
+   {
+      RawTranscoder transcoder = this.transcoder;
+      if (transcoder != null)
+         transcoder.stop();
+      return true; // reschedule to convert the remaining captures
+   }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts the raw captures (see {@link RawCapture}) pending in a directory using a bounded set of worker threads.
+ * A raw file is only deleted once its conversion has completed, so an interrupted run (see {@link #stop()}) is
+ * resumed by running again over the same directory. Captures which cannot be read or converted are renamed with
+ * a {@link #FAILED_EXTENSION} suffix so that they are not retried on every run. Contains no Android dependencies
+ * (the conversion itself is supplied as an {@link Encoder}).
+ */
+class RawTranscoder
+//=================
+{
+   static final String FAILED_EXTENSION = ".failed";
+
+   interface Encoder
+   //===============
+   {
+      /**
+       * Writes the converted files for <i>frame</i> to <i>directory</i> using the base name <i>name</i>.
+       * Called concurrently from several worker threads.
+       */
+      void encode(CaptureFrame frame, File directory, String name) throws Exception;
+   }
+
+   interface Listener
+   //================
+   {
+      void onConverted(File rawFile);
+
+      void onFailed(File rawFile, Throwable e);
+   }
+
+   final private File directory;
+   final private int workerCount;
+   final private Encoder encoder;
+   final private Listener listener;
+   final private AtomicInteger converted = new AtomicInteger(0), failed = new AtomicInteger(0);
+   final private Object idleLock = new Object();
+   volatile private boolean isStopped = false;
+
+   RawTranscoder(File directory, int workerCount, Encoder encoder, Listener listener)
+   //-------------------------------------------------------------------------------
+   {
+      this.directory = directory;
+      this.workerCount = Math.max(1, workerCount);
+      this.encoder = encoder;
+      this.listener = listener;
+   }
+
+   /**
+    * @return The completed raw captures in <i>directory</i> in capture order (files still being written have a
+    * .part suffix and are not included).
+    */
+   static File[] pending(File directory)
+   //-----------------------------------
+   {
+      File[] files = directory.listFiles(new FileFilter()
+      {
+         @Override public boolean accept(File f)
+         {
+            return (f.isFile()) && (f.getName().endsWith(RawCapture.EXTENSION));
+         }
+      });
+      if (files == null)
+         return new File[0];
+      Arrays.sort(files);
+      return files;
+   }
+
+   /**
+    * Converts the captures pending in the directory, blocking until they have all been processed or
+    * {@link #stop()} is called. At most <i>workerCount</i> captures are converted (and mapped) at a time.
+    * @return The number of captures converted.
+    */
+   int run() throws InterruptedException
+   //-----------------------------------
+   {
+      CaptureQueue<File> queue = new CaptureQueue<>(workerCount, workerCount, new CaptureQueue.Processor<File>()
+      {
+         @Override public void process(File rawFile) { convert(rawFile); }
+
+         @Override public void discard(File rawFile) { } // left in the directory for the next run
+
+         @Override public void onIdle()
+         //----------------------------
+         {
+            synchronized (idleLock) { idleLock.notifyAll(); }
+         }
+      });
+      try
+      {
+         for (File rawFile : pending(directory))
+         {
+            boolean isQueued = false;
+            while ( (! isStopped) && (! isQueued) )
+               isQueued = queue.offer(rawFile, 100);
+            if (isStopped)
+               break;
+         }
+         synchronized (idleLock)
+         {
+            while ( (! isStopped) && (! queue.isIdle()) )
+               idleLock.wait(100);
+         }
+      }
+      finally
+      {
+         queue.shutdown();
+      }
+      return converted.get();
+   }
+
+   /**
+    * Stops a {@link #run()} in progress. Queued captures are left pending and captures being converted when
+    * stopped are only deleted if their conversion still completes.
+    */
+   void stop() { isStopped = true; }
+
+   boolean isStopped() { return isStopped; }
+
+   int convertedCount() { return converted.get(); }
+
+   int failedCount() { return failed.get(); }
+
+   private void convert(File rawFile)
+   //--------------------------------
+   {
+      if (isStopped)
+         return;
+      String name = rawFile.getName();
+      name = name.substring(0, name.length() - RawCapture.EXTENSION.length());
+      try
+      {
+         CaptureFrame frame = RawCapture.read(rawFile);
+         encoder.encode(frame, directory, name);
+      }
+      catch (Throwable e)
+      {
+         if (isStopped) // probably interrupted by the shutdown so retry on the next run
+            return;
+         failed.incrementAndGet();
+         rawFile.renameTo(new File(directory, rawFile.getName() + FAILED_EXTENSION));
+         if (listener != null)
+            listener.onFailed(rawFile, e);
+         return;
+      }
+      rawFile.delete();
+      converted.incrementAndGet();
+      if (listener != null)
+         listener.onConverted(rawFile);
+   }
+}
@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Channel reordering for the 4 byte per pixel RGBA_8888 frames from on_image. Pixels are processed a word at a
+ * time through IntBuffer views, large frames are split into ranges converted in parallel on a fork-join pool.
+ */
+public class RgbaSwizzle
+//======================
+{
+   // Ranges smaller than this (in pixels) are not split further
+   static final private int MIN_STRIPE_PIXELS = 64*1024;
+
+   static final private int BLOCK_PIXELS = 4096;
+
+   /**
+    * Exchanges the first and last bytes of each 4 byte pixel in <i>src</i> (the channel order correction applied
+    * to RGBA_8888 captures before Bitmap.copyPixelsFromBuffer), writing the result to <i>dest</i>.
+    * @param src Source pixels from position 0 to the limit (rounded down to a whole pixel).
+    * @param dest Destination with at least as many bytes as <i>src</i>, may be <i>src</i> itself for an in place
+    *             swap. On return its position is 0 and its limit the number of bytes written.
+    * @param pool The pool to run on or null to convert on the calling thread.
+    */
+   public static void swapFirstLast(ByteBuffer src, ByteBuffer dest, ForkJoinPool pool)
+   //---------------------------------------------------------------------------------
+   {
+      final int pixels = src.limit() / 4;
+      if (dest.capacity() < pixels * 4)
+         throw new IllegalArgumentException("RgbaSwizzle: Destination too small " + dest.capacity() + " < " +
+                                            (pixels * 4));
+      // Exchanging the outer bytes of a word is the same operation in either byte order so any order will do as
+      // long as both views use the same one.
+      final IntBuffer in = view(src), out = (dest == src) ? in : view(dest);
+      if ( (pool == null) || (pixels <= MIN_STRIPE_PIXELS) )
+         swapFirstLast(in, out, 0, pixels);
+      else
+         pool.invoke(new Range(in, out, 0, pixels,
+                               Math.max(MIN_STRIPE_PIXELS, pixels / (pool.getParallelism() * 4))));
+      dest.clear();
+      dest.limit(pixels * 4);
+   }
+
+   static void swapFirstLast(IntBuffer in, IntBuffer out, int start, int end)
+   //------------------------------------------------------------------------
+   {
+      // Bulk transfers through a small block are considerably faster than per element absolute get/put on
+      // direct buffers.
+      final int[] block = new int[Math.min(BLOCK_PIXELS, end - start)];
+      in = in.duplicate();
+      out = out.duplicate();
+      in.position(start);
+      out.position(start);
+      for (int i = start; i < end; i += block.length)
+      {
+         final int n = Math.min(block.length, end - i);
+         in.get(block, 0, n);
+         for (int j = 0; j < n; j++)
+         {
+            final int p = block[j];
+            block[j] = (p & 0x00FFFF00) | (p >>> 24) | (p << 24);
+         }
+         out.put(block, 0, n);
+      }
+   }
+
+   private static IntBuffer view(ByteBuffer buffer)
+   //----------------------------------------------
+   {
+      ByteBuffer duplicate = buffer.duplicate().order(ByteOrder.nativeOrder());
+      duplicate.clear();
+      return duplicate.asIntBuffer();
+   }
+
+   static private class Range extends RecursiveAction
+   //=================================================
+   {
+      final IntBuffer in, out;
+      final int start, end, minPixels;
+
+      Range(IntBuffer in, IntBuffer out, int start, int end, int minPixels)
+      //-------------------------------------------------------------------
+      {
+         this.in = in;
+         this.out = out;
+         this.start = start;
+         this.end = end;
+         this.minPixels = minPixels;
+      }
+
+      @Override
+      protected void compute()
+      //----------------------
+      {
+         if (end - start <= minPixels)
+            swapFirstLast(in, out, start, end);
+         else
+         {
+            final int middle = (start + end) >>> 1;
+            invokeAll(new Range(in, out, start, middle, minPixels), new Range(in, out, middle, end, minPixels));
+         }
+      }
+   }
+}
@@ -0,0 +1,244 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of Android sensor samples (x, y, z, Tango timestamp, sensor timestamp)
+ * stored as parallel primitive arrays. The producer (the sensor listener) never blocks or allocates and always
+ * overwrites the oldest sample when full. The consumer reads by copying the current contents into a
+ * {@link Snapshot}, which does not remove anything from the ring.
+ */
+public class SensorRing
+//=====================
+{
+   final private double[] x, y, z, tangoTs, sensorTs;
+   final private int capacity, mask;
+
+   // Sequence number of the next sample to be written. Only the producer writes it (lazySet after the sample
+   // arrays have been written so the consumer sees complete samples for all sequences below head).
+   final private AtomicLong head = new AtomicLong(0);
+   private long writeSequence = 0; // producer private copy of head
+
+   // Samples with sequence numbers below floor have been cleared.
+   volatile private long floor = 0;
+
+   // Written by the consumer after copying and before re-reading head. The volatile write keeps the preceding
+   // (plain) array reads from being reordered after the validating read of head.
+   volatile private long snapshotSequence = 0;
+
+   public SensorRing(int size)
+   //-------------------------
+   {
+      int capacity = 1;
+      while (capacity < size)
+         capacity <<= 1;
+      this.capacity = capacity;
+      mask = capacity - 1;
+      x = new double[capacity];
+      y = new double[capacity];
+      z = new double[capacity];
+      tangoTs = new double[capacity];
+      sensorTs = new double[capacity];
+   }
+
+   public int capacity() { return capacity; }
+
+   /**
+    * Adds a sample. Must only be called from the single producer thread.
+    */
+   public void push(double x, double y, double z, double tangoTs, double sensorTs)
+   //-----------------------------------------------------------------------------
+   {
+      final long sequence = writeSequence;
+      final int i = (int) (sequence & mask);
+      this.x[i] = x;
+      this.y[i] = y;
+      this.z[i] = z;
+      this.tangoTs[i] = tangoTs;
+      this.sensorTs[i] = sensorTs;
+      writeSequence = sequence + 1;
+      head.lazySet(sequence + 1);
+   }
+
+   /**
+    * Discards all samples currently in the ring (samples pushed concurrently with clear may or may not be kept).
+    */
+   public void clear() { floor = head.get(); }
+
+   public boolean isEmpty() { return head.get() <= floor; }
+
+   public Snapshot newSnapshot() { return new Snapshot(capacity); }
+
+   /**
+    * Copies the samples currently in the ring, oldest first, into <i>snapshot</i> without removing them. Once the
+    * ring has wrapped the two oldest slots may be in the middle of being overwritten, so at most capacity - 2
+    * samples are returned.
+    * Must only be called from the single consumer thread (or be externally synchronized between consumers).
+    * @return The number of samples copied.
+    */
+   public int snapshot(Snapshot snapshot)
+   //------------------------------------
+   {
+      if (snapshot.x.length < capacity)
+         throw new IllegalArgumentException("SensorRing.snapshot: Snapshot capacity " + snapshot.x.length +
+                                            " less than ring capacity " + capacity);
+      final long end = head.get();
+      final long start = Math.max(end - capacity, floor);
+      if (start >= end)
+         return snapshot.count = 0;
+      int n = (int) (end - start);
+      final int from = (int) (start & mask);
+      final int first = Math.min(n, capacity - from);
+      copy(snapshot, from, 0, first);
+      if (first < n)
+         copy(snapshot, 0, first, n - first);
+      snapshotSequence = end;
+      // The producer may be writing sequence head, overwriting (head - capacity), and as head is published with a
+      // release store the array writes of the following push (overwriting head - capacity + 1) can become visible
+      // before the new head does. Discard both from the front of the copy so no torn sample is returned.
+      final long valid = head.get() - capacity + 2;
+      if (valid > start)
+      {
+         final int discard = (int) Math.min(valid - start, n);
+         n -= discard;
+         if (n > 0)
+         {
+            System.arraycopy(snapshot.x, discard, snapshot.x, 0, n);
+            System.arraycopy(snapshot.y, discard, snapshot.y, 0, n);
+            System.arraycopy(snapshot.z, discard, snapshot.z, 0, n);
+            System.arraycopy(snapshot.tangoTs, discard, snapshot.tangoTs, 0, n);
+            System.arraycopy(snapshot.sensorTs, discard, snapshot.sensorTs, 0, n);
+         }
+      }
+      return snapshot.count = n;
+   }
+
+   private void copy(Snapshot snapshot, int from, int to, int n)
+   //-----------------------------------------------------------
+   {
+      System.arraycopy(x, from, snapshot.x, to, n);
+      System.arraycopy(y, from, snapshot.y, to, n);
+      System.arraycopy(z, from, snapshot.z, to, n);
+      System.arraycopy(tangoTs, from, snapshot.tangoTs, to, n);
+      System.arraycopy(sensorTs, from, snapshot.sensorTs, to, n);
+   }
+
+   /**
+    * Reusable consumer side copy of the contents of a {@link SensorRing}, oldest sample first. As samples are
+    * pushed in arrival order the Tango timestamps are non-decreasing, so lookups by time are binary searches.
+    */
+   static public class Snapshot
+   //==========================
+   {
+      final double[] x, y, z, tangoTs, sensorTs;
+      int count = 0;
+
+      Snapshot(int capacity)
+      //--------------------
+      {
+         x = new double[capacity];
+         y = new double[capacity];
+         z = new double[capacity];
+         tangoTs = new double[capacity];
+         sensorTs = new double[capacity];
+      }
+
+      public int count() { return count; }
+
+      public double x(int i) { return x[i]; }
+
+      public double y(int i) { return y[i]; }
+
+      public double z(int i) { return z[i]; }
+
+      public double tangoTimestamp(int i) { return tangoTs[i]; }
+
+      public double sensorTimestamp(int i) { return sensorTs[i]; }
+
+      /**
+       * @return The index of the first sample with Tango timestamp &gt;= <i>ts</i> (count() if there is none).
+       */
+      public int search(double ts)
+      //--------------------------
+      {
+         int lo = 0, hi = count;
+         while (lo < hi)
+         {
+            final int mid = (lo + hi) >>> 1;
+            if (tangoTs[mid] < ts)
+               lo = mid + 1;
+            else
+               hi = mid;
+         }
+         return lo;
+      }
+
+      /**
+       * @return The index of the sample with Tango timestamp closest to <i>ts</i> or -1 if empty.
+       */
+      public int nearest(double ts)
+      //---------------------------
+      {
+         if (count == 0)
+            return -1;
+         final int i = search(ts);
+         if (i >= count)
+            return count - 1;
+         if ( (i > 0) && ((ts - tangoTs[i - 1]) <= (tangoTs[i] - ts)) )
+            return i - 1;
+         return i;
+      }
+
+      /**
+       * Linearly interpolates x, y, z at Tango timestamp <i>ts</i> between the two samples bracketing it into
+       * <i>xyz</i>. Timestamps outside the snapshot are clamped to the first or last sample (no extrapolation).
+       * @return false if the snapshot is empty.
+       */
+      public boolean interpolate(double ts, double[] xyz)
+      //-------------------------------------------------
+      {
+         if (count == 0)
+            return false;
+         final int i = search(ts);
+         final int i0, i1;
+         if (i >= count)
+            i0 = i1 = count - 1;
+         else if ( (i == 0) || (tangoTs[i] == ts) )
+            i0 = i1 = i;
+         else
+         {
+            i0 = i - 1;
+            i1 = i;
+         }
+         final double span = tangoTs[i1] - tangoTs[i0];
+         final double t = (span > 0) ? (ts - tangoTs[i0]) / span : 0;
+         xyz[0] = x[i0] + t*(x[i1] - x[i0]);
+         xyz[1] = y[i0] + t*(y[i1] - y[i0]);
+         xyz[2] = z[i0] + t*(z[i1] - z[i0]);
+         return true;
+      }
+   }
+}
@@ -0,0 +1,204 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small dependency aware task graph. Each task runs on the executor as soon as all the tasks it depends on have
+ * completed successfully, so independent tasks run concurrently. If a task fails (returns false or throws) the
+ * tasks depending on it, directly or indirectly, are skipped.
+ */
+class TaskGraph
+//=============
+{
+   interface Listener
+   //================
+   {
+      /**
+       * Called on the executor thread that ran (or skipped) the task.
+       * @param isSkipped true if the task was not run because a dependency failed.
+       * @param e The exception thrown by the task or null.
+       */
+      void onTaskComplete(String name, boolean isSuccess, boolean isSkipped, Throwable e);
+   }
+
+   final private Map<String, Node> nodes = new LinkedHashMap<>();
+
+   /**
+    * Adds a task. Dependencies must already have been added (which also rules out cycles).
+    */
+   TaskGraph add(String name, Callable<Boolean> task, String... dependencies)
+   //------------------------------------------------------------------------
+   {
+      if (nodes.containsKey(name))
+         throw new IllegalArgumentException("TaskGraph: Duplicate task " + name);
+      Node node = new Node(name, task, dependencies.length);
+      for (String dependency : dependencies)
+      {
+         Node parent = nodes.get(dependency);
+         if (parent == null)
+            throw new IllegalArgumentException("TaskGraph: Task " + name + " depends on unknown task " + dependency);
+         parent.dependents.add(node);
+      }
+      nodes.put(name, node);
+      return this;
+   }
+
+   /**
+    * Runs all tasks on <i>executor</i> and waits for them to complete or be skipped.
+    * @return true if all tasks completed successfully.
+    */
+   boolean execute(Executor executor, Listener listener) throws InterruptedException
+   //-------------------------------------------------------------------------------
+   {
+      final CountDownLatch latch = new CountDownLatch(nodes.size());
+      final AtomicInteger failures = new AtomicInteger(0);
+      for (Node node : nodes.values())
+      {
+         node.pending.set(node.dependencyCount);
+         node.isFailed = false;
+      }
+      for (Node node : nodes.values())
+         if (node.dependencyCount == 0)
+            submit(node, executor, listener, latch, failures);
+      latch.await();
+      return (failures.get() == 0);
+   }
+
+   boolean isSuccess(String name)
+   //----------------------------
+   {
+      Node node = nodes.get(name);
+      return (node != null) && (node.isSuccess);
+   }
+
+   private void submit(final Node node, final Executor executor, final Listener listener,
+                       final CountDownLatch latch, final AtomicInteger failures)
+   //-------------------------------------------------------------------------------------
+   {
+      executor.execute(new Runnable()
+      {
+         @Override
+         public void run()
+         //---------------
+         {
+            boolean ok = false;
+            Throwable error = null;
+            if (! node.isFailed)
+            {
+               try
+               {
+                  Boolean B = node.task.call();
+                  ok = (B != null) && (B);
+               }
+               catch (Throwable e)
+               {
+                  error = e;
+               }
+            }
+            node.isSuccess = ok;
+            if (! ok)
+               failures.incrementAndGet();
+            try
+            {
+               if (listener != null)
+                  listener.onTaskComplete(node.name, ok, node.isFailed, error);
+            }
+            finally
+            {
+               // Always release the dependents and count down, otherwise execute() would wait forever
+               try
+               {
+                  for (Node dependent : node.dependents)
+                  {
+                     if (! ok)
+                        dependent.isFailed = true;
+                     if (dependent.pending.decrementAndGet() == 0)
+                     {
+                        try
+                        {
+                           submit(dependent, executor, listener, latch, failures);
+                        }
+                        catch (RuntimeException e)
+                        {
+                           abandon(dependent, latch, failures);
+                        }
+                     }
+                  }
+               }
+               finally
+               {
+                  latch.countDown();
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * Counts down <i>node</i>, which could not be submitted (eg the executor rejected it), as failed along with the
+    * dependents which will now never become ready.
+    */
+   private static void abandon(Node node, CountDownLatch latch, AtomicInteger failures)
+   //----------------------------------------------------------------------------------
+   {
+      node.isFailed = true;
+      node.isSuccess = false;
+      failures.incrementAndGet();
+      for (Node dependent : node.dependents)
+      {
+         dependent.isFailed = true;
+         if (dependent.pending.decrementAndGet() == 0)
+            abandon(dependent, latch, failures);
+      }
+      latch.countDown();
+   }
+
+   static private class Node
+   //=======================
+   {
+      final String name;
+      final Callable<Boolean> task;
+      final int dependencyCount;
+      final List<Node> dependents = new ArrayList<>();
+      final AtomicInteger pending = new AtomicInteger();
+      volatile boolean isFailed = false, isSuccess = false;
+
+      Node(String name, Callable<Boolean> task, int dependencyCount)
+      //------------------------------------------------------------
+      {
+         this.name = name;
+         this.task = task;
+         this.dependencyCount = dependencyCount;
+      }
+   }
+}
@@ -0,0 +1,473 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the start of service to device trajectory between (and independent of) captures. A dedicated thread
+ * samples the latest pose at a fixed rate into a preallocated primitive ring, and about once a second the ring is
+ * flushed as delta encoded records to a memory mapped file. Nothing is allocated while recording apart from
+ * remapping the file when it grows (the file doubles in size each time). The recording can be exported to the TUM
+ * RGB-D and KITTI odometry text formats with {@link #exportTum} and {@link #exportKitti} (also available from the
+ * command line through {@link #main}). Pure Java (no android dependencies), poses come from a {@link Source}.
+ * <p>Layout (little endian): a {@value #HEADER_SIZE} byte header holding an 8 byte magic number, version, the
+ * record count, the length of the record data and the time, rotation and translation scales, followed by the
+ * records. Each record holds the timestamp, rotation quaternion (w, x, y, z) and translation (x, y, z) quantized
+ * by the scales (microseconds, 1e-8 and 10 micrometres), each stored as the zigzag varint difference from the
+ * previous record (the first from zero). The count and length are updated after each flush, so a recording cut
+ * short by a crash is readable up to the last flush.</p>
+ */
+public class TrajectoryRecorder
+//=============================
+{
+   static final public String EXTENSION = ".tctraj";
+
+   static final private byte[] MAGIC = { 'T', 'C', 'T', 'R', 'A', 'J', '\r', 0x1A };
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 64;
+   static final private int COUNT_OFFSET = 16, LENGTH_OFFSET = 24, SCALES_OFFSET = 32;
+
+   /** Sample layout: timestamp (seconds), rotation w, x, y, z, translation x, y, z */
+   static final public int FIELDS = 8;
+   static final private double TIME_SCALE = 1e6, ROTATION_SCALE = 1e8, TRANSLATION_SCALE = 1e5;
+   static final private double[] SCALES = { TIME_SCALE, ROTATION_SCALE, ROTATION_SCALE, ROTATION_SCALE,
+                                            ROTATION_SCALE, TRANSLATION_SCALE, TRANSLATION_SCALE,
+                                            TRANSLATION_SCALE };
+   static final private int MAX_RECORD_SIZE = FIELDS * 10; // 10 bytes for the largest varint
+   static final private int INITIAL_SIZE = 1 << 20;
+
+   /**
+    * Supplies the latest pose.
+    */
+   public interface Source
+   //=====================
+   {
+      /**
+       * Fills <i>pose</i> with the latest valid start of service to device pose (see {@link #FIELDS}).
+       * @return false if no valid pose is available.
+       */
+      boolean sample(double[] pose);
+   }
+
+   final File file;
+   final private Source source;
+   final private long period;
+
+   // Ring of samples written by the recording thread, FIELDS doubles per sample.
+   final private double[] ring;
+   final private int mask, flushInterval;
+   private long head = 0, flushed = 0;
+
+   final private double[] latest = new double[FIELDS];
+   final private long[] previous = new long[FIELDS];
+   private double lastTimestamp = Double.NEGATIVE_INFINITY;
+
+   private RandomAccessFile raf;
+   private FileChannel channel;
+   private MappedByteBuffer map;
+   private int length = HEADER_SIZE;
+   volatile private long count = 0;
+
+   private Thread thread = null;
+   volatile private boolean isRunning = false;
+   volatile private IOException error = null;
+
+   /**
+    * Creates (or truncates) <i>file</i>.
+    * @param rate Samples per second. Samples with the same timestamp as the previous one are skipped, so rates
+    *             above the pose rate record every pose.
+    */
+   public TrajectoryRecorder(File file, double rate, Source source) throws IOException
+   //---------------------------------------------------------------------------------
+   {
+      if ( (! (rate > 0)) || (rate > 1000) )
+         throw new IllegalArgumentException("TrajectoryRecorder: Rate " + rate + " not between 0 and 1000");
+      this.file = file;
+      this.source = source;
+      period = Math.round(1e9 / rate);
+      int capacity = 16;
+      while (capacity < 2 * rate)
+         capacity <<= 1;
+      ring = new double[capacity * FIELDS];
+      mask = capacity - 1;
+      flushInterval = capacity / 2;
+      raf = new RandomAccessFile(file, "rw");
+      try
+      {
+         raf.setLength(0);
+         channel = raf.getChannel();
+         grow(INITIAL_SIZE);
+         map.put(MAGIC).putInt(VERSION).putInt(FIELDS);
+         map.putLong(COUNT_OFFSET, 0).putLong(LENGTH_OFFSET, 0);
+         map.putDouble(SCALES_OFFSET, TIME_SCALE).putDouble(SCALES_OFFSET + 8, ROTATION_SCALE)
+            .putDouble(SCALES_OFFSET + 16, TRANSLATION_SCALE);
+      }
+      catch (IOException e)
+      {
+         raf.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Starts the recording thread.
+    */
+   synchronized public void start()
+   //------------------------------
+   {
+      if (thread != null)
+         throw new IllegalStateException("TrajectoryRecorder: Already started");
+      isRunning = true;
+      thread = new Thread(new Runnable()
+      {
+         @Override public void run() { record(); }
+      }, "TrajectoryRecorder");
+      thread.start();
+   }
+
+   /**
+    * Stops the recording thread, flushes the remaining samples and closes the file, truncated to the records
+    * written.
+    * @throws IOException The first error writing the file (which also stops the recording).
+    */
+   synchronized public void stop() throws IOException
+   //-------------------------------------------------
+   {
+      isRunning = false;
+      if (thread != null)
+      {
+         LockSupport.unpark(thread);
+         try
+         {
+            thread.join();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try
+      {
+         if ( (thread == null) && (channel.isOpen()) )
+            flush(); // samples taken without the recording thread
+      }
+      finally
+      {
+         if (channel.isOpen())
+         {
+            try
+            {
+               map.force();
+               raf.setLength(length); // drop the unused (zero filled) remainder of the mapping
+            }
+            finally
+            {
+               channel.close();
+               raf.close();
+            }
+         }
+      }
+      if (error != null)
+         throw error;
+   }
+
+   public boolean isRunning() { return isRunning; }
+
+   /**
+    * @return The number of samples written to the file.
+    */
+   public long count() { return count; }
+
+   private void record()
+   //-------------------
+   {
+      long next = System.nanoTime();
+      try
+      {
+         while (isRunning)
+         {
+            sample();
+            next += period;
+            final long wait = next - System.nanoTime();
+            if (wait > 0)
+               LockSupport.parkNanos(this, wait);
+            else
+               next = System.nanoTime(); // fell behind, skip the missed samples instead of bursting
+         }
+         flush();
+      }
+      catch (IOException e)
+      {
+         error = e;
+         isRunning = false;
+      }
+   }
+
+   /**
+    * Takes one sample from the source and flushes the ring when due. Only called by the recording thread (or by
+    * tests instead of starting it).
+    */
+   void sample() throws IOException
+   //------------------------------
+   {
+      if ( (! source.sample(latest)) || (! (latest[0] > lastTimestamp)) )
+         return;
+      lastTimestamp = latest[0];
+      System.arraycopy(latest, 0, ring, (int) (head & mask) * FIELDS, FIELDS);
+      if (++head - flushed >= flushInterval)
+         flush();
+   }
+
+   /**
+    * Encodes the samples in the ring which have not yet been written.
+    */
+   void flush() throws IOException
+   //-----------------------------
+   {
+      final long end = head;
+      if (end == flushed)
+         return;
+      final long required = length + (end - flushed) * MAX_RECORD_SIZE;
+      if (required > Integer.MAX_VALUE)
+         throw new IOException("TrajectoryRecorder: " + file.getName() + " is full");
+      if (required > map.capacity())
+         grow((int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * map.capacity())));
+      int p = length;
+      for (long s = flushed; s < end; s++)
+      {
+         final int offset = (int) (s & mask) * FIELDS;
+         for (int i = 0; i < FIELDS; i++)
+         {
+            final long q = Math.round(ring[offset + i] * SCALES[i]);
+            p = putVarLong(map, p, q - previous[i]);
+            previous[i] = q;
+         }
+      }
+      length = p;
+      flushed = end;
+      map.putLong(LENGTH_OFFSET, length - HEADER_SIZE);
+      map.putLong(COUNT_OFFSET, end);
+      count = end;
+   }
+
+   /**
+    * Sequentially decodes a trajectory file.
+    */
+   static public class Reader
+   //========================
+   {
+      final private MappedByteBuffer map;
+      final private long count;
+      final private int end;
+      final private double[] scales = new double[FIELDS];
+      final private long[] previous = new long[FIELDS];
+      private long index = 0;
+      private int position = HEADER_SIZE;
+
+      public Reader(File file) throws IOException
+      //-----------------------------------------
+      {
+         try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+         {
+            final long size = raf.length();
+            if (size < HEADER_SIZE)
+               throw new IOException("TrajectoryRecorder: " + file.getName() + " is too short");
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+         }
+         map.order(ByteOrder.LITTLE_ENDIAN);
+         for (byte b : MAGIC)
+            if (map.get() != b)
+               throw new IOException("TrajectoryRecorder: " + file.getName() + " is not a trajectory");
+         final int version = map.getInt(), fields = map.getInt();
+         if ( (version != VERSION) || (fields != FIELDS) )
+            throw new IOException("TrajectoryRecorder: Unsupported version " + version + " in " + file.getName());
+         count = map.getLong(COUNT_OFFSET);
+         final long length = map.getLong(LENGTH_OFFSET);
+         if ( (count < 0) || (length < 0) || (HEADER_SIZE + length > map.capacity()) )
+            throw new IOException("TrajectoryRecorder: Corrupt header in " + file.getName());
+         end = (int) (HEADER_SIZE + length);
+         final double time = map.getDouble(SCALES_OFFSET), rotation = map.getDouble(SCALES_OFFSET + 8),
+                      translation = map.getDouble(SCALES_OFFSET + 16);
+         scales[0] = time;
+         for (int i = 1; i < 5; i++)
+            scales[i] = rotation;
+         for (int i = 5; i < FIELDS; i++)
+            scales[i] = translation;
+      }
+
+      public long count() { return count; }
+
+      /**
+       * Decodes the next sample into <i>pose</i> (see {@link #FIELDS}).
+       * @return false after the last sample.
+       */
+      public boolean next(double[] pose) throws IOException
+      //----------------------------------------------------
+      {
+         if (index >= count)
+            return false;
+         for (int i = 0; i < FIELDS; i++)
+         {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+               if ( (position >= end) || (shift > 63) )
+                  throw new IOException("TrajectoryRecorder: Truncated record " + index);
+               b = map.get(position++);
+               v |= (long) (b & 0x7F) << shift;
+               shift += 7;
+            } while (b < 0);
+            previous[i] += (v >>> 1) ^ -(v & 1);
+            pose[i] = previous[i] / scales[i];
+         }
+         index++;
+         return true;
+      }
+   }
+
+   /**
+    * Writes <i>trajectory</i> in the TUM RGB-D format (timestamp tx ty tz qx qy qz qw per line).
+    * @return The number of poses written.
+    */
+   static public long exportTum(File trajectory, File out) throws IOException
+   //-------------------------------------------------------------------------
+   {
+      Reader reader = new Reader(trajectory);
+      final double[] pose = new double[FIELDS];
+      final byte[] line = new byte[8 * FloatFormatter.MAX_DOUBLE_LENGTH];
+      long n = 0;
+      try (OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 64*1024))
+      {
+         os.write("# timestamp tx ty tz qx qy qz qw\n".getBytes("US-ASCII"));
+         while (reader.next(pose))
+         {
+            int p = FloatFormatter.format(pose[0], 6, line, 0);
+            p = field(pose[5], line, p);
+            p = field(pose[6], line, p);
+            p = field(pose[7], line, p);
+            p = field(pose[2], line, p);
+            p = field(pose[3], line, p);
+            p = field(pose[4], line, p);
+            p = field(pose[1], line, p);
+            line[p++] = '\n';
+            os.write(line, 0, p);
+            n++;
+         }
+      }
+      return n;
+   }
+
+   /**
+    * Writes <i>trajectory</i> in the KITTI odometry format (the first three rows of the row major pose matrix per
+    * line) and, if <i>times</i> is not null, the timestamps one per line.
+    * @return The number of poses written.
+    */
+   static public long exportKitti(File trajectory, File out, File times) throws IOException
+   //--------------------------------------------------------------------------------------
+   {
+      Reader reader = new Reader(trajectory);
+      final double[] pose = new double[FIELDS];
+      final byte[] line = new byte[12 * FloatFormatter.MAX_DOUBLE_LENGTH];
+      long n = 0;
+      try (OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 64*1024);
+           OutputStream ts = (times == null) ? null
+                                             : new BufferedOutputStream(new FileOutputStream(times), 64*1024))
+      {
+         while (reader.next(pose))
+         {
+            final double[] m = CloudTransform.rigidTransform(pose[1], pose[2], pose[3], pose[4],
+                                                             pose[5], pose[6], pose[7]);
+            int p = FloatFormatter.format(m[0], 9, line, 0);
+            for (int i = 1; i < 12; i++)
+               p = field(m[i], line, p);
+            line[p++] = '\n';
+            os.write(line, 0, p);
+            if (ts != null)
+            {
+               p = FloatFormatter.format(pose[0], 6, line, 0);
+               line[p++] = '\n';
+               ts.write(line, 0, p);
+            }
+            n++;
+         }
+      }
+      return n;
+   }
+
+   /**
+    * Exports a trajectory from the command line.
+    */
+   public static void main(String[] args) throws IOException
+   //-------------------------------------------------------
+   {
+      if ( (args.length == 3) && (args[0].equalsIgnoreCase("tum")) )
+         System.out.println(exportTum(new File(args[1]), new File(args[2])) + " poses exported");
+      else if ( ((args.length == 3) || (args.length == 4)) && (args[0].equalsIgnoreCase("kitti")) )
+         System.out.println(exportKitti(new File(args[1]), new File(args[2]),
+                                        (args.length == 4) ? new File(args[3]) : null) + " poses exported");
+      else
+         System.err.println("Usage: TrajectoryRecorder tum trajectory" + EXTENSION + " out.txt\n" +
+                            "       TrajectoryRecorder kitti trajectory" + EXTENSION + " poses.txt [times.txt]");
+   }
+
+   static private int field(double v, byte[] line, int p)
+   //----------------------------------------------------
+   {
+      line[p++] = ' ';
+      return FloatFormatter.format(v, 9, line, p);
+   }
+
+   static private int putVarLong(MappedByteBuffer map, int p, long v)
+   //----------------------------------------------------------------
+   {
+      long zigzag = (v << 1) ^ (v >> 63);
+      while ((zigzag & ~0x7FL) != 0)
+      {
+         map.put(p++, (byte) ((zigzag & 0x7F) | 0x80));
+         zigzag >>>= 7;
+      }
+      map.put(p++, (byte) zigzag);
+      return p;
+   }
+
+   private void grow(int size) throws IOException
+   //--------------------------------------------
+   {
+      raf.setLength(size);
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      map.order(ByteOrder.LITTLE_ENDIAN);
+   }
+}
@@ -0,0 +1,566 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fuses a sequence of captured point clouds into a truncated signed distance function (TSDF) stored in a sparse
+ * volume of {@value #BLOCK_SIZE}<sup>3</sup> voxel blocks indexed by a primitive hash map ({@link LongIntMap}), and
+ * extracts a triangle mesh from it with {@link MarchingCubes}. Each point updates the voxels along its ray from the
+ * depth camera within the truncation distance of the point. Blocks are integrated and meshed in parallel (each
+ * block is only written by the task updating it). The volume never holds more than <i>maxBlocks</i> blocks: when a
+ * block has to be allocated at the limit, a batch of the blocks least recently integrated (furthest from the camera
+ * amongst equally old blocks) is evicted, dropping their surfaces from later meshes, and if every block is in use
+ * by the current integration the new block is not allocated (see {@link #rejections()}). Pure Java so it can also
+ * be used on a workstation.
+ * <p>Distances are positive in front of the surface (towards the camera) and negative behind it.</p>
+ */
+public class TsdfVolume
+//=====================
+{
+   static final int BLOCK_SIZE = 8, BLOCK_VOXELS = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+   static final float MAX_WEIGHT = 100;
+
+   static final private int MIN_BLOCKS_PER_TASK = 8;
+
+   final float voxelSize, truncation;
+   final int maxBlocks;
+
+   // Block key -> slot in blocks, freed slots are reused
+   final private LongIntMap index = new LongIntMap(1024);
+   private Block[] blocks = new Block[1024];
+   private int[] freeSlots = new int[64];
+   private int blockCount = 0, slotCount = 0, freeCount = 0;
+   private long integrations = 0, evictions = 0, rejections = 0;
+
+   static final class Block
+   //======================
+   {
+      final int bx, by, bz;
+      int slot;
+      final float[] sdf = new float[BLOCK_VOXELS], weight = new float[BLOCK_VOXELS];
+      long lastIntegration = 0;
+
+      // Indices of the points whose truncation band crosses this block during the current integration
+      int[] points = new int[16];
+      int pointCount = 0;
+
+      Block(int bx, int by, int bz) { this.bx = bx; this.by = by; this.bz = bz; }
+
+      void addPoint(int point)
+      //----------------------
+      {
+         if ( (pointCount > 0) && (points[pointCount - 1] == point) )
+            return;
+         if (pointCount == points.length)
+            points = Arrays.copyOf(points, pointCount * 2);
+         points[pointCount++] = point;
+      }
+   }
+
+   /**
+    * A triangle mesh with 3 floats per vertex and 3 vertex indices per triangle.
+    */
+   static final public class Mesh
+   //=============================
+   {
+      final public float[] vertices;
+      final public int[] triangles;
+
+      Mesh(float[] vertices, int[] triangles) { this.vertices = vertices; this.triangles = triangles; }
+
+      public int vertexCount() { return vertices.length / 3; }
+
+      public int triangleCount() { return triangles.length / 3; }
+   }
+
+   /**
+    * @param voxelSize Voxel edge length in metres.
+    * @param truncation Truncation distance in metres (usually 2 to 4 voxels).
+    * @param maxBlocks The maximum number of blocks held (each uses about 4KB).
+    */
+   public TsdfVolume(float voxelSize, float truncation, int maxBlocks)
+   //-----------------------------------------------------------------
+   {
+      if ( (voxelSize <= 0) || (truncation < voxelSize) || (maxBlocks <= 0) )
+         throw new IllegalArgumentException("TsdfVolume: Invalid parameters " + voxelSize + ", " + truncation +
+                                            ", " + maxBlocks);
+      this.voxelSize = voxelSize;
+      this.truncation = truncation;
+      this.maxBlocks = maxBlocks;
+   }
+
+   public int blockCount() { return blockCount; }
+
+   /**
+    * @return The number of blocks evicted so far to keep within the block limit.
+    */
+   public long evictions() { return evictions; }
+
+   /**
+    * @return The number of blocks not allocated because the limit was reached with every block in use by the
+    * integration allocating it.
+    */
+   public long rejections() { return rejections; }
+
+   /**
+    * Integrates the point cloud of <i>frame</i> (if it has one) using the pose of the frame (see
+    * {@link CloudTransform#depthToWorld(CaptureFrame)}).
+    */
+   public void integrate(CaptureFrame frame, ForkJoinPool pool)
+   //----------------------------------------------------------
+   {
+      if (frame.hasPointCloud())
+         integrate(frame.pointCloud.points, frame.pointCloud.count, CloudTransform.depthToWorld(frame), pool);
+   }
+
+   /**
+    * Integrates a point cloud.
+    * @param cloud Packed x, y, z, confidence points in depth camera coordinates. The confidence is used as the
+    *              weight of the point (points with a confidence of 0 are ignored).
+    * @param transform Depth camera to world transform as a row major 3x4 or 4x4 matrix (see
+    *                  {@link CloudTransform#rigidTransform}).
+    * @param pool The pool to update the blocks on or null to update them on the calling thread.
+    */
+   public void integrate(FloatBuffer cloud, int points, double[] transform, ForkJoinPool pool)
+   //-----------------------------------------------------------------------------------------
+   {
+      points = Math.min(points, cloud.limit() / 4);
+      final float[] world = new float[points * 4];
+      int n = 0;
+      for (int i = 0; i < points; i++)
+      {
+         final double x = cloud.get(i * 4), y = cloud.get(i * 4 + 1), z = cloud.get(i * 4 + 2);
+         final float confidence = cloud.get(i * 4 + 3);
+         if (! (confidence > 0))
+            continue;
+         world[n * 4] = (float) (transform[0] * x + transform[1] * y + transform[2] * z + transform[3]);
+         world[n * 4 + 1] = (float) (transform[4] * x + transform[5] * y + transform[6] * z + transform[7]);
+         world[n * 4 + 2] = (float) (transform[8] * x + transform[9] * y + transform[10] * z + transform[11]);
+         world[n * 4 + 3] = Math.min(confidence, 1);
+         n++;
+      }
+      final float[] origin = { (float) transform[3], (float) transform[7], (float) transform[11] };
+
+      // Allocate the blocks crossed by each truncation band and record which points cross them
+      final long integration = ++integrations;
+      final List<Block> touched = new ArrayList<>();
+      final float step = voxelSize / 2;
+      final float[] ray = new float[4];
+      final int evictBatch = Math.max(1, maxBlocks / 16);
+      for (int i = 0; i < n; i++)
+      {
+         if (! ray(world, i, origin, ray))
+            continue;
+         long lastKey = Long.MIN_VALUE;
+         for (float s = Math.max(0, ray[3] - truncation), end = ray[3] + truncation; s <= end; s += step)
+         {
+            int bx = voxel(origin[0] + ray[0] * s) >> 3, by = voxel(origin[1] + ray[1] * s) >> 3,
+                bz = voxel(origin[2] + ray[2] * s) >> 3;
+            long key = blockKey(bx, by, bz);
+            if (key == lastKey)
+               continue;
+            lastKey = key;
+            final int slot = index.get(key);
+            final Block block;
+            if (slot != LongIntMap.MISSING)
+               block = blocks[slot];
+            else
+            {
+               if ( (blockCount >= maxBlocks) && (evict(origin, integration, evictBatch) == 0) )
+               {
+                  rejections++;
+                  continue;
+               }
+               block = add(key, bx, by, bz);
+            }
+            if (block.lastIntegration != integration)
+            {
+               block.lastIntegration = integration;
+               block.pointCount = 0;
+               touched.add(block);
+            }
+            block.addPoint(i);
+         }
+      }
+
+      forEach(touched.size(), pool, new BlockProcessor()
+      {
+         @Override public void process(int i) { integrate(touched.get(i), world, origin); }
+      });
+      for (Block block : touched)
+      {
+         block.pointCount = 0;
+         if (block.points.length > 256)
+            block.points = new int[16];
+      }
+   }
+
+   private void integrate(Block block, float[] world, float[] origin)
+   //----------------------------------------------------------------
+   {
+      final int x0 = block.bx * BLOCK_SIZE, y0 = block.by * BLOCK_SIZE, z0 = block.bz * BLOCK_SIZE;
+      final float step = voxelSize / 2;
+      final float[] ray = new float[4];
+      for (int p = 0; p < block.pointCount; p++)
+      {
+         final int i = block.points[p];
+         ray(world, i, origin, ray);
+         final float depth = ray[3], w = world[i * 4 + 3];
+         int lastVoxel = -1;
+         for (float s = Math.max(0, depth - truncation), end = depth + truncation; s <= end; s += step)
+         {
+            int x = voxel(origin[0] + ray[0] * s) - x0, y = voxel(origin[1] + ray[1] * s) - y0,
+                z = voxel(origin[2] + ray[2] * s) - z0;
+            if ( (x < 0) || (x >= BLOCK_SIZE) || (y < 0) || (y >= BLOCK_SIZE) || (z < 0) || (z >= BLOCK_SIZE) )
+               continue;
+            int index = (z * BLOCK_SIZE + y) * BLOCK_SIZE + x;
+            if (index == lastVoxel)
+               continue;
+            lastVoxel = index;
+            // Signed distance of the voxel centre from the point along the ray
+            float distance = depth - (((x0 + x + 0.5f) * voxelSize - origin[0]) * ray[0] +
+                                      ((y0 + y + 0.5f) * voxelSize - origin[1]) * ray[1] +
+                                      ((z0 + z + 0.5f) * voxelSize - origin[2]) * ray[2]);
+            if (distance < -truncation)
+               continue;
+            distance = Math.min(distance, truncation);
+            final float weight = block.weight[index];
+            block.sdf[index] = (block.sdf[index] * weight + distance * w) / (weight + w);
+            block.weight[index] = Math.min(weight + w, MAX_WEIGHT);
+         }
+      }
+   }
+
+   /**
+    * Sets <i>ray</i> to the unit direction from <i>origin</i> to point <i>i</i> and its distance.
+    * @return false if the point is at the origin.
+    */
+   static private boolean ray(float[] world, int i, float[] origin, float[] ray)
+   //---------------------------------------------------------------------------
+   {
+      float dx = world[i * 4] - origin[0], dy = world[i * 4 + 1] - origin[1], dz = world[i * 4 + 2] - origin[2];
+      float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+      if (length <= 0)
+         return false;
+      ray[0] = dx / length;
+      ray[1] = dy / length;
+      ray[2] = dz / length;
+      ray[3] = length;
+      return true;
+   }
+
+   private Block block(long key)
+   //---------------------------
+   {
+      final int slot = index.get(key);
+      return (slot == LongIntMap.MISSING) ? null : blocks[slot];
+   }
+
+   private Block add(long key, int bx, int by, int bz)
+   //-------------------------------------------------
+   {
+      final int slot;
+      if (freeCount > 0)
+         slot = freeSlots[--freeCount];
+      else
+      {
+         if (slotCount == blocks.length)
+            blocks = Arrays.copyOf(blocks, slotCount * 2);
+         slot = slotCount++;
+      }
+      Block block = new Block(bx, by, bz);
+      block.slot = slot;
+      blocks[slot] = block;
+      index.putIfAbsent(key, slot);
+      blockCount++;
+      return block;
+   }
+
+   private void remove(Block block)
+   //------------------------------
+   {
+      index.remove(blockKey(block.bx, block.by, block.bz));
+      blocks[block.slot] = null;
+      if (freeCount == freeSlots.length)
+         freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+      freeSlots[freeCount++] = block.slot;
+      blockCount--;
+   }
+
+   /**
+    * Evicts up to <i>count</i> of the blocks not used by the current integration, least recently integrated
+    * first and furthest from <i>origin</i> first amongst equally old blocks.
+    * @return The number of blocks evicted.
+    */
+   private int evict(final float[] origin, long integration, int count)
+   //------------------------------------------------------------------
+   {
+      List<Block> candidates = new ArrayList<>(blockCount);
+      for (int i = 0; i < slotCount; i++)
+         if ( (blocks[i] != null) && (blocks[i].lastIntegration != integration) )
+            candidates.add(blocks[i]);
+      if (candidates.isEmpty())
+         return 0;
+      Collections.sort(candidates, new Comparator<Block>()
+      {
+         @Override
+         public int compare(Block a, Block b)
+         //----------------------------------
+         {
+            if (a.lastIntegration != b.lastIntegration)
+               return (a.lastIntegration < b.lastIntegration) ? -1 : 1;
+            return Float.compare(distance2(b, origin), distance2(a, origin));
+         }
+      });
+      count = Math.min(count, candidates.size());
+      for (int i = 0; i < count; i++)
+         remove(candidates.get(i));
+      evictions += count;
+      return count;
+   }
+
+   private float distance2(Block block, float[] origin)
+   //--------------------------------------------------
+   {
+      final float half = BLOCK_SIZE / 2f;
+      float dx = (block.bx * BLOCK_SIZE + half) * voxelSize - origin[0],
+            dy = (block.by * BLOCK_SIZE + half) * voxelSize - origin[1],
+            dz = (block.bz * BLOCK_SIZE + half) * voxelSize - origin[2];
+      return dx * dx + dy * dy + dz * dz;
+   }
+
+   /**
+    * Extracts the zero crossing of the volume as a triangle mesh. Vertices on edges shared by neighbouring cubes
+    * are shared. Cubes with an unobserved corner or a corner at the truncation distance are skipped.
+    * @param pool The pool to polygonise the blocks on or null to polygonise them on the calling thread.
+    */
+   public Mesh extractMesh(ForkJoinPool pool)
+   //----------------------------------------
+   {
+      final Block[] all = new Block[blockCount];
+      for (int i = 0, j = 0; i < slotCount; i++)
+         if (blocks[i] != null)
+            all[j++] = blocks[i];
+      final BlockMesh[] meshes = new BlockMesh[all.length];
+      forEach(all.length, pool, new BlockProcessor()
+      {
+         @Override public void process(int i) { meshes[i] = polygonise(all[i]); }
+      });
+
+      int vertexCount = 0, triangleVertices = 0;
+      for (BlockMesh mesh : meshes)
+         triangleVertices += mesh.count;
+      final LongIntMap vertexIndices = new LongIntMap(triangleVertices / 2);
+      float[] vertices = new float[triangleVertices * 3];
+      final int[] triangles = new int[triangleVertices];
+      int t = 0;
+      for (BlockMesh mesh : meshes)
+         for (int i = 0; i < mesh.count; i++)
+         {
+            int vertex = vertexIndices.putIfAbsent(mesh.keys[i], vertexCount);
+            if (vertex == LongIntMap.MISSING)
+            {
+               vertex = vertexCount++;
+               System.arraycopy(mesh.positions, i * 3, vertices, vertex * 3, 3);
+            }
+            triangles[t++] = vertex;
+         }
+      return new Mesh(Arrays.copyOf(vertices, vertexCount * 3), triangles);
+   }
+
+   static final private class BlockMesh
+   //==================================
+   {
+      long[] keys = new long[64];
+      float[] positions = new float[64 * 3];
+      int count = 0;
+
+      void add(long key, float x, float y, float z)
+      //-------------------------------------------
+      {
+         if (count == keys.length)
+         {
+            keys = Arrays.copyOf(keys, count * 2);
+            positions = Arrays.copyOf(positions, count * 6);
+         }
+         keys[count] = key;
+         positions[count * 3] = x;
+         positions[count * 3 + 1] = y;
+         positions[count * 3 + 2] = z;
+         count++;
+      }
+   }
+
+   private BlockMesh polygonise(Block block)
+   //---------------------------------------
+   {
+      // This block and its neighbours in the +x, +y and +z directions, indexed by dx + 2 dy + 4 dz
+      final Block[] neighbours = new Block[8];
+      for (int i = 0; i < 8; i++)
+         neighbours[i] = block(blockKey(block.bx + (i & 1), block.by + ((i >> 1) & 1),
+                                             block.bz + ((i >> 2) & 1)));
+      final int x0 = block.bx * BLOCK_SIZE, y0 = block.by * BLOCK_SIZE, z0 = block.bz * BLOCK_SIZE;
+      final float[] values = new float[8];
+      final BlockMesh mesh = new BlockMesh();
+      for (int z = 0; z < BLOCK_SIZE; z++)
+         for (int y = 0; y < BLOCK_SIZE; y++)
+            nextCube:
+            for (int x = 0; x < BLOCK_SIZE; x++)
+            {
+               int cubeIndex = 0;
+               for (int c = 0; c < 8; c++)
+               {
+                  int cx = x + (c & 1), cy = y + ((c >> 1) & 1), cz = z + ((c >> 2) & 1);
+                  Block b = neighbours[(cx >> 3) + 2 * (cy >> 3) + 4 * (cz >> 3)];
+                  if (b == null)
+                     continue nextCube;
+                  int index = (((cz & 7) * BLOCK_SIZE) + (cy & 7)) * BLOCK_SIZE + (cx & 7);
+                  float value = b.sdf[index];
+                  if ( (b.weight[index] <= 0) || (Math.abs(value) >= truncation) )
+                     continue nextCube;
+                  values[c] = value;
+                  if (value < 0)
+                     cubeIndex |= 1 << c;
+               }
+               for (int e : MarchingCubes.triangles(cubeIndex))
+               {
+                  final int a = MarchingCubes.EDGE_START[e], axis = MarchingCubes.EDGE_AXIS[e];
+                  final float t = values[a] / (values[a] - values[MarchingCubes.EDGE_END[e]]);
+                  final int gx = x0 + x + (a & 1), gy = y0 + y + ((a >> 1) & 1), gz = z0 + z + ((a >> 2) & 1);
+                  mesh.add(edgeKey(gx, gy, gz, axis),
+                           (gx + 0.5f + ((axis == 0) ? t : 0)) * voxelSize,
+                           (gy + 0.5f + ((axis == 1) ? t : 0)) * voxelSize,
+                           (gz + 0.5f + ((axis == 2) ? t : 0)) * voxelSize);
+               }
+            }
+      return mesh;
+   }
+
+   /**
+    * @return The distance stored for the voxel containing (x, y, z) or NaN if it has not been observed.
+    */
+   float distance(float x, float y, float z)
+   //---------------------------------------
+   {
+      int vx = voxel(x), vy = voxel(y), vz = voxel(z);
+      Block block = block(blockKey(vx >> 3, vy >> 3, vz >> 3));
+      if (block == null)
+         return Float.NaN;
+      int index = (((vz & 7) * BLOCK_SIZE) + (vy & 7)) * BLOCK_SIZE + (vx & 7);
+      return (block.weight[index] > 0) ? block.sdf[index] : Float.NaN;
+   }
+
+   /**
+    * Sets the distance and weight of voxel (x, y, z) directly (used to test meshing).
+    */
+   void setVoxel(int x, int y, int z, float distance, float weight)
+   //--------------------------------------------------------------
+   {
+      long key = blockKey(x >> 3, y >> 3, z >> 3);
+      Block block = block(key);
+      if (block == null)
+         block = add(key, x >> 3, y >> 3, z >> 3);
+      int index = (((z & 7) * BLOCK_SIZE) + (y & 7)) * BLOCK_SIZE + (x & 7);
+      block.sdf[index] = distance;
+      block.weight[index] = weight;
+   }
+
+   private int voxel(float coordinate) { return (int) Math.floor(coordinate / voxelSize); }
+
+   static long blockKey(int bx, int by, int bz)
+   //------------------------------------------
+   {
+      return ((bx & 0x1FFFFFL) << 42) | ((by & 0x1FFFFFL) << 21) | (bz & 0x1FFFFFL);
+   }
+
+   static private long edgeKey(int x, int y, int z, int axis)
+   //--------------------------------------------------------
+   {
+      return ((x & 0xFFFFFL) << 42) | ((y & 0xFFFFFL) << 22) | ((z & 0xFFFFFL) << 2) | axis;
+   }
+
+   interface BlockProcessor
+   //======================
+   {
+      void process(int index);
+   }
+
+   /**
+    * Calls <i>processor</i> for indices 0 to <i>count</i> - 1, in parallel on <i>pool</i> unless it is null or
+    * there are only a few blocks.
+    */
+   static private void forEach(int count, ForkJoinPool pool, BlockProcessor processor)
+   //---------------------------------------------------------------------------------
+   {
+      if ( (pool == null) || (count <= MIN_BLOCKS_PER_TASK) )
+      {
+         for (int i = 0; i < count; i++)
+            processor.process(i);
+      }
+      else
+         pool.invoke(new BlockTask(processor, 0, count,
+                                   Math.max(MIN_BLOCKS_PER_TASK, count / (pool.getParallelism() * 4))));
+   }
+
+   static private class BlockTask extends RecursiveAction
+   //=====================================================
+   {
+      final BlockProcessor processor;
+      final int start, end, minBlocks;
+
+      BlockTask(BlockProcessor processor, int start, int end, int minBlocks)
+      //--------------------------------------------------------------------
+      {
+         this.processor = processor;
+         this.start = start;
+         this.end = end;
+         this.minBlocks = minBlocks;
+      }
+
+      @Override
+      protected void compute()
+      //----------------------
+      {
+         if (end - start <= minBlocks)
+         {
+            for (int i = start; i < end; i++)
+               processor.process(i);
+         }
+         else
+         {
+            final int middle = (start + end) >>> 1;
+            invokeAll(new BlockTask(processor, start, middle, minBlocks),
+                      new BlockTask(processor, middle, end, minBlocks));
+         }
+      }
+   }
+}
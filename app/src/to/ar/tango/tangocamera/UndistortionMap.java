@@ -0,0 +1,388 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A remap lookup table which undistorts (rectifies) color images using the k1, k2, k3 radial polynomial of the
+ * Tango color camera. For every pixel of the rectified image the table holds the offset of the top left source
+ * pixel and 8 bit fixed point horizontal and vertical bilinear weights (the top left pixel is at most the second
+ * last column and row, and the largest weight stands for 1 so the last column and row are sampled exactly), so
+ * applying it costs four loads and three packed integer interpolations per pixel instead of evaluating the
+ * distortion model. The rectified image has the same intrinsic matrix as the source (pixels whose source falls
+ * outside the image are 0).
+ * <p>Building the table is far more expensive than applying it, so {@link #get} keeps the most recently used table
+ * in memory and persists it to a file (little endian: {@value #HEADER_SIZE} byte header with an 8 byte magic
+ * number, version, dimensions and the calibration it was built for, followed by the offsets and the weights) so
+ * that it is only rebuilt when the calibration or image size change. Pure Java (no android dependencies).</p>
+ */
+public class UndistortionMap
+//==========================
+{
+   static final public String FILE_NAME = "undistortion.tclut", SUFFIX = "-rectified.jpg";
+
+   static final private byte[] MAGIC = { 'T', 'C', 'L', 'U', 'T', '\r', '\n', 0x1A };
+   static final int VERSION = 2;
+   static final int HEADER_SIZE = 128;
+
+   static final private int FRACTION_BITS = 8, ONE = 1 << FRACTION_BITS, FRACTION_MASK = ONE - 1;
+   // Source positions this far outside the image are still sampled at its edge (absorbs rounding error)
+   static final private double EDGE_TOLERANCE = 1.0 / ONE;
+   static final private int MIN_STRIPE_ROWS = 16;
+
+   static private UndistortionMap cached = null;
+
+   final int width, height;
+   // The calibration the table was built for (intrinsics at the calibrated resolution)
+   final int calibrationWidth, calibrationHeight;
+   final double fx, fy, cx, cy, k1, k2, k3;
+
+   private final int[] offsets;   // -1 where the source is outside the image
+   private final char[] weights;  // vertical weight in the high byte, horizontal in the low byte
+
+   private UndistortionMap(CameraCalibration calibration, int width, int height)
+   //---------------------------------------------------------------------------
+   {
+      this(width, height, calibration.width, calibration.height, calibration.fx, calibration.fy, calibration.cx,
+           calibration.cy, calibration.distortion[0], calibration.distortion[1], calibration.distortion[2]);
+   }
+
+   private UndistortionMap(int width, int height, int calibrationWidth, int calibrationHeight, double fx, double fy,
+                           double cx, double cy, double k1, double k2, double k3)
+   //-----------------------------------------------------------------------------------------------------------
+   {
+      this.width = width;
+      this.height = height;
+      this.calibrationWidth = calibrationWidth;
+      this.calibrationHeight = calibrationHeight;
+      this.fx = fx;
+      this.fy = fy;
+      this.cx = cx;
+      this.cy = cy;
+      this.k1 = k1;
+      this.k2 = k2;
+      this.k3 = k3;
+      offsets = new int[width * height];
+      weights = new char[width * height];
+   }
+
+   /**
+    * @return The table for <i>calibration</i> at <i>width</i> x <i>height</i>: the one already in memory if it
+    * matches, else the one persisted in <i>file</i> if that matches, else a newly built table which is then
+    * persisted to <i>file</i>. Problems reading or writing <i>file</i> are described in <i>messages</i> and are
+    * not fatal.
+    * @param pool The pool to build on or null to build on the calling thread.
+    */
+   static synchronized public UndistortionMap get(CameraCalibration calibration, int width, int height, File file,
+                                                  ForkJoinPool pool, StringBuilder messages)
+   //------------------------------------------------------------------------------------------------------------
+   {
+      if ( (cached != null) && (cached.matches(calibration, width, height)) )
+         return cached;
+      UndistortionMap map = null;
+      if ( (file != null) && (file.exists()) )
+      {
+         try
+         {
+            map = read(file, calibration, width, height);
+         }
+         catch (IOException e)
+         {
+            messages.append(e.getMessage()).append(", ");
+         }
+      }
+      if (map == null)
+      {
+         map = build(calibration, width, height, pool);
+         if (file != null)
+         {
+            try
+            {
+               map.write(file);
+            }
+            catch (IOException e)
+            {
+               messages.append(e.getMessage()).append(", ");
+            }
+         }
+      }
+      cached = map;
+      return map;
+   }
+
+   /**
+    * Builds the table for <i>width</i> x <i>height</i> images from <i>calibration</i> (whose intrinsics are scaled
+    * if it is for a different resolution).
+    * @param pool The pool to build on or null to build on the calling thread.
+    */
+   public static UndistortionMap build(CameraCalibration calibration, int width, int height, ForkJoinPool pool)
+   //----------------------------------------------------------------------------------------------------------
+   {
+      if ( (width < 2) || (height < 2) )
+         throw new IllegalArgumentException("UndistortionMap: Invalid size " + width + "x" + height);
+      UndistortionMap map = new UndistortionMap(calibration, width, height);
+      if ( (pool == null) || (height <= MIN_STRIPE_ROWS) )
+         map.build(0, height);
+      else
+         pool.invoke(new Stripe(map, null, null, 0, height,
+                                Math.max(MIN_STRIPE_ROWS, height / (pool.getParallelism() * 4))));
+      return map;
+   }
+
+   /**
+    * @return true if this table was built from the same intrinsics and distortion as <i>calibration</i> for
+    * <i>width</i> x <i>height</i> images.
+    */
+   public boolean matches(CameraCalibration calibration, int width, int height)
+   //--------------------------------------------------------------------------
+   {
+      return (calibration != null) && (this.width == width) && (this.height == height) &&
+             (calibrationWidth == calibration.width) && (calibrationHeight == calibration.height) &&
+             (fx == calibration.fx) && (fy == calibration.fy) && (cx == calibration.cx) && (cy == calibration.cy) &&
+             (k1 == calibration.distortion[0]) && (k2 == calibration.distortion[1]) &&
+             (k3 == calibration.distortion[2]);
+   }
+
+   /**
+    * Writes the rectified version of <i>src</i> to <i>dest</i>. Pixels are interpolated a byte lane at a time so
+    * any 4 x 8 bit packing (ARGB ints or RGBA bytes read as ints) works.
+    * @param src Source pixels, <i>width</i> x <i>height</i> row major.
+    * @param dest Destination, at least <i>width</i> x <i>height</i> (not <i>src</i>).
+    * @param pool The pool to run on or null to remap on the calling thread.
+    */
+   public void remap(int[] src, int[] dest, ForkJoinPool pool)
+   //---------------------------------------------------------
+   {
+      if ( (src.length < width * height) || (dest.length < width * height) )
+         throw new IllegalArgumentException("UndistortionMap: Image too small " + Math.min(src.length, dest.length) +
+                                            " < " + (width * height));
+      if (src == dest)
+         throw new IllegalArgumentException("UndistortionMap: Cannot remap in place");
+      if ( (pool == null) || (height <= MIN_STRIPE_ROWS) )
+         remap(src, dest, 0, height);
+      else
+         pool.invoke(new Stripe(this, src, dest, 0, height,
+                                Math.max(MIN_STRIPE_ROWS, height / (pool.getParallelism() * 4))));
+   }
+
+   /**
+    * Writes the table to <i>file</i>.part through a memory mapping and renames it to <i>file</i> once complete.
+    */
+   public void write(File file) throws IOException
+   //---------------------------------------------
+   {
+      final long size = HEADER_SIZE + (long) width * height * 6;
+      File part = new File(file.getPath() + ".part");
+      try (RandomAccessFile raf = new RandomAccessFile(part, "rw"); FileChannel channel = raf.getChannel())
+      {
+         raf.setLength(size);
+         MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+         out.order(ByteOrder.LITTLE_ENDIAN);
+         out.put(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(calibrationWidth)
+            .putInt(calibrationHeight).putDouble(fx).putDouble(fy).putDouble(cx).putDouble(cy).putDouble(k1)
+            .putDouble(k2).putDouble(k3);
+         out.position(HEADER_SIZE);
+         out.asIntBuffer().put(offsets);
+         out.position(HEADER_SIZE + width * height * 4);
+         out.asCharBuffer().put(weights);
+      }
+      catch (IOException e)
+      {
+         part.delete();
+         throw e;
+      }
+      // rename(2) replaces an existing table atomically, so readers never see it missing
+      if (! part.renameTo(file))
+      {
+         part.delete();
+         throw new IOException("UndistortionMap: Could not rename " + part.getName() + " to " + file.getName());
+      }
+   }
+
+   /**
+    * Reads a table written by {@link #write}.
+    * @return The table or null if it was built for a different calibration or image size.
+    */
+   public static UndistortionMap read(File file, CameraCalibration calibration, int width, int height)
+          throws IOException
+   //--------------------------------------------------------------------------------------------------
+   {
+      final ByteBuffer in;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+      {
+         in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      if (in.capacity() < HEADER_SIZE)
+         throw new IOException("UndistortionMap: " + file.getName() + " is too short");
+      for (byte b : MAGIC)
+         if (in.get() != b)
+            throw new IOException("UndistortionMap: " + file.getName() + " is not an undistortion table");
+      final int version = in.getInt();
+      if (version != VERSION)
+         return null;
+      if ( (in.getInt() != width) || (in.getInt() != height) )
+         return null;
+      UndistortionMap map = new UndistortionMap(width, height, in.getInt(), in.getInt(), in.getDouble(),
+                                                in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(),
+                                                in.getDouble(), in.getDouble());
+      if (! map.matches(calibration, width, height))
+         return null;
+      if (in.capacity() < HEADER_SIZE + (long) width * height * 6)
+         throw new IOException("UndistortionMap: " + file.getName() + " is truncated");
+      in.position(HEADER_SIZE);
+      in.asIntBuffer().get(map.offsets);
+      in.position(HEADER_SIZE + width * height * 4);
+      in.asCharBuffer().get(map.weights);
+      return map;
+   }
+
+   /**
+    * Fills the table for rows <i>startRow</i> (inclusive) to <i>endRow</i> (exclusive).
+    */
+   private void build(int startRow, int endRow)
+   //------------------------------------------
+   {
+      final double sx = (calibrationWidth > 0) ? (double) width / calibrationWidth : 1,
+                   sy = (calibrationHeight > 0) ? (double) height / calibrationHeight : 1;
+      final double fx = this.fx * sx, fy = this.fy * sy, cx = this.cx * sx, cy = this.cy * sy;
+      final double minX = -EDGE_TOLERANCE, minY = -EDGE_TOLERANCE,
+                   maxX = width - 1 + EDGE_TOLERANCE, maxY = height - 1 + EDGE_TOLERANCE;
+      for (int v = startRow; v < endRow; v++)
+      {
+         final double y = (v - cy) / fy;
+         for (int u = 0, i = v * width; u < width; u++, i++)
+         {
+            final double x = (u - cx) / fx;
+            final double r2 = x * x + y * y, d = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+            final double xs = fx * x * d + cx, ys = fy * y * d + cy;
+            // Negated so NaN is rejected too
+            if (! ( (xs >= minX) && (xs <= maxX) && (ys >= minY) && (ys <= maxY) ) )
+            {
+               offsets[i] = -1;
+               weights[i] = 0;
+               continue;
+            }
+            final int xf = Math.max(0, (int) (xs * ONE)), yf = Math.max(0, (int) (ys * ONE));
+            int x0 = xf >> FRACTION_BITS, y0 = yf >> FRACTION_BITS, ax = xf & FRACTION_MASK, ay = yf & FRACTION_MASK;
+            // On the last column or row sample the second last with a weight of 1 (FRACTION_MASK, see remap)
+            if (x0 >= width - 1)
+            {
+               x0 = width - 2;
+               ax = FRACTION_MASK;
+            }
+            if (y0 >= height - 1)
+            {
+               y0 = height - 2;
+               ay = FRACTION_MASK;
+            }
+            offsets[i] = y0 * width + x0;
+            weights[i] = (char) ((ay << 8) | ax);
+         }
+      }
+   }
+
+   private void remap(int[] src, int[] dest, int startRow, int endRow)
+   //-----------------------------------------------------------------
+   {
+      final int width = this.width;
+      for (int i = startRow * width, end = endRow * width; i < end; i++)
+      {
+         final int offset = offsets[i];
+         if (offset < 0)
+         {
+            dest[i] = 0;
+            continue;
+         }
+         final int w = weights[i];
+         int ax = w & FRACTION_MASK, ay = w >>> 8;
+         // The largest stored weight stands for 1 (rounding fractions of at least 255/256 up) so edges are exact
+         ax += (ax + 1) >>> FRACTION_BITS;
+         ay += (ay + 1) >>> FRACTION_BITS;
+         final int top = lerp(src[offset], src[offset + 1], ax),
+                   bottom = lerp(src[offset + width], src[offset + width + 1], ax);
+         dest[i] = lerp(top, bottom, ay);
+      }
+   }
+
+   /**
+    * Interpolates the four byte lanes of <i>a</i> and <i>b</i> two at a time (each product fits in 16 bits).
+    * @param w Weight of <i>b</i> in 1/256ths.
+    */
+   static int lerp(int a, int b, int w)
+   //----------------------------------
+   {
+      final int iw = ONE - w;
+      final int rb = ((((a & 0xFF00FF) * iw) + ((b & 0xFF00FF) * w)) >>> 8) & 0xFF00FF;
+      final int ag = ((((a >>> 8) & 0xFF00FF) * iw) + (((b >>> 8) & 0xFF00FF) * w)) & 0xFF00FF00;
+      return ag | rb;
+   }
+
+   static private class Stripe extends RecursiveAction
+   //=================================================
+   {
+      final UndistortionMap map;
+      final int[] src, dest; // null when building
+      final int startRow, endRow, minRows;
+
+      Stripe(UndistortionMap map, int[] src, int[] dest, int startRow, int endRow, int minRows)
+      //---------------------------------------------------------------------------------------
+      {
+         this.map = map;
+         this.src = src;
+         this.dest = dest;
+         this.startRow = startRow;
+         this.endRow = endRow;
+         this.minRows = minRows;
+      }
+
+      @Override
+      protected void compute()
+      //----------------------
+      {
+         final int rows = endRow - startRow;
+         if (rows <= minRows)
+         {
+            if (src == null)
+               map.build(startRow, endRow);
+            else
+               map.remap(src, dest, startRow, endRow);
+         }
+         else
+         {
+            final int middle = startRow + rows / 2;
+            invokeAll(new Stripe(map, src, dest, startRow, middle, minRows),
+                      new Stripe(map, src, dest, middle, endRow, minRows));
+         }
+      }
+   }
+}
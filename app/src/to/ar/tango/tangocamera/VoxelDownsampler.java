@@ -0,0 +1,118 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Voxel grid downsampling of XYZC point clouds: every occupied cubic voxel with edge <i>leafSize</i> is replaced by
+ * the confidence weighted mean of its points, with the mean confidence of the points as its confidence. Voxels are
+ * found with a {@link LongIntMap} keyed by the packed voxel coordinates. The map and accumulators are kept between
+ * calls, so an instance (which is not thread safe) should be reused for successive clouds.
+ */
+public class VoxelDownsampler
+//===========================
+{
+   // Points with no confidence still contribute a little so a voxel can never have a zero total weight
+   static final private float MIN_WEIGHT = 1e-6f;
+
+   private LongIntMap voxels = new LongIntMap(1024);
+   private double[] sums = new double[1024 * 4]; // weighted x, y, z and total weight per voxel
+   private float[] confidences = new float[1024];
+   private int[] counts = new int[1024];
+   private FloatBuffer output = null;
+
+   /**
+    * Downsamples the first <i>points</i> points of <i>cloud</i>.
+    * @return A point cloud with one point per occupied voxel (in the order the voxels were first seen) in a direct
+    * native order buffer owned by this instance which is overwritten by the next call, or <i>cloud</i> if
+    * <i>leafSize</i> is not positive.
+    */
+   public CaptureFrame.PointCloud downsample(CaptureFrame.PointCloud cloud, float leafSize)
+   //-------------------------------------------------------------------------------------
+   {
+      if (! (leafSize > 0))
+         return cloud;
+      final FloatBuffer points = cloud.points;
+      final int n = Math.min(cloud.count, points.limit() / 4);
+      final float scale = 1 / leafSize;
+      voxels.clear();
+      int occupied = 0;
+      for (int i = 0; i < n; i++)
+      {
+         final float x = points.get(i * 4), y = points.get(i * 4 + 1), z = points.get(i * 4 + 2),
+                     c = points.get(i * 4 + 3);
+         final long key = key((int) Math.floor(x * scale), (int) Math.floor(y * scale), (int) Math.floor(z * scale));
+         int voxel = voxels.putIfAbsent(key, occupied);
+         if (voxel == LongIntMap.MISSING)
+         {
+            voxel = occupied++;
+            if (voxel == counts.length)
+               grow();
+            sums[voxel * 4] = sums[voxel * 4 + 1] = sums[voxel * 4 + 2] = sums[voxel * 4 + 3] = 0;
+            confidences[voxel] = 0;
+            counts[voxel] = 0;
+         }
+         final float w = Math.max(c, MIN_WEIGHT);
+         final int s = voxel * 4;
+         sums[s] += w * x;
+         sums[s + 1] += w * y;
+         sums[s + 2] += w * z;
+         sums[s + 3] += w;
+         confidences[voxel] += c;
+         counts[voxel]++;
+      }
+
+      if ( (output == null) || (output.capacity() < occupied * 4) )
+         output = ByteBuffer.allocateDirect(Math.max(occupied, 1024) * 16).order(ByteOrder.nativeOrder()).
+                             asFloatBuffer();
+      output.clear();
+      for (int voxel = 0; voxel < occupied; voxel++)
+      {
+         final int s = voxel * 4;
+         final double weight = sums[s + 3];
+         output.put((float) (sums[s] / weight)).put((float) (sums[s + 1] / weight)).
+                put((float) (sums[s + 2] / weight)).put(confidences[voxel] / counts[voxel]);
+      }
+      output.flip();
+      return new CaptureFrame.PointCloud(output, -1, occupied, cloud.timestamp);
+   }
+
+   private void grow()
+   //-----------------
+   {
+      int capacity = counts.length * 2;
+      sums = Arrays.copyOf(sums, capacity * 4);
+      confidences = Arrays.copyOf(confidences, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+   }
+
+   static long key(int x, int y, int z)
+   //----------------------------------
+   {
+      return ((x & 0x1FFFFFL) << 42) | ((y & 0x1FFFFFL) << 21) | (z & 0x1FFFFFL);
+   }
+}
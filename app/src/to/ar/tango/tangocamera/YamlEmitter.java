@@ -0,0 +1,203 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds the YAML capture metadata as ASCII bytes in a growable buffer which is reused between captures. Numbers
+ * are written by {@link FloatFormatter} (the same text as printf("%.9f") except that a double whose shortest
+ * representation ties at the 9th decimal may round down) so emitting a document allocates nothing once the buffer
+ * has grown to size. The encoded bytes are written to the .yaml file as is and are also
+ * the source of the EXIF UserComment. Pure Java (no android dependencies), not thread safe.
+ */
+final class YamlEmitter
+//=====================
+{
+   static final int DECIMALS = 9;
+
+   private byte[] buffer;
+   private int length = 0;
+
+   YamlEmitter(int capacity) { buffer = new byte[Math.max(capacity, FloatFormatter.MAX_DOUBLE_LENGTH)]; }
+
+   void reset() { length = 0; }
+
+   int length() { return length; }
+
+   /**
+    * @return The backing array, valid from 0 to {@link #length()} until the next call that appends.
+    */
+   byte[] buffer() { return buffer; }
+
+   byte[] toByteArray() { return Arrays.copyOf(buffer, length); }
+
+   void writeTo(OutputStream os) throws IOException { os.write(buffer, 0, length); }
+
+   @Override public String toString() { return new String(buffer, 0, length, StandardCharsets.US_ASCII); }
+
+   /**
+    * Appends "# <i>text</i>" and a newline.
+    */
+   YamlEmitter comment(String text)
+   //------------------------------
+   {
+      ensure(text.length() + 3);
+      buffer[length++] = '#';
+      buffer[length++] = ' ';
+      return text(text).newline();
+   }
+
+   /**
+    * Appends "<i>prefix</i><i>name</i>: " (the prefix distinguishes the depth camera keys from the color ones).
+    */
+   YamlEmitter key(String prefix, String name)
+   //-----------------------------------------
+   {
+      text(prefix).text(name);
+      ensure(2);
+      buffer[length++] = ':';
+      buffer[length++] = ' ';
+      return this;
+   }
+
+   YamlEmitter key(String name) { return key("", name); }
+
+   YamlEmitter number(double v)
+   //--------------------------
+   {
+      ensure(FloatFormatter.MAX_DOUBLE_LENGTH);
+      length = FloatFormatter.format(v, DECIMALS, buffer, length);
+      return this;
+   }
+
+   YamlEmitter integer(long v)
+   //-------------------------
+   {
+      ensure(20);
+      length = FloatFormatter.formatLong(v, buffer, length);
+      return this;
+   }
+
+   /**
+    * Appends "[x, y, z]".
+    */
+   YamlEmitter vector(double x, double y, double z)
+   //----------------------------------------------
+   {
+      open().number(x).separator().number(y).separator().number(z);
+      return close();
+   }
+
+   /**
+    * Appends "[w, x, y, z]".
+    */
+   YamlEmitter vector(double w, double x, double y, double z)
+   //--------------------------------------------------------
+   {
+      open().number(w).separator().number(x).separator().number(y).separator().number(z);
+      return close();
+   }
+
+   YamlEmitter vector(double[] v)
+   //----------------------------
+   {
+      open();
+      for (int i = 0; i < v.length; i++)
+      {
+         if (i > 0)
+            separator();
+         number(v[i]);
+      }
+      return close();
+   }
+
+   YamlEmitter newline()
+   //-------------------
+   {
+      ensure(1);
+      buffer[length++] = '\n';
+      return this;
+   }
+
+   /**
+    * Appends <i>text</i>, which must be ASCII, without the String.getBytes copy.
+    */
+   YamlEmitter text(String text)
+   //---------------------------
+   {
+      final int n = text.length();
+      ensure(n);
+      for (int i = 0; i < n; i++)
+         buffer[length++] = (byte) text.charAt(i);
+      return this;
+   }
+
+   /**
+    * Appends pre-encoded bytes (eg a cached section).
+    */
+   YamlEmitter bytes(byte[] bytes)
+   //-----------------------------
+   {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buffer, length, bytes.length);
+      length += bytes.length;
+      return this;
+   }
+
+   private YamlEmitter open()
+   //------------------------
+   {
+      ensure(1);
+      buffer[length++] = '[';
+      return this;
+   }
+
+   private YamlEmitter separator()
+   //-----------------------------
+   {
+      ensure(2);
+      buffer[length++] = ',';
+      buffer[length++] = ' ';
+      return this;
+   }
+
+   private YamlEmitter close()
+   //-------------------------
+   {
+      ensure(1);
+      buffer[length++] = ']';
+      return this;
+   }
+
+   private void ensure(int extra)
+   //----------------------------
+   {
+      if (length + extra > buffer.length)
+         buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+   }
+}
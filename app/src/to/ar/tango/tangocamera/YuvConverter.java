@@ -0,0 +1,202 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts the YUV 4:2:0 frames emitted by on_image (NV21 0x11 and YV12 reported as 0x23) to packed ARGB_8888
+ * ints using full range BT.601 (JFIF) coefficients in 16.16 fixed point. Frames are split into row stripes which
+ * are converted in parallel on a fork-join pool. Pure Java (no android dependencies) so it can be tested and
+ * benchmarked on a desktop JVM.
+ */
+public class YuvConverter
+//=======================
+{
+   static final public int NV21 = 0x11, YV12 = 0x23;
+
+   // Stripes smaller than this (in rows) are not split further
+   static final private int MIN_STRIPE_ROWS = 32;
+
+   static private ForkJoinPool pool = null;
+
+   /**
+    * @return A shared fork-join pool with a thread per core (ForkJoinPool.commonPool requires API 24).
+    */
+   static synchronized public ForkJoinPool pool()
+   //--------------------------------------------
+   {
+      if (pool == null)
+         pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+      return pool;
+   }
+
+   /**
+    * Converts using the shared pool (see {@link #toARGB(byte[], int, int, int, int, int[], ForkJoinPool)}).
+    */
+   public static void toARGB(ByteBuffer yuv, int format, int width, int height, int stride, int[] argb)
+   //--------------------------------------------------------------------------------------------------
+   {
+      final byte[] data;
+      if ( (yuv.hasArray()) && (yuv.arrayOffset() == 0) )
+         data = yuv.array();
+      else
+      {
+         data = new byte[yuv.limit()];
+         ByteBuffer duplicate = yuv.duplicate();
+         duplicate.rewind();
+         duplicate.get(data);
+      }
+      toARGB(data, format, width, height, stride, argb, pool());
+   }
+
+   /**
+    * Converts a YUV 4:2:0 frame to ARGB.
+    * @param yuv NV21 (Y plane followed by interleaved V,U rows with stride <i>stride</i>) or YV12 (Y plane
+    *            followed by the V and U planes with stride <i>stride</i>/2).
+    * @param stride Luma row stride in bytes (the width is used if it is smaller).
+    * @param argb Destination, at least width * height ints, rows are <i>width</i> pixels apart.
+    * @param pool The pool to run on or null to convert on the calling thread.
+    */
+   public static void toARGB(byte[] yuv, int format, int width, int height, int stride, int[] argb,
+                             ForkJoinPool pool)
+   //-----------------------------------------------------------------------------------------------
+   {
+      if ( (format != NV21) && (format != YV12) )
+         throw new IllegalArgumentException("YuvConverter: Unsupported format " + format);
+      stride = Math.max(width, stride);
+      if (argb.length < width * height)
+         throw new IllegalArgumentException("YuvConverter: Destination too small " + argb.length + " < " +
+                                            (width * height));
+      final int chromaRowBytes = (format == NV21) ? stride : 2 * (stride / 2);
+      if (yuv.length < stride * height + chromaRowBytes * ((height + 1) / 2))
+         throw new IllegalArgumentException("YuvConverter: Source too small " + yuv.length);
+      if ( (pool == null) || (height <= MIN_STRIPE_ROWS) )
+         convert(yuv, format, width, height, stride, argb, 0, height);
+      else
+         pool.invoke(new Stripe(yuv, format, width, height, stride, argb, 0, height,
+                                Math.max(MIN_STRIPE_ROWS, height / (pool.getParallelism() * 4))));
+   }
+
+   /**
+    * Converts rows <i>startRow</i> (inclusive) to <i>endRow</i> (exclusive). <i>startRow</i> must be even so a
+    * stripe never starts half way through a chroma row.
+    */
+   static void convert(byte[] yuv, int format, int width, int height, int stride, int[] argb,
+                       int startRow, int endRow)
+   //----------------------------------------------------------------------------------------
+   {
+      final int ySize = stride * height, chromaStride, vOffset, uOffset, chromaStep;
+      if (format == NV21)
+      {
+         chromaStride = stride;
+         vOffset = ySize;
+         uOffset = ySize + 1;
+         chromaStep = 2;
+      }
+      else
+      {
+         chromaStride = stride / 2;
+         vOffset = ySize;
+         uOffset = ySize + chromaStride * ((height + 1) / 2);
+         chromaStep = 1;
+      }
+      for (int row = startRow; row < endRow; row++)
+      {
+         int yi = row * stride, out = row * width;
+         final int chromaRow = (row >> 1) * chromaStride;
+         int vi = vOffset + chromaRow, ui = uOffset + chromaRow;
+         for (int col = 0; col < width; col += 2)
+         {
+            final int v = (yuv[vi] & 0xFF) - 128, u = (yuv[ui] & 0xFF) - 128;
+            vi += chromaStep;
+            ui += chromaStep;
+            final int rd = 91881 * v, gd = -22554 * u - 46802 * v, bd = 116130 * u;
+            int y = (yuv[yi++] & 0xFF) << 16;
+            argb[out++] = pixel(y + rd, y + gd, y + bd);
+            if (col + 1 < width)
+            {
+               y = (yuv[yi++] & 0xFF) << 16;
+               argb[out++] = pixel(y + rd, y + gd, y + bd);
+            }
+         }
+      }
+   }
+
+   /**
+    * @return An opaque ARGB pixel from 16.16 fixed point r, g, b clamped to 0 - 255.
+    */
+   private static int pixel(int r, int g, int b)
+   //-------------------------------------------
+   {
+      r = (r + 0x8000) >> 16;
+      g = (g + 0x8000) >> 16;
+      b = (b + 0x8000) >> 16;
+      // Branch free clamp to 0 - 255
+      r &= ~(r >> 31); r = (r | ((255 - r) >> 31)) & 0xFF;
+      g &= ~(g >> 31); g = (g | ((255 - g) >> 31)) & 0xFF;
+      b &= ~(b >> 31); b = (b | ((255 - b) >> 31)) & 0xFF;
+      return 0xFF000000 | (r << 16) | (g << 8) | b;
+   }
+
+   static private class Stripe extends RecursiveAction
+   //=================================================
+   {
+      final byte[] yuv;
+      final int[] argb;
+      final int format, width, height, stride, startRow, endRow, minRows;
+
+      Stripe(byte[] yuv, int format, int width, int height, int stride, int[] argb, int startRow, int endRow,
+             int minRows)
+      //----------------------------------------------------------------------------------------------------
+      {
+         this.yuv = yuv;
+         this.format = format;
+         this.width = width;
+         this.height = height;
+         this.stride = stride;
+         this.argb = argb;
+         this.startRow = startRow;
+         this.endRow = endRow;
+         this.minRows = minRows;
+      }
+
+      @Override
+      protected void compute()
+      //----------------------
+      {
+         final int rows = endRow - startRow;
+         if (rows <= minRows)
+            convert(yuv, format, width, height, stride, argb, startRow, endRow);
+         else
+         {
+            final int middle = startRow + ((rows / 2) & ~1);
+            invokeAll(new Stripe(yuv, format, width, height, stride, argb, startRow, middle, minRows),
+                      new Stripe(yuv, format, width, height, stride, argb, middle, endRow, minRows));
+         }
+      }
+   }
+}
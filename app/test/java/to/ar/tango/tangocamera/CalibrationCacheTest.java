@@ -0,0 +1,98 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CalibrationCacheTest
+{
+   private static CalibrationCache cache(final AtomicInteger queries, final double fx)
+   {
+      return new CalibrationCache(new CalibrationCache.Query()
+      {
+         @Override public CameraCalibration query(int cameraId)
+         {
+            queries.incrementAndGet();
+            if (cameraId == ITango.TangoCameraId.TANGO_CAMERA_FISHEYE.ordinal())
+               return null;
+            return new CameraCalibration(cameraId, 640, 480, fx, fx + 1, 320, 240, 1, 1, new double[5],
+                                         new double[] { 1, 0, 0, 0 }, new double[] { cameraId, 0, 0 });
+         }
+      });
+   }
+
+   @Test
+   public void queriesOncePerConnection() throws Exception
+   {
+      AtomicInteger queries = new AtomicInteger();
+      CalibrationCache cache = cache(queries, 500);
+      assertFalse(cache.isValid());
+      CameraCalibration color = cache.get(ITango.TangoCameraId.TANGO_CAMERA_COLOR);
+      assertEquals(CalibrationCache.CAMERAS, queries.get());
+      for (int i = 0; i < 10; i++)
+      {
+         assertSame(color, cache.get(ITango.TangoCameraId.TANGO_CAMERA_COLOR));
+         assertEquals(3, cache.get(ITango.TangoCameraId.TANGO_CAMERA_DEPTH.ordinal()).cameraId);
+      }
+      assertNull(cache.get(ITango.TangoCameraId.TANGO_CAMERA_FISHEYE));
+      assertNull(cache.get(ITango.TangoCameraId.TANGO_MAX_CAMERA_ID));
+      assertEquals(CalibrationCache.CAMERAS, queries.get());
+
+      cache.invalidate();
+      assertFalse(cache.isValid());
+      assertNotSame(color, cache.get(ITango.TangoCameraId.TANGO_CAMERA_COLOR));
+      assertEquals(2 * CalibrationCache.CAMERAS, queries.get());
+   }
+
+   @Test
+   public void detailsByOrdinal() throws Exception
+   {
+      CalibrationCache cache = cache(new AtomicInteger(), 500);
+      int depth = ITango.TangoCameraId.TANGO_CAMERA_DEPTH.ordinal();
+      ITango.CalibrationDetail detail = cache.detail(depth);
+      assertNotNull(detail);
+      assertEquals(depth, detail.cameraId());
+      assertArrayEquals(new double[] { depth, 0, 0 }, detail.imuTranslation(), 0);
+      detail.imuTranslation()[0] = 99;
+      assertEquals(depth, detail.imuTranslation()[0], 0);
+      assertNull(cache.detail(ITango.TangoCameraId.TANGO_CAMERA_FISHEYE.ordinal()));
+      assertNull(cache.detail(-1));
+   }
+
+   @Test
+   public void inverseK() throws Exception
+   {
+      CameraCalibration calibration = cache(new AtomicInteger(), 500).get(0);
+      double[] Kinv = calibration.inverseK;
+      double u = 100, v = 400;
+      double x = Kinv[0] * u + Kinv[1] * v + Kinv[2], y = Kinv[3] * u + Kinv[4] * v + Kinv[5];
+      assertEquals(u, calibration.fx * x + calibration.cx, 1e-9);
+      assertEquals(v, calibration.fy * y + calibration.cy, 1e-9);
+      double[][] K = new ITango.CalibrationDetail(calibration).K(),
+                 inv = new ITango.CalibrationDetail(calibration).inverseK();
+      for (int r = 0; r < 3; r++)
+         for (int c = 0; c < 3; c++)
+         {
+            double sum = 0;
+            for (int i = 0; i < 3; i++)
+               sum += K[r][i] * inv[i][c];
+            assertEquals((r == c) ? 1 : 0, sum, 1e-12);
+         }
+   }
+
+   @Test
+   public void yamlCachedPerRotation() throws Exception
+   {
+      CameraCalibration calibration = cache(new AtomicInteger(), 500).get(0);
+      assertNull(calibration.yaml(1));
+      byte[] section = "fx: 500\n".getBytes(StandardCharsets.US_ASCII);
+      calibration.cacheYaml(1, section);
+      assertSame(section, calibration.yaml(1));
+      calibration.cacheYaml(1, section.clone());
+      assertSame(section, calibration.yaml(1));
+      assertNull(calibration.yaml(0));
+   }
+}
@@ -0,0 +1,175 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureIndexTest
+{
+   private static CaptureIndex.Record record(String name, long time, double x)
+   {
+      long[] sizes = new long[CaptureIndex.SUFFIXES.length];
+      sizes[CaptureIndex.FILE_IMAGE] = 1000 + time;
+      return new CaptureIndex.Record(name, time, time / 1000.0, new CaptureFrame.Pose(1, 0, 0, 0, x, 0, 0), 0,
+                                     (int) time, new double[] { 0, 9.8, 0 }, null, sizes);
+   }
+
+   private static File directory() throws IOException
+   {
+      File dir = Files.createTempDirectory("index").toFile();
+      dir.deleteOnExit();
+      return dir;
+   }
+
+   private static void delete(File dir)
+   {
+      File[] files = dir.listFiles();
+      if (files != null)
+         for (File f : files)
+            f.delete();
+      dir.delete();
+   }
+
+   @Test
+   public void appendReopenAndGrow() throws Exception
+   {
+      File dir = directory();
+      try
+      {
+         File file = new File(dir, CaptureIndex.FILE_NAME);
+         CaptureIndex index = new CaptureIndex(file);
+         for (int i = 0; i < 1500; i++)
+            index.append(record("capture-" + i, i, i * 0.1));
+         index.close();
+
+         index = new CaptureIndex(file);
+         assertEquals(1500, index.count());
+         CaptureIndex.Record r = index.get(1234);
+         assertEquals("capture-1234", r.name);
+         assertEquals(1234, r.captureTime);
+         assertEquals(1.234, r.imageTimestamp, 0);
+         assertEquals(123.4, r.pose.translationX, 1e-9);
+         assertEquals(1234, r.pointCount);
+         assertArrayEquals(new double[] { 0, 9.8, 0 }, r.gravity, 0);
+         assertNull(r.acceleration);
+         assertEquals(CaptureIndex.FLAG_GRAVITY, r.flags);
+         assertEquals(2234, r.sizes[CaptureIndex.FILE_IMAGE]);
+         assertEquals(1, r.files(dir).size());
+         assertEquals(new File(dir, "capture-1234.jpg"), r.files(dir).get(0));
+         index.close();
+      }
+      finally
+      {
+         delete(dir);
+      }
+   }
+
+   @Test
+   public void queries_useLatestRecord() throws Exception
+   {
+      File dir = directory();
+      try
+      {
+         CaptureIndex index = new CaptureIndex(new File(dir, CaptureIndex.FILE_NAME));
+         assertNull(index.nearest(0, 0, 0));
+         for (int i = 0; i < 10; i++)
+            index.append(record("capture-" + i, i * 100, i));
+         // Capture 3 transcoded: a later record with the same name and different contents
+         index.append(record("capture-3", 300, 20));
+
+         List<CaptureIndex.Record> range = index.range(200, 500);
+         assertEquals(4, range.size());
+         for (int i = 0; i < 4; i++)
+            assertEquals("capture-" + (i + 2), range.get(i).name);
+         assertEquals(20, range.get(1).pose.translationX, 0);
+
+         assertEquals("capture-4", index.nearest(3.2, 0, 0).name);
+         assertEquals("capture-3", index.nearest(19, 0, 0).name);
+
+         // A 180 degree rotation about z makes capture 7 nearer when rotation is weighted
+         index.append(new CaptureIndex.Record("rotated", 1000, 1, new CaptureFrame.Pose(0, 0, 0, 1, 7.1, 0, 0), 0,
+                                              0, null, null, new long[CaptureIndex.SUFFIXES.length]));
+         assertEquals("rotated", index.nearest(7.1, 0, 0, 0, 0, 0, 1, 0).name);
+         assertEquals("capture-7", index.nearest(7.1, 0, 0, 1, 0, 0, 0, 1).name);
+         assertEquals("rotated", index.nearest(7.1, 0, 0, 0, 0, 0, -1, 1).name);
+         index.close();
+      }
+      finally
+      {
+         delete(dir);
+      }
+   }
+
+   @Test
+   public void rebuild() throws Exception
+   {
+      File dir = directory();
+      try
+      {
+         CaptureFrame frame = RawCaptureTest.frame(10);
+         String rawName = PostProcessThread.captureName(frame);
+         RawCapture.write(new File(dir, rawName + RawCapture.EXTENSION), frame);
+
+         String name = "20191122143000.250-1234.500000000";
+         try (PrintWriter pw = new PrintWriter(new FileOutputStream(new File(dir, name + ".yaml"))))
+         {
+            pw.print("# camera intrinsics\nfx: 1000.000000000\ndeviceRotation: 90\n" +
+                     "rawRotation: [0.500000000, 0.500000000, 0.500000000, 0.500000000]\n" +
+                     "rawTranslation: [1.000000000, -2.000000000, 3.500000000]\n" +
+                     "rawAcceleration: [0.100000000, 9.700000000, 0.200000000]\n");
+         }
+         try (PrintWriter pw = new PrintWriter(new FileOutputStream(new File(dir, name + ".ply"))))
+         {
+            pw.print("ply\nformat ascii 1.0\nelement vertex 42\nproperty float x\nend_header\n");
+         }
+         new FileOutputStream(new File(dir, name + ".jpg")).close();
+         new FileOutputStream(new File(dir, "unrelated.yaml")).close();
+
+         CaptureIndex stale = CaptureIndex.open(dir);
+         StringBuilder messages = new StringBuilder();
+         assertEquals(2, CaptureIndex.rebuild(dir, messages));
+         assertTrue(messages.toString().contains("unrelated.yaml"));
+         CaptureIndex index = CaptureIndex.open(dir);
+         // The index open before the rebuild was closed rather than left writing to the replaced file
+         assertNotSame(stale, index);
+         try
+         {
+            stale.append(index.get(0));
+            fail("Appended to a replaced index");
+         }
+         catch (IOException e)
+         {
+         }
+         assertEquals(2, index.count());
+         CaptureIndex.Record raw = index.get(0), processed = index.get(1);
+         assertEquals(rawName, raw.name);
+         assertEquals(CaptureIndex.FLAG_RAW | CaptureIndex.FLAG_GRAVITY, raw.flags);
+         assertEquals(10, raw.pointCount);
+         assertEquals(frame.image.pose.translationZ, raw.pose.translationZ, 0);
+         assertEquals(new File(dir, rawName + RawCapture.EXTENSION).length(), raw.sizes[CaptureIndex.FILE_RAW]);
+
+         assertEquals(name, processed.name);
+         assertEquals(1234.5, processed.imageTimestamp, 0);
+         assertEquals(1, processed.deviceRotation);
+         assertEquals(42, processed.pointCount);
+         assertEquals(-2, processed.pose.translationY, 0);
+         assertNull(processed.gravity);
+         assertArrayEquals(new double[] { 0.1, 9.7, 0.2 }, processed.acceleration, 0);
+         assertTrue(processed.sizes[CaptureIndex.FILE_YAML] > 0);
+         assertTrue(processed.sizes[CaptureIndex.FILE_PLY] > 0);
+         assertEquals(0, processed.sizes[CaptureIndex.FILE_IMAGE]); // empty
+         index.close();
+      }
+      finally
+      {
+         delete(dir);
+      }
+   }
+}
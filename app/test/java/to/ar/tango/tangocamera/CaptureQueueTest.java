@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureQueueTest
+{
+   @Test
+   public void boundedWithBackPressure() throws Exception
+   {
+      final CountDownLatch release = new CountDownLatch(1), idle = new CountDownLatch(1);
+      final AtomicInteger processed = new AtomicInteger(0), discarded = new AtomicInteger(0);
+      CaptureQueue<String> queue = new CaptureQueue<>(2, 1, new CaptureQueue.Processor<String>()
+      {
+         @Override public void process(String record)
+         {
+            try { release.await(5, TimeUnit.SECONDS); } catch (InterruptedException e) { }
+            processed.incrementAndGet();
+         }
+
+         @Override public void discard(String record) { discarded.incrementAndGet(); }
+
+         @Override public void onIdle() { idle.countDown(); }
+      });
+      String record = "capture";
+      assertTrue(queue.isIdle());
+      assertTrue(queue.offer(record, 0));
+      // Wait for the (blocked) worker to take the first record
+      long end = System.currentTimeMillis() + 5000;
+      while ( (queue.remainingCapacity() < 2) && (System.currentTimeMillis() < end) )
+         Thread.sleep(5);
+      assertTrue(queue.offer(record, 0));
+      assertTrue(queue.offer(record, 0));
+      assertEquals(0, queue.remainingCapacity());
+      assertFalse(queue.offer(record, 10));
+      assertFalse(queue.offer(record));
+      assertFalse(queue.isIdle());
+      release.countDown();
+      assertTrue(idle.await(5, TimeUnit.SECONDS));
+      assertEquals(3, processed.get());
+      assertTrue(queue.isIdle());
+      queue.shutdown();
+      assertTrue(queue.isShutdown());
+      assertFalse(queue.offer(record, 0));
+      assertFalse(queue.offer(record));
+      assertEquals(0, discarded.get());
+   }
+}
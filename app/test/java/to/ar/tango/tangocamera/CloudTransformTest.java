@@ -0,0 +1,130 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CloudTransformTest
+{
+   @Test
+   public void multiply() throws Exception
+   {
+      double h = Math.sqrt(0.5);
+      double[] rotate = CloudTransform.rigidTransform(h, 0, 0, h, 0, 0, 0); // 90 degrees about z
+      double[] translate = CloudTransform.rigidTransform(1, 0, 0, 0, 1, 2, 3);
+      double[] m = CloudTransform.multiply(translate, rotate);
+      // (1, 0, 0) -> (0, 1, 0) -> (1, 3, 3)
+      assertEquals(1, m[0] + m[3], 1e-12);
+      assertEquals(3, m[4] + m[7], 1e-12);
+      assertEquals(3, m[8] + m[11], 1e-12);
+      m = CloudTransform.multiply(rotate, translate);
+      // (0, 0, 0) -> (1, 2, 3) -> (-2, 1, 3)
+      assertEquals(-2, m[3], 1e-12);
+      assertEquals(1, m[7], 1e-12);
+      assertEquals(3, m[11], 1e-12);
+      assertEquals(1, m[15], 0);
+   }
+
+   @Test
+   public void transformCloud() throws Exception
+   {
+      double[] m = CloudTransform.rigidTransform(0.9, 0.1, -0.3, 0.2, 0.5, -1.25, 2);
+      int n = 1000;
+      FloatBuffer src = ByteBuffer.allocateDirect(n * 16).order(ByteOrder.nativeOrder()).asFloatBuffer();
+      for (int i = 0; i < n * 4; i++)
+         src.put(i, (i % 4 == 3) ? i / 4000f : (i % 7) * 0.3f - 1);
+      FloatBuffer dest = FloatBuffer.allocate(n * 4);
+      CloudTransform.transform(src, dest, n, m);
+      for (int i = 0; i < n * 4; i += 4)
+      {
+         double x = src.get(i), y = src.get(i + 1), z = src.get(i + 2);
+         for (int row = 0; row < 3; row++)
+            assertEquals((float) (m[row * 4] * x + m[row * 4 + 1] * y + m[row * 4 + 2] * z + m[row * 4 + 3]),
+                         dest.get(i + row), 0);
+         assertEquals(src.get(i + 3), dest.get(i + 3), 0);
+      }
+      CloudTransform.transform(src, src, n, m); // in place
+      for (int i = 0; i < n * 4; i++)
+         assertEquals(dest.get(i), src.get(i), 0);
+   }
+
+   @Test
+   public void depthToWorld() throws Exception
+   {
+      CaptureFrame frame = RawCaptureTest.frame(1);
+      CaptureFrame.Pose pose = frame.image.pose;
+      double[] device = CloudTransform.rigidTransform(pose.rotationW, pose.rotationX, pose.rotationY,
+                                                      pose.rotationZ, pose.translationX, pose.translationY,
+                                                      pose.translationZ);
+      // The test frame's depth calibration has no IMU pose so only the device pose applies
+      assertFalse(frame.depthCalibration.hasImuPose());
+      assertArrayEquals(device, CloudTransform.depthToWorld(frame), 0);
+
+      CameraCalibration withImu = frame.colorCalibration; // rotation [1, 0, 0, 0], translation [0.01, 0.02, 0.03]
+      CaptureFrame imuFrame = new CaptureFrame(frame.image, frame.pointCloud, 0, 0, null, withImu);
+      double[] m = CloudTransform.depthToWorld(imuFrame);
+      double[] expected = CloudTransform.multiply(device, CloudTransform.rigidTransform(1, 0, 0, 0, 0.01, 0.02, 0.03));
+      assertArrayEquals(expected, m, 1e-15);
+   }
+
+   @Test
+   public void depthToWorld_imuToDevice() throws Exception
+   {
+      CaptureFrame frame = RawCaptureTest.frame(1);
+      CaptureFrame.Pose pose = frame.image.pose;
+      double[] device = CloudTransform.rigidTransform(pose.rotationW, pose.rotationX, pose.rotationY,
+                                                      pose.rotationZ, pose.translationX, pose.translationY,
+                                                      pose.translationZ);
+      // imu_T_device rotates 90 degrees about z and translates 0.1 along x, imu_T_depth translates 0.2 along y
+      double h = Math.sqrt(0.5);
+      CameraCalibration depth = new CameraCalibration(3, 224, 172, 200, 201, 112, 86, 0.9, 0.8, new double[5],
+                                                      new double[] { 1, 0, 0, 0 }, new double[] { 0, 0.2, 0 },
+                                                      new double[] { h, 0, 0, h }, new double[] { 0.1, 0, 0 });
+      CaptureFrame imuFrame = new CaptureFrame(frame.image, frame.pointCloud, 0, 0, null, depth);
+      // Depth point (1, 0, 0) is (1, 0.2, 0) in the IMU frame, (0.9, 0.2, 0) relative to the device origin in
+      // IMU axes and so (0.2, -0.9, 0) in device axes.
+      FloatBuffer point = FloatBuffer.wrap(new float[] { 1, 0, 0, 1 }),
+                  expected = FloatBuffer.wrap(new float[] { 0.2f, -0.9f, 0, 1 });
+      CloudTransform.transform(point, point, 1, CloudTransform.depthToWorld(imuFrame));
+      CloudTransform.transform(expected, expected, 1, device);
+      for (int i = 0; i < 4; i++)
+         assertEquals(expected.get(i), point.get(i), 1e-5);
+   }
+
+   @Test
+   public void columnMajorRotation() throws Exception
+   {
+      // Column major matrix mapping x -> y, y -> -x (as android.opengl.Matrix.multiplyMV would apply it)
+      float[] columnMajor = { 0, 1, 0, 0, -1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+      double[] v = { 1, 2, 3 };
+      CloudTransform.rotate(CloudTransform.fromColumnMajor(columnMajor), v);
+      assertArrayEquals(new double[] { -2, 1, 3 }, v, 0);
+   }
+
+   @Test
+   public void rotateQuaternion() throws Exception
+   {
+      Random random = new Random(17);
+      double[] q = new double[4];
+      for (int i = 0; i < 1000; i++)
+      {
+         double[] m = CloudTransform.rigidTransform(random.nextGaussian(), random.nextGaussian(),
+                                                    random.nextGaussian(), random.nextGaussian(), 0, 0, 0);
+         double w = random.nextGaussian(), x = random.nextGaussian(), y = random.nextGaussian(),
+                z = random.nextGaussian();
+         CloudTransform.rotateQuaternion(m, w, x, y, z, q);
+         assertEquals(1, q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3], 1e-9);
+         double[] expected = CloudTransform.multiply(m, CloudTransform.rigidTransform(w, x, y, z, 0, 0, 0));
+         assertArrayEquals(expected, CloudTransform.rigidTransform(q[0], q[1], q[2], q[3], 0, 0, 0), 1e-9);
+      }
+      // A 90 degree device rotation about z applied to the identity
+      double h = Math.sqrt(0.5);
+      double[] m = { 0, -1, 0, 0,  1, 0, 0, 0,  0, 0, 1, 0,  0, 0, 0, 1 };
+      assertArrayEquals(new double[] { h, 0, 0, h }, CloudTransform.rotateQuaternion(m, 1, 0, 0, 0, q), 1e-12);
+   }
+}
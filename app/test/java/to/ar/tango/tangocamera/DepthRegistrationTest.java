@@ -0,0 +1,96 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class DepthRegistrationTest
+{
+   static final int WIDTH = 64, HEIGHT = 48;
+
+   private static CameraCalibration camera(int id, double tx)
+   {
+      return new CameraCalibration(id, WIDTH * 2, HEIGHT * 2, 100, 100, 64, 48, 1, 1, new double[5],
+                                   new double[] { 1, 0, 0, 0 }, new double[] { tx, 0, 0 });
+   }
+
+   @Test
+   public void colorFromDepth() throws Exception
+   {
+      // Depth camera 5cm to the right of the color camera in the IMU frame
+      double[] m = DepthRegistration.colorFromDepth(camera(0, 0.01), camera(3, 0.06));
+      assertEquals(0.05, m[3], 1e-12);
+      assertEquals(0, m[7], 1e-12);
+      assertEquals(1, m[0], 1e-12);
+      assertNull(DepthRegistration.colorFromDepth(camera(0, 0), new CameraCalibration(3, 1, 1, 1, 1, 0, 0, 1, 1,
+                                                                                     new double[5], null, null)));
+   }
+
+   @Test
+   public void projectsNearest() throws Exception
+   {
+      CameraCalibration color = camera(0, 0);
+      double[] identity = CloudTransform.rigidTransform(1, 0, 0, 0, 0, 0, 0);
+      FloatBuffer cloud = FloatBuffer.wrap(new float[]
+      {
+         0, 0, 2, 1,         // principal point (scaled to 32, 24)
+         0, 0, 1.5f, 1,      // nearer point on the same pixel wins
+         0.2f, 0.1f, 1, 1,   // u = 50 * 0.2 + 32 = 42, v = 50 * 0.1 + 24 = 29
+         0, 0, -1, 1,        // behind the camera
+         10, 0, 1, 1         // outside the image
+      });
+      char[] depth = new DepthRegistration().register(cloud, 5, identity, color, WIDTH, HEIGHT, null);
+      assertEquals(1500, depth[24 * WIDTH + 32]);
+      assertEquals(1000, depth[29 * WIDTH + 42]);
+      int nonZero = 0;
+      for (int i = 0; i < WIDTH * HEIGHT; i++)
+         if (depth[i] != 0)
+            nonZero++;
+      assertEquals(2, nonZero);
+   }
+
+   @Test
+   public void parallelMatchesSerial() throws Exception
+   {
+      CameraCalibration color = camera(0, 0);
+      double[] m = CloudTransform.rigidTransform(0.99, 0.05, -0.05, 0.02, 0.03, -0.01, 0.02);
+      int n = 100000;
+      Random random = new Random(9);
+      FloatBuffer cloud = FloatBuffer.allocate(n * 4);
+      for (int i = 0; i < n; i++)
+         cloud.put(random.nextFloat() * 2 - 1).put(random.nextFloat() * 1.5f - 0.75f).
+               put(0.5f + random.nextFloat() * 4).put(1);
+      cloud.flip();
+      char[] serial = new DepthRegistration().register(cloud, n, m, color, WIDTH, HEIGHT, null).clone();
+      DepthRegistration registration = new DepthRegistration();
+      ForkJoinPool pool = new ForkJoinPool(4);
+      char[] parallel = registration.register(cloud, n, m, color, WIDTH, HEIGHT, pool);
+      assertArrayEquals(serial, parallel);
+      // Buffers are cleared when reused
+      parallel = registration.register(cloud, 10, m, color, WIDTH, HEIGHT, pool);
+      assertArrayEquals(new DepthRegistration().register(cloud, 10, m, color, WIDTH, HEIGHT, null), parallel);
+      pool.shutdown();
+   }
+
+   @Test
+   public void pgm() throws Exception
+   {
+      char[] depth = new char[] { 0, 1000, 0xFFFF, 258, 7, 0 };
+      File file = File.createTempFile("depth", DepthRegistration.EXTENSION);
+      DepthRegistration.writePGM(file, depth, 3, 2);
+      byte[] data = Files.readAllBytes(file.toPath());
+      String header = "P5\n3 2\n65535\n";
+      assertEquals(header, new String(data, 0, header.length(), "US-ASCII"));
+      assertEquals(header.length() + 12, data.length);
+      assertEquals(1000 >> 8, data[header.length() + 2] & 0xFF);
+      assertEquals(1000 & 0xFF, data[header.length() + 3] & 0xFF);
+      assertEquals(1, data[header.length() + 6]);
+      assertEquals(2, data[header.length() + 7]);
+   }
+}
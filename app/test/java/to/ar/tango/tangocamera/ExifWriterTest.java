@@ -0,0 +1,130 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExifWriterTest
+{
+   static final private byte[] JPEG = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDB, 0, 4, 1, 2,
+                                        (byte) 0xFF, (byte) 0xD9 };
+
+   @Test
+   public void app1_parsesAsExif() throws Exception
+   {
+      String yaml = "# camera intrinsics\nfx: 1042.000000000\nfy: 1042.500000000\n";
+      byte[] comment = Arrays.copyOf(yaml.getBytes(StandardCharsets.US_ASCII), 200); // trailing garbage
+      byte[] segment = ExifWriter.app1(comment, yaml.length(), 1920, 1080);
+      assertEquals(0xFF, segment[0] & 0xFF);
+      assertEquals(0xE1, segment[1] & 0xFF);
+      ByteBuffer bb = ByteBuffer.wrap(segment);
+      assertEquals(segment.length - 2, bb.getShort(2) & 0xFFFF);
+      assertEquals("Exif\0\0", new String(segment, 4, 6, StandardCharsets.US_ASCII));
+
+      Map<Integer, byte[]> tags = parseTiff(ByteBuffer.wrap(segment, 10, segment.length - 10).slice());
+      assertEquals(1920, ByteBuffer.wrap(tags.get(ExifWriter.TAG_IMAGE_WIDTH)).getInt());
+      assertEquals(1080, ByteBuffer.wrap(tags.get(ExifWriter.TAG_IMAGE_LENGTH)).getInt());
+      byte[] userComment = tags.get(ExifWriter.TAG_USER_COMMENT);
+      assertEquals("ASCII\0\0\0", new String(userComment, 0, 8, StandardCharsets.US_ASCII));
+      assertEquals(yaml, new String(userComment, 8, userComment.length - 8, StandardCharsets.US_ASCII));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void app1_rejectsOversizedComment() throws Exception
+   {
+      ExifWriter.app1(new byte[ExifWriter.MAX_COMMENT_LENGTH + 1], ExifWriter.MAX_COMMENT_LENGTH + 1, 1, 1);
+   }
+
+   @Test
+   public void app1_largestComment() throws Exception
+   {
+      byte[] segment = ExifWriter.app1(new byte[ExifWriter.MAX_COMMENT_LENGTH], ExifWriter.MAX_COMMENT_LENGTH, 1, 1);
+      assertEquals(0xFFFF, ByteBuffer.wrap(segment).getShort(2) & 0xFFFF);
+   }
+
+   @Test
+   public void splice_insertsAfterSOI() throws Exception
+   {
+      byte[] segment = ExifWriter.app1(new byte[] { 'a' }, 1, 2, 3);
+      byte[] expected = new byte[JPEG.length + segment.length];
+      System.arraycopy(JPEG, 0, expected, 0, 2);
+      System.arraycopy(segment, 0, expected, 2, segment.length);
+      System.arraycopy(JPEG, 2, expected, 2 + segment.length, JPEG.length - 2);
+
+      // Whole buffer, single bytes and a write that splits the SOI marker
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      try (OutputStream os = new ExifWriter.SpliceOutputStream(bos, segment)) { os.write(JPEG); }
+      assertArrayEquals(expected, bos.toByteArray());
+
+      bos = new ByteArrayOutputStream();
+      try (OutputStream os = new ExifWriter.SpliceOutputStream(bos, segment))
+      {
+         for (byte b : JPEG)
+            os.write(b);
+      }
+      assertArrayEquals(expected, bos.toByteArray());
+
+      bos = new ByteArrayOutputStream();
+      try (OutputStream os = new ExifWriter.SpliceOutputStream(bos, segment))
+      {
+         os.write(JPEG, 0, 1);
+         os.write(JPEG, 1, 4);
+         os.write(JPEG, 5, JPEG.length - 5);
+      }
+      assertArrayEquals(expected, bos.toByteArray());
+   }
+
+   @Test(expected = IOException.class)
+   public void splice_rejectsNonJpeg() throws Exception
+   {
+      try (OutputStream os = new ExifWriter.SpliceOutputStream(new ByteArrayOutputStream(), new byte[4]))
+      {
+         os.write(new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+      }
+   }
+
+   /**
+    * Minimal TIFF reader: follows IFD0 and the Exif IFD pointer, returning the value bytes of each tag.
+    */
+   private static Map<Integer, byte[]> parseTiff(ByteBuffer tiff)
+   {
+      assertEquals('M', tiff.get(0));
+      assertEquals('M', tiff.get(1));
+      assertEquals(42, tiff.getShort(2));
+      Map<Integer, byte[]> tags = new HashMap<>();
+      readIfd(tiff, tiff.getInt(4), tags);
+      assertTrue(tags.containsKey(ExifWriter.TAG_EXIF_IFD));
+      readIfd(tiff, ByteBuffer.wrap(tags.get(ExifWriter.TAG_EXIF_IFD)).getInt(), tags);
+      return tags;
+   }
+
+   private static void readIfd(ByteBuffer tiff, int offset, Map<Integer, byte[]> tags)
+   {
+      assertEquals(0, offset & 1);
+      int n = tiff.getShort(offset) & 0xFFFF, previous = -1;
+      for (int i = 0; i < n; i++)
+      {
+         int p = offset + 2 + i * 12;
+         int tag = tiff.getShort(p) & 0xFFFF, type = tiff.getShort(p + 2), count = tiff.getInt(p + 4);
+         assertTrue("IFD entries must be sorted", tag > previous);
+         previous = tag;
+         int size = count * ((type == ExifWriter.TYPE_LONG) ? 4 : 1);
+         int valueOffset = (size <= 4) ? p + 8 : tiff.getInt(p + 8);
+         assertTrue(valueOffset + size <= tiff.limit());
+         byte[] value = new byte[size];
+         for (int j = 0; j < size; j++)
+            value[j] = tiff.get(valueOffset + j);
+         tags.put(tag, value);
+      }
+      assertEquals(0, tiff.getInt(offset + 2 + n * 12));
+   }
+}
@@ -0,0 +1,115 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FloatFormatterTest
+{
+   private static String format(float v, int decimals)
+   {
+      byte[] buffer = new byte[FloatFormatter.MAX_LENGTH];
+      int n = FloatFormatter.format(v, decimals, buffer, 0);
+      return new String(buffer, 0, n, StandardCharsets.US_ASCII);
+   }
+
+   private static String printf(float v, int decimals)
+   {
+      return String.format(Locale.ENGLISH, "%." + decimals + "f", v);
+   }
+
+   @Test
+   public void specialValues_matchPrintf() throws Exception
+   {
+      float[] values = { 0f, -0f, 1f, -1f, 0.5f, 0.1f, -0.1f, 1f/1024f, -1f/1024f, 3f/2048f, 1e-10f, -1e-10f,
+                         Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL, 4.0f, 9.999999f, 123456.789f,
+                         999999999f, 1e9f, -1e9f, 1e20f, Float.MAX_VALUE, -Float.MAX_VALUE, Float.NaN,
+                         Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+      for (float v : values)
+         for (int decimals = 0; decimals <= 9; decimals++)
+            assertEquals("value " + v + " decimals " + decimals, printf(v, decimals), format(v, decimals));
+   }
+
+   @Test
+   public void pointCloudRange_matchesPrintf() throws Exception
+   {
+      Random random = new Random(1234);
+      for (int i = 0; i < 500000; i++)
+      {
+         float v = (random.nextFloat() - 0.5f) * 20f;
+         assertEquals(printf(v, 9), format(v, 9));
+      }
+   }
+
+   @Test
+   public void randomBits_matchPrintf() throws Exception
+   {
+      Random random = new Random(4321);
+      for (int i = 0; i < 200000; i++)
+      {
+         float v = Float.intBitsToFloat(random.nextInt());
+         int decimals = random.nextInt(10);
+         assertEquals("value " + v, printf(v, decimals), format(v, decimals));
+      }
+   }
+
+   private static String format(double v, int decimals)
+   {
+      byte[] buffer = new byte[FloatFormatter.MAX_DOUBLE_LENGTH];
+      int n = FloatFormatter.format(v, decimals, buffer, 0);
+      return new String(buffer, 0, n, StandardCharsets.US_ASCII);
+   }
+
+   @Test
+   public void doubles_matchPrintf() throws Exception
+   {
+      double[] values = { 0, -0.0, 1, -1, 0.5, 0.1, -0.1, 1.0/1024, 1e-10, -1e-10, Double.MIN_VALUE,
+                          -Double.MIN_VALUE, Double.MIN_NORMAL, 9.999999999, 0.123456789012, 999999999.9999999,
+                          1e9, -1e9, 1e300, -Double.MAX_VALUE, Double.NaN, Double.NEGATIVE_INFINITY };
+      for (double v : values)
+         for (int decimals = 0; decimals <= 9; decimals++)
+            assertEquals("value " + v + " decimals " + decimals,
+                         String.format(Locale.ENGLISH, "%." + decimals + "f", v), format(v, decimals));
+      Random random = new Random(99);
+      for (int i = 0; i < 200000; i++)
+      {
+         double v = (random.nextDouble() - 0.5) * 20;
+         assertEquals(String.format(Locale.ENGLISH, "%.9f", v), format(v, 9));
+      }
+   }
+
+   @Test
+   public void doubles_roundExactValueHalfUp() throws Exception
+   {
+      Random random = new Random(77);
+      for (int i = 0; i < 200000; i++)
+      {
+         double v = Double.longBitsToDouble(random.nextLong());
+         if ( (Double.isNaN(v)) || (Math.abs(v) >= 1e6) )
+            v = random.nextDouble() * Math.scalb(1.0, -random.nextInt(80));
+         int decimals = random.nextInt(10);
+         String expected = new BigDecimal(Math.abs(v)).setScale(decimals, RoundingMode.HALF_UP).toPlainString();
+         if (Double.doubleToRawLongBits(v) < 0)
+            expected = "-" + expected;
+         assertEquals("value " + v, expected, format(v, decimals));
+      }
+   }
+
+   @Test
+   public void formatLong() throws Exception
+   {
+      long[] values = { 0, 7, 10, 99, 1234567890123L, -42, Long.MAX_VALUE, Long.MIN_VALUE };
+      byte[] buffer = new byte[32];
+      for (long v : values)
+      {
+         int n = FloatFormatter.formatLong(v, buffer, 3);
+         assertEquals(Long.toString(v), new String(buffer, 3, n - 3, StandardCharsets.US_ASCII));
+      }
+   }
+}
@@ -0,0 +1,81 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class JpegWriterTest
+{
+   @Test
+   public void yv12ToNV21_strided() throws Exception
+   {
+      final int width = 6, height = 4, stride = 8, chromaStride = stride / 2;
+      ByteBuffer yv12 = ByteBuffer.allocateDirect(stride * height * 3 / 2);
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < stride; x++)
+            yv12.put(y * stride + x, (byte) (y * 10 + x));
+      final int vOffset = stride * height, uOffset = vOffset + chromaStride * height / 2;
+      for (int y = 0; y < height / 2; y++)
+         for (int x = 0; x < chromaStride; x++)
+         {
+            yv12.put(vOffset + y * chromaStride + x, (byte) (100 + y * 10 + x));
+            yv12.put(uOffset + y * chromaStride + x, (byte) (-100 + y * 10 + x));
+         }
+      yv12.position(5); // conversion should not depend on the buffer position
+      byte[] nv21 = JpegWriter.yv12ToNV21(yv12, width, height, stride,
+                                          new byte[JpegWriter.nv21Length(height, stride)]);
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+            assertEquals(y * 10 + x, nv21[y * stride + x]);
+      for (int y = 0; y < height / 2; y++)
+         for (int x = 0; x < width / 2; x++)
+         {
+            int i = stride * height + y * stride + 2 * x;
+            assertEquals("V " + x + "," + y, (byte) (100 + y * 10 + x), nv21[i]);
+            assertEquals("U " + x + "," + y, (byte) (-100 + y * 10 + x), nv21[i + 1]);
+         }
+      assertEquals(5, yv12.position());
+   }
+
+   @Test
+   public void array_directAndHeap() throws Exception
+   {
+      byte[] backing = new byte[] { 1, 2, 3 };
+      assertSame(backing, JpegWriter.array(ByteBuffer.wrap(backing)));
+      ByteBuffer slice = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3 }, 1, 3).slice();
+      assertArrayEquals(new byte[] { 1, 2, 3 }, JpegWriter.array(slice));
+      // Direct buffers are copied from the start to the limit whatever their position, which is left unchanged
+      ByteBuffer direct = ByteBuffer.allocateDirect(8);
+      direct.put(new byte[] { 9, 8, 7, 6, 5 });
+      direct.limit(4);
+      direct.position(2);
+      assertArrayEquals(new byte[] { 9, 8, 7, 6 }, JpegWriter.array(direct));
+      assertEquals(2, direct.position());
+      assertEquals(4, direct.limit());
+   }
+}
@@ -0,0 +1,71 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongIntMapTest
+{
+   @Test
+   public void matchesHashMap() throws Exception
+   {
+      LongIntMap map = new LongIntMap(4);
+      Map<Long, Integer> expected = new HashMap<>();
+      Random random = new Random(3);
+      for (int i = 0; i < 100000; i++)
+      {
+         long key = (random.nextInt(50000) - 25000) * 0x100000001L; // collide in the low and high words
+         Integer old = expected.get(key);
+         int existing = map.putIfAbsent(key, i);
+         if (old == null)
+         {
+            expected.put(key, i);
+            assertEquals(LongIntMap.MISSING, existing);
+         }
+         else
+            assertEquals(old.intValue(), existing);
+      }
+      assertEquals(expected.size(), map.size());
+      for (Map.Entry<Long, Integer> e : expected.entrySet())
+         assertEquals(e.getValue().intValue(), map.get(e.getKey()));
+      assertEquals(LongIntMap.MISSING, map.get(Long.MAX_VALUE));
+
+      map.clear();
+      assertEquals(0, map.size());
+      assertEquals(LongIntMap.MISSING, map.get(0));
+      assertEquals(LongIntMap.MISSING, map.putIfAbsent(0, 7));
+      assertEquals(7, map.get(0));
+   }
+
+   @Test
+   public void remove_matchesHashMap() throws Exception
+   {
+      LongIntMap map = new LongIntMap(16);
+      Map<Long, Integer> expected = new HashMap<>();
+      Random random = new Random(5);
+      for (int i = 0; i < 200000; i++)
+      {
+         long key = random.nextInt(2000) * 0x100000001L;
+         if (random.nextBoolean())
+         {
+            Integer old = expected.remove(key);
+            assertEquals((old == null) ? LongIntMap.MISSING : old.intValue(), map.remove(key));
+         }
+         else if (! expected.containsKey(key))
+         {
+            expected.put(key, i);
+            assertEquals(LongIntMap.MISSING, map.putIfAbsent(key, i));
+         }
+      }
+      assertEquals(expected.size(), map.size());
+      for (int k = 0; k < 2000; k++)
+      {
+         Integer value = expected.get(k * 0x100000001L);
+         assertEquals((value == null) ? LongIntMap.MISSING : value.intValue(), map.get(k * 0x100000001L));
+      }
+   }
+}
@@ -0,0 +1,140 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PlyWriterTest
+{
+   private static float[] cloud(int n, long seed)
+   {
+      Random random = new Random(seed);
+      float[] cloud = new float[n*4];
+      for (int i = 0; i < cloud.length; i += 4)
+      {
+         cloud[i] = (random.nextFloat() - 0.5f) * 4f;
+         cloud[i + 1] = (random.nextFloat() - 0.5f) * 3f;
+         cloud[i + 2] = random.nextFloat() * 4f;
+         cloud[i + 3] = random.nextFloat();
+      }
+      return cloud;
+   }
+
+   // The printf based output previously written by PostProcessThread.savePlyFile
+   private static String printfPly(float[] cloud, float minConfidence, boolean writeConfidence)
+   {
+      StringWriter sw = new StringWriter();
+      int count = 0;
+      try (PrintWriter pw = new PrintWriter(sw))
+      {
+         for (int i = 0; i < cloud.length; i += 4)
+         {
+            if (cloud[i + 3] >= minConfidence)
+            {
+               pw.printf(Locale.ENGLISH, "%.9f %.9f %.9f", cloud[i], cloud[i + 1], cloud[i + 2]);
+               if (writeConfidence)
+                  pw.printf(Locale.ENGLISH, " %.9f", cloud[i + 3]);
+               pw.print('\n');
+               count++;
+            }
+         }
+      }
+      StringBuilder header = new StringBuilder();
+      header.append("ply\n").append("format ascii 1.0\n").append("element vertex ").append(count).append('\n');
+      header.append("property float x\n").append("property float y\n").append("property float z\n");
+      if (writeConfidence)
+         header.append("comment c is confidence probability\n").append("property float c\n");
+      header.append("end_header\n");
+      return header.append(sw.toString()).toString();
+   }
+
+   @Test
+   public void ascii_matchesPrintfOutput() throws Exception
+   {
+      float[] cloud = cloud(20000, 17);
+      for (boolean writeConfidence : new boolean[] { false, true })
+      {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         int count = PlyWriter.writeAscii(out, FloatBuffer.wrap(cloud), cloud.length / 4, 0.5f, writeConfidence);
+         String expected = printfPly(cloud, 0.5f, writeConfidence);
+         assertEquals(expected, new String(out.toByteArray(), StandardCharsets.US_ASCII));
+         assertTrue(expected.contains("element vertex " + count + "\n"));
+      }
+   }
+
+   @Test
+   public void ascii_empty() throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(0, PlyWriter.writeAscii(out, FloatBuffer.wrap(new float[0]), 0, 0.5f, false));
+      assertEquals(printfPly(new float[0], 0.5f, false), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+   }
+
+   @Test
+   public void ascii_unfiltered() throws Exception
+   {
+      float[] cloud = cloud(3000, 5);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(3000, PlyWriter.writeAscii(out, FloatBuffer.wrap(cloud), 3000, Float.NEGATIVE_INFINITY, true));
+      assertEquals(printfPly(cloud, Float.NEGATIVE_INFINITY, true),
+                   new String(out.toByteArray(), StandardCharsets.US_ASCII));
+   }
+
+   @Test
+   public void binary_roundTrip() throws Exception
+   {
+      // Unfiltered clouds with confidence take the bulk copy path
+      binary_roundTrip(0.3f, true);
+      binary_roundTrip(0.3f, false);
+      binary_roundTrip(Float.NEGATIVE_INFINITY, true);
+      binary_roundTrip(Float.NEGATIVE_INFINITY, false);
+   }
+
+   private void binary_roundTrip(float minConfidence, boolean writeConfidence) throws Exception
+   {
+      float[] cloud = cloud(50000, 31);
+      // A direct little endian view like the native point cloud buffers
+      FloatBuffer direct = ByteBuffer.allocateDirect(cloud.length * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      direct.put(cloud).flip();
+      File file = File.createTempFile("binary", ".ply");
+      try
+      {
+         int count = PlyWriter.writeBinary(file, direct, cloud.length / 4, minConfidence, writeConfidence);
+         byte[] data = Files.readAllBytes(file.toPath());
+         String text = new String(data, StandardCharsets.US_ASCII);
+         int end = text.indexOf("end_header\n") + "end_header\n".length();
+         String header = text.substring(0, end);
+         assertTrue(header.startsWith("ply\nformat binary_little_endian 1.0\nelement vertex " + count + " "));
+         int vertexSize = (writeConfidence) ? 4 : 3;
+         assertEquals(count * vertexSize * 4, data.length - end);
+         ByteBuffer bb = ByteBuffer.wrap(data, end, data.length - end).order(ByteOrder.LITTLE_ENDIAN);
+         int expected = 0;
+         for (int i = 0; i < cloud.length; i += 4)
+         {
+            if (cloud[i + 3] >= minConfidence)
+            {
+               expected++;
+               for (int j = 0; j < vertexSize; j++)
+                  assertEquals(cloud[i + j], bb.getFloat(), 0f);
+            }
+         }
+         assertEquals(expected, count);
+      }
+      finally
+      {
+         file.delete();
+      }
+   }
+}
@@ -0,0 +1,144 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class QuantizedCloudTest
+{
+   private static CaptureFrame.PointCloud cloud(int points, long seed)
+   {
+      Random random = new Random(seed);
+      FloatBuffer floats = ByteBuffer.allocateDirect(points * 16).order(ByteOrder.nativeOrder()).asFloatBuffer();
+      for (int i = 0; i < points; i++)
+      {
+         floats.put(i * 4, random.nextFloat() * 4 - 2);
+         floats.put(i * 4 + 1, random.nextFloat() * 3 - 1.5f);
+         floats.put(i * 4 + 2, 0.3f + random.nextFloat() * 4.5f);
+         floats.put(i * 4 + 3, random.nextFloat());
+      }
+      return new CaptureFrame.PointCloud(floats, 2, points, 1234.5);
+   }
+
+   private static void assertRoundTrip(int points, ForkJoinPool pool) throws Exception
+   {
+      CaptureFrame.PointCloud cloud = cloud(points, points);
+      File file = File.createTempFile("cloud", QuantizedCloud.EXTENSION);
+      float maxError = QuantizedCloud.write(file, cloud, pool);
+      assertTrue(maxError < 0.0001f);
+      CaptureFrame.PointCloud read = QuantizedCloud.read(file, pool);
+      assertEquals(points, read.count);
+      assertEquals(-1, read.bufferIndex);
+      assertEquals(1234.5, read.timestamp, 0);
+      for (int i = 0; i < points * 4; i += 4)
+      {
+         for (int axis = 0; axis < 3; axis++)
+            assertEquals(cloud.points.get(i + axis), read.points.get(i + axis), maxError);
+         assertEquals(cloud.points.get(i + 3), read.points.get(i + 3), 0.5f / 255 + 1e-6f);
+      }
+   }
+
+   @Test
+   public void roundTrip() throws Exception
+   {
+      assertRoundTrip(1000, null);
+   }
+
+   @Test
+   public void roundTrip_parallelChunks() throws Exception
+   {
+      ForkJoinPool pool = new ForkJoinPool(4);
+      assertRoundTrip(QuantizedCloud.CHUNK_POINTS * 3 + 17, pool);
+      assertRoundTrip(QuantizedCloud.CHUNK_POINTS * 2, pool);
+      pool.shutdown();
+   }
+
+   @Test
+   public void empty_and_degenerate() throws Exception
+   {
+      File file = File.createTempFile("empty", QuantizedCloud.EXTENSION);
+      QuantizedCloud.write(file, cloud(0, 0), null);
+      assertEquals(0, QuantizedCloud.read(file, null).count);
+
+      FloatBuffer same = FloatBuffer.wrap(new float[] { 1, 2, 3, 0.5f, 1, 2, 3, 1 });
+      assertEquals(0, QuantizedCloud.write(file, new CaptureFrame.PointCloud(same, 0, 2, 0), null), 1e-6f);
+      CaptureFrame.PointCloud read = QuantizedCloud.read(file, null);
+      assertEquals(2, read.count);
+      assertEquals(2, read.points.get(5), 0);
+      assertEquals(1, read.points.get(7), 0);
+   }
+
+   @Test
+   public void smallerThanPly_and_toPly() throws Exception
+   {
+      CaptureFrame.PointCloud cloud = cloud(20000, 7);
+      File file = File.createTempFile("cloud", QuantizedCloud.EXTENSION);
+      File ply = File.createTempFile("cloud", ".ply");
+      QuantizedCloud.write(file, cloud, null);
+      PlyWriter.writeAscii(ply, cloud.points, cloud.count, true);
+      assertTrue(file.length() * 5 < ply.length());
+
+      File converted = File.createTempFile("converted", ".ply");
+      assertEquals(20000, QuantizedCloud.toPly(file, converted, PlyWriter.FORMAT_ASCII, false, null));
+      String text = new String(Files.readAllBytes(converted.toPath()), StandardCharsets.US_ASCII);
+      assertTrue(text.startsWith(PlyWriter.header("ascii 1.0", 20000, false)));
+   }
+
+   @Test(expected = IOException.class)
+   public void corruptChunk() throws Exception
+   {
+      File file = File.createTempFile("corrupt", QuantizedCloud.EXTENSION);
+      QuantizedCloud.write(file, cloud(100, 1), null);
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+      {
+         raf.seek(QuantizedCloud.HEADER_SIZE + 4 + 10);
+         raf.write(new byte[] { 0x55, 0x55, 0x55, 0x55 });
+      }
+      QuantizedCloud.read(file, null);
+   }
+
+   @Test
+   public void corruptHeader() throws Exception
+   {
+      File file = File.createTempFile("header", QuantizedCloud.EXTENSION);
+      QuantizedCloud.write(file, cloud(100, 1), null);
+      // Point count too large to decode (and the matching chunk count) and a chunk count past the end of the file
+      for (int[] counts : new int[][] { { Integer.MAX_VALUE / 8, Integer.MAX_VALUE / 8 }, { 1 << 26, 1 << 26 } })
+      {
+         try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+         {
+            raf.seek(16);
+            raf.write(new byte[] { (byte) counts[0], (byte) (counts[0] >> 8), (byte) (counts[0] >> 16),
+                                   (byte) (counts[0] >> 24), 1, 0, 0, 0, (byte) counts[1], (byte) (counts[1] >> 8),
+                                   (byte) (counts[1] >> 16), (byte) (counts[1] >> 24) });
+         }
+         try
+         {
+            QuantizedCloud.read(file, null);
+            fail("Read a cloud with " + counts[0] + " points");
+         }
+         catch (IOException e)
+         {
+         }
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void notACloud() throws Exception
+   {
+      File file = File.createTempFile("bad", QuantizedCloud.EXTENSION);
+      Files.write(file.toPath(), "ply\nformat ascii 1.0\n".getBytes(StandardCharsets.US_ASCII));
+      QuantizedCloud.read(file, null);
+   }
+}
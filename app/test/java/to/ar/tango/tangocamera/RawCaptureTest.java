@@ -0,0 +1,163 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class RawCaptureTest
+{
+   static CaptureFrame frame(int points)
+   {
+      ByteBuffer image = ByteBuffer.allocateDirect(64 * 48 * 3 / 2 + 100).order(ByteOrder.nativeOrder());
+      for (int i = 0; i < image.capacity(); i++)
+         image.put(i, (byte) (i * 31));
+      image.limit(64 * 48 * 3 / 2);
+      SensorRing ring = new SensorRing(8);
+      for (int i = 0; i < 5; i++)
+         ring.push(i, i + 0.5, -i, 100 + i, 200 + i);
+      SensorRing.Snapshot gravity = ring.newSnapshot();
+      ring.snapshot(gravity);
+      CaptureFrame.Image img = new CaptureFrame.Image(0x11, image, 3, 60, 48, 64, 101.25,
+                                                      new CaptureFrame.Pose(0.5, 0.1, 0.2, 0.3, 1, 2, 3),
+                                                      gravity, new SensorRing.Snapshot(8));
+      CaptureFrame.PointCloud cloud = null;
+      if (points > 0)
+      {
+         FloatBuffer floats = ByteBuffer.allocateDirect(points * 16 + 32).order(ByteOrder.nativeOrder()).
+                                         asFloatBuffer();
+         for (int i = 0; i < points * 4; i++)
+            floats.put(i, i * 0.25f - 7);
+         cloud = new CaptureFrame.PointCloud(floats, 1, points, 101.5);
+      }
+      CameraCalibration color = new CameraCalibration(0, 1920, 1080, 1000, 1001, 960, 540, 1.1, 0.7,
+                                                      new double[] { 0.1, 0.2, 0.3, 0.4, 0.5 },
+                                                      new double[] { 1, 0, 0, 0 }, new double[] { 0.01, 0.02, 0.03 });
+      CameraCalibration depth = new CameraCalibration(3, 224, 172, 200, 201, 112, 86, 0.9, 0.8,
+                                                      new double[5], null, null);
+      return new CaptureFrame(img, cloud, 1, 1511360000165L, color, depth);
+   }
+
+   @Test
+   public void writeRead_roundTrip() throws Exception
+   {
+      File dir = Files.createTempDirectory("raw").toFile();
+      File file = new File(dir, "capture" + RawCapture.EXTENSION);
+      CaptureFrame frame = frame(100);
+      RawCapture.write(file, frame);
+      assertFalse(new File(dir, file.getName() + ".part").exists());
+
+      CaptureFrame read = RawCapture.read(file);
+      assertEquals(frame.captureTime, read.captureTime);
+      assertEquals(1, read.deviceRotation);
+      CaptureFrame.Image image = read.image;
+      assertEquals(0x11, image.format);
+      assertEquals(60, image.width);
+      assertEquals(48, image.height);
+      assertEquals(64, image.stride);
+      assertEquals(-1, image.bufferIndex);
+      assertEquals(101.25, image.timestamp, 0);
+      assertEquals(frame.image.data.limit(), image.data.remaining());
+      for (int i = 0; i < image.data.remaining(); i++)
+         assertEquals(frame.image.data.get(i), image.data.get(i));
+      assertEquals(0.3, image.pose.rotationZ, 0);
+      assertEquals(3, image.pose.translationZ, 0);
+      assertEquals(5, image.gravity.count());
+      assertEquals(204, image.gravity.sensorTimestamp(4), 0);
+      assertEquals(-3, image.gravity.z(3), 0);
+      assertEquals(0, image.acceleration.count());
+
+      assertTrue(read.hasPointCloud());
+      assertEquals(100, read.pointCloud.count);
+      assertEquals(101.5, read.pointCloud.timestamp, 0);
+      for (int i = 0; i < 400; i++)
+         assertEquals(i * 0.25f - 7, read.pointCloud.points.get(i), 0);
+
+      assertEquals(1080, read.colorCalibration.height);
+      assertEquals(1001, read.colorCalibration.fy, 0);
+      assertEquals(0.4, read.colorCalibration.distortion[3], 0);
+      assertEquals(0.03, read.colorCalibration.imuTranslation[2], 0);
+      assertEquals(3, read.depthCalibration.cameraId);
+      assertFalse(read.depthCalibration.hasImuPose());
+
+      // Sections start on aligned offsets
+      ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0, n = header.getInt(16); i < n; i++)
+         assertEquals(0, header.getLong(24 + i * 24 + 8) % RawCapture.ALIGNMENT);
+   }
+
+   @Test
+   public void withoutPointCloud() throws Exception
+   {
+      File file = File.createTempFile("nocloud", RawCapture.EXTENSION);
+      RawCapture.write(file, frame(0));
+      CaptureFrame read = RawCapture.read(file);
+      assertFalse(read.hasPointCloud());
+      assertNull(read.pointCloud);
+   }
+
+   @Test
+   public void settings_roundTrip() throws Exception
+   {
+      File file = File.createTempFile("settings", RawCapture.EXTENSION);
+      CaptureFrame frame = frame(0);
+      CaptureSettings settings = new CaptureSettings(RawCapture.FORMAT_RAW, QuantizedCloud.FORMAT_QUANTIZED,
+                                                     CloudTransform.FRAME_WORLD, 0.02f, 85, true, false, true, false,
+                                                     true);
+      RawCapture.write(file, new CaptureFrame(frame.image, null, 1, frame.captureTime, frame.colorCalibration,
+                                              frame.depthCalibration, settings));
+      CaptureSettings read = RawCapture.read(file).settings;
+      assertEquals(RawCapture.FORMAT_RAW, read.captureFormat);
+      assertEquals(QuantizedCloud.FORMAT_QUANTIZED, read.plyFormat);
+      assertEquals(CloudTransform.FRAME_WORLD, read.cloudFrame);
+      assertEquals(0.02f, read.voxelLeafSize, 0);
+      assertEquals(85, read.jpegQuality);
+      assertTrue(read.isRegisteredDepth);
+      assertFalse(read.isRectified);
+      assertTrue(read.isWriteConfidence);
+      assertFalse(read.isGravity);
+      assertTrue(read.isAcceleration);
+
+      // Captures without settings are converted with the current preferences
+      RawCapture.write(file, frame);
+      assertNull(RawCapture.read(file).settings);
+   }
+
+   @Test
+   public void imuDevicePose_roundTrip() throws Exception
+   {
+      File file = File.createTempFile("device", RawCapture.EXTENSION);
+      CaptureFrame frame = frame(0);
+      CameraCalibration depth = new CameraCalibration(3, 224, 172, 200, 201, 112, 86, 0.9, 0.8, new double[5],
+                                                      null, null, new double[] { 0.5, 0.5, 0.5, 0.5 },
+                                                      new double[] { 0.1, 0.2, 0.3 });
+      RawCapture.write(file, new CaptureFrame(frame.image, null, 1, frame.captureTime, frame.colorCalibration,
+                                              depth));
+      CaptureFrame read = RawCapture.read(file);
+      assertFalse(read.depthCalibration.hasImuPose());
+      assertTrue(read.depthCalibration.hasImuDevicePose());
+      assertArrayEquals(depth.imuDeviceRotation, read.depthCalibration.imuDeviceRotation, 0);
+      assertArrayEquals(depth.imuDeviceTranslation, read.depthCalibration.imuDeviceTranslation, 0);
+      assertFalse(read.colorCalibration.hasImuDevicePose());
+   }
+
+   @Test(expected = IOException.class)
+   public void corrupt() throws Exception
+   {
+      File file = File.createTempFile("corrupt", RawCapture.EXTENSION);
+      RawCapture.write(file, frame(10));
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+      {
+         raf.seek(24 + 8); // offset of the first section
+         raf.writeLong(Long.reverseBytes(Long.MAX_VALUE / 2));
+      }
+      RawCapture.read(file);
+   }
+}
@@ -0,0 +1,104 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RawTranscoderTest
+{
+   private static File captures(int count) throws Exception
+   {
+      File dir = Files.createTempDirectory("transcode").toFile();
+      for (int i = 0; i < count; i++)
+         RawCapture.write(new File(dir, "capture-" + i + RawCapture.EXTENSION), RawCaptureTest.frame(i * 10));
+      return dir;
+   }
+
+   private static class TextEncoder implements RawTranscoder.Encoder
+   {
+      final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+
+      @Override
+      public void encode(CaptureFrame frame, File directory, String name) throws Exception
+      {
+         try (PrintWriter pw = new PrintWriter(new FileOutputStream(new File(directory, name + ".txt"))))
+         {
+            pw.println(frame.image.width + "x" + frame.image.height);
+         }
+         names.add(name);
+      }
+   }
+
+   @Test
+   public void convertsAllPending() throws Exception
+   {
+      File dir = captures(7);
+      new File(dir, "incomplete" + RawCapture.EXTENSION + ".part").createNewFile();
+      TextEncoder encoder = new TextEncoder();
+      RawTranscoder transcoder = new RawTranscoder(dir, 3, encoder, null);
+      assertEquals(7, transcoder.run());
+      assertEquals(7, encoder.names.size());
+      for (int i = 0; i < 7; i++)
+      {
+         assertFalse(new File(dir, "capture-" + i + RawCapture.EXTENSION).exists());
+         assertTrue(new File(dir, "capture-" + i + ".txt").exists());
+      }
+      assertEquals(0, RawTranscoder.pending(dir).length);
+      assertTrue(new File(dir, "incomplete" + RawCapture.EXTENSION + ".part").exists());
+   }
+
+   @Test
+   public void failedCapturesAreSetAside() throws Exception
+   {
+      File dir = captures(2);
+      File bad = new File(dir, "bad" + RawCapture.EXTENSION);
+      Files.write(bad.toPath(), new byte[300]);
+      final AtomicInteger failures = new AtomicInteger(0);
+      RawTranscoder transcoder = new RawTranscoder(dir, 2, new TextEncoder(), new RawTranscoder.Listener()
+      {
+         @Override public void onConverted(File rawFile) { }
+
+         @Override public void onFailed(File rawFile, Throwable e) { failures.incrementAndGet(); }
+      });
+      assertEquals(2, transcoder.run());
+      assertEquals(1, transcoder.failedCount());
+      assertEquals(1, failures.get());
+      assertFalse(bad.exists());
+      assertTrue(new File(dir, bad.getName() + RawTranscoder.FAILED_EXTENSION).exists());
+      assertEquals(0, RawTranscoder.pending(dir).length);
+   }
+
+   @Test
+   public void resumesAfterStop() throws Exception
+   {
+      File dir = captures(8);
+      final RawTranscoder[] first = new RawTranscoder[1];
+      final TextEncoder encoder = new TextEncoder();
+      first[0] = new RawTranscoder(dir, 2, new RawTranscoder.Encoder()
+      {
+         @Override
+         public void encode(CaptureFrame frame, File directory, String name) throws Exception
+         {
+            first[0].stop();
+            throw new InterruptedException("stopped");
+         }
+      }, null);
+      assertEquals(0, first[0].run());
+      assertEquals(0, first[0].failedCount());
+      assertEquals(8, RawTranscoder.pending(dir).length);
+
+      RawTranscoder second = new RawTranscoder(dir, 2, encoder, null);
+      assertEquals(8, second.run());
+      assertEquals(8, encoder.names.size());
+      assertEquals(0, RawTranscoder.pending(dir).length);
+   }
+}
@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class RgbaSwizzleTest
+{
+   @Test
+   public void matchesByteLoop() throws Exception
+   {
+      ForkJoinPool pool = new ForkJoinPool(3);
+      try
+      {
+         for (int pixels : new int[] { 1, 7, 1000, 300007 })
+         {
+            ByteBuffer src = random(pixels * 4 + 2, pixels); // trailing partial pixel is ignored
+            byte[] expected = new byte[pixels * 4];
+            for (int i = 0; i < expected.length; i += 4)
+            {
+               expected[i] = src.get(i + 3);
+               expected[i + 1] = src.get(i + 1);
+               expected[i + 2] = src.get(i + 2);
+               expected[i + 3] = src.get(i);
+            }
+            for (ForkJoinPool p : new ForkJoinPool[] { null, pool })
+            {
+               ByteBuffer dest = ByteBuffer.allocateDirect(pixels * 4 + 64);
+               RgbaSwizzle.swapFirstLast(src, dest, p);
+               assertEquals(0, dest.position());
+               assertEquals(pixels * 4, dest.limit());
+               byte[] actual = new byte[pixels * 4];
+               dest.get(actual);
+               assertArrayEquals(expected, actual);
+            }
+            RgbaSwizzle.swapFirstLast(src, src, pool); // in place
+            byte[] actual = new byte[pixels * 4];
+            src.get(actual);
+            assertArrayEquals(expected, actual);
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void destinationTooSmall() throws Exception
+   {
+      RgbaSwizzle.swapFirstLast(ByteBuffer.allocate(16), ByteBuffer.allocate(12), null);
+   }
+
+   private static ByteBuffer random(int length, long seed)
+   {
+      byte[] data = new byte[length];
+      new Random(seed).nextBytes(data);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+      buffer.put(data).flip();
+      return buffer;
+   }
+}
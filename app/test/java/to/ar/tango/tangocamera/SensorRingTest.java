@@ -0,0 +1,107 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorRingTest
+{
+   @Test
+   public void snapshot_wrapsAndKeepsNewest() throws Exception
+   {
+      SensorRing ring = new SensorRing(100);
+      assertEquals(128, ring.capacity());
+      SensorRing.Snapshot snapshot = ring.newSnapshot();
+      assertEquals(0, ring.snapshot(snapshot));
+      for (int i = 0; i < 300; i++)
+         ring.push(i, i + 1, i + 2, i * 0.01, i * 0.02);
+      // Nothing is being written concurrently so only the two slots reserved for concurrent writes are lost
+      int n = ring.snapshot(snapshot);
+      assertEquals(126, n);
+      for (int i = 0; i < n; i++)
+      {
+         double v = 300 - n + i;
+         assertEquals(v, snapshot.x(i), 0);
+         assertEquals(v + 1, snapshot.y(i), 0);
+         assertEquals(v + 2, snapshot.z(i), 0);
+         assertEquals(v * 0.01, snapshot.tangoTimestamp(i), 0);
+         assertEquals(v * 0.02, snapshot.sensorTimestamp(i), 0);
+      }
+      assertEquals(n, ring.snapshot(snapshot)); // snapshots don't consume
+      ring.clear();
+      assertTrue(ring.isEmpty());
+      assertEquals(0, ring.snapshot(snapshot));
+      ring.push(1, 2, 3, 4, 5);
+      assertEquals(1, ring.snapshot(snapshot));
+      assertEquals(4, snapshot.tangoTimestamp(0), 0);
+   }
+
+   @Test
+   public void snapshot_searchAndInterpolate() throws Exception
+   {
+      SensorRing ring = new SensorRing(16);
+      SensorRing.Snapshot snapshot = ring.newSnapshot();
+      double[] xyz = new double[3];
+      ring.snapshot(snapshot);
+      assertEquals(-1, snapshot.nearest(1));
+      assertFalse(snapshot.interpolate(1, xyz));
+      for (int i = 0; i < 10; i++)
+         ring.push(i * 10, i * 20, -i, 100 + i, 0);
+      ring.snapshot(snapshot);
+      assertEquals(0, snapshot.search(50));
+      assertEquals(3, snapshot.search(103));
+      assertEquals(4, snapshot.search(103.5));
+      assertEquals(10, snapshot.search(200));
+      assertEquals(3, snapshot.nearest(103.4));
+      assertEquals(4, snapshot.nearest(103.6));
+      assertEquals(0, snapshot.nearest(0));
+      assertEquals(9, snapshot.nearest(1000));
+
+      assertTrue(snapshot.interpolate(103.25, xyz));
+      assertArrayEquals(new double[] { 32.5, 65, -3.25 }, xyz, 1e-9);
+      assertTrue(snapshot.interpolate(105, xyz));
+      assertArrayEquals(new double[] { 50, 100, -5 }, xyz, 0);
+      assertTrue(snapshot.interpolate(10, xyz));
+      assertArrayEquals(new double[] { 0, 0, 0 }, xyz, 0);
+      assertTrue(snapshot.interpolate(1000, xyz));
+      assertArrayEquals(new double[] { 90, 180, -9 }, xyz, 0);
+   }
+
+   @Test
+   public void snapshot_consistentWithConcurrentProducer() throws Exception
+   {
+      final SensorRing ring = new SensorRing(64);
+      final int total = 2000000;
+      Thread producer = new Thread(new Runnable()
+      {
+         @Override public void run()
+         {
+            for (int i = 1; i <= total; i++)
+               ring.push(i, -i, 2*i, i, 3*i);
+         }
+      });
+      producer.start();
+      SensorRing.Snapshot snapshot = ring.newSnapshot();
+      double last = 0;
+      while (producer.isAlive())
+      {
+         int n = ring.snapshot(snapshot);
+         for (int i = 0; i < n; i++)
+         {
+            double v = snapshot.x(i);
+            assertEquals(-v, snapshot.y(i), 0);
+            assertEquals(2*v, snapshot.z(i), 0);
+            assertEquals(v, snapshot.tangoTimestamp(i), 0);
+            assertEquals(3*v, snapshot.sensorTimestamp(i), 0);
+            if (i > 0)
+               assertEquals(snapshot.x(i - 1) + 1, v, 0);
+         }
+         if (n > 0)
+         {
+            assertTrue(snapshot.x(n - 1) >= last);
+            last = snapshot.x(n - 1);
+         }
+      }
+      producer.join();
+   }
+}
@@ -0,0 +1,161 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TaskGraphTest
+{
+   @Test
+   public void independentTasksRunConcurrently() throws Exception
+   {
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try
+      {
+         final CountDownLatch both = new CountDownLatch(2);
+         final Callable<Boolean> rendezvous = new Callable<Boolean>()
+         {
+            @Override public Boolean call() throws Exception
+            {
+               both.countDown();
+               return both.await(5, TimeUnit.SECONDS); // only succeeds if the other task is running too
+            }
+         };
+         final boolean[] isJoined = new boolean[1];
+         TaskGraph graph = new TaskGraph().add("a", rendezvous).add("b", rendezvous).
+               add("c", new Callable<Boolean>()
+               {
+                  @Override public Boolean call() throws Exception { isJoined[0] = (both.getCount() == 0); return true; }
+               }, "a", "b");
+         assertTrue(graph.execute(executor, null));
+         assertTrue(isJoined[0]);
+         assertTrue(graph.isSuccess("c"));
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void failureSkipsDependents() throws Exception
+   {
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try
+      {
+         final Callable<Boolean> ok = new Callable<Boolean>()
+         {
+            @Override public Boolean call() throws Exception { return true; }
+         };
+         TaskGraph graph = new TaskGraph().add("image", new Callable<Boolean>()
+         {
+            @Override public Boolean call() throws Exception { throw new java.io.IOException("disk full"); }
+         }).add("yaml", ok).add("exif", ok, "image", "yaml").add("upload", ok, "exif").add("ply", ok);
+         final Set<String> skipped = Collections.synchronizedSet(new HashSet<String>());
+         final Throwable[] thrown = new Throwable[1];
+         boolean isSuccess = graph.execute(executor, new TaskGraph.Listener()
+         {
+            @Override
+            public void onTaskComplete(String name, boolean isSuccess, boolean isSkipped, Throwable e)
+            {
+               if (isSkipped)
+                  skipped.add(name);
+               if (e != null)
+                  thrown[0] = e;
+            }
+         });
+         assertFalse(isSuccess);
+         assertEquals(new HashSet<>(java.util.Arrays.asList("exif", "upload")), skipped);
+         assertEquals("disk full", thrown[0].getMessage());
+         assertTrue(graph.isSuccess("yaml"));
+         assertTrue(graph.isSuccess("ply"));
+         assertFalse(graph.isSuccess("image"));
+      }
+      finally
+      {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test(timeout = 5000)
+   public void throwingListenerAndRejectedDependent_stillComplete() throws Exception
+   {
+      final Callable<Boolean> ok = new Callable<Boolean>()
+      {
+         @Override public Boolean call() throws Exception { return true; }
+      };
+      // Runs the first two tasks on their own threads then rejects
+      final AtomicInteger submitted = new AtomicInteger(0);
+      Executor executor = new Executor()
+      {
+         @Override public void execute(Runnable task)
+         {
+            if (submitted.incrementAndGet() > 2)
+               throw new RejectedExecutionException("shut down");
+            Thread thread = new Thread(task);
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+            {
+               @Override public void uncaughtException(Thread t, Throwable e) { }
+            });
+            thread.start();
+         }
+      };
+      TaskGraph graph = new TaskGraph().add("yaml", ok).add("ply", ok).add("image", ok, "yaml")
+                                       .add("exif", ok, "image");
+      boolean isSuccess = graph.execute(executor, new TaskGraph.Listener()
+      {
+         @Override
+         public void onTaskComplete(String name, boolean isSuccess, boolean isSkipped, Throwable e)
+         {
+            if (name.equals("ply"))
+               throw new IllegalStateException("listener failed");
+         }
+      });
+      assertFalse(isSuccess);
+      assertTrue(graph.isSuccess("yaml"));
+      assertTrue(graph.isSuccess("ply"));
+      assertFalse(graph.isSuccess("image"));
+      assertFalse(graph.isSuccess("exif"));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void unknownDependency() throws Exception
+   {
+      new TaskGraph().add("a", null, "b");
+   }
+}
@@ -0,0 +1,161 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrajectoryRecorderTest
+{
+   /** Replays a synthetic trajectory, each pose returned twice to check that repeated timestamps are skipped. */
+   static class Synthetic implements TrajectoryRecorder.Source
+   {
+      int calls = 0;
+
+      @Override
+      public boolean sample(double[] pose)
+      {
+         final int i = calls++ / 2;
+         if (i % 97 == 13)
+            return false; // no valid pose
+         pose(i, pose);
+         return true;
+      }
+
+      static void pose(int i, double[] pose)
+      {
+         final double angle = i * 0.01, t = 1234.5 + i / 60.0;
+         pose[0] = Math.round(t * 1e6) / 1e6;
+         pose[1] = Math.cos(angle / 2);
+         pose[2] = 0;
+         pose[3] = Math.sin(angle / 2);
+         pose[4] = 0;
+         pose[5] = Math.cos(angle) * 2.5;
+         pose[6] = -1.25 + i * 1e-3;
+         pose[7] = Math.sin(angle) * 2.5;
+      }
+   }
+
+   @Test
+   public void roundTrip_acrossFlushesAndGrowth() throws Exception
+   {
+      File file = File.createTempFile("trajectory", TrajectoryRecorder.EXTENSION);
+      Synthetic source = new Synthetic();
+      TrajectoryRecorder recorder = new TrajectoryRecorder(file, 60, source);
+      final int samples = 150000; // more than fits in the initial mapping
+      int expected = 0;
+      for (int i = 0; i < 2 * samples; i++)
+         recorder.sample();
+      for (int i = 0; i < samples; i++)
+         if (i % 97 != 13)
+            expected++;
+      recorder.stop();
+      assertEquals(expected, recorder.count());
+      // Truncated to the header and the record data it describes
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+      {
+         raf.seek(24);
+         assertEquals(TrajectoryRecorder.HEADER_SIZE + Long.reverseBytes(raf.readLong()), file.length());
+      }
+
+      TrajectoryRecorder.Reader reader = new TrajectoryRecorder.Reader(file);
+      assertEquals(expected, reader.count());
+      double[] pose = new double[TrajectoryRecorder.FIELDS], reference = new double[TrajectoryRecorder.FIELDS];
+      int n = 0;
+      for (int i = 0; i < samples; i++)
+      {
+         if (i % 97 == 13)
+            continue;
+         assertTrue(reader.next(pose));
+         Synthetic.pose(i, reference);
+         assertEquals(reference[0], pose[0], 1e-6);
+         for (int j = 1; j < 5; j++)
+            assertEquals(reference[j], pose[j], 1e-8);
+         for (int j = 5; j < 8; j++)
+            assertEquals(reference[j], pose[j], 1e-5);
+         n++;
+      }
+      assertEquals(expected, n);
+      assertFalse(reader.next(pose));
+      file.delete();
+   }
+
+   @Test
+   public void readableBeforeStop() throws Exception
+   {
+      File file = File.createTempFile("trajectory", TrajectoryRecorder.EXTENSION);
+      TrajectoryRecorder recorder = new TrajectoryRecorder(file, 30, new Synthetic());
+      for (int i = 0; i < 100; i++)
+         recorder.sample();
+      // Only complete flushes (every half ring, 32 samples at 30 Hz) are visible
+      long flushed = new TrajectoryRecorder.Reader(file).count();
+      assertTrue(flushed > 0);
+      assertEquals(0, flushed % 32);
+      recorder.stop();
+      assertEquals(recorder.count(), new TrajectoryRecorder.Reader(file).count());
+      assertTrue(recorder.count() > flushed);
+      assertTrue(file.length() < 4096);
+      file.delete();
+   }
+
+   @Test
+   public void thread_recordsAtRate() throws Exception
+   {
+      File file = File.createTempFile("trajectory", TrajectoryRecorder.EXTENSION);
+      Synthetic source = new Synthetic();
+      TrajectoryRecorder recorder = new TrajectoryRecorder(file, 200, source);
+      recorder.start();
+      assertTrue(recorder.isRunning());
+      Thread.sleep(300);
+      recorder.stop();
+      assertFalse(recorder.isRunning());
+      assertTrue("calls " + source.calls, (source.calls > 10) && (source.calls < 200));
+      assertEquals(recorder.count(), new TrajectoryRecorder.Reader(file).count());
+      assertTrue(recorder.count() > 0);
+      file.delete();
+   }
+
+   @Test
+   public void export() throws Exception
+   {
+      File file = File.createTempFile("trajectory", TrajectoryRecorder.EXTENSION),
+           tum = File.createTempFile("trajectory", ".tum"), kitti = File.createTempFile("trajectory", ".kitti"),
+           times = File.createTempFile("trajectory", ".times");
+      TrajectoryRecorder recorder = new TrajectoryRecorder(file, 30, new Synthetic());
+      for (int i = 0; i < 10; i++)
+         recorder.sample();
+      recorder.stop();
+      assertEquals(5, TrajectoryRecorder.exportTum(file, tum));
+      assertEquals(5, TrajectoryRecorder.exportKitti(file, kitti, times));
+
+      double[] reference = new double[TrajectoryRecorder.FIELDS];
+      Synthetic.pose(3, reference);
+      List<String> lines = Files.readAllLines(tum.toPath(), StandardCharsets.US_ASCII);
+      assertEquals(6, lines.size());
+      assertTrue(lines.get(0).startsWith("#"));
+      String[] fields = lines.get(4).split(" ");
+      assertEquals(8, fields.length);
+      assertEquals(reference[0], Double.parseDouble(fields[0]), 1e-6);
+      assertEquals(reference[5], Double.parseDouble(fields[1]), 1e-5);
+      assertEquals(reference[3], Double.parseDouble(fields[5]), 1e-8);
+      assertEquals(reference[1], Double.parseDouble(fields[7]), 1e-8);
+
+      lines = Files.readAllLines(kitti.toPath(), StandardCharsets.US_ASCII);
+      assertEquals(5, lines.size());
+      fields = lines.get(3).split(" ");
+      assertEquals(12, fields.length);
+      double[] m = CloudTransform.rigidTransform(reference[1], reference[2], reference[3], reference[4],
+                                                 reference[5], reference[6], reference[7]);
+      for (int i = 0; i < 12; i++)
+         assertEquals(m[i], Double.parseDouble(fields[i]), 1e-5);
+      lines = Files.readAllLines(times.toPath(), StandardCharsets.US_ASCII);
+      assertEquals(reference[0], Double.parseDouble(lines.get(3)), 1e-6);
+      for (File f : new File[] { file, tum, kitti, times })
+         f.delete();
+   }
+}
@@ -0,0 +1,135 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class TsdfVolumeTest
+{
+   /**
+    * Checks that every directed edge of the mesh appears exactly once and its reverse exactly once, i.e. the mesh
+    * is closed and consistently oriented.
+    */
+   private static void assertClosed(TsdfVolume.Mesh mesh)
+   {
+      Map<Long, Integer> edges = new HashMap<>();
+      int[] t = mesh.triangles;
+      for (int i = 0; i < t.length; i += 3)
+         for (int j = 0; j < 3; j++)
+         {
+            long edge = ((long) t[i + j] << 32) | t[i + (j + 1) % 3];
+            assertNull("Duplicate directed edge", edges.put(edge, i));
+         }
+      for (long edge : edges.keySet())
+         assertTrue("Unmatched edge", edges.containsKey((edge << 32) | (edge >>> 32)));
+   }
+
+   @Test
+   public void sphere() throws Exception
+   {
+      final float voxel = 0.05f, radius = 0.42f;
+      TsdfVolume volume = new TsdfVolume(voxel, 10, 10000);
+      for (int z = -12; z < 12; z++)
+         for (int y = -12; y < 12; y++)
+            for (int x = -12; x < 12; x++)
+            {
+               float cx = (x + 0.5f) * voxel, cy = (y + 0.5f) * voxel, cz = (z + 0.5f) * voxel;
+               volume.setVoxel(x, y, z, (float) Math.sqrt(cx * cx + cy * cy + cz * cz) - radius, 1);
+            }
+      TsdfVolume.Mesh mesh = volume.extractMesh(new ForkJoinPool(3));
+      assertTrue(mesh.triangleCount() > 500);
+      assertClosed(mesh);
+      float[] v = mesh.vertices;
+      for (int i = 0; i < v.length; i += 3)
+         assertEquals(radius, Math.sqrt(v[i] * v[i] + v[i + 1] * v[i + 1] + v[i + 2] * v[i + 2]), voxel * 0.1);
+      int[] t = mesh.triangles;
+      for (int i = 0; i < t.length; i += 3)
+      {
+         int a = t[i] * 3, b = t[i + 1] * 3, c = t[i + 2] * 3;
+         float ux = v[b] - v[a], uy = v[b + 1] - v[a + 1], uz = v[b + 2] - v[a + 2];
+         float wx = v[c] - v[a], wy = v[c + 1] - v[a + 1], wz = v[c + 2] - v[a + 2];
+         float nx = uy * wz - uz * wy, ny = uz * wx - ux * wz, nz = ux * wy - uy * wx;
+         assertTrue("Normal points inwards", nx * v[a] + ny * v[a + 1] + nz * v[a + 2] > 0);
+      }
+
+      File ply = File.createTempFile("sphere", ".ply");
+      PlyWriter.writeMesh(ply, mesh.vertices, mesh.triangles);
+      String header = new String(Files.readAllBytes(ply.toPath()), "US-ASCII");
+      assertTrue(header.contains("element vertex " + mesh.vertexCount() + "\n"));
+      assertTrue(header.contains("element face " + mesh.triangleCount() + "\n"));
+   }
+
+   @Test
+   public void randomField_allCubeConfigurations() throws Exception
+   {
+      // Random signs inside a positive shell exercise every cube configuration including the ambiguous faces
+      Random random = new Random(5);
+      TsdfVolume volume = new TsdfVolume(1, 10, 10000);
+      for (int z = 0; z < 20; z++)
+         for (int y = 0; y < 20; y++)
+            for (int x = 0; x < 20; x++)
+            {
+               boolean isShell = (x == 0) || (y == 0) || (z == 0) || (x == 19) || (y == 19) || (z == 19);
+               volume.setVoxel(x, y, z, isShell ? 1 : random.nextFloat() * 2 - 1, 1);
+            }
+      TsdfVolume.Mesh mesh = volume.extractMesh(null);
+      assertTrue(mesh.triangleCount() > 1000);
+      assertClosed(mesh);
+   }
+
+   private static FloatBuffer plane(float depth, float offsetX)
+   {
+      int n = 101;
+      FloatBuffer cloud = FloatBuffer.allocate(n * n * 4);
+      for (int i = 0; i < n; i++)
+         for (int j = 0; j < n; j++)
+            cloud.put(-0.5f + i * 0.01f - offsetX).put(-0.5f + j * 0.01f).put(depth).put(0.8f);
+      cloud.flip();
+      return cloud;
+   }
+
+   @Test
+   public void fusePlane() throws Exception
+   {
+      final float voxel = 0.02f;
+      TsdfVolume volume = new TsdfVolume(voxel, 3 * voxel, 100000);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      volume.integrate(plane(2, 0), 101 * 101, CloudTransform.rigidTransform(1, 0, 0, 0, 0, 0, 0), pool);
+      // Second camera 10cm to the right, 20 cm further back looking at the same plane
+      volume.integrate(plane(2.2f, 0.1f), 101 * 101, CloudTransform.rigidTransform(1, 0, 0, 0, 0.1, 0, -0.2), pool);
+      assertTrue(volume.distance(0, 0, 2 - 2 * voxel) > 0);
+      assertTrue(volume.distance(0, 0, 2 + 2 * voxel) < 0);
+      assertTrue(Float.isNaN(volume.distance(0, 0, 1)));
+
+      TsdfVolume.Mesh mesh = volume.extractMesh(pool);
+      assertTrue(mesh.triangleCount() > 1000);
+      float[] v = mesh.vertices;
+      for (int i = 0; i < v.length; i += 3)
+         if ( (Math.abs(v[i]) < 0.4f) && (Math.abs(v[i + 1]) < 0.4f) )
+            assertEquals(2, v[i + 2], voxel / 2);
+      assertEquals(0, volume.evictions());
+   }
+
+   @Test
+   public void eviction() throws Exception
+   {
+      TsdfVolume volume = new TsdfVolume(0.01f, 0.03f, 50);
+      // A single integration needing more blocks than the limit is bounded while it allocates
+      volume.integrate(plane(2, 0), 101 * 101, CloudTransform.rigidTransform(1, 0, 0, 0, 0, 0, 0), null);
+      assertEquals(50, volume.blockCount());
+      assertTrue(volume.rejections() > 0);
+      assertEquals(0, volume.evictions());
+      // Blocks of earlier integrations are evicted to make room for the next one
+      volume.integrate(plane(2, 0), 101 * 101, CloudTransform.rigidTransform(1, 0, 0, 0, 5, 0, 0), null);
+      assertEquals(50, volume.blockCount());
+      assertEquals(50, volume.evictions());
+   }
+}
@@ -0,0 +1,136 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class UndistortionMapTest
+{
+   private static CameraCalibration camera(int width, int height, double k1, double k2, double k3)
+   {
+      return new CameraCalibration(0, width, height, width * 0.8, width * 0.8, width / 2.0 - 0.5,
+                                   height / 2.0 - 0.5, 1, 1, new double[] { k1, k2, k3, 0, 0 }, null, null);
+   }
+
+   @Test
+   public void lerp() throws Exception
+   {
+      assertEquals(0x10203040, UndistortionMap.lerp(0x10203040, 0xF0E0D0C0, 0));
+      int mid = UndistortionMap.lerp(0x00FF00FF, 0xFF00FF00, 128);
+      for (int lane = 0; lane < 32; lane += 8)
+         assertEquals(127, (mid >>> lane) & 0xFF, 1);
+      int exact = UndistortionMap.lerp(0x00000000, 0xFFFFFFFF, 64);
+      for (int lane = 0; lane < 32; lane += 8)
+         assertEquals(63, (exact >>> lane) & 0xFF);
+   }
+
+   @Test
+   public void noDistortion_isIdentity() throws Exception
+   {
+      final int width = 64, height = 48;
+      UndistortionMap map = UndistortionMap.build(camera(width, height, 0, 0, 0), width, height, null);
+      int[] src = new int[width * height], dest = new int[width * height];
+      Random random = new Random(5);
+      for (int i = 0; i < src.length; i++)
+         src[i] = random.nextInt();
+      map.remap(src, dest, null);
+      // Including the last column and row, which must not become a black border
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+            assertEquals(x + "," + y, src[y * width + x], dest[y * width + x]);
+   }
+
+   @Test
+   public void barrel_samplesDistortedPosition() throws Exception
+   {
+      final int width = 256, height = 64;
+      CameraCalibration calibration = camera(width, height, -0.2, 0.05, 0);
+      UndistortionMap map = UndistortionMap.build(calibration, width, height, null);
+      // A horizontal ramp in every byte lane, which bilinear sampling reproduces exactly
+      int[] src = new int[width * height], dest = new int[width * height];
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+            src[y * width + x] = x * 0x01010101;
+      map.remap(src, dest, null);
+      double fx = calibration.fx, cx = calibration.cx, fy = calibration.fy, cy = calibration.cy;
+      int checked = 0;
+      for (int v = 0; v < height; v += 7)
+         for (int u = 0; u < width; u += 5)
+         {
+            double x = (u - cx) / fx, y = (v - cy) / fy, r2 = x * x + y * y;
+            double d = 1 - 0.2 * r2 + 0.05 * r2 * r2, xs = fx * x * d + cx, ys = fy * y * d + cy;
+            int value = dest[v * width + u];
+            if ( (xs < 0) || (xs > width - 1) || (ys < 0) || (ys > height - 1) )
+               assertEquals(0, value);
+            else
+            {
+               for (int lane = 0; lane < 32; lane += 8)
+                  assertEquals(xs, (value >>> lane) & 0xFF, 1.01);
+               checked++;
+            }
+         }
+      assertTrue(checked > 100);
+   }
+
+   @Test
+   public void parallel_matchesSequential() throws Exception
+   {
+      final int width = 320, height = 240;
+      CameraCalibration calibration = camera(width * 2, height * 2, 0.1, -0.02, 0.001);
+      UndistortionMap sequential = UndistortionMap.build(calibration, width, height, null);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      UndistortionMap parallel = UndistortionMap.build(calibration, width, height, pool);
+      int[] src = new int[width * height], a = new int[width * height], b = new int[width * height];
+      Random random = new Random(9);
+      for (int i = 0; i < src.length; i++)
+         src[i] = random.nextInt();
+      sequential.remap(src, a, null);
+      parallel.remap(src, b, pool);
+      assertArrayEquals(a, b);
+      pool.shutdown();
+   }
+
+   @Test
+   public void persistence() throws Exception
+   {
+      final int width = 160, height = 120;
+      CameraCalibration calibration = camera(width, height, 0.1, -0.02, 0.001);
+      File file = File.createTempFile("undistortion", ".tclut");
+      file.delete();
+      try
+      {
+         StringBuilder messages = new StringBuilder();
+         UndistortionMap built = UndistortionMap.get(calibration, width, height, file, null, messages);
+         assertEquals("", messages.toString());
+         assertTrue(file.exists());
+         assertSame(built, UndistortionMap.get(calibration, width, height, file, null, messages));
+
+         UndistortionMap read = UndistortionMap.read(file, calibration, width, height);
+         assertNotNull(read);
+         int[] src = new int[width * height], a = new int[width * height], b = new int[width * height];
+         Random random = new Random(2);
+         for (int i = 0; i < src.length; i++)
+            src[i] = random.nextInt();
+         built.remap(src, a, null);
+         read.remap(src, b, null);
+         assertArrayEquals(a, b);
+
+         assertNull(UndistortionMap.read(file, calibration, width / 2, height / 2));
+         assertNull(UndistortionMap.read(file, camera(width, height, 0.1, -0.02, 0.002), width, height));
+
+         // A different calibration replaces the persisted table
+         CameraCalibration other = camera(width, height, 0, 0, 0);
+         UndistortionMap rebuilt = UndistortionMap.get(other, width, height, file, null, messages);
+         assertNotSame(built, rebuilt);
+         assertTrue(UndistortionMap.read(file, other, width, height).matches(other, width, height));
+      }
+      finally
+      {
+         file.delete();
+      }
+   }
+}
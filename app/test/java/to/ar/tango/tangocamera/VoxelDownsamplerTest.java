@@ -0,0 +1,62 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+public class VoxelDownsamplerTest
+{
+   private static CaptureFrame.PointCloud cloud(float... xyzc)
+   {
+      return new CaptureFrame.PointCloud(FloatBuffer.wrap(xyzc), 0, xyzc.length / 4, 42);
+   }
+
+   @Test
+   public void confidenceWeightedMean() throws Exception
+   {
+      VoxelDownsampler downsampler = new VoxelDownsampler();
+      CaptureFrame.PointCloud result = downsampler.downsample(cloud(0.01f, 0.01f, 1.01f, 0.25f,
+                                                                   0.09f, 0.05f, 1.05f, 0.75f,
+                                                                   -0.05f, 0.05f, 1.05f, 1,
+                                                                   0.15f, 0.05f, 1.05f, 0.5f), 0.1f);
+      assertEquals(3, result.count);
+      assertEquals(-1, result.bufferIndex);
+      assertEquals(42, result.timestamp, 0);
+      FloatBuffer p = result.points;
+      // First voxel: weights 0.25 and 0.75
+      assertEquals(0.07f, p.get(0), 1e-6f);
+      assertEquals(0.04f, p.get(1), 1e-6f);
+      assertEquals(1.04f, p.get(2), 1e-6f);
+      assertEquals(0.5f, p.get(3), 1e-6f);
+      // Negative coordinates fall in their own voxel
+      assertEquals(-0.05f, p.get(4), 1e-6f);
+      assertEquals(1, p.get(7), 0);
+      assertEquals(0.15f, p.get(8), 1e-6f);
+   }
+
+   @Test
+   public void zeroConfidence_and_reuse() throws Exception
+   {
+      VoxelDownsampler downsampler = new VoxelDownsampler();
+      CaptureFrame.PointCloud result = downsampler.downsample(cloud(1, 1, 1, 0, 1.02f, 1, 1, 0), 0.05f);
+      assertEquals(1, result.count);
+      assertEquals(1.01f, result.points.get(0), 1e-6f);
+      assertEquals(0, result.points.get(3), 0);
+
+      int n = 50000;
+      float[] dense = new float[n * 4];
+      for (int i = 0; i < n; i++)
+      {
+         dense[i * 4] = (i % 250) * 0.004f;
+         dense[i * 4 + 1] = (i / 250) * 0.004f;
+         dense[i * 4 + 2] = 2;
+         dense[i * 4 + 3] = 1;
+      }
+      result = downsampler.downsample(cloud(dense), 0.04f);
+      assertEquals(25 * 20, result.count);
+      CaptureFrame.PointCloud original = cloud(dense);
+      assertSame(original, downsampler.downsample(original, 0));
+   }
+}
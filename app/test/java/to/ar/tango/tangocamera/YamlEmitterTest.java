@@ -0,0 +1,73 @@
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YamlEmitterTest
+{
+   @Test
+   public void matchesPrintf() throws Exception
+   {
+      Random random = new Random(21);
+      YamlEmitter yaml = new YamlEmitter(16);
+      for (int pass = 0; pass < 3; pass++)
+      {
+         double fx = random.nextDouble() * 2000, w = random.nextGaussian(), x = random.nextGaussian(),
+                y = random.nextGaussian(), z = random.nextGaussian();
+         double[] distortion = { random.nextGaussian(), random.nextGaussian(), 0, -0.0, 1e-12 };
+         StringWriter sw = new StringWriter();
+         try (PrintWriter pw = new PrintWriter(sw))
+         {
+            pw.print("# Intrinsics for depth camera\n");
+            pw.printf("%sfx: %.9f\n", "d_", fx);
+            pw.printf("%sdistortion: [%.9f, %.9f, %.9f, %.9f, %.9f]\n", "d_", distortion[0], distortion[1],
+                      distortion[2], distortion[3], distortion[4]);
+            pw.printf("%simagewidth: %d\n", "d_", 224);
+            pw.print("\n");
+            pw.printf("rotation: [%.9f, %.9f, %.9f, %.9f]\n", w, x, y, z);
+            pw.printf("translation: [%.9f, %.9f, %.9f]\n", x, y, z);
+         }
+
+         yaml.reset();
+         yaml.comment("Intrinsics for depth camera");
+         yaml.key("d_", "fx").number(fx).newline();
+         yaml.key("d_", "distortion").vector(distortion).newline();
+         yaml.key("d_", "imagewidth").integer(224).newline();
+         yaml.newline();
+         yaml.key("rotation").vector(w, x, y, z).newline();
+         yaml.key("translation").vector(x, y, z).newline();
+         assertEquals(sw.toString(), yaml.toString());
+         assertEquals(yaml.length(), yaml.toByteArray().length);
+      }
+   }
+
+   @Test
+   public void preEncodedSections() throws Exception
+   {
+      YamlEmitter section = new YamlEmitter(0);
+      section.key("fx").number(500).newline();
+      byte[] cached = section.toByteArray();
+
+      YamlEmitter yaml = new YamlEmitter(0);
+      yaml.comment("camera intrinsics").bytes(cached).key("deviceRotation").text("90").newline();
+      String expected = "# camera intrinsics\nfx: 500.000000000\ndeviceRotation: 90\n";
+      assertEquals(expected, yaml.toString());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      yaml.writeTo(bytes);
+      assertEquals(expected, new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+
+      // Reuse keeps the grown buffer
+      byte[] buffer = yaml.buffer();
+      yaml.reset();
+      yaml.bytes(cached);
+      assertSame(buffer, yaml.buffer());
+      assertEquals("fx: 500.000000000\n", yaml.toString());
+   }
+}
@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest
+{
+   @Test
+   public void nv21_matchesReference() throws Exception
+   {
+      final int width = 37, height = 22, stride = 48;
+      byte[] nv21 = random(stride * height + stride * ((height + 1) / 2), 1);
+      int[] argb = new int[width * height];
+      YuvConverter.toARGB(nv21, YuvConverter.NV21, width, height, stride, argb, null);
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+         {
+            int c = stride * height + (y / 2) * stride + (x / 2) * 2;
+            assertPixel(nv21[y * stride + x], nv21[c + 1], nv21[c], argb[y * width + x], x, y);
+         }
+   }
+
+   @Test
+   public void yv12_matchesReference() throws Exception
+   {
+      final int width = 40, height = 30, stride = 64, chromaStride = stride / 2, chromaHeight = height / 2;
+      byte[] yv12 = random(stride * height + 2 * chromaStride * chromaHeight, 2);
+      int[] argb = new int[width * height];
+      YuvConverter.toARGB(yv12, YuvConverter.YV12, width, height, stride, argb, null);
+      final int vOffset = stride * height, uOffset = vOffset + chromaStride * chromaHeight;
+      for (int y = 0; y < height; y++)
+         for (int x = 0; x < width; x++)
+         {
+            int c = (y / 2) * chromaStride + x / 2;
+            assertPixel(yv12[y * stride + x], yv12[uOffset + c], yv12[vOffset + c], argb[y * width + x], x, y);
+         }
+   }
+
+   @Test
+   public void parallel_matchesSequential() throws Exception
+   {
+      final int width = 641, height = 482, stride = 656;
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try
+      {
+         for (int format : new int[] { YuvConverter.NV21, YuvConverter.YV12 })
+         {
+            byte[] yuv = random(stride * height + stride * (height / 2), format);
+            int[] sequential = new int[width * height], parallel = new int[width * height];
+            YuvConverter.toARGB(yuv, format, width, height, stride, sequential, null);
+            YuvConverter.toARGB(yuv, format, width, height, stride, parallel, pool);
+            assertArrayEquals(sequential, parallel);
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void destinationTooSmall() throws Exception
+   {
+      YuvConverter.toARGB(new byte[16 * 16 * 3 / 2], YuvConverter.NV21, 16, 16, 16, new int[16 * 15], null);
+   }
+
+   private static void assertPixel(byte Y, byte U, byte V, int argb, int x, int y)
+   {
+      double yy = Y & 0xFF, u = (U & 0xFF) - 128, v = (V & 0xFF) - 128;
+      int r = clamp(yy + 1.402 * v), g = clamp(yy - 0.344136 * u - 0.714136 * v), b = clamp(yy + 1.772 * u);
+      String at = x + "," + y;
+      assertEquals(at, 0xFF, argb >>> 24);
+      assertEquals(at, r, (argb >> 16) & 0xFF, 1);
+      assertEquals(at, g, (argb >> 8) & 0xFF, 1);
+      assertEquals(at, b, argb & 0xFF, 1);
+   }
+
+   private static int clamp(double v) { return (int) Math.max(0, Math.min(255, Math.round(v))); }
+
+   private static byte[] random(int length, long seed)
+   {
+      byte[] data = new byte[length];
+      new Random(seed).nextBytes(data);
+      return data;
+   }
+}
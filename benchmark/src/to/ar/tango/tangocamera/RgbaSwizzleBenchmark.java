@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RGBA_8888 channel swap of a 1920x1080 frame in direct buffers: the per byte loop previously used in
+ * PostProcessThread.saveImage against RgbaSwizzle on one thread and split over a fork-join pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RgbaSwizzleBenchmark
+{
+   static final int WIDTH = 1920, HEIGHT = 1080;
+
+   private ByteBuffer src, dest;
+   private ForkJoinPool pool;
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      byte[] data = new byte[WIDTH * HEIGHT * 4];
+      new Random(7).nextBytes(data);
+      src = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+      src.put(data).flip();
+      dest = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() { pool.shutdown(); }
+
+   @Benchmark
+   public ByteBuffer byteLoop()
+   {
+      final int len = src.limit();
+      for (int i = 0; i < len; i += 4)
+      {
+         byte b = src.get(i);
+         src.put(i, src.get(i + 3));
+         src.put(i + 3, b);
+      }
+      return src;
+   }
+
+   @Benchmark
+   public ByteBuffer intBuffer()
+   {
+      RgbaSwizzle.swapFirstLast(src, dest, null);
+      return dest;
+   }
+
+   @Benchmark
+   public ByteBuffer intBufferParallel()
+   {
+      RgbaSwizzle.swapFirstLast(src, dest, pool);
+      return dest;
+   }
+}
@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+package to.ar.tango.tangocamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Voxel grid downsampling of a synthetic one million point cloud (a noisy 4m x 3m wall 2m away, like a dense
+ * Tango depth cloud) using VoxelDownsampler against the same averaging over a HashMap with boxed Long keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VoxelDownsamplerBenchmark
+{
+   static final int POINTS = 1000000;
+
+   @Param({ "0.01", "0.05" })
+   public float leafSize;
+
+   private CaptureFrame.PointCloud cloud;
+   private final VoxelDownsampler downsampler = new VoxelDownsampler();
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      Random random = new Random(11);
+      FloatBuffer points = ByteBuffer.allocateDirect(POINTS * 16).order(ByteOrder.nativeOrder()).asFloatBuffer();
+      for (int i = 0; i < POINTS; i++)
+         points.put(random.nextFloat() * 4 - 2).put(random.nextFloat() * 3 - 1.5f).
+                put(2 + (float) random.nextGaussian() * 0.01f).put(random.nextFloat());
+      points.flip();
+      cloud = new CaptureFrame.PointCloud(points, -1, POINTS, 0);
+   }
+
+   @Benchmark
+   public int longIntMap()
+   {
+      return downsampler.downsample(cloud, leafSize).count;
+   }
+
+   @Benchmark
+   public int boxedHashMap()
+   {
+      final FloatBuffer points = cloud.points;
+      final float scale = 1 / leafSize;
+      Map<Long, double[]> voxels = new HashMap<>();
+      for (int i = 0; i < POINTS; i++)
+      {
+         float x = points.get(i * 4), y = points.get(i * 4 + 1), z = points.get(i * 4 + 2), c = points.get(i * 4 + 3);
+         Long key = VoxelDownsampler.key((int) Math.floor(x * scale), (int) Math.floor(y * scale),
+                                         (int) Math.floor(z * scale));
+         double[] sums = voxels.get(key);
+         if (sums == null)
+         {
+            sums = new double[6];
+            voxels.put(key, sums);
+         }
+         float w = Math.max(c, 1e-6f);
+         sums[0] += w * x; sums[1] += w * y; sums[2] += w * z; sums[3] += w; sums[4] += c; sums[5]++;
+      }
+      FloatBuffer out = FloatBuffer.allocate(voxels.size() * 4);
+      for (double[] sums : voxels.values())
+         out.put((float) (sums[0] / sums[3])).put((float) (sums[1] / sums[3])).put((float) (sums[2] / sums[3])).
+             put((float) (sums[4] / sums[5]));
+      return out.position() / 4;
+   }
+}
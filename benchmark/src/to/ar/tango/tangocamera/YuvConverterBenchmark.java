@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2017 Donald Munro
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+
+package to.ar.tango.tangocamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV 4:2:0 to ARGB conversion of a 1920x1080 frame (with stride padding) on one thread and striped over a
+ * fork-join pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class YuvConverterBenchmark
+{
+   @Param({ "NV21", "YV12" })
+   public String format;
+
+   static final int WIDTH = 1920, HEIGHT = 1080, STRIDE = 1984;
+
+   private byte[] yuv;
+   private int[] argb;
+   private int yuvFormat;
+   private ForkJoinPool pool;
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      yuvFormat = format.equals("NV21") ? YuvConverter.NV21 : YuvConverter.YV12;
+      yuv = new byte[STRIDE * HEIGHT * 3 / 2];
+      new Random(11).nextBytes(yuv);
+      argb = new int[WIDTH * HEIGHT];
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() { pool.shutdown(); }
+
+   @Benchmark
+   public int[] sequential()
+   {
+      YuvConverter.toARGB(yuv, yuvFormat, WIDTH, HEIGHT, STRIDE, argb, null);
+      return argb;
+   }
+
+   @Benchmark
+   public int[] striped()
+   {
+      YuvConverter.toARGB(yuv, yuvFormat, WIDTH, HEIGHT, STRIDE, argb, pool);
+      return argb;
+   }
+}